@@ -29,6 +29,17 @@ android {
     }
     buildToolsVersion = "33.0.0"
 
+    testOptions {
+        // The JVM tests run code that logs with android.util.Log
+        unitTests.isReturnDefaultValues = true
+        // The JMH benchmarks run with -Dbenchmark=true, see BenchmarksTest
+        unitTests.all { test ->
+            System.getProperties().stringPropertyNames()
+                .filter { it.startsWith("benchmark") }
+                .forEach { test.systemProperty(it, System.getProperty(it)) }
+        }
+    }
+
     publishing {
         singleVariant("release") {
             withSourcesJar()
@@ -63,6 +74,8 @@ dependencies {
     implementation("com.google.android.material:material:1.7.0")
     implementation("androidx.core:core-ktx:1.9.0")
     testImplementation("junit:junit:4.13.2")
+    testImplementation("org.openjdk.jmh:jmh-core:1.36")
+    testAnnotationProcessor("org.openjdk.jmh:jmh-generator-annprocess:1.36")
     androidTestImplementation("androidx.test.ext:junit:1.1.4")
     androidTestImplementation("androidx.test.espresso:espresso-core:3.5.0")
 }
\ No newline at end of file
@@ -1153,14 +1153,23 @@ public final class MediaCodecUtils {
     }
 
     /**
-     * codec specific dataの先頭マーカー位置を検索
-     * BufferHelper.byteCompのシノニム
+     * codec specific dataの先頭マーカー位置(00 00 00 01)を検索
+     * BufferHelper.byteCompと同じ結果を返すがBufferHelper.findStartCodeで
+     * 3バイトのスタートコードを探してから直前の0x00を確認する
      * @param array
      * @param offset
-     * @return
+     * @return 見つからなければ-1
      */
     public static int findStartMarker(@NonNull final byte[] array, final int offset) {
-        return BufferHelper.byteComp(array, offset, START_MARKER, START_MARKER.length);
+        final int end = array.length - 1;
+        int ix = BufferHelper.findStartCode(array, Math.max(offset, 0) + 1, end);
+        while (ix >= 0) {
+            if (array[ix - 1] == 0x00) {
+                return ix - 1;
+            }
+            ix = BufferHelper.findStartCode(array, ix + 1, end);
+        }
+        return -1;
     }
 
     /**
@@ -1273,6 +1282,37 @@ public final class MediaCodecUtils {
         format.setInteger(MediaFormat.KEY_BIT_RATE, _config.getBitrate(width, height));
         format.setInteger(MediaFormat.KEY_FRAME_RATE, _config.captureFps());
         format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, _config.calcIFrameIntervals());
+        return testVideoMediaFormat(format);
+    }
+
+    /**
+     * 実際に映像をエンコードしてMediaFormatを取得する
+     * 映像ソースはsurfaceから入力する
+     * プロファイルやBフレーム数など任意のパラメータを設定したエンコーダーの
+     * codec specific dataを取得するときに使う
+     * @param format エンコーダーの設定, KEY_COLOR_FORMATはCOLOR_FormatSurfaceでないといけない
+     * @return
+     */
+    @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN_MR2)
+    @NonNull
+    public static MediaFormat testVideoMediaFormat(@NonNull final MediaFormat format) throws IOException {
+        return testVideoMediaFormat(format, null);
+    }
+
+    /**
+     * 実際に映像をエンコードしてMediaFormatを取得する
+     * 映像ソースはsurfaceから入力する
+     * @param format エンコーダーの設定, KEY_COLOR_FORMATはCOLOR_FormatSurfaceでないといけない
+     * @param codecName エンコーダーの名前, nullならmimeからエンコーダーを選ぶ
+     * @return
+     */
+    @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN_MR2)
+    @NonNull
+    public static MediaFormat testVideoMediaFormat(
+            @NonNull final MediaFormat format, @Nullable final String codecName) throws IOException {
+        final String mime = format.getString(MediaFormat.KEY_MIME);
+        final int width = format.getInteger(MediaFormat.KEY_WIDTH);
+        final int height = format.getInteger(MediaFormat.KEY_HEIGHT);
         if (DEBUG) dump(TAG, format);
 
         // 設定したフォーマットに従ってMediaCodecのエンコーダーを生成する
@@ -1280,7 +1320,8 @@ public final class MediaCodecUtils {
         final AtomicReference<MediaFormat> result = new AtomicReference<>();
         final CountDownLatch latch = new CountDownLatch(1);
         if (DEBUG) Log.v(TAG, "testVideoMediaFormat:create encoder");
-        final MediaCodec encoder = MediaCodec.createEncoderByType(mime);
+        final MediaCodec encoder = codecName != null
+                ? MediaCodec.createByCodecName(codecName) : MediaCodec.createEncoderByType(mime);
         if (DEBUG) Log.v(TAG, "testVideoMediaFormat:configure encoder");
         encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         final Surface surface = encoder.createInputSurface();    // API >= 18
@@ -0,0 +1,311 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2022 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.media.MediaCodec;
+
+import com.serenegiant.utils.Pool;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * エンコード済みフレームを複数のコンシューマーへ配信するためのpublish/subscribe方式のバス
+ * 各フレームは参照カウント付きのSharedMediaDataとしてコピーせずに共有し、
+ * 全てのサブスクライバーが解放した時点でプールへ返却する
+ * サブスクライバー毎に容量制限付きのキューと溢れた時の破棄方法を指定できるので
+ * 遅いコンシューマーがいても他のコンシューマーやエンコーダーを止めない
+ * MediaCodecはコーデック固有データ(BUFFER_FLAG_CODEC_CONFIG)を最初に1度しか出力しないので
+ * 最後に配信したコーデック固有データを保持して後から追加したサブスクライバーへ最初に渡す
+ */
+public class MediaFrameBus implements IRecycleParent<RecycleMediaData> {
+
+	/**
+	 * サブスクライバーのキューが一杯の時の処理方法
+	 */
+	public enum DropPolicy {
+		/** 一番古いフレームを破棄して新しいフレームを追加する */
+		DROP_OLDEST,
+		/** 新しいフレームを破棄する */
+		DROP_NEWEST,
+	}
+
+	/**
+	 * フレームを受け取るためのサブスクライバー
+	 * #pollで取得したフレームは使用後に必ずSharedMediaData#releaseを呼ぶこと
+	 */
+	public static class Subscriber {
+		@NonNull
+		private final ArrayBlockingQueue<SharedMediaData> mQueue;
+		@NonNull
+		private final DropPolicy mPolicy;
+		@NonNull
+		private final AtomicLong mDropped = new AtomicLong();
+		@Nullable
+		private volatile Runnable mListener;
+
+		private Subscriber(final int capacity, @NonNull final DropPolicy policy) {
+			mQueue = new ArrayBlockingQueue<SharedMediaData>(Math.max(capacity, 1));
+			mPolicy = policy;
+		}
+
+		/**
+		 * フレームを追加する, 呼び出し元の参照はこのサブスクライバーへ移譲される
+		 * @param data
+		 */
+		private void offer(@NonNull final SharedMediaData data) {
+			if (!mQueue.offer(data)) {
+				if (mPolicy == DropPolicy.DROP_OLDEST) {
+					final SharedMediaData oldest = mQueue.poll();
+					if (oldest != null) {
+						oldest.release();
+						mDropped.incrementAndGet();
+					}
+					if (mQueue.offer(data)) {
+						notifyAvailable();
+						return;
+					}
+				}
+				data.release();
+				mDropped.incrementAndGet();
+			} else {
+				notifyAvailable();
+			}
+		}
+
+		/**
+		 * フレームがキューへ追加された時に呼ばれるリスナーをセットする
+		 * リスナーは#publishを呼んだスレッド上で呼ばれるので直ぐに返ること
+		 * @param listener nullなら解除する
+		 */
+		public void setOnAvailableListener(@Nullable final Runnable listener) {
+			mListener = listener;
+			if ((listener != null) && !mQueue.isEmpty()) {
+				listener.run();
+			}
+		}
+
+		private void notifyAvailable() {
+			final Runnable listener = mListener;
+			if (listener != null) {
+				listener.run();
+			}
+		}
+
+		/**
+		 * フレームを取得する
+		 * @param timeout
+		 * @param unit
+		 * @return 参照を1つ保持したSharedMediaData, タイムアウトした時はnull
+		 * @throws InterruptedException
+		 */
+		@Nullable
+		public SharedMediaData poll(final long timeout, @NonNull final TimeUnit unit)
+			throws InterruptedException {
+
+			return mQueue.poll(timeout, unit);
+		}
+
+		/**
+		 * キューに溜まっているフレーム数を取得
+		 * @return
+		 */
+		public int count() {
+			return mQueue.size();
+		}
+
+		/**
+		 * 次に取得するフレームのサイズを取得
+		 * 参照を保持しないので目安として使うこと
+		 * @return フレームが無い時は0
+		 */
+		public int peekSize() {
+			final SharedMediaData data = mQueue.peek();
+			return data != null ? data.size() : 0;
+		}
+
+		/**
+		 * キューが溢れて破棄したフレーム数を取得
+		 * @return
+		 */
+		public long dropped() {
+			return mDropped.get();
+		}
+
+		/**
+		 * キュー内のフレームを全て解放する
+		 */
+		private void clear() {
+			for ( ; ; ) {
+				final SharedMediaData data = mQueue.poll();
+				if (data == null) break;
+				data.release();
+			}
+		}
+	}
+
+	@NonNull
+	private final Pool<SharedMediaData> mPool;
+	@NonNull
+	private final List<Subscriber> mSubscribers = new CopyOnWriteArrayList<Subscriber>();
+	/**
+	 * 最後に配信したコーデック固有データ, 参照を1つ保持する
+	 */
+	@Nullable
+	private SharedMediaData mConfig;
+
+	/**
+	 * コンストラクタ
+	 * @param initNum プール内のフレームの初期数
+	 * @param maxNumInPool プール内に保持できるフレームの最大数
+	 */
+	public MediaFrameBus(final int initNum, final int maxNumInPool) {
+		mPool = new Pool<SharedMediaData>(initNum, maxNumInPool) {
+			@NonNull
+			@Override
+			protected SharedMediaData createObject(@Nullable final Object... args) {
+				return new SharedMediaData(MediaFrameBus.this);
+			}
+		};
+	}
+
+	/**
+	 * 関連するリソースを破棄する
+	 */
+	public void release() {
+		synchronized (mSubscribers) {
+			if (mConfig != null) {
+				mConfig.release();
+				mConfig = null;
+			}
+		}
+		for (final Subscriber subscriber: mSubscribers) {
+			subscriber.clear();
+		}
+		mSubscribers.clear();
+		mPool.clear();
+	}
+
+	/**
+	 * サブスクライバーを追加する
+	 * コーデック固有データを配信済みであれば追加したサブスクライバーのキューの先頭に入れる
+	 * @param capacity キューの最大数
+	 * @param policy キューが一杯の時の処理方法
+	 * @return
+	 */
+	@NonNull
+	public Subscriber subscribe(final int capacity, @NonNull final DropPolicy policy) {
+		final Subscriber result = new Subscriber(capacity, policy);
+		synchronized (mSubscribers) {
+			if ((mConfig != null) && mConfig.acquire()) {
+				result.offer(mConfig);
+			}
+			mSubscribers.add(result);
+		}
+		return result;
+	}
+
+	/**
+	 * サブスクライバーを削除する, キュー内の未処理のフレームは解放される
+	 * @param subscriber
+	 */
+	public void unsubscribe(@NonNull final Subscriber subscriber) {
+		mSubscribers.remove(subscriber);
+		subscriber.clear();
+	}
+
+	/**
+	 * 最後に配信したコーデック固有データを取得する
+	 * @return 参照を1つ保持したSharedMediaData, 使用後にSharedMediaData#releaseを呼ぶこと, 未配信ならnull
+	 */
+	@Nullable
+	public SharedMediaData config() {
+		synchronized (mSubscribers) {
+			return (mConfig != null) && mConfig.acquire() ? mConfig : null;
+		}
+	}
+
+	/**
+	 * サブスクライバー数を取得
+	 * @return
+	 */
+	public int subscriberCount() {
+		return mSubscribers.size();
+	}
+
+	/**
+	 * プールからフレームを取得する
+	 * 取得したフレームは#publishで配信するかSharedMediaData#releaseで返却すること
+	 * @return プールが空で最大生成数を超えている時はnull
+	 */
+	@Nullable
+	public SharedMediaData obtain() {
+		final SharedMediaData result = mPool.obtain();
+		if (result != null) {
+			result.setRecycled(false);
+			result.resetRef();
+		}
+		return result;
+	}
+
+	/**
+	 * 全てのサブスクライバーへフレームを配信する
+	 * 呼び出し元の参照(#obtainで取得した参照)はここで解放される
+	 * @param data
+	 */
+	public void publish(@NonNull final SharedMediaData data) {
+		if ((data.flags() & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+			synchronized (mSubscribers) {
+				if (mConfig != null) {
+					mConfig.release();
+				}
+				mConfig = data.acquire() ? data : null;
+				// 配信中に追加されたサブスクライバーへ2重に渡さないようにロック内で配信する
+				deliver(data);
+			}
+		} else {
+			deliver(data);
+		}
+	}
+
+	private void deliver(@NonNull final SharedMediaData data) {
+		for (final Subscriber subscriber: mSubscribers) {
+			if (data.acquire()) {
+				subscriber.offer(data);
+			}
+		}
+		data.release();
+	}
+
+	@Override
+	public boolean recycle(@NonNull final RecycleMediaData buffer) {
+		if (!buffer.isRecycled() && (buffer instanceof SharedMediaData)) {
+			buffer.setRecycled(true);
+			return mPool.recycle((SharedMediaData)buffer);
+		} else {
+			return false;
+		}
+	}
+}
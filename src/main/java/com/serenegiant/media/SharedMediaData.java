@@ -0,0 +1,116 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2022 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import androidx.annotation.NonNull;
+
+/**
+ * 参照カウント付きのRecycleMediaData
+ * 複数のコンシューマーで1つのエンコード済みフレームをコピーせずに共有するためのクラス
+ * 参照カウントが0になった時点で親(プール)へ返却される
+ */
+public class SharedMediaData extends RecycleMediaData {
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+	@NonNull
+	private final AtomicInteger mRefCount = new AtomicInteger();
+
+	/**
+	 * コンストラクタ
+	 * @param parent 親となるIRecycleParentオブジェクト
+	 */
+	public SharedMediaData(@NonNull final IRecycleParent<RecycleMediaData> parent) {
+		super(parent);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param parent 親となるIRecycleParentオブジェクト
+	 * @param size データ保持用の内部バッファのデフォルトサイズ
+	 */
+	public SharedMediaData(@NonNull final IRecycleParent<RecycleMediaData> parent, final int size) {
+		super(parent, size);
+	}
+
+	/**
+	 * 参照カウントを1にリセットする
+	 * プールから取得した直後に呼ぶ
+	 */
+	/*package*/ void resetRef() {
+		mRefCount.set(1);
+	}
+
+	/**
+	 * 参照カウントを1つ増やす
+	 * @return true: 参照を追加できた, false: すでに解放済み
+	 */
+	public boolean acquire() {
+		for ( ; ; ) {
+			final int count = mRefCount.get();
+			if (count <= 0) {
+				return false;
+			}
+			if (mRefCount.compareAndSet(count, count + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * 参照カウントを1つ減らす、0になればプールへ返却する
+	 */
+	public void release() {
+		final int count = mRefCount.decrementAndGet();
+		if (count == 0) {
+			recycle();
+		} else if (count < 0) {
+			// 二重解放
+			mRefCount.set(0);
+		}
+	}
+
+	/**
+	 * 現在の参照数を取得
+	 * @return
+	 */
+	public int refCount() {
+		return mRefCount.get();
+	}
+
+	/**
+	 * 保持しているデータの読み取り専用ビューを返す
+	 * 呼び出し毎に独立したposition/limitを持つのでコンシューマー間で干渉しない
+	 * 内容をコピーしないので参照を保持している間だけ有効
+	 * @return
+	 */
+	@NonNull
+	public ByteBuffer view() {
+		final ByteBuffer buf = getRaw();
+		if (buf == null) {
+			return EMPTY;
+		}
+		final ByteBuffer result = buf.asReadOnlyBuffer();
+		result.clear();
+		result.limit(Math.min(size(), result.capacity()));
+		return result;
+	}
+}
@@ -28,6 +28,7 @@ import com.serenegiant.media.VideoConfig;
 import net.majorkernelpanic.streaming.SessionBuilder;
 import net.majorkernelpanic.streaming.mp4.MP4Config;
 import net.majorkernelpanic.streaming.rtp.H264Packetizer;
+import net.majorkernelpanic.streaming.video.KeyFrameRequester;
 import net.majorkernelpanic.streaming.video.VideoQuality;
 
 import java.io.IOException;
@@ -77,6 +78,7 @@ public class H264Stream extends VideoStream {
 			final byte[] pps = Base64.decode(mConfig.getB64PPS(), Base64.NO_WRAP);
 			final byte[] sps = Base64.decode(mConfig.getB64SPS(), Base64.NO_WRAP);
 			((H264Packetizer)mPacketizer).setStreamParameters(pps, sps);
+			((H264Packetizer)mPacketizer).setIntraRefreshPeriod(KeyFrameRequester.getIntraRefreshPeriod(mQuality));
 			super.start();
 		}
 	}
@@ -33,6 +33,7 @@ import net.majorkernelpanic.streaming.Stream;
 import net.majorkernelpanic.streaming.exceptions.ConfNotSupportedException;
 import net.majorkernelpanic.streaming.rtp.MediaCodecInputStream;
 import net.majorkernelpanic.streaming.video.IVideoStream;
+import net.majorkernelpanic.streaming.video.KeyFrameRequester;
 import net.majorkernelpanic.streaming.video.VideoQuality;
 import net.majorkernelpanic.streaming.video.VideoSource;
 
@@ -64,6 +65,7 @@ public abstract class VideoStream extends MediaStream implements IVideoStream {
 	protected String mEncoderName;
 	protected int mEncoderColorFormat;
 	protected int mMaxFps = 0;
+	protected final KeyFrameRequester mKeyFrameRequester = new KeyFrameRequester();
 
 	/**
 	 * Don't use this class directly.
@@ -133,6 +135,7 @@ public abstract class VideoStream extends MediaStream implements IVideoStream {
 	 * Stops the stream.
 	 */
 	public synchronized void stop() {
+		mKeyFrameRequester.setMediaCodec(null);
 		final VideoSource source = mSource;
 		mSource = null;
 		if (source != null) {
@@ -147,6 +150,14 @@ public abstract class VideoStream extends MediaStream implements IVideoStream {
 	public synchronized void startPreview() {
 	}
 
+	/**
+	 * Asks the encoder for a key frame, for example when a new client joins the stream.
+	 * Requests are coalesced, see {@link KeyFrameRequester}.
+	 */
+	public void requestKeyFrame() {
+		mKeyFrameRequester.request();
+	}
+
 	/**
 	 * Stops the preview.
 	 */
@@ -258,11 +269,13 @@ public abstract class VideoStream extends MediaStream implements IVideoStream {
 		mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, mQuality.bitrate);
 		mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, mQuality.framerate);
 		mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
-		mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+		KeyFrameRequester.setKeyFrameFormat(mediaFormat, mQuality);
 		mMediaCodec.configure(mediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
 		final Surface surface = mMediaCodec.createInputSurface();
 		mSurfaceId = mSource.addSurface(surface);
 		mMediaCodec.start();
+		mKeyFrameRequester.setMediaCodec(mMediaCodec);
+		mPacketizer.getRtpSocket().setKeyFrameRequestListener(mKeyFrameRequester);
 		MediaCodecUtils.dump(TAG + " RTSP", mediaFormat);
 		// The packetizer encapsulates the bit stream in an RTP stream and send it over the network
 		mPacketizer.setInputStream(MediaCodecInputStream.newInstance(mMediaCodec));
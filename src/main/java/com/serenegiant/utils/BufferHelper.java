@@ -221,31 +221,60 @@ public class BufferHelper {
     /**
      * AnnexBのスタートマーカー(N[00] 00 00 01 (N ≧ 0))を探して先頭インデックスを返す
      * 返り値が0以上の場合は、返り値+3がpayloadの先頭位置(nalu headerのはず)
+     * 4バイトのスタートマーカーが見つかればそれを優先する
      * @param data
      * @param offset
      * @return 見つからなければ負
      */
     public static final int findAnnexB(final byte[] data, final int offset) {
         if (data != null) {
-            final int len5 = data.length - 5;	// 本当はlength-3までだけどpayloadが無いのは無効とみなしてlength-4までとする
-            for (int i = offset; i < len5; i++) {
-                // 最低3つは連続して0x00
-                if ((data[i] != 0x00) || (data[i+1] != 0x00) || (data[i+2] != 0x00)) {
-                    continue;
+            // 本当はlength-3までだけどpayloadが無いのは無効とみなす
+            final int end = data.length - 2;
+            int first = -1;
+            int ix = findStartCode(data, offset, end);
+            while (ix >= 0) {
+                // 直前も0x00なら4バイトのスタートマーカー
+                if ((ix > offset) && (data[ix - 1] == 0x00)) {
+                    return ix - 1;
                 }
-                // 4つ目が0x01ならOK
-                if (data[i+3] == 0x01) {
-                    return i;
+                if (first < 0) {
+                    first = ix;
                 }
+                ix = findStartCode(data, ix + 1, end);
             }
-            final int len4 = data.length - 4;	// 本当はlength-3までだけどpayloadが無いのは無効とみなしてlength-4までとする
-            for (int i = offset; i < len4; i++) {
-                // 最低2つは連続して0x00でないとだめ
-                if ((data[i] != 0x00) || (data[i+1] != 0x00)) {
+            return first;
+        }
+        return -1;
+    }
+
+    /**
+     * 3バイトのスタートコード(00 00 01)を探して先頭インデックスを返す
+     * スタートコードは少なくとも2つの0x00を含むので、8バイトずつ読み込んで
+     * 0x00を含まない部分は1バイトずつ比較せずに読み飛ばす
+     * @param data
+     * @param from 検索開始位置
+     * @param to 検索終了位置(このインデックスを含まない), スタートコード全体がこの範囲内にある必要がある
+     * @return 見つからなければ負
+     */
+    public static int findStartCode(@NonNull final byte[] data, final int from, final int to) {
+        final int end = Math.min(to, data.length) - 2;	// スタートコードの先頭位置の上限(含まない)
+        int i = Math.max(from, 0);
+        if (i < end) {
+            final ByteBuffer words = ByteBuffer.wrap(data);
+            for ( ; i + 8 <= end; i += 8) {
+                final long v = words.getLong(i);
+                // 0x00を含まない8バイトからはスタートコードが始まらない
+                if (((v - 0x0101010101010101L) & ~v & 0x8080808080808080L) == 0) {
                     continue;
                 }
-                // 3つ目が0x01ならOK
-                if (data[i+2] == 0x01) {
+                for (int j = i; j < i + 8; j++) {
+                    if ((data[j] == 0x00) && (data[j + 1] == 0x00) && (data[j + 2] == 0x01)) {
+                        return j;
+                    }
+                }
+            }
+            for ( ; i < end; i++) {
+                if ((data[i] == 0x00) && (data[i + 1] == 0x00) && (data[i + 2] == 0x01)) {
                     return i;
                 }
             }
@@ -25,6 +25,7 @@ import java.net.InetAddress;
 import java.util.Random;
 import net.majorkernelpanic.streaming.audio.AudioStream;
 import net.majorkernelpanic.streaming.rtp.AbstractPacketizer;
+import net.majorkernelpanic.streaming.rtp.FrameInputStream;
 import net.majorkernelpanic.streaming.video.VideoStream;
 import android.annotation.SuppressLint;
 import android.media.MediaCodec;
@@ -36,6 +37,8 @@ import android.os.Build;
 import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
+import com.serenegiant.media.MediaFrameBus;
+
 /**
  * A MediaRecorder that streams what it records using a packetizer from the RTP package.
  * You can't use this class directly !
@@ -67,6 +70,7 @@ public abstract class MediaStream implements IMediaStream {
 	protected final static byte sPipeApi;
 	private final long mStartTimeNs;
 	private boolean mStreaming = false, mConfigured = false;
+	private boolean mFanOutOnly = false;
 	protected int mRtpPort = 0, mRtcpPort = 0; 
 	protected byte mChannelIdentifier = 0;
 	protected OutputStream mOutputStream = null;
@@ -80,7 +84,7 @@ public abstract class MediaStream implements IMediaStream {
 	private LocalServerSocket mLss = null;
 	private int mSocketId; 
 	
-	private int mTTL = 64;
+	protected int mTTL = 64;
 
 	protected MediaRecorder mMediaRecorder;
 	protected MediaCodec mMediaCodec;
@@ -153,6 +157,15 @@ public abstract class MediaStream implements IMediaStream {
 		mOutputStream = null;
 	}	
 
+	/**
+	 * Lets the stream start without destination ports, its packets are then only sent to the receivers
+	 * added with {@link net.majorkernelpanic.streaming.rtp.RtpSocket#addDestination}, as when the stream
+	 * is shared by several clients.
+	 */
+	public void setFanOutOnly(boolean fanOutOnly) {
+		mFanOutOnly = fanOutOnly;
+	}
+
 	/**
 	 * If a TCP is used as the transport protocol for the RTP session,
 	 * the output stream to which RTP packets will be written to must
@@ -226,6 +239,18 @@ public abstract class MediaStream implements IMediaStream {
 		return mPacketizer;
 	}
 
+	/**
+	 * Returns the bus on which the encoder publishes its output, so that other sinks
+	 * (a recorder for instance) can consume the same frames as the packetizer.
+	 * Returns null if the stream is not streaming with the MediaCodec API.
+	 */
+	public MediaFrameBus getFrameBus() {
+		if (mPacketizer != null && mPacketizer.getInputStream() instanceof FrameInputStream) {
+			return ((FrameInputStream) mPacketizer.getInputStream()).getFrameBus();
+		}
+		return null;
+	}
+
 	/**
 	 * Returns an approximation of the bit rate consumed by the stream in bit per seconde.
 	 */
@@ -253,12 +278,17 @@ public abstract class MediaStream implements IMediaStream {
 	 */
 	public synchronized void configure() throws IllegalStateException, IOException {
 		if (mStreaming) throw new IllegalStateException("Can't be called while streaming.");
+		updateDestination();
+		mMode = mRequestedMode;
+		mConfigured = true;
+	}
+
+	/** Gives the destination of the stream to its packetizer, done by {@link #configure()}. */
+	protected void updateDestination() {
 		if (mPacketizer != null) {
 			mPacketizer.setDestination(mDestination, mRtpPort, mRtcpPort);
 			mPacketizer.getRtpSocket().setOutputStream(mOutputStream, mChannelIdentifier);
 		}
-		mMode = mRequestedMode;
-		mConfigured = true;
 	}
 	
 	/** Starts the stream. */
@@ -267,7 +297,7 @@ public abstract class MediaStream implements IMediaStream {
 		if (mDestination==null)
 			throw new IllegalStateException("No destination ip address set for the stream !");
 
-		if (mRtpPort<=0 || mRtcpPort<=0)
+		if ((mRtpPort<=0 || mRtcpPort<=0) && !mFanOutOnly)
 			throw new IllegalStateException("No destination ports set for the stream !");
 
 		mPacketizer.setTimeToLive(mTTL);
@@ -24,6 +24,8 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.security.SecureRandom;
 import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import net.majorkernelpanic.streaming.audio.AudioQuality;
 import net.majorkernelpanic.streaming.audio.AudioStream;
@@ -36,17 +38,18 @@ import net.majorkernelpanic.streaming.gl.SurfaceView;
 import net.majorkernelpanic.streaming.rtsp.RtspClient;
 import net.majorkernelpanic.streaming.video.ILocalVideoStream;
 import net.majorkernelpanic.streaming.video.IVideoStream;
+import net.majorkernelpanic.streaming.video.SimulcastLayer;
 import net.majorkernelpanic.streaming.video.VideoQuality;
 import net.majorkernelpanic.streaming.video.VideoStream;
 
 import android.content.Context;
 import android.hardware.Camera.CameraInfo;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Looper;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 /**
  * You should instantiate this class with the {@link SessionBuilder}.<br />
@@ -138,10 +141,8 @@ public class Session {
 		mId = String.format(Locale.US, "%014x", sRandom.nextLong()); // "1185d20035702c";
 		final long uptime = System.currentTimeMillis();
 
-		HandlerThread thread = new HandlerThread("net.majorkernelpanic.streaming.Session");
-		thread.start();
-
-		mHandler = new Handler(thread.getLooper());
+		// The control work of the session runs on a looper shared with other sessions
+		mHandler = new Handler(StreamingExecutors.getControlLooper());
 		mMainHandler = new Handler(Looper.getMainLooper());
 		mTimestamp = (uptime/1000)<<32 & (((uptime-((uptime/1000)*1000))>>32)/1000); // NTP timestamp
 		mOrigin = "127.0.0.1";
@@ -345,6 +346,27 @@ public class Session {
 	 * @throws IllegalStateException Thrown when {@link #setDestination(String)} has never been called.
 	 */
 	public String getSessionDescription() {
+		return getSessionDescription(getMediaDescriptions(null));
+	}
+
+	/** 
+	 * Returns a Session Description in which the video track is one of the simulcast layers of the video stream.
+	 * @param videoLayer The layer, see {@link VideoStream#getSimulcastLayers()}, null for the video stream itself
+	 * @return The Session Description.
+	 * @throws IllegalStateException Thrown when {@link #setDestination(String)} has never been called.
+	 */
+	public String getSessionDescription(@Nullable SimulcastLayer videoLayer) {
+		return getSessionDescription(getMediaDescriptions(videoLayer));
+	}
+
+	/** 
+	 * Returns a Session Description made of media descriptions returned earlier by {@link #getMediaDescriptions()},
+	 * so that a session configured in the same way can be described without configuring its streams.
+	 * @param mediaDescriptions The descriptions of the streams
+	 * @return The Session Description.
+	 * @throws IllegalStateException Thrown when {@link #setDestination(String)} has never been called.
+	 */
+	public String getSessionDescription(@NonNull String mediaDescriptions) {
 		StringBuilder sessionDescription = new StringBuilder();
 		if (mDestination==null) {
 			throw new IllegalStateException("setDestination() has not been called !");
@@ -358,16 +380,31 @@ public class Session {
 		// t=0 0 means the session is permanent (we don't know when it will stop)
 		sessionDescription.append("t=0 0\r\n");
 		sessionDescription.append("a=recvonly\r\n");
+		sessionDescription.append(mediaDescriptions);
+		return sessionDescription.toString();
+	}
+
+	/** 
+	 * Returns the media descriptions of the streams of the session, the part of the Session Description
+	 * that depends on their configuration.
+	 * @throws IllegalStateException Thrown when the streams are not configured.
+	 */
+	public String getMediaDescriptions() {
+		return getMediaDescriptions(null);
+	}
+
+	private String getMediaDescriptions(@Nullable SimulcastLayer videoLayer) {
+		StringBuilder mediaDescriptions = new StringBuilder();
 		// Prevents two different sessions from using the same peripheral at the same time
 		if (mAudioStream != null) {
-			sessionDescription.append(mAudioStream.getSessionDescription());
-			sessionDescription.append("a=control:trackID="+0+"\r\n");
+			mediaDescriptions.append(mAudioStream.getSessionDescription());
+			mediaDescriptions.append("a=control:trackID="+0+"\r\n");
 		}
 		if (mVideoStream != null) {
-			sessionDescription.append(mVideoStream.getSessionDescription());
-			sessionDescription.append("a=control:trackID="+1+"\r\n");
+			mediaDescriptions.append(videoLayer != null ? videoLayer.getSessionDescription() : mVideoStream.getSessionDescription());
+			mediaDescriptions.append("a=control:trackID="+1+"\r\n");
 		}			
-		return sessionDescription.toString();
+		return mediaDescriptions.toString();
 	}
 
 	/** Returns the destination set with {@link #setDestination(String)}. */
@@ -415,33 +452,45 @@ public class Session {
             RuntimeException,
 			IOException {
 
-		for (int id=0;id<2;id++) {
-			Stream stream = id==0 ? mAudioStream : mVideoStream;
-			if (stream!=null && !stream.isStreaming()) {
-				try {
-					stream.configure();
-				} catch (CameraInUseException e) {
-					postError(ERROR_CAMERA_ALREADY_IN_USE , id, e);
-					throw e;
-				} catch (StorageUnavailableException e) {
-					postError(ERROR_STORAGE_NOT_READY , id, e);
-					throw e;
-				} catch (ConfNotSupportedException e) {
-					postError(ERROR_CONFIGURATION_NOT_SUPPORTED , id, e);
-					throw e;
-				} catch (InvalidSurfaceException e) {
-					postError(ERROR_INVALID_SURFACE , id, e);
-					throw e;
-				} catch (IOException e) {
-					postError(ERROR_OTHER, id, e);
-					throw e;
-				} catch (RuntimeException e) {
-					postError(ERROR_OTHER, id, e);
-					throw e;
-				}
+		// The tracks are configured in parallel, the configuration of one track is kept if the other fails
+		rethrow(runTracks(mConfigureTask, true, true));
+		postSessionConfigured();
+	}
+
+	/** 
+	 * Configures a stream in a synchronous manner. <br />
+	 * Throws exceptions in addition to calling a callback.
+	 * @param id The id of the stream to configure
+	 **/
+	public void syncConfigure(int id)  
+			throws
+            RuntimeException,
+			IOException {
+
+		Stream stream = id==0 ? mAudioStream : mVideoStream;
+		if (stream!=null && !stream.isStreaming()) {
+			try {
+				stream.configure();
+			} catch (CameraInUseException e) {
+				postError(ERROR_CAMERA_ALREADY_IN_USE , id, e);
+				throw e;
+			} catch (StorageUnavailableException e) {
+				postError(ERROR_STORAGE_NOT_READY , id, e);
+				throw e;
+			} catch (ConfNotSupportedException e) {
+				postError(ERROR_CONFIGURATION_NOT_SUPPORTED , id, e);
+				throw e;
+			} catch (InvalidSurfaceException e) {
+				postError(ERROR_INVALID_SURFACE , id, e);
+				throw e;
+			} catch (IOException e) {
+				postError(ERROR_OTHER, id, e);
+				throw e;
+			} catch (RuntimeException e) {
+				postError(ERROR_OTHER, id, e);
+				throw e;
 			}
 		}
-		postSessionConfigured();
 	}
 
 	/** 
@@ -471,6 +520,20 @@ public class Session {
 			InvalidSurfaceException,
             IOException {
 
+		Stream stream = id==0 ? mAudioStream : mVideoStream;
+		if (stream!=null && !stream.isStreaming()) {
+			startTrack(id);
+			if (getTrack(1-id) == null || getTrack(1-id).isStreaming()) {
+				postSessionStarted();
+			}
+			if (getTrack(1-id) == null || !getTrack(1-id).isStreaming()) {
+				mHandler.post(mUpdateBitrate);
+			}
+		}
+
+	}	
+
+	private void startTrack(int id) throws IOException {
 		Stream stream = id==0 ? mAudioStream : mVideoStream;
 		if (stream!=null && !stream.isStreaming()) {
 			try {
@@ -478,12 +541,6 @@ public class Session {
 				stream.setTimeToLive(mTimeToLive);
 				stream.setDestinationAddress(destination);
 				stream.start();
-				if (getTrack(1-id) == null || getTrack(1-id).isStreaming()) {
-					postSessionStarted();
-				}
-				if (getTrack(1-id) == null || !getTrack(1-id).isStreaming()) {
-					mHandler.post(mUpdateBitrate);
-				}
 			} catch (UnknownHostException e) {
 				postError(ERROR_UNKNOWN_HOST, id, e);
 				throw e;
@@ -520,15 +577,35 @@ public class Session {
 			InvalidSurfaceException,
             IOException {
 
-		syncStart(1);
-		try {
-			syncStart(0);
-		} catch (RuntimeException e) {
-			syncStop(1);
-			throw e;
-		} catch (IOException e) {
-			syncStop(1);
-			throw e;
+		syncStart(true, true);
+
+	}	
+
+	/** 
+	 * Starts some streams of the session in a synchronous manner, the audio and the video stream are
+	 * started in parallel. If one of them can't be started, the other one is stopped. <br />
+	 * Throws exceptions in addition to calling a callback.
+	 * @param audio True to start the audio stream
+	 * @param video True to start the video stream
+	 **/
+	public void syncStart(boolean audio, boolean video)
+			throws CameraInUseException,
+            ConfNotSupportedException,
+			InvalidSurfaceException,
+            IOException {
+
+		final boolean streaming = isStreaming();
+		final boolean audioStarted = mAudioStream != null && mAudioStream.isStreaming();
+		final boolean videoStarted = mVideoStream != null && mVideoStream.isStreaming();
+		final Exception[] errors = runTracks(mStartTask, audio, video);
+		if (errors[0] != null || errors[1] != null) {
+			// Stops the stream that was started by this call
+			runTracks(mStopTask, audio && !audioStarted && errors[0] == null, video && !videoStarted && errors[1] == null);
+			rethrow(errors);
+		}
+		if (isStreaming()) {
+			postSessionStarted();
+			if (!streaming) mHandler.post(mUpdateBitrate);
 		}
 
 	}	
@@ -556,11 +633,100 @@ public class Session {
 
 	/** Stops all existing streams in a synchronous manner. */
 	public void syncStop() {
-		syncStop(0);
-		syncStop(1);
+		runTracks(mStopTask, true, true);
 		postSessionStopped();
 	}
 
+	/** Something done to a stream of the session. */
+	private interface TrackTask {
+		void run(int id) throws IOException;
+	}
+
+	private final TrackTask mConfigureTask = new TrackTask() {
+		@Override
+		public void run(int id) throws IOException {
+			syncConfigure(id);
+		}
+	};
+
+	private final TrackTask mStartTask = new TrackTask() {
+		@Override
+		public void run(int id) throws IOException {
+			startTrack(id);
+		}
+	};
+
+	private final TrackTask mStopTask = new TrackTask() {
+		@Override
+		public void run(int id) {
+			syncStop(id);
+		}
+	};
+
+	/**
+	 * Runs a task for the audio stream and for the video stream at the same time, and waits for both.
+	 * The task of the audio stream runs on {@link StreamingExecutors#getTrackExecutor()}, not on the pool
+	 * of the packetizers that it could block, the task of the video stream on the current thread, where
+	 * the camera is used.
+	 * @param audio True to run the task for the audio stream
+	 * @param video True to run the task for the video stream
+	 * @return The exceptions thrown by the task of the audio and of the video stream, or null
+	 */
+	private Exception[] runTracks(final TrackTask task, boolean audio, boolean video) {
+		final Exception[] errors = new Exception[2];
+		audio &= mAudioStream != null;
+		video &= mVideoStream != null;
+		Future<?> future = null;
+		if (audio && video) {
+			future = StreamingExecutors.getTrackExecutor().submit(new Runnable() {
+				@Override
+				public void run() {
+					errors[0] = runTrack(task, 0);
+				}
+			});
+		} else if (audio) {
+			errors[0] = runTrack(task, 0);
+		}
+		if (video) {
+			errors[1] = runTrack(task, 1);
+		}
+		if (future != null) {
+			boolean interrupted = false;
+			while (true) {
+				try {
+					future.get();
+					break;
+				} catch (InterruptedException e) {
+					// Both streams must be done before returning
+					interrupted = true;
+				} catch (ExecutionException e) {
+					errors[0] = new RuntimeException(e.getCause());
+					break;
+				}
+			}
+			if (interrupted) Thread.currentThread().interrupt();
+		}
+		return errors;
+	}
+
+	private static Exception runTrack(TrackTask task, int id) {
+		try {
+			task.run(id);
+			return null;
+		} catch (IOException e) {
+			return e;
+		} catch (RuntimeException e) {
+			return e;
+		}
+	}
+
+	/** Throws the exception of the video stream if there is one, or else the one of the audio stream. */
+	private static void rethrow(Exception[] errors) throws IOException {
+		final Exception e = errors[1] != null ? errors[1] : errors[0];
+		if (e instanceof IOException) throw (IOException) e;
+		if (e instanceof RuntimeException) throw (RuntimeException) e;
+	}
+
 	/**
 	 * Asynchronously starts the camera preview. <br />
 	 * You should of course pass a {@link SurfaceView} to {@link #setSurfaceView(SurfaceView)}
@@ -648,6 +814,17 @@ public class Session {
 
 	}
 
+	/**
+	 * Asks the video encoder for a key frame, if the session has a video track.
+	 * Requests are rate limited, they can be made at any time.
+	 */
+	public void requestKeyFrame() {
+		final IVideoStream videoStream = mVideoStream;
+		if (videoStream != null) {
+			videoStream.requestKeyFrame();
+		}
+	}
+
 	/** 
 	 * Toggles the LED of the phone if it has one.
 	 * You can get the current state of the flash with 
@@ -672,7 +849,7 @@ public class Session {
 	public void release() {
 		removeAudioTrack();
 		removeVideoTrack();
-		mHandler.getLooper().quit();
+		mHandler.removeCallbacksAndMessages(null);
 	}
 
 	private void postPreviewStarted() {
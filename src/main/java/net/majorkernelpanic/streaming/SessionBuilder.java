@@ -23,9 +23,11 @@ import net.majorkernelpanic.streaming.audio.AACStream;
 import net.majorkernelpanic.streaming.audio.AMRNBStream;
 import net.majorkernelpanic.streaming.audio.AudioQuality;
 import net.majorkernelpanic.streaming.audio.IAudioStream;
+import net.majorkernelpanic.streaming.audio.OpusStream;
 import net.majorkernelpanic.streaming.gl.SurfaceView;
 import net.majorkernelpanic.streaming.video.H263Stream;
 import net.majorkernelpanic.streaming.video.H264Stream;
+import net.majorkernelpanic.streaming.video.H265Stream;
 import net.majorkernelpanic.streaming.video.ILocalVideoStream;
 import net.majorkernelpanic.streaming.video.IVideoStream;
 import net.majorkernelpanic.streaming.video.VideoQuality;
@@ -57,6 +59,9 @@ public class SessionBuilder implements Cloneable {
 	/** Can be used with {@link #setVideoEncoder}. */
 	public final static int VIDEO_H263 = 2;
 
+	/** Can be used with {@link #setVideoEncoder}. */
+	public final static int VIDEO_H265 = 3;
+
 	/** Can be used with {@link #setAudioEncoder}. */
 	public final static int AUDIO_NONE = 0;
 
@@ -66,6 +71,9 @@ public class SessionBuilder implements Cloneable {
 	/** Can be used with {@link #setAudioEncoder}. */
 	public final static int AUDIO_AAC = 5;
 
+	/** Can be used with {@link #setAudioEncoder}. */
+	public final static int AUDIO_OPUS = 7;
+
 	public static final int DESTINATION_PORT_VIDEO = 5006;
 	public static final int DESTINATION_PORT_AUDIO = 5004;
 
@@ -126,6 +134,9 @@ public class SessionBuilder implements Cloneable {
 			case AUDIO_AMRNB:
 				session.addAudioTrack(new AMRNBStream(builder.getStartTimeNs()));
 				break;
+			case AUDIO_OPUS:
+				session.addAudioTrack(new OpusStream(builder.getStartTimeNs()));
+				break;
 			}
 
 			switch (builder.getVideoEncoder()) {
@@ -137,6 +148,11 @@ public class SessionBuilder implements Cloneable {
 				stream.setPreferences(PreferenceManager.getDefaultSharedPreferences(context));
 				session.addVideoTrack(stream);
 				break;
+			case VIDEO_H265:
+				final H265Stream hevc = new H265Stream(builder.getStartTimeNs(), builder.getCamera());
+				hevc.setPreferences(PreferenceManager.getDefaultSharedPreferences(context));
+				session.addVideoTrack(hevc);
+				break;
 			}
 
 			final IVideoStream video = session.getVideoTrack();
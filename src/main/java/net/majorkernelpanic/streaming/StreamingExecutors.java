@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.majorkernelpanic.streaming.rtsp.RtspClient;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+import androidx.annotation.NonNull;
+
+/**
+ * The threads shared by all the sessions, so that the number of threads doesn't grow with the number of streams.
+ * <ul>
+ * <li>The control work of the {@link Session}s and of the {@link RtspClient}s (configuring, starting and
+ * stopping the streams, connecting to a server...) runs on a few loopers. Each session or client keeps
+ * the same looper, so its work is still done in order.</li>
+ * <li>The audio stream of a session is configured, started and stopped at the same time as its video
+ * stream on a thread of a cached pool. This can block for seconds, so it never runs on the other threads.</li>
+ * <li>The packetizers reading the encoders, and the tasks pulling the frames out of the encoders, run on
+ * a pool with one thread per core. They run when frames are ready and never wait for the encoders, nor
+ * for the FIFO of their RTP socket when it is full.</li>
+ * <li>From Android 5.0 on, the encoders fed by a surface hand over their frames instead of being polled
+ * by the pool, on a single codec looper from Android 6.0 on.</li>
+ * <li>The RTP packets of all the streams are sent at their pace by a few sender threads.</li>
+ * </ul>
+ * The number of threads of each can be set, and the pool replaced, before the first session is created.
+ */
+public class StreamingExecutors {
+
+	private static final String TAG = StreamingExecutors.class.getSimpleName();
+
+	private static int sControlThreads = 2;
+	private static int sSenderThreads = 2;
+	private static Looper[] sControlLoopers = null;
+	private static Looper sCodecLooper = null;
+	private static final AtomicInteger sNextLooper = new AtomicInteger();
+	private static ScheduledExecutorService sExecutor = null;
+	private static ExecutorService sTrackExecutor = null;
+
+	private StreamingExecutors() {
+	}
+
+	/**
+	 * Sets the number of loopers on which the control work of the sessions runs, 2 by default.
+	 * The work of a session can be delayed by the work of the others sharing its looper, a blocking
+	 * operation like opening the camera or connecting to a server delays them all.
+	 * Must be called before the first session is created.
+	 */
+	public static synchronized void setControlThreads(int count) {
+		if (sControlLoopers != null) throw new IllegalStateException("The control loopers are already started !");
+		sControlThreads = Math.max(1, count);
+	}
+
+	/**
+	 * Sets the number of threads sending the RTP packets of all the streams, 2 by default.
+	 * Must be called before the first stream is started.
+	 */
+	public static synchronized void setSenderThreads(int count) {
+		sSenderThreads = Math.max(1, count);
+	}
+
+	/** Returns the number of threads sending the RTP packets. */
+	public static synchronized int getSenderThreads() {
+		return sSenderThreads;
+	}
+
+	/**
+	 * Replaces the pool on which the packetizers run, must be called before the first stream is started.
+	 * The pool should have at least as many threads as cores, the encoders fed by buffers are
+	 * polled on it.
+	 */
+	public static synchronized void setExecutor(@NonNull ScheduledExecutorService executor) {
+		sExecutor = executor;
+	}
+
+	/** Returns one of the shared control loopers, they are given in turn. */
+	@NonNull
+	public static Looper getControlLooper() {
+		final Looper[] loopers = getControlLoopers();
+		return loopers[(sNextLooper.getAndIncrement() & Integer.MAX_VALUE) % loopers.length];
+	}
+
+	/**
+	 * Returns the looper on which the encoders hand over their frames, see
+	 * {@link net.majorkernelpanic.streaming.rtp.MediaCodecInputStream#newSurfaceInstance}.
+	 * The frames are only copied there, it never blocks.
+	 */
+	@NonNull
+	public static synchronized Looper getCodecLooper() {
+		if (sCodecLooper == null) {
+			final HandlerThread thread = new HandlerThread("net.majorkernelpanic.streaming.Codec", Process.THREAD_PRIORITY_DISPLAY);
+			thread.start();
+			sCodecLooper = thread.getLooper();
+		}
+		return sCodecLooper;
+	}
+
+	/** Returns the pool on which the packetizers run. */
+	@NonNull
+	public static synchronized ScheduledExecutorService getExecutor() {
+		if (sExecutor == null) {
+			final int threads = Runtime.getRuntime().availableProcessors();
+			final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+				private final AtomicInteger mCount = new AtomicInteger();
+				@Override
+				public Thread newThread(@NonNull Runnable r) {
+					final Thread thread = new Thread(r, "net.majorkernelpanic.streaming.Worker-"+mCount.incrementAndGet());
+					thread.setDaemon(true);
+					thread.setPriority(Thread.MAX_PRIORITY);
+					return thread;
+				}
+			});
+			executor.setRemoveOnCancelPolicy(true);
+			sExecutor = executor;
+		}
+		return sExecutor;
+	}
+
+	/**
+	 * Returns the pool on which the control work of the audio streams runs while the control looper
+	 * of their session handles the video streams. Its threads are created on demand and end after
+	 * a minute without work, a blocking operation on one of them delays nothing else.
+	 */
+	@NonNull
+	public static synchronized ExecutorService getTrackExecutor() {
+		if (sTrackExecutor == null) {
+			sTrackExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+					new SynchronousQueue<Runnable>(), new ThreadFactory() {
+				private final AtomicInteger mCount = new AtomicInteger();
+				@Override
+				public Thread newThread(@NonNull Runnable r) {
+					final Thread thread = new Thread(r, "net.majorkernelpanic.streaming.Track-"+mCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return sTrackExecutor;
+	}
+
+	private static synchronized Looper[] getControlLoopers() {
+		if (sControlLoopers == null) {
+			final Looper[] loopers = new Looper[sControlThreads];
+			for (int i = 0; i < loopers.length; i++) {
+				final HandlerThread thread = new HandlerThread("net.majorkernelpanic.streaming.Control-"+(i+1));
+				thread.start();
+				loopers[i] = thread.getLooper();
+			}
+			sControlLoopers = loopers;
+		}
+		return sControlLoopers;
+	}
+
+}
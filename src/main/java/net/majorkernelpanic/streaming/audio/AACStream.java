@@ -87,6 +87,7 @@ public class AACStream extends AudioStream {
 	private SharedPreferences mSettings = null;
 	private AudioRecord mAudioRecord = null;
 	private Thread mThread = null;
+	private int mMaxAccessUnits = 1, mMaxDelayMs = 0;
 
 	public AACStream(final long startTimeNs) {
 		super(startTimeNs);
@@ -118,6 +119,18 @@ public class AACStream extends AudioStream {
 		mSettings = prefs;
 	}
 
+	/**
+	 * Sets how many AAC access units can be sent in the same RTP packet.
+	 * Aggregating access units reduces the number of packets but delays the first ones of each packet.
+	 * Changes will take effect next time you call {@link #configure()}.
+	 * @param maxAccessUnits Maximal number of access units in a packet, 1 (the default) disables aggregation
+	 * @param maxDelayMs Maximal duration of the audio carried by a packet, 0 for no limit
+	 */
+	public void setAggregation(int maxAccessUnits, int maxDelayMs) {
+		mMaxAccessUnits = maxAccessUnits;
+		mMaxDelayMs = maxDelayMs;
+	}
+
 	@Override
 	public synchronized void start() throws IllegalStateException, IOException {
 		if (!isStreaming()) {
@@ -152,6 +165,12 @@ public class AACStream extends AudioStream {
 			mPacketizer.getRtpSocket().setOutputStream(mOutputStream, mChannelIdentifier);
 		}
 
+		if (mMode == MODE_MEDIARECORDER_API) {
+			((AACADTSPacketizer)mPacketizer).setAggregation(mMaxAccessUnits, mMaxDelayMs);
+		} else {
+			((AACLATMPacketizer)mPacketizer).setAggregation(mMaxAccessUnits, mMaxDelayMs);
+		}
+
 		if (mMode == MODE_MEDIARECORDER_API) {
 
 			testADTS();
@@ -38,6 +38,8 @@ public class AMRNBStream extends AudioStream {
 
 	private static final String TAG = AMRNBStream.class.getSimpleName();
 
+	private int mRequestedFramesPerPacket = 1, mFramesPerPacket = 1;
+
 	public AMRNBStream(final long startTimeNs) {
 		super(startTimeNs);
 
@@ -57,6 +59,20 @@ public class AMRNBStream extends AudioStream {
 		
 	}
 
+	/**
+	 * Sets the number of 20 ms frames bundled in each RTP packet, at most
+	 * {@link AMRNBPacketizer#MAX_FRAMES_PER_PACKET}. Bundling frames reduces the overhead
+	 * of the headers at the cost of latency.
+	 * Changes will take effect next time you call {@link #configure()}.
+	 */
+	public void setFramesPerPacket(int frames) {
+		mRequestedFramesPerPacket = Math.max(1, Math.min(AMRNBPacketizer.MAX_FRAMES_PER_PACKET, frames));
+	}
+
+	public int getFramesPerPacket() {
+		return mFramesPerPacket;
+	}
+
 	/**
 	 * Starts the stream.
 	 */
@@ -71,6 +87,8 @@ public class AMRNBStream extends AudioStream {
 		super.configure();
 		mMode = MODE_MEDIARECORDER_API;
 		mQuality = mRequestedQuality.clone();
+		mFramesPerPacket = mRequestedFramesPerPacket;
+		((AMRNBPacketizer)mPacketizer).setFramesPerPacket(mFramesPerPacket);
 	}
 
 	/**
@@ -79,7 +97,9 @@ public class AMRNBStream extends AudioStream {
 	public String getSessionDescription() {
 		return "m=audio "+ getDestinationPorts()[0] +" RTP/AVP 96\r\n" +
 				"a=rtpmap:96 AMR/8000\r\n" +
-				"a=fmtp:96 octet-align=1;\r\n";
+				"a=fmtp:96 octet-align=1;\r\n" +
+				"a=ptime:"+(20*mFramesPerPacket)+"\r\n" +
+				"a=maxptime:"+(20*mFramesPerPacket)+"\r\n";
 	}
 
 	@Override
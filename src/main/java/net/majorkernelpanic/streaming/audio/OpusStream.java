@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.audio;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import net.majorkernelpanic.streaming.SessionBuilder;
+import net.majorkernelpanic.streaming.rtp.MediaCodecInputStream;
+import net.majorkernelpanic.streaming.rtp.OpusPacketizer;
+import android.annotation.SuppressLint;
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaRecorder;
+import android.os.Build;
+import android.service.textservice.SpellCheckerService.Session;
+import android.util.Log;
+
+/**
+ * A class for streaming Opus from the microphone of an android device using RTP.
+ * You should use a {@link Session} instantiated with {@link SessionBuilder} instead of using this class directly.
+ * Call {@link #setDestinationAddress(InetAddress)}, {@link #setDestinationPorts(int)} and {@link #setAudioQuality(AudioQuality)}
+ * to configure the stream. You can then call {@link #start()} to start the RTP stream.
+ * Call {@link #stop()} to stop the stream.
+ * The stream is always encoded with the MediaCodec API, in mono at 48 kHz, in frames of 20 ms:
+ * the encoders of Android don't let the size of the frames they produce be chosen.
+ */
+public class OpusStream extends AudioStream {
+
+	private static final String TAG = OpusStream.class.getSimpleName();
+
+	private static final String MIME_OPUS = "audio/opus";
+	private static final int SAMPLING_RATE = 48000;
+	// The default frame duration of the Opus encoders, and of the RTP packets
+	private static final int FRAME_DURATION = 20;
+
+	private String mSessionDescription = null;
+	private AudioRecord mAudioRecord = null;
+	private Thread mThread = null;
+
+	public OpusStream(final long startTimeNs) {
+		super(startTimeNs);
+
+		if (Build.VERSION.SDK_INT < 29) {
+			Log.e(TAG,"Opus not supported on this phone");
+			throw new RuntimeException("Opus not supported by this phone !");
+		}
+
+		mPacketizer = new OpusPacketizer(startTimeNs);
+	}
+
+	/** Returns the duration of the Opus frames, and of the RTP packets, in ms. */
+	public int getFrameDuration() {
+		return FRAME_DURATION;
+	}
+
+	@Override
+	public synchronized void start() throws IllegalStateException, IOException {
+		if (!isStreaming()) {
+			configure();
+			super.start();
+		}
+	}
+
+	public synchronized void configure() throws IllegalStateException, IOException {
+		super.configure();
+		mMode = MODE_MEDIACODEC_API;
+		mQuality = mRequestedQuality.clone();
+		mQuality.samplingRate = SAMPLING_RATE;
+		// Opus supports bit rates from 6 to 510 kbit/s
+		mQuality.bitRate = Math.max(6000, Math.min(510000, mQuality.bitRate));
+
+		// All the parameters used here are described in RFC 7587, the clock rate
+		// and the number of channels of the rtpmap are always 48000 and 2
+		mSessionDescription = "m=audio "+ getDestinationPorts()[0] +" RTP/AVP 96\r\n" +
+				"a=rtpmap:96 opus/48000/2\r\n" +
+				"a=fmtp:96 minptime=10;maxaveragebitrate="+mQuality.bitRate+";stereo=0;sprop-stereo=0;useinbandfec=1\r\n" +
+				"a=ptime:"+FRAME_DURATION+"\r\n";
+	}
+
+	@Override
+	protected void encodeWithMediaRecorder() throws IOException {
+		throw new UnsupportedOperationException("Opus can only be encoded with the MediaCodec API");
+	}
+
+	@Override
+	@SuppressLint({"InlinedApi", "NewApi", "MissingPermission"})
+	protected void encodeWithMediaCodec() throws IOException {
+
+		// The encoder is fed with one frame of PCM at a time
+		final int frameSize = SAMPLING_RATE / 1000 * FRAME_DURATION * 2;
+		final int bufferSize = Math.max(AudioRecord.getMinBufferSize(SAMPLING_RATE, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT)*2, frameSize*4);
+
+		mAudioRecord = new AudioRecord(MediaRecorder.AudioSource.MIC, SAMPLING_RATE, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, bufferSize);
+		mMediaCodec = MediaCodec.createEncoderByType(MIME_OPUS);
+		MediaFormat format = MediaFormat.createAudioFormat(MIME_OPUS, SAMPLING_RATE, 1);
+		format.setInteger(MediaFormat.KEY_BIT_RATE, mQuality.bitRate);
+		format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, frameSize);
+		mMediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+		mAudioRecord.startRecording();
+		mMediaCodec.start();
+
+		final MediaCodecInputStream inputStream = MediaCodecInputStream.newInstance(mMediaCodec);
+		final ByteBuffer[] inputBuffers = mMediaCodec.getInputBuffers();
+
+		mThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				int len = 0, bufferIndex = 0;
+				try {
+					while (!Thread.interrupted()) {
+						bufferIndex = mMediaCodec.dequeueInputBuffer(10000);
+						if (bufferIndex>=0) {
+							inputBuffers[bufferIndex].clear();
+							len = mAudioRecord.read(inputBuffers[bufferIndex], frameSize);
+							if (len ==  AudioRecord.ERROR_INVALID_OPERATION || len == AudioRecord.ERROR_BAD_VALUE) {
+								Log.e(TAG,"An error occured with the AudioRecord API !");
+							} else {
+								mMediaCodec.queueInputBuffer(bufferIndex, 0, len, System.nanoTime()/1000, 0);
+							}
+						}
+					}
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+
+		mThread.start();
+
+		// The packetizer encapsulates this stream in an RTP stream and send it over the network
+		mPacketizer.setInputStream(inputStream);
+		mPacketizer.start();
+
+	}
+
+	/** Stops the stream. */
+	public synchronized void stop() {
+		if (isStreaming()) {
+			Log.d(TAG, "Interrupting threads...");
+			mThread.interrupt();
+			mAudioRecord.stop();
+			mAudioRecord.release();
+			mAudioRecord = null;
+			super.stop();
+		}
+	}
+
+	/**
+	 * Returns a description of the stream using SDP. It can then be included in an SDP file.
+	 */
+	public String getSessionDescription() throws IllegalStateException {
+		if (mSessionDescription == null) throw new IllegalStateException("You need to call configure() first !");
+		return mSessionDescription;
+	}
+
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.dvr;
+
+import java.nio.ByteBuffer;
+
+import net.majorkernelpanic.streaming.IMediaStream;
+import net.majorkernelpanic.streaming.Session;
+import net.majorkernelpanic.streaming.rtp.AbstractPacketizer;
+import net.majorkernelpanic.streaming.rtp.FrameInputStream;
+import android.util.Log;
+
+import com.serenegiant.media.MediaFrameBus;
+import com.serenegiant.media.SharedMediaData;
+
+/**
+ * Replays the frames of a {@link DvrRing} in real time.
+ * The frames are published on one {@link MediaFrameBus} per track, so the packetizers of a
+ * {@link Session} can be switched from the live encoders to the player with {@link #attach(Session)}
+ * and back with {@link #detach()}. Presentation times are shifted so that the RTP timestamps
+ * keep increasing across the switches and pauses.
+ */
+public class DvrPlayer implements Runnable {
+	private static final boolean DEBUG = false;	// set false on production
+	private static final String TAG = DvrPlayer.class.getSimpleName();
+
+	private final DvrRing mRing;
+	private final MediaFrameBus mVideoBus = new MediaFrameBus(4, 64);
+	private final MediaFrameBus mAudioBus = new MediaFrameBus(4, 64);
+	private Session mSession = null;
+
+	private Thread mThread = null;
+	private long mSequence = -1;
+	private long mPositionUs = -1;
+	private boolean mPaused = true;
+	private boolean mSendConfig = true;
+
+	public DvrPlayer(DvrRing ring) {
+		mRing = ring;
+	}
+
+	/**
+	 * Makes the packetizers of the session read the frames of the player instead of the
+	 * frames of their encoder. The session must stream with the MediaCodec API.
+	 * @return false if a track of the session can't be switched
+	 */
+	public synchronized boolean attach(Session session) {
+		for (int id = 0; id < 2; id++) {
+			if (session.trackExists(id) && getInputStream(session, id) == null) {
+				return false;
+			}
+		}
+		mSession = session;
+		for (int id = 0; id < 2; id++) {
+			final FrameInputStream is = getInputStream(session, id);
+			if (is != null) {
+				is.setSource(id == DvrRing.TRACK_VIDEO ? mVideoBus : mAudioBus);
+			}
+		}
+		if (mThread == null) {
+			mThread = new Thread(this, TAG);
+			mThread.start();
+		}
+		return true;
+	}
+
+	/** Switches the packetizers back to their encoder and stops the player. */
+	public void detach() {
+		final Thread thread;
+		synchronized (this) {
+			if (mSession != null) {
+				for (int id = 0; id < 2; id++) {
+					final FrameInputStream is = getInputStream(mSession, id);
+					if (is != null) is.setSource(null);
+				}
+				mSession = null;
+			}
+			thread = mThread;
+			mThread = null;
+			notifyAll();
+		}
+		if (thread != null) {
+			thread.interrupt();
+			try {
+				thread.join();
+			} catch (InterruptedException ignore) {}
+		}
+		mVideoBus.release();
+		mAudioBus.release();
+	}
+
+	/**
+	 * Moves the playback position to the last key frame presented at or before ptsUs.
+	 * @return The presentation time of that key frame, or -1 if the ring holds no key frame
+	 */
+	public synchronized long seek(long ptsUs) {
+		final long sequence = mRing.findKeyFrame(ptsUs);
+		if (sequence < 0) return -1;
+		final DvrRing.Frame frame = new DvrRing.Frame();
+		if (!mRing.read(sequence, frame)) return -1;
+		mSequence = sequence;
+		mPositionUs = frame.ptsUs;
+		mSendConfig = true;
+		notifyAll();
+		return mPositionUs;
+	}
+
+	public synchronized void play() {
+		mPaused = false;
+		notifyAll();
+	}
+
+	public synchronized void pause() {
+		mPaused = true;
+	}
+
+	public synchronized boolean isPaused() {
+		return mPaused;
+	}
+
+	/** Returns the presentation time, in the time base of the ring, of the last frame sent. */
+	public synchronized long getPositionUs() {
+		return mPositionUs;
+	}
+
+	@Override
+	public void run() {
+		final DvrRing.Frame frame = new DvrRing.Frame();
+		// Time of the ring mapped to the time of the output
+		long originUs = -1, originPts = -1;
+		long lastSequence = -1;
+		try {
+			while (!Thread.interrupted()) {
+				final long sequence;
+				final boolean sendConfig;
+				synchronized (this) {
+					while (mPaused || mSequence < 0) {
+						originUs = -1;
+						wait();
+					}
+					if (mSequence != lastSequence + 1) {
+						// Resumed or seeked: restart pacing from this frame
+						originUs = -1;
+					}
+					sequence = mSequence;
+					sendConfig = mSendConfig;
+					mSendConfig = false;
+				}
+				if (sendConfig) {
+					final byte[] config = mRing.getVideoConfig();
+					if (config != null) {
+						publish(mVideoBus, ByteBuffer.wrap(config), System.nanoTime() / 1000, DvrRing.FLAG_CODEC_CONFIG);
+					}
+					final byte[] audioConfig = mRing.getAudioConfig();
+					if (audioConfig != null) {
+						publish(mAudioBus, ByteBuffer.wrap(audioConfig), System.nanoTime() / 1000, DvrRing.FLAG_CODEC_CONFIG);
+					}
+				}
+				if (!mRing.read(sequence, frame)) {
+					if (sequence < mRing.getFirstSequence()) {
+						// Too slow, the frame was overwritten
+						seek(mRing.getStartTimeUs());
+					} else {
+						// Reached the live edge
+						Thread.sleep(10);
+					}
+					continue;
+				}
+
+				final long nowUs = System.nanoTime() / 1000;
+				if (originUs < 0) {
+					originUs = nowUs;
+					originPts = frame.ptsUs;
+				}
+				final long dueUs = originUs + (frame.ptsUs - originPts);
+				if (dueUs > nowUs) {
+					Thread.sleep((dueUs - nowUs) / 1000, (int) ((dueUs - nowUs) % 1000) * 1000);
+				}
+				publish(frame.track == DvrRing.TRACK_VIDEO ? mVideoBus : mAudioBus,
+						frame.data, dueUs, frame.flags);
+				synchronized (this) {
+					if (mSequence == sequence) {
+						mSequence = sequence + 1;
+						mPositionUs = frame.ptsUs;
+					}
+				}
+				lastSequence = sequence;
+			}
+		} catch (InterruptedException ignore) {
+		}
+		if (DEBUG) Log.d(TAG, "DVR player stopped");
+	}
+
+	private static void publish(MediaFrameBus bus, ByteBuffer data, long ptsUs, int flags) {
+		final SharedMediaData frame = bus.obtain();
+		if (frame != null) {
+			frame.set(data, 0, data.remaining(), ptsUs, flags);
+			bus.publish(frame);
+		} else {
+			Log.w(TAG, "Frame dropped");
+		}
+	}
+
+	private static FrameInputStream getInputStream(Session session, int id) {
+		if (!session.trackExists(id)) return null;
+		final AbstractPacketizer packetizer = ((IMediaStream) session.getTrack(id)).getPacketizer();
+		if (packetizer != null && packetizer.getInputStream() instanceof FrameInputStream) {
+			return (FrameInputStream) packetizer.getInputStream();
+		}
+		return null;
+	}
+}
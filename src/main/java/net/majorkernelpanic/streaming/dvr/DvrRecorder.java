@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.dvr;
+
+import java.util.concurrent.TimeUnit;
+
+import net.majorkernelpanic.streaming.MediaStream;
+import net.majorkernelpanic.streaming.audio.IAudioStream;
+import net.majorkernelpanic.streaming.video.IVideoStream;
+import net.majorkernelpanic.streaming.video.VideoQuality;
+import android.media.MediaCodec;
+import android.util.Log;
+
+import com.serenegiant.media.MediaCodecUtils;
+import com.serenegiant.media.MediaFrameBus;
+import com.serenegiant.media.SharedMediaData;
+
+/**
+ * Feeds a {@link DvrRing} with the H.264 and AAC frames of streaming {@link MediaStream}s.
+ * Like {@link net.majorkernelpanic.streaming.mp4.FragmentedMP4Recorder}, it subscribes to the
+ * {@link MediaFrameBus} of the streams and never blocks the packetizers.
+ * Both streams must use the MediaCodec API and must be started before {@link #start()} is called.
+ */
+public class DvrRecorder {
+	private static final boolean DEBUG = false;	// set false on production
+	private static final String TAG = DvrRecorder.class.getSimpleName();
+
+	private static final int QUEUE_SIZE = 120;
+
+	private final DvrRing mRing;
+	private final MediaStream mVideoStream, mAudioStream;
+
+	private Thread mThread = null;
+	private volatile boolean mRunning = false;
+
+	/**
+	 * @param ring The ring to write to
+	 * @param videoStream A started H.264 stream, or null
+	 * @param audioStream A started AAC stream, or null
+	 */
+	public DvrRecorder(DvrRing ring, MediaStream videoStream, MediaStream audioStream) {
+		mRing = ring;
+		mVideoStream = videoStream;
+		mAudioStream = audioStream;
+	}
+
+	public boolean isRecording() {
+		return mRunning;
+	}
+
+	/**
+	 * Starts feeding the ring.
+	 * @throws IllegalStateException if a stream is not streaming with the MediaCodec API
+	 */
+	public synchronized void start() throws IllegalStateException {
+		if (mThread != null) return;
+		final MediaFrameBus videoBus = mVideoStream != null ? mVideoStream.getFrameBus() : null;
+		final MediaFrameBus audioBus = mAudioStream != null ? mAudioStream.getFrameBus() : null;
+		if ((mVideoStream != null && videoBus == null) || (mAudioStream != null && audioBus == null)) {
+			throw new IllegalStateException("Streams must be started with the MediaCodec API");
+		}
+		if (mVideoStream != null) {
+			final VideoQuality quality = ((IVideoStream) mVideoStream).getVideoQuality();
+			mRing.setVideoFormat(quality.resX, quality.resY);
+		}
+		if (mAudioStream != null) {
+			mRing.setAudioFormat(((IAudioStream) mAudioStream).getAudioQuality().samplingRate, 1);
+		}
+
+		// The codec config published when the encoders started comes first, see MediaFrameBus#subscribe
+		final MediaFrameBus.Subscriber video = videoBus != null
+			? videoBus.subscribe(QUEUE_SIZE, MediaFrameBus.DropPolicy.DROP_NEWEST) : null;
+		final MediaFrameBus.Subscriber audio = audioBus != null
+			? audioBus.subscribe(QUEUE_SIZE, MediaFrameBus.DropPolicy.DROP_NEWEST) : null;
+
+		mRunning = true;
+		mThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				long videoDropped = 0;
+				boolean waitKeyFrame = false;
+				try {
+					while (mRunning && !Thread.interrupted()) {
+						if (video != null) {
+							if (video.dropped() != videoDropped) {
+								videoDropped = video.dropped();
+								waitKeyFrame = true;
+							}
+							final SharedMediaData data = video.poll(10, TimeUnit.MILLISECONDS);
+							if (data != null) {
+								try {
+									final int flags = toRingFlags(data.flags());
+									if (!waitKeyFrame || (flags & DvrRing.FLAG_KEY_FRAME) != 0
+											|| (flags & DvrRing.FLAG_CODEC_CONFIG) != 0) {
+										if ((flags & DvrRing.FLAG_KEY_FRAME) != 0) waitKeyFrame = false;
+										mRing.append(DvrRing.TRACK_VIDEO, data.view(), data.presentationTimeUs(), flags);
+									}
+								} finally {
+									data.release();
+								}
+							}
+						}
+						if (audio != null) {
+							SharedMediaData data;
+							while ((data = audio.poll(video != null ? 0 : 10, TimeUnit.MILLISECONDS)) != null) {
+								try {
+									mRing.append(DvrRing.TRACK_AUDIO, data.view(), data.presentationTimeUs(), toRingFlags(data.flags()));
+								} finally {
+									data.release();
+								}
+								if (video == null) break;
+							}
+						}
+					}
+				} catch (InterruptedException ignore) {
+				} finally {
+					if (video != null) videoBus.unsubscribe(video);
+					if (audio != null) audioBus.unsubscribe(audio);
+					mRunning = false;
+					if (DEBUG) Log.d(TAG, "DVR recorder thread finished");
+				}
+			}
+		}, TAG);
+		mThread.start();
+	}
+
+	/** Stops feeding the ring, the frames already stored remain available. */
+	public synchronized void stop() {
+		if (mThread != null) {
+			mRunning = false;
+			try {
+				mThread.join();
+			} catch (InterruptedException ignore) {}
+			mThread = null;
+		}
+	}
+
+	private static int toRingFlags(int flags) {
+		int result = 0;
+		if ((flags & MediaCodecUtils.BUFFER_FLAG_KEY_FRAME) != 0) result |= DvrRing.FLAG_KEY_FRAME;
+		if ((flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) result |= DvrRing.FLAG_CODEC_CONFIG;
+		return result;
+	}
+}
@@ -0,0 +1,388 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.dvr;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import net.majorkernelpanic.streaming.mp4.FragmentedMP4Writer;
+
+/**
+ * A circular store of encoded H.264 and AAC frames backed by a memory mapped file.
+ * It keeps the last {@link #getWindowUs()} us of frames (or less if the file is full)
+ * and an index of the video key frames, so that the frames can be replayed from any
+ * point of the window ({@link DvrPlayer}) or exported to an mp4 file without re-encoding.
+ * Memory usage is bounded by the size of the file and writing a frame is a plain copy.
+ * This class does not depend on the Android framework, its methods are thread safe.
+ */
+public class DvrRing {
+
+	/** Track of the audio frames, same id as in {@link net.majorkernelpanic.streaming.Session}. */
+	public static final int TRACK_AUDIO = 0;
+
+	/** Track of the video frames, same id as in {@link net.majorkernelpanic.streaming.Session}. */
+	public static final int TRACK_VIDEO = 1;
+
+	/** The frame is a key frame, same value as MediaCodec.BUFFER_FLAG_KEY_FRAME. */
+	public static final int FLAG_KEY_FRAME = 0x01;
+
+	/** The frame holds codec specific data, same value as MediaCodec.BUFFER_FLAG_CODEC_CONFIG. */
+	public static final int FLAG_CODEC_CONFIG = 0x02;
+
+	// int size, byte track, byte flags, short padding, long pts
+	private static final int RECORD_HEADER_LENGTH = 16;
+
+	/** A frame read from the ring. */
+	public static class Frame {
+		public int track;
+		public int flags;
+		public long ptsUs;
+		public int size;
+		/** Holds the payload of the frame from position 0 to size. */
+		public ByteBuffer data = ByteBuffer.allocate(64 * 1024);
+
+		public boolean isKeyFrame() {
+			return (flags & FLAG_KEY_FRAME) != 0;
+		}
+	}
+
+	private final RandomAccessFile mFile;
+	private final FileChannel mChannel;
+	private final MappedByteBuffer mMap;
+	private final int mCapacity;
+	private final long mWindowUs;
+
+	// Index of the frames in the ring, frame n is in slot n % mMaxEntries
+	private final int mMaxEntries;
+	private final int[] mPositions;
+	private final int[] mSizes;
+	private final long[] mPts;
+	private final byte[] mTracks;
+	private final byte[] mFlags;
+	private long mFirst = 0, mNext = 0;
+
+	// Sequence numbers of the video key frames
+	private final long[] mKeyFrames;
+	private long mFirstKey = 0, mNextKey = 0;
+
+	private int mWritePosition = 0;
+	private byte[] mVideoConfig, mAudioConfig;
+	private int mWidth, mHeight, mSampleRate, mChannelCount = 1;
+
+	/**
+	 * @param file The file that will back the ring, it is created if needed
+	 * @param capacity Size of the file in bytes
+	 * @param windowUs Maximum duration kept in the ring
+	 * @throws IOException
+	 */
+	public DvrRing(File file, int capacity, long windowUs) throws IOException {
+		mCapacity = capacity;
+		mWindowUs = windowUs;
+		mFile = new RandomAccessFile(file, "rw");
+		mChannel = mFile.getChannel();
+		mMap = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+		// Frames are seldom smaller than 256 bytes
+		mMaxEntries = Math.max(1024, capacity / 256);
+		mPositions = new int[mMaxEntries];
+		mSizes = new int[mMaxEntries];
+		mPts = new long[mMaxEntries];
+		mTracks = new byte[mMaxEntries];
+		mFlags = new byte[mMaxEntries];
+		mKeyFrames = new long[mMaxEntries];
+	}
+
+	/** Closes the file backing the ring. */
+	public synchronized void close() throws IOException {
+		mChannel.close();
+		mFile.close();
+	}
+
+	public long getWindowUs() {
+		return mWindowUs;
+	}
+
+	/** Sets the resolution of the video track, needed by {@link #exportClip(long, long, File)}. */
+	public synchronized void setVideoFormat(int width, int height) {
+		mWidth = width;
+		mHeight = height;
+	}
+
+	/** Sets the format of the audio track, needed by {@link #exportClip(long, long, File)}. */
+	public synchronized void setAudioFormat(int sampleRate, int channelCount) {
+		mSampleRate = sampleRate;
+		mChannelCount = channelCount;
+	}
+
+	/**
+	 * Returns the last codec config buffer (SPS and PPS in Annex-B format) of the video track,
+	 * or the parameter sets found in the first key frame when the encoder repeats them in-band.
+	 */
+	public synchronized byte[] getVideoConfig() {
+		return mVideoConfig;
+	}
+
+	/** Returns the last codec config buffer (AudioSpecificConfig) of the audio track. */
+	public synchronized byte[] getAudioConfig() {
+		return mAudioConfig;
+	}
+
+	/**
+	 * Adds a frame to the ring, the oldest frames are discarded to make room for it.
+	 * Codec config buffers are not stored in the ring but kept aside, as well as the SPS and PPS of
+	 * the video key frames until a codec config buffer is received.
+	 * @param track {@link #TRACK_AUDIO} or {@link #TRACK_VIDEO}
+	 * @param data The payload of the frame, from its position to its limit
+	 * @param ptsUs The presentation time of the frame
+	 * @param flags A combination of {@link #FLAG_KEY_FRAME} and {@link #FLAG_CODEC_CONFIG}
+	 * @return false if the frame was too large to be stored
+	 */
+	public synchronized boolean append(int track, ByteBuffer data, long ptsUs, int flags) {
+		final int size = data.remaining();
+		if ((flags & FLAG_CODEC_CONFIG) != 0) {
+			final byte[] config = new byte[size];
+			data.duplicate().get(config);
+			if (track == TRACK_VIDEO) mVideoConfig = config;
+			else mAudioConfig = config;
+			return true;
+		}
+		if (track == TRACK_VIDEO && (flags & FLAG_KEY_FRAME) != 0 && mVideoConfig == null) {
+			mVideoConfig = parameterSets(data);
+		}
+		final int length = RECORD_HEADER_LENGTH + size;
+		if (length > mCapacity / 2) return false;
+
+		if (mWritePosition + length > mCapacity) {
+			if (mCapacity - mWritePosition >= 4) {
+				mMap.putInt(mWritePosition, -1);
+			}
+			evict(mWritePosition, mCapacity);
+			mWritePosition = 0;
+		}
+		evict(mWritePosition, mWritePosition + length);
+		while (mFirst < mNext && ptsUs - mPts[slot(mFirst)] > mWindowUs) {
+			dropFirst();
+		}
+		if (mNext - mFirst >= mMaxEntries) {
+			dropFirst();
+		}
+
+		mMap.putInt(mWritePosition, size);
+		mMap.put(mWritePosition + 4, (byte) track);
+		mMap.put(mWritePosition + 5, (byte) flags);
+		mMap.putLong(mWritePosition + 8, ptsUs);
+		final ByteBuffer dst = mMap.duplicate();
+		dst.position(mWritePosition + RECORD_HEADER_LENGTH);
+		dst.put(data.duplicate());
+
+		final int slot = slot(mNext);
+		mPositions[slot] = mWritePosition;
+		mSizes[slot] = size;
+		mPts[slot] = ptsUs;
+		mTracks[slot] = (byte) track;
+		mFlags[slot] = (byte) flags;
+		if (track == TRACK_VIDEO && (flags & FLAG_KEY_FRAME) != 0) {
+			if (mNextKey - mFirstKey >= mMaxEntries) mFirstKey++;
+			mKeyFrames[slot(mNextKey++)] = mNext;
+		}
+		mNext++;
+		mWritePosition += length;
+		return true;
+	}
+
+	/** Sequence number of the oldest frame of the ring. */
+	public synchronized long getFirstSequence() {
+		return mFirst;
+	}
+
+	/** Sequence number that the next frame added to the ring will have. */
+	public synchronized long getNextSequence() {
+		return mNext;
+	}
+
+	/**
+	 * Returns the presentation time of the oldest key frame of the ring, that is
+	 * the first point from which the video can be replayed, or -1 if the ring has none.
+	 */
+	public synchronized long getStartTimeUs() {
+		return mFirstKey < mNextKey ? mPts[slot(mKeyFrames[slot(mFirstKey)])] : -1;
+	}
+
+	/** Returns the presentation time of the newest frame of the ring, or -1 if it's empty. */
+	public synchronized long getEndTimeUs() {
+		return mFirst < mNext ? mPts[slot(mNext - 1)] : -1;
+	}
+
+	/**
+	 * Returns the sequence number of the last key frame presented at or before ptsUs,
+	 * or of the oldest key frame if there is none, or -1 if the ring has no key frame.
+	 */
+	public synchronized long findKeyFrame(long ptsUs) {
+		if (mFirstKey >= mNextKey) return -1;
+		long low = mFirstKey, high = mNextKey - 1;
+		if (mPts[slot(mKeyFrames[slot(low)])] > ptsUs) return mKeyFrames[slot(low)];
+		while (low < high) {
+			final long mid = (low + high + 1) >>> 1;
+			if (mPts[slot(mKeyFrames[slot(mid)])] <= ptsUs) low = mid;
+			else high = mid - 1;
+		}
+		return mKeyFrames[slot(low)];
+	}
+
+	/**
+	 * Copies a frame of the ring.
+	 * @param sequence The sequence number of the frame
+	 * @param frame Receives the frame
+	 * @return false if the frame is not in the ring anymore or not yet
+	 */
+	public synchronized boolean read(long sequence, Frame frame) {
+		if (sequence < mFirst || sequence >= mNext) return false;
+		final int slot = slot(sequence);
+		final int size = mSizes[slot];
+		if (frame.data.capacity() < size) {
+			frame.data = ByteBuffer.allocate(size + size / 2);
+		}
+		final ByteBuffer src = mMap.duplicate();
+		src.limit(mPositions[slot] + RECORD_HEADER_LENGTH + size);
+		src.position(mPositions[slot] + RECORD_HEADER_LENGTH);
+		frame.data.clear();
+		frame.data.put(src);
+		frame.data.flip();
+		frame.track = mTracks[slot];
+		frame.flags = mFlags[slot];
+		frame.ptsUs = mPts[slot];
+		frame.size = size;
+		return true;
+	}
+
+	/**
+	 * Writes the frames presented between startUs and endUs to a fragmented mp4 file.
+	 * The clip starts on the last key frame before startUs, nothing is re-encoded.
+	 * A track is only written once its codec config is known.
+	 * @return false if the ring holds no frame in that range, or no track can be written
+	 */
+	public boolean exportClip(long startUs, long endUs, File file) throws IOException {
+		final int width, height, sampleRate, channelCount;
+		final byte[] videoConfig, audioConfig;
+		final long first;
+		synchronized (this) {
+			width = mWidth;
+			height = mHeight;
+			sampleRate = mSampleRate;
+			channelCount = mChannelCount;
+			videoConfig = mVideoConfig;
+			audioConfig = mAudioConfig;
+			final long key = findKeyFrame(startUs);
+			first = key >= 0 ? key : mFirst;
+			if (first >= mNext || mPts[slot(first)] > endUs) return false;
+		}
+
+		final boolean hasVideo = videoConfig != null;
+		final boolean hasAudio = audioConfig != null && sampleRate > 0;
+		if (!hasVideo && !hasAudio) return false;
+		final FragmentedMP4Writer writer = new FragmentedMP4Writer(new FileOutputStream(file).getChannel());
+		if (hasVideo) {
+			writer.addVideoTrack(width, height);
+			writer.writeVideoConfig(ByteBuffer.wrap(videoConfig));
+		}
+		if (hasAudio) {
+			writer.addAudioTrack(sampleRate, channelCount);
+			writer.setAudioConfig(audioConfig);
+		}
+		try {
+			final Frame frame = new Frame();
+			for (long sequence = first; read(sequence, frame); sequence++) {
+				if (frame.ptsUs > endUs) {
+					if (frame.track == TRACK_VIDEO || !hasVideo) break;
+					continue;
+				}
+				if (frame.track == TRACK_VIDEO && hasVideo) {
+					writer.writeVideoSample(frame.data, frame.ptsUs, frame.isKeyFrame());
+				} else if (frame.track == TRACK_AUDIO && hasAudio) {
+					writer.writeAudioSample(frame.data, frame.ptsUs);
+				}
+			}
+		} finally {
+			writer.close();
+		}
+		return true;
+	}
+
+	/** Returns the SPS and PPS of a H.264 frame in Annex-B format, or null if it has none. */
+	private static byte[] parameterSets(ByteBuffer data) {
+		final ByteArrayOutputStream sets = new ByteArrayOutputStream();
+		boolean sps = false, pps = false;
+		final int end = data.limit();
+		int start = findStartCode(data, data.position(), end);
+		while (start >= 0) {
+			final int nal = start + 3;
+			final int next = findStartCode(data, nal, end);
+			int nalEnd = next >= 0 ? next : end;
+			// The zero of a 4 byte start code belongs to the next NAL unit
+			while (nalEnd > nal && data.get(nalEnd - 1) == 0) nalEnd--;
+			if (nal < nalEnd) {
+				final int type = data.get(nal) & 0x1F;
+				if (type == 7 || type == 8) {
+					sps |= type == 7;
+					pps |= type == 8;
+					sets.write(0);
+					sets.write(0);
+					sets.write(0);
+					sets.write(1);
+					for (int i = nal; i < nalEnd; i++) sets.write(data.get(i));
+				}
+			}
+			start = next;
+		}
+		return sps && pps ? sets.toByteArray() : null;
+	}
+
+	/** Returns the index of the next 00 00 01 start code between from and end, or -1. */
+	private static int findStartCode(ByteBuffer data, int from, int end) {
+		for (int i = from; i + 2 < end; i++) {
+			if (data.get(i) == 0 && data.get(i + 1) == 0 && data.get(i + 2) == 1) return i;
+		}
+		return -1;
+	}
+
+	private int slot(long sequence) {
+		return (int) (sequence % mMaxEntries);
+	}
+
+	private void dropFirst() {
+		mFirst++;
+		while (mFirstKey < mNextKey && mKeyFrames[slot(mFirstKey)] < mFirst) {
+			mFirstKey++;
+		}
+	}
+
+	/** Discards the oldest frames stored between start and end. */
+	private void evict(int start, int end) {
+		while (mFirst < mNext) {
+			final int position = mPositions[slot(mFirst)];
+			if (position < start || position >= end) break;
+			dropFirst();
+		}
+	}
+}
@@ -18,6 +18,8 @@
 
 package net.majorkernelpanic.streaming.gl;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.Semaphore;
 import net.majorkernelpanic.streaming.MediaStream;
 import net.majorkernelpanic.streaming.video.VideoStream;
@@ -40,6 +42,9 @@ import android.view.SurfaceHolder;
  * libstreaming, call {@link MediaStream#setStreamingMethod(byte)}
  * with {@link MediaStream#MODE_MEDIACODEC_API_2}. <br /> 
  * 
+ * Several MediaCodec can be fed with the preview at the same time, to encode
+ * it at different resolutions (simulcast). <br />
+ * 
  * Second, it allows to force the aspect ratio of the SurfaceView 
  * to match the aspect ratio of the camera preview, so that the 
  * preview do not appear distorted to the user of your app. To do 
@@ -70,8 +75,8 @@ public class SurfaceView extends android.view.SurfaceView implements Runnable, O
 	// The surface in which the preview is rendered
 	private SurfaceManager mViewSurfaceManager = null;
 	
-	// The input surface of the MediaCodec
-	private SurfaceManager mCodecSurfaceManager = null;
+	// The input surfaces of the MediaCodecs
+	private final Map<Surface, SurfaceManager> mCodecSurfaceManagers = new LinkedHashMap<>();
 	
 	// Handles the rendering of the SurfaceTexture we got 
 	// from the camera, onto a Surface
@@ -97,18 +102,32 @@ public class SurfaceView extends android.view.SurfaceView implements Runnable, O
 		return mTextureManager.getSurfaceTexture();
 	}
 
+	/** Adds an input surface of a MediaCodec in which the preview will also be rendered. */
 	public void addMediaCodecSurface(Surface surface) {
 		synchronized (mSyncObject) {
-			mCodecSurfaceManager = new SurfaceManager(surface,mViewSurfaceManager);			
+			if (!mCodecSurfaceManagers.containsKey(surface)) {
+				mCodecSurfaceManagers.put(surface, new SurfaceManager(surface,mViewSurfaceManager));
+			}
+		}
+	}
+
+	/** Stops rendering the preview in the input surface of a MediaCodec. */
+	public void removeMediaCodecSurface(Surface surface) {
+		synchronized (mSyncObject) {
+			final SurfaceManager manager = mCodecSurfaceManagers.remove(surface);
+			if (manager != null) {
+				manager.release();
+			}
 		}
 	}
 
+	/** Stops rendering the preview in the input surfaces of all the MediaCodecs. */
 	public void removeMediaCodecSurface() {
 		synchronized (mSyncObject) {
-			if (mCodecSurfaceManager != null) {
-				mCodecSurfaceManager.release();
-				mCodecSurfaceManager = null;
+			for (SurfaceManager manager : mCodecSurfaceManagers.values()) {
+				manager.release();
 			}
+			mCodecSurfaceManagers.clear();
 		}
 	}
 
@@ -147,14 +166,16 @@ public class SurfaceView extends android.view.SurfaceView implements Runnable, O
 						mTextureManager.drawFrame();
 						mViewSurfaceManager.swapBuffer();
 
-						if (mCodecSurfaceManager != null) {
-							mCodecSurfaceManager.makeCurrent();
-							mTextureManager.drawFrame();
+						if (!mCodecSurfaceManagers.isEmpty()) {
 							oldts = ts;
 							ts = mTextureManager.getSurfaceTexture().getTimestamp();
 							//Log.d(TAG,"FPS: "+(1000000000/(ts-oldts)));
-							mCodecSurfaceManager.setPresentationTime(ts);
-							mCodecSurfaceManager.swapBuffer();
+							for (SurfaceManager manager : mCodecSurfaceManagers.values()) {
+								manager.makeCurrent();
+								mTextureManager.drawFrame();
+								manager.setPresentationTime(ts);
+								manager.swapBuffer();
+							}
 						}
 
 					} else {
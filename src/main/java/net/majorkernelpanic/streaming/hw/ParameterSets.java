@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.hw;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import net.majorkernelpanic.streaming.exceptions.ConfNotSupportedException;
+import android.annotation.SuppressLint;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.Editor;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.util.Base64;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.serenegiant.media.MediaCodecUtils;
+import com.serenegiant.utils.BufferHelper;
+
+/**
+ * Determines the parameter sets (VPS, SPS, PPS) of a video encoder from the codec specific data
+ * of its output format, csd-0 and csd-1, instead of recording a test video. The encoder is only
+ * configured: most encoders give their output format as soon as they are configured, the others
+ * encode a few frames. The parameter sets are then cached, in memory and in the shared preferences,
+ * by encoder and by the settings of the format that change them (resolution, frame rate, bit rate,
+ * profile, B-frames, temporal layers), so the session description of a stream is usually available
+ * without touching the encoder at all.
+ */
+public class ParameterSets {
+
+	private static final String TAG = ParameterSets.class.getSimpleName();
+
+	private static final String PREF_PREFIX = "libstreaming-ps-";
+
+	@SuppressLint("InlinedApi")
+	private static final String[] INTEGER_KEYS = {
+		MediaFormat.KEY_WIDTH,
+		MediaFormat.KEY_HEIGHT,
+		MediaFormat.KEY_FRAME_RATE,
+		MediaFormat.KEY_BIT_RATE,
+		MediaFormat.KEY_PROFILE,
+		MediaFormat.KEY_LEVEL,
+		MediaFormat.KEY_MAX_B_FRAMES,
+		MediaFormat.KEY_INTRA_REFRESH_PERIOD
+	};
+
+	@SuppressLint("InlinedApi")
+	private static final String[] STRING_KEYS = {
+		MediaFormat.KEY_TEMPORAL_LAYERING
+	};
+
+	private static final Map<String, byte[][]> sCache = new ConcurrentHashMap<>();
+	private static final Map<String, String> sEncoders = new ConcurrentHashMap<>();
+
+	private ParameterSets() {
+	}
+
+	/**
+	 * Returns the parameter sets of the default encoder of the mime type of the format,
+	 * see {@link #get(SharedPreferences, String, MediaFormat)}.
+	 */
+	@NonNull
+	public static byte[][] get(@Nullable SharedPreferences prefs, @NonNull MediaFormat format) throws IOException {
+		return get(prefs, getEncoderName(format.getString(MediaFormat.KEY_MIME)), format);
+	}
+
+	/**
+	 * Returns the parameter sets of the encoder configured with the given format, without their start codes,
+	 * in the order of csd-0 and csd-1. Should not be called by the UI thread when they are not cached.
+	 * The stream must then be encoded by the same encoder, created with {@link MediaCodec#createByCodecName(String)}.
+	 * @param prefs The preferences in which the parameter sets are cached, can be null
+	 * @param encoderName The name of the encoder, see {@link #getEncoderName(String)}
+	 * @param format The format of the encoder, its color format must be COLOR_FormatSurface
+	 * @throws ConfNotSupportedException Thrown when the encoder can't be configured with the format
+	 */
+	@NonNull
+	public static byte[][] get(@Nullable SharedPreferences prefs, @NonNull String encoderName, @NonNull MediaFormat format) throws IOException {
+		final String key = getKey(encoderName, format);
+		byte[][] parameterSets = sCache.get(key);
+		if (parameterSets != null) return parameterSets;
+
+		if (prefs != null && prefs.contains(key)) {
+			final String[] s = prefs.getString(key, "").split(",");
+			parameterSets = new byte[s.length][];
+			for (int i=0;i<s.length;i++) {
+				parameterSets[i] = Base64.decode(s[i], Base64.NO_WRAP);
+			}
+			sCache.put(key, parameterSets);
+			return parameterSets;
+		}
+
+		parameterSets = read(encoderName, format);
+		sCache.put(key, parameterSets);
+		if (prefs != null) {
+			final StringBuilder value = new StringBuilder();
+			for (byte[] nal : parameterSets) {
+				if (value.length() > 0) value.append(',');
+				value.append(Base64.encodeToString(nal, Base64.NO_WRAP));
+			}
+			Editor editor = prefs.edit();
+			editor.putString(key, value.toString());
+			editor.apply();
+		}
+		return parameterSets;
+	}
+
+	/** Forgets the parameter sets cached in memory, those stored in the preferences are kept. */
+	public static void clear() {
+		sCache.clear();
+	}
+
+	@SuppressLint("NewApi")
+	private static byte[][] read(String encoderName, MediaFormat format) throws IOException {
+		MediaFormat output = null;
+		try {
+			final MediaCodec encoder = MediaCodec.createByCodecName(encoderName);
+			try {
+				encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+				output = encoder.getOutputFormat();
+			} finally {
+				encoder.release();
+			}
+			if (!output.containsKey("csd-0")) {
+				// The codec specific data is only given with the first frame by this encoder
+				output = MediaCodecUtils.testVideoMediaFormat(format, encoderName);
+			}
+		} catch (final RuntimeException e) {
+			throw new ConfNotSupportedException(e);
+		}
+
+		final List<byte[]> parameterSets = new ArrayList<>();
+		for (String csd : new String[] {"csd-0", "csd-1"}) {
+			final ByteBuffer buffer = output != null && output.containsKey(csd) ? output.getByteBuffer(csd) : null;
+			if (buffer != null) split(buffer, parameterSets);
+		}
+		if (parameterSets.isEmpty()) {
+			throw new ConfNotSupportedException("The encoder did not output its parameter sets");
+		}
+		Log.i(TAG, "Parameter sets of "+encoderName+" determined for "+format);
+		return parameterSets.toArray(new byte[0][]);
+	}
+
+	/** Adds the NAL units of the codec specific data, each one preceded by a start code, to the list. */
+	private static void split(ByteBuffer csd, List<byte[]> nals) {
+		final byte[] data = new byte[csd.remaining()];
+		csd.duplicate().get(data);
+		int start = BufferHelper.findStartCode(data, 0, data.length);
+		if (start < 0) {
+			// A single NAL unit without its start code
+			nals.add(data);
+			return;
+		}
+		while (start >= 0) {
+			start += 3;
+			int end = BufferHelper.findStartCode(data, start, data.length);
+			int nalEnd = end < 0 ? data.length : end;
+			// Trailing zero bytes belong to the next start code
+			while (nalEnd > start && data[nalEnd - 1] == 0) nalEnd--;
+			if (nalEnd > start) {
+				final byte[] nal = new byte[nalEnd - start];
+				System.arraycopy(data, start, nal, 0, nal.length);
+				nals.add(nal);
+			}
+			start = end;
+		}
+	}
+
+	private static String getKey(String encoderName, MediaFormat format) {
+		final StringBuilder key = new StringBuilder(PREF_PREFIX).append(encoderName);
+		for (String name : INTEGER_KEYS) {
+			key.append(',').append(format.containsKey(name) ? String.valueOf(format.getInteger(name)) : "");
+		}
+		for (String name : STRING_KEYS) {
+			key.append(',').append(format.containsKey(name) ? format.getString(name) : "");
+		}
+		return key.toString();
+	}
+
+	/** Returns the name of the encoder that MediaCodec.createEncoderByType() will choose for the mime type. */
+	@SuppressLint("NewApi")
+	@NonNull
+	public static String getEncoderName(@NonNull String mime) {
+		String name = sEncoders.get(mime);
+		if (name != null) return name;
+		name = mime;
+		for (int j = 0; j < MediaCodecList.getCodecCount(); j++) {
+			MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(j);
+			if (!codecInfo.isEncoder()) continue;
+			for (String type : codecInfo.getSupportedTypes()) {
+				if (type.equalsIgnoreCase(mime)) {
+					name = codecInfo.getName();
+					break;
+				}
+			}
+			if (!name.equals(mime)) break;
+		}
+		sEncoders.put(mime, name);
+		return name;
+	}
+
+}
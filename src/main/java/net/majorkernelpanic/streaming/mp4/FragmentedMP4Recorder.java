@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.mp4;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import net.majorkernelpanic.streaming.MediaStream;
+import net.majorkernelpanic.streaming.audio.IAudioStream;
+import net.majorkernelpanic.streaming.video.IVideoStream;
+import net.majorkernelpanic.streaming.video.VideoQuality;
+import android.media.MediaCodec;
+import android.util.Log;
+
+import com.serenegiant.media.MediaCodecUtils;
+import com.serenegiant.media.MediaFrameBus;
+import com.serenegiant.media.SharedMediaData;
+
+/**
+ * Records the H.264 and AAC frames of streaming {@link MediaStream}s to a fragmented mp4 file.
+ * The recorder subscribes to the {@link MediaFrameBus} of the streams, so it uses the output of
+ * the encoders that already feed the packetizers and never blocks them: if the recorder falls
+ * behind, frames are dropped for the recording only and it resumes on the next key frame.
+ * Both streams must use the MediaCodec API and must be started before {@link #start()} is called.
+ */
+public class FragmentedMP4Recorder {
+	private static final boolean DEBUG = false;	// set false on production
+	private static final String TAG = FragmentedMP4Recorder.class.getSimpleName();
+
+	private static final int VIDEO_QUEUE_SIZE = 120;
+	private static final int AUDIO_QUEUE_SIZE = 200;
+
+	private final File mFile;
+	private final MediaStream mVideoStream, mAudioStream;
+	private long mFragmentDurationUs = 2000000;
+	private long mSyncIntervalMs = 5000;
+
+	private Thread mThread = null;
+	private volatile boolean mRunning = false;
+
+	/**
+	 * @param file The file to record to
+	 * @param videoStream A started H.264 stream, or null to record audio only
+	 * @param audioStream A started AAC stream, or null to record video only
+	 */
+	public FragmentedMP4Recorder(File file, MediaStream videoStream, MediaStream audioStream) {
+		mFile = file;
+		mVideoStream = videoStream;
+		mAudioStream = audioStream;
+	}
+
+	/** See {@link FragmentedMP4Writer#setFragmentDuration(long)}. */
+	public void setFragmentDuration(long durationUs) {
+		mFragmentDurationUs = durationUs;
+	}
+
+	/** See {@link FragmentedMP4Writer#setSyncInterval(long)}. */
+	public void setSyncInterval(long intervalMs) {
+		mSyncIntervalMs = intervalMs;
+	}
+
+	public boolean isRecording() {
+		return mRunning;
+	}
+
+	/**
+	 * Starts recording.
+	 * @throws IllegalStateException if a stream is not streaming with the MediaCodec API
+	 * @throws IOException if the file can not be created
+	 */
+	public synchronized void start() throws IllegalStateException, IOException {
+		if (mThread != null) return;
+		final MediaFrameBus videoBus = mVideoStream != null ? mVideoStream.getFrameBus() : null;
+		final MediaFrameBus audioBus = mAudioStream != null ? mAudioStream.getFrameBus() : null;
+		if ((mVideoStream != null && videoBus == null) || (mAudioStream != null && audioBus == null)) {
+			throw new IllegalStateException("Streams must be started with the MediaCodec API");
+		}
+
+		final FragmentedMP4Writer writer = new FragmentedMP4Writer(new FileOutputStream(mFile).getChannel());
+		writer.setFragmentDuration(mFragmentDurationUs);
+		writer.setSyncInterval(mSyncIntervalMs);
+		if (mVideoStream != null) {
+			final VideoQuality quality = ((IVideoStream) mVideoStream).getVideoQuality();
+			writer.addVideoTrack(quality.resX, quality.resY);
+		}
+		if (mAudioStream != null) {
+			writer.addAudioTrack(((IAudioStream) mAudioStream).getAudioQuality().samplingRate, 1);
+		}
+
+		// The buses hand the codec config published before the subscription first, the SPS/PPS and the
+		// AudioSpecificConfig are only output once when the encoders start
+		final MediaFrameBus.Subscriber video = videoBus != null
+			? videoBus.subscribe(VIDEO_QUEUE_SIZE, MediaFrameBus.DropPolicy.DROP_NEWEST) : null;
+		final MediaFrameBus.Subscriber audio = audioBus != null
+			? audioBus.subscribe(AUDIO_QUEUE_SIZE, MediaFrameBus.DropPolicy.DROP_NEWEST) : null;
+		// The file starts with a key frame, that may never come with an infinite GOP or intra refresh
+		if (video != null) ((IVideoStream) mVideoStream).requestKeyFrame();
+
+		mRunning = true;
+		mThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				long videoDropped = 0;
+				boolean waitKeyFrame = false;
+				try {
+					while (mRunning && !Thread.interrupted()) {
+						if (video != null) {
+							if (video.dropped() != videoDropped) {
+								// Frames were dropped, the next ones can't be decoded before a key frame
+								videoDropped = video.dropped();
+								waitKeyFrame = true;
+								((IVideoStream) mVideoStream).requestKeyFrame();
+							}
+							final SharedMediaData data = video.poll(10, TimeUnit.MILLISECONDS);
+							if (data != null) {
+								try {
+									final int flags = data.flags();
+									final boolean keyFrame = (flags & MediaCodecUtils.BUFFER_FLAG_KEY_FRAME) != 0;
+									if ((flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+										writer.writeVideoConfig(data.view());
+									} else if (!waitKeyFrame || keyFrame) {
+										waitKeyFrame = false;
+										writer.writeVideoSample(data.view(), data.presentationTimeUs(), keyFrame);
+									}
+								} finally {
+									data.release();
+								}
+							}
+						}
+						if (audio != null) {
+							SharedMediaData data;
+							while ((data = audio.poll(video != null ? 0 : 10, TimeUnit.MILLISECONDS)) != null) {
+								try {
+									if ((data.flags() & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+										writer.writeAudioConfig(data.view());
+									} else {
+										writer.writeAudioSample(data.view(), data.presentationTimeUs());
+									}
+								} finally {
+									data.release();
+								}
+								if (video == null) break;
+							}
+						}
+					}
+				} catch (InterruptedException ignore) {
+				} catch (IOException e) {
+					Log.e(TAG, "Recording failed: " + e.getMessage());
+				} finally {
+					if (video != null) videoBus.unsubscribe(video);
+					if (audio != null) audioBus.unsubscribe(audio);
+					try {
+						writer.close();
+					} catch (IOException e) {
+						Log.e(TAG, "Can't close " + mFile + ": " + e.getMessage());
+					}
+					mRunning = false;
+					if (DEBUG) Log.d(TAG, "Recorder thread finished");
+				}
+			}
+		}, TAG);
+		mThread.start();
+	}
+
+	/** Stops recording, the last fragment is written and the file is closed. */
+	public synchronized void stop() {
+		if (mThread != null) {
+			mRunning = false;
+			try {
+				mThread.join();
+			} catch (InterruptedException ignore) {}
+			mThread = null;
+		}
+	}
+}
@@ -0,0 +1,727 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.mp4;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes a fragmented mp4 file (ftyp/moov followed by moof/mdat pairs) from
+ * encoded H.264 (Annex-B) and AAC (raw access units) samples.
+ * Samples are kept in memory until a fragment is complete, the fragment is then
+ * appended to the file with a single gathering write, and the file is synced
+ * every {@link #setSyncInterval(long)} ms. A crash loses at most the fragment being built.
+ * A fragment that reaches {@link #setMaxFragmentDuration(long)} or {@link #setMaxFragmentSize(int)}
+ * is written even without a key frame to cut it, so that streams with an infinite GOP or with
+ * intra refresh are recorded with a bounded memory, the next fragment then starts on a non-sync sample.
+ * This class does not depend on the Android framework and is not thread safe.
+ */
+public class FragmentedMP4Writer {
+
+	/** Timescale used for the video track, same as the RTP clock of H.264. */
+	public static final int VIDEO_TIMESCALE = 90000;
+
+	/** Number of PCM samples in one AAC access unit. */
+	private static final int AAC_SAMPLES_PER_FRAME = 1024;
+
+	private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+	private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+	private final FileChannel mChannel;
+	private Track mVideo, mAudio;
+	private boolean mHeaderWritten = false;
+	private long mFragmentDurationUs = 2000000;
+	private long mMaxFragmentDurationUs = 10000000;
+	private int mMaxFragmentSize = 8 * 1024 * 1024;
+	private boolean mVideoStarted = false;
+	private long mSyncIntervalMs = 5000;
+	private long mLastSyncMs;
+	private int mSequence = 1;
+	private long mBaseTimeUs = -1;
+
+	public FragmentedMP4Writer(FileChannel channel) {
+		mChannel = channel;
+		mLastSyncMs = System.currentTimeMillis();
+	}
+
+	/**
+	 * Minimum duration of a fragment. When there is a video track, fragments
+	 * start on a key frame when there is one, so they can be longer than that.
+	 */
+	public void setFragmentDuration(long durationUs) {
+		mFragmentDurationUs = durationUs;
+	}
+
+	/**
+	 * Maximum duration of a fragment, 10 s by default. A fragment is cut on
+	 * a non-sync sample when no key frame came before that.
+	 */
+	public void setMaxFragmentDuration(long durationUs) {
+		mMaxFragmentDurationUs = durationUs;
+	}
+
+	/**
+	 * Maximum size in bytes of the samples of a fragment, 8 MB by default. A fragment
+	 * is cut on a non-sync sample when no key frame came before that.
+	 */
+	public void setMaxFragmentSize(int size) {
+		mMaxFragmentSize = size;
+	}
+
+	/** Sets the interval between two calls to {@link FileChannel#force(boolean)}. */
+	public void setSyncInterval(long intervalMs) {
+		mSyncIntervalMs = intervalMs;
+	}
+
+	/** Declares the video track, must be called before the first sample is written. */
+	public void addVideoTrack(int width, int height) {
+		if (mHeaderWritten) throw new IllegalStateException("Header already written");
+		mVideo = new Track(1, true, VIDEO_TIMESCALE);
+		mVideo.width = width;
+		mVideo.height = height;
+	}
+
+	/** Declares the audio track, must be called before the first sample is written. */
+	public void addAudioTrack(int sampleRate, int channelCount) {
+		if (mHeaderWritten) throw new IllegalStateException("Header already written");
+		mAudio = new Track(2, false, sampleRate);
+		mAudio.channelCount = channelCount;
+	}
+
+	/** Sets the SPS and PPS of the video track (without start code). */
+	public void setVideoConfig(byte[] sps, byte[] pps) {
+		mVideo.sps = sps;
+		mVideo.pps = pps;
+	}
+
+	/** Sets the AudioSpecificConfig of the audio track. */
+	public void setAudioConfig(byte[] config) {
+		mAudio.config = config;
+		if (config.length >= 2) {
+			final int channelConfig = (config[1] >> 3) & 0x0F;
+			if (channelConfig > 0 && channelConfig < 7) mAudio.channelCount = channelConfig;
+		}
+	}
+
+	/**
+	 * Extracts the SPS and PPS from a codec config buffer (Annex-B) of the video encoder.
+	 */
+	public void writeVideoConfig(ByteBuffer data) {
+		writeNals(data, null);
+	}
+
+	/**
+	 * Extracts the AudioSpecificConfig from a codec config buffer of the audio encoder.
+	 */
+	public void writeAudioConfig(ByteBuffer data) {
+		final byte[] config = new byte[data.remaining()];
+		data.duplicate().get(config);
+		setAudioConfig(config);
+	}
+
+	/**
+	 * Adds an access unit to the video track.
+	 * @param data One access unit in Annex-B format, SPS and PPS are extracted from it
+	 * @param ptsUs Presentation time of the access unit in us
+	 * @param keyFrame Whether the access unit is a sync sample
+	 */
+	public void writeVideoSample(ByteBuffer data, long ptsUs, boolean keyFrame) throws IOException {
+		final Track track = mVideo;
+		if (track == null) throw new IllegalStateException("No video track");
+		if (!mVideoStarted && !keyFrame) {
+			// The file must start with a sync sample
+			writeNals(data, null);
+			return;
+		}
+		if (track.count > 0) {
+			final long duration = ptsUs - track.pts[0];
+			final int size = track.data.position() + (mAudio != null ? mAudio.data.position() : 0);
+			if ((keyFrame && duration >= mFragmentDurationUs)
+					|| duration >= mMaxFragmentDurationUs || size >= mMaxFragmentSize) {
+				flushFragment(ptsUs);
+			}
+		}
+		final int start = track.data.position();
+		writeNals(data, track.data);
+		final int size = track.data.position() - start;
+		if (size > 0 && ensureHeader()) {
+			track.add(ptsUs, size, keyFrame);
+			mVideoStarted = true;
+		} else {
+			track.data.position(start);
+		}
+	}
+
+	/**
+	 * Adds an access unit to the audio track.
+	 * @param data One raw AAC access unit (no ADTS header)
+	 * @param ptsUs Presentation time of the access unit in us
+	 */
+	public void writeAudioSample(ByteBuffer data, long ptsUs) throws IOException {
+		final Track track = mAudio;
+		if (track == null) throw new IllegalStateException("No audio track");
+		if (mVideo != null && !mVideoStarted) {
+			// Audio only starts with the first video sample to keep both tracks aligned
+			return;
+		}
+		if (mVideo == null && track.count > 0
+				&& ptsUs - track.pts[0] >= mFragmentDurationUs) {
+			flushFragment(ptsUs);
+		}
+		if (data.remaining() > 0 && ensureHeader()) {
+			track.ensure(data.remaining());
+			track.data.put(data.duplicate());
+			track.add(ptsUs, data.remaining(), true);
+		}
+	}
+
+	/** Writes the pending fragment, syncs and closes the file. */
+	public void close() throws IOException {
+		try {
+			flushFragment(-1);
+			mChannel.force(false);
+		} finally {
+			mChannel.close();
+		}
+	}
+
+	/**
+	 * Writes ftyp and moov once the configuration of every declared track is known.
+	 * @return true if samples can be added
+	 */
+	private boolean ensureHeader() throws IOException {
+		if (mHeaderWritten) return true;
+		if (mVideo != null && (mVideo.sps == null || mVideo.pps == null)) return false;
+		if (mAudio != null && mAudio.config == null) return false;
+		final Box box = new Box(1024);
+		writeFtyp(box);
+		writeMoov(box);
+		writeFully(box.flip());
+		mHeaderWritten = true;
+		return true;
+	}
+
+	/**
+	 * Writes the samples buffered for every track as one moof/mdat pair.
+	 * @param nextVideoPtsUs Presentation time of the next video sample, used to compute
+	 * the duration of the last sample of the fragment, -1 if unknown
+	 */
+	private void flushFragment(long nextVideoPtsUs) throws IOException {
+		final boolean hasVideo = mVideo != null && mVideo.count > 0;
+		final boolean hasAudio = mAudio != null && mAudio.count > 0;
+		if (!hasVideo && !hasAudio) return;
+		if (mBaseTimeUs < 0) {
+			mBaseTimeUs = Long.MAX_VALUE;
+			if (hasVideo) mBaseTimeUs = Math.min(mBaseTimeUs, mVideo.pts[0]);
+			if (hasAudio) mBaseTimeUs = Math.min(mBaseTimeUs, mAudio.pts[0]);
+		}
+
+		final Box moof = new Box(256 + 16 * ((hasVideo ? mVideo.count : 0) + (hasAudio ? mAudio.count : 0)));
+		final int pos = moof.begin("moof");
+		final int mfhd = moof.beginFull("mfhd", 0, 0);
+		moof.u32(mSequence++);
+		moof.end(mfhd);
+		int videoOffset = -1, audioOffset = -1;
+		if (hasVideo) videoOffset = writeTraf(moof, mVideo, nextVideoPtsUs);
+		if (hasAudio) audioOffset = writeTraf(moof, mAudio, -1);
+		moof.end(pos);
+
+		// data_offset is relative to the first byte of the moof box
+		final int videoSize = hasVideo ? mVideo.data.position() : 0;
+		final int audioSize = hasAudio ? mAudio.data.position() : 0;
+		final int mdatStart = moof.position() + 8;
+		if (hasVideo) moof.patch(videoOffset, mdatStart);
+		if (hasAudio) moof.patch(audioOffset, mdatStart + videoSize);
+		moof.u32(8 + videoSize + audioSize);
+		moof.fourcc("mdat");
+
+		final ByteBuffer[] buffers = new ByteBuffer[] {
+				moof.flip(),
+				hasVideo ? (ByteBuffer) mVideo.data.flip() : ByteBuffer.allocate(0),
+				hasAudio ? (ByteBuffer) mAudio.data.flip() : ByteBuffer.allocate(0),
+		};
+		long remaining = 0;
+		for (ByteBuffer buffer : buffers) remaining += buffer.remaining();
+		while (remaining > 0) {
+			remaining -= mChannel.write(buffers);
+		}
+		if (mVideo != null) mVideo.reset();
+		if (mAudio != null) mAudio.reset();
+
+		final long now = System.currentTimeMillis();
+		if (now - mLastSyncMs >= mSyncIntervalMs) {
+			mChannel.force(false);
+			mLastSyncMs = now;
+		}
+	}
+
+	/**
+	 * Writes the traf box of a track.
+	 * @return The position of the data_offset field of the trun box
+	 */
+	private int writeTraf(Box box, Track track, long nextPtsUs) {
+		final int n = track.count;
+		final long[] times = new long[n + 1];
+		for (int i = 0; i < n; i++) {
+			times[i] = track.toTimescale(track.pts[i] - mBaseTimeUs);
+		}
+		if (!track.video) {
+			// AAC frames always last 1024 samples, this also avoids drifting on jittery timestamps
+			if (track.decodeTime < 0) track.decodeTime = Math.max(0, times[0]);
+			times[0] = track.decodeTime;
+			for (int i = 1; i <= n; i++) times[i] = times[i - 1] + AAC_SAMPLES_PER_FRAME;
+		} else {
+			if (track.decodeTime >= 0) times[0] = track.decodeTime;
+			if (nextPtsUs >= 0) {
+				times[n] = track.toTimescale(nextPtsUs - mBaseTimeUs);
+			} else {
+				times[n] = times[n - 1] + (n > 1 ? times[n - 1] - times[n - 2] : track.timescale / 30);
+			}
+		}
+
+		final int traf = box.begin("traf");
+		final int tfhd = box.beginFull("tfhd", 0, 0x020000);	// default-base-is-moof
+		box.u32(track.id);
+		box.end(tfhd);
+		final int tfdt = box.beginFull("tfdt", 1, 0);
+		box.u64(times[0]);
+		box.end(tfdt);
+		final int trun = box.beginFull("trun", 0, 0x000001 | 0x000100 | 0x000200 | 0x000400);
+		box.u32(n);
+		final int dataOffset = box.position();
+		box.u32(0);
+		for (int i = 0; i < n; i++) {
+			box.u32((int) Math.max(1, times[i + 1] - times[i]));
+			box.u32(track.sizes[i]);
+			box.u32(track.sync[i] ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+		}
+		box.end(trun);
+		box.end(traf);
+		track.decodeTime = Math.max(times[n], times[n - 1] + 1);
+		return dataOffset;
+	}
+
+	private void writeFtyp(Box box) {
+		final int pos = box.begin("ftyp");
+		box.fourcc("isom");
+		box.u32(0x200);
+		box.fourcc("isom");
+		box.fourcc("iso5");
+		box.fourcc("iso6");
+		box.fourcc("mp41");
+		if (mVideo != null) box.fourcc("avc1");
+		box.end(pos);
+	}
+
+	private void writeMoov(Box box) {
+		final int moov = box.begin("moov");
+		final int mvhd = box.beginFull("mvhd", 0, 0);
+		box.u32(0);	// creation_time
+		box.u32(0);	// modification_time
+		box.u32(1000);	// timescale
+		box.u32(0);	// duration, unknown for fragmented files
+		box.u32(0x00010000);	// rate
+		box.u16(0x0100);	// volume
+		box.zeros(10);
+		writeMatrix(box);
+		box.zeros(24);
+		box.u32(3);	// next_track_ID
+		box.end(mvhd);
+		if (mVideo != null) writeTrak(box, mVideo);
+		if (mAudio != null) writeTrak(box, mAudio);
+		final int mvex = box.begin("mvex");
+		if (mVideo != null) writeTrex(box, mVideo);
+		if (mAudio != null) writeTrex(box, mAudio);
+		box.end(mvex);
+		box.end(moov);
+	}
+
+	private void writeTrak(Box box, Track track) {
+		final int trak = box.begin("trak");
+		final int tkhd = box.beginFull("tkhd", 0, 0x000007);
+		box.u32(0);
+		box.u32(0);
+		box.u32(track.id);
+		box.u32(0);
+		box.u32(0);	// duration
+		box.zeros(8);
+		box.u16(0);	// layer
+		box.u16(0);	// alternate_group
+		box.u16(track.video ? 0 : 0x0100);
+		box.u16(0);
+		writeMatrix(box);
+		box.u32(track.video ? track.width << 16 : 0);
+		box.u32(track.video ? track.height << 16 : 0);
+		box.end(tkhd);
+
+		final int mdia = box.begin("mdia");
+		final int mdhd = box.beginFull("mdhd", 0, 0);
+		box.u32(0);
+		box.u32(0);
+		box.u32(track.timescale);
+		box.u32(0);
+		box.u16(0x55c4);	// "und"
+		box.u16(0);
+		box.end(mdhd);
+		final int hdlr = box.beginFull("hdlr", 0, 0);
+		box.u32(0);
+		box.fourcc(track.video ? "vide" : "soun");
+		box.zeros(12);
+		box.bytes(track.video ? "VideoHandler\0" : "SoundHandler\0");
+		box.end(hdlr);
+
+		final int minf = box.begin("minf");
+		if (track.video) {
+			final int vmhd = box.beginFull("vmhd", 0, 1);
+			box.zeros(8);
+			box.end(vmhd);
+		} else {
+			final int smhd = box.beginFull("smhd", 0, 0);
+			box.zeros(4);
+			box.end(smhd);
+		}
+		final int dinf = box.begin("dinf");
+		final int dref = box.beginFull("dref", 0, 0);
+		box.u32(1);
+		final int url = box.beginFull("url ", 0, 1);
+		box.end(url);
+		box.end(dref);
+		box.end(dinf);
+
+		final int stbl = box.begin("stbl");
+		final int stsd = box.beginFull("stsd", 0, 0);
+		box.u32(1);
+		if (track.video) {
+			writeAvc1(box, track);
+		} else {
+			writeMp4a(box, track);
+		}
+		box.end(stsd);
+		for (String type : new String[] {"stts", "stsc", "stco"}) {
+			final int pos = box.beginFull(type, 0, 0);
+			box.u32(0);
+			box.end(pos);
+		}
+		final int stsz = box.beginFull("stsz", 0, 0);
+		box.u32(0);
+		box.u32(0);
+		box.end(stsz);
+		box.end(stbl);
+		box.end(minf);
+		box.end(mdia);
+		box.end(trak);
+	}
+
+	private void writeAvc1(Box box, Track track) {
+		final int avc1 = box.begin("avc1");
+		box.zeros(6);
+		box.u16(1);	// data_reference_index
+		box.zeros(16);
+		box.u16(track.width);
+		box.u16(track.height);
+		box.u32(0x00480000);
+		box.u32(0x00480000);
+		box.u32(0);
+		box.u16(1);	// frame_count
+		box.zeros(32);	// compressorname
+		box.u16(0x0018);
+		box.u16(0xffff);
+		final int avcC = box.begin("avcC");
+		box.u8(1);
+		box.u8(track.sps[1]);
+		box.u8(track.sps[2]);
+		box.u8(track.sps[3]);
+		box.u8(0xff);	// 4 bytes NAL length
+		box.u8(0xe1);	// 1 SPS
+		box.u16(track.sps.length);
+		box.bytes(track.sps);
+		box.u8(1);	// 1 PPS
+		box.u16(track.pps.length);
+		box.bytes(track.pps);
+		box.end(avcC);
+		box.end(avc1);
+	}
+
+	private void writeMp4a(Box box, Track track) {
+		final int mp4a = box.begin("mp4a");
+		box.zeros(6);
+		box.u16(1);	// data_reference_index
+		box.zeros(8);
+		box.u16(track.channelCount);
+		box.u16(16);
+		box.u32(0);
+		box.u32(track.timescale << 16);
+		final int esds = box.beginFull("esds", 0, 0);
+		final int dsi = track.config.length;
+		final int dcd = 13 + 2 + dsi;
+		box.u8(0x03);	// ES_Descriptor
+		box.u8(3 + 2 + dcd + 3);
+		box.u16(track.id);
+		box.u8(0);
+		box.u8(0x04);	// DecoderConfigDescriptor
+		box.u8(dcd);
+		box.u8(0x40);	// Audio ISO/IEC 14496-3
+		box.u8(0x15);	// AudioStream
+		box.zeros(3);	// bufferSizeDB
+		box.u32(0);	// maxBitrate
+		box.u32(0);	// avgBitrate
+		box.u8(0x05);	// DecoderSpecificInfo
+		box.u8(dsi);
+		box.bytes(track.config);
+		box.u8(0x06);	// SLConfigDescriptor
+		box.u8(1);
+		box.u8(0x02);
+		box.end(esds);
+		box.end(mp4a);
+	}
+
+	private void writeTrex(Box box, Track track) {
+		final int trex = box.beginFull("trex", 0, 0);
+		box.u32(track.id);
+		box.u32(1);
+		box.u32(0);
+		box.u32(0);
+		box.u32(0);
+		box.end(trex);
+	}
+
+	private static void writeMatrix(Box box) {
+		box.u32(0x00010000);
+		box.u32(0);
+		box.u32(0);
+		box.u32(0);
+		box.u32(0x00010000);
+		box.u32(0);
+		box.u32(0);
+		box.u32(0);
+		box.u32(0x40000000);
+	}
+
+	/**
+	 * Splits an Annex-B buffer in NAL units, keeps the SPS and PPS in the video
+	 * track and copies the other NAL units to out with a 4 bytes length prefix.
+	 */
+	private void writeNals(ByteBuffer data, ByteBuffer out) {
+		final ByteBuffer buffer = data.duplicate();
+		final int end = buffer.limit();
+		int start = nextNal(buffer, buffer.position(), end);
+		if (start < 0) {
+			// No start code, the buffer holds a single NAL unit
+			start = buffer.position();
+		}
+		while (start < end) {
+			int next = nextNal(buffer, start, end);
+			int nalEnd = next < 0 ? end : next;
+			// Strips the start code of the next NAL unit and trailing zeros
+			while (nalEnd > start && buffer.get(nalEnd - 1) == 0) nalEnd--;
+			if (next >= 0 && nalEnd > start && buffer.get(nalEnd - 1) == 1) {
+				nalEnd--;
+				while (nalEnd > start && buffer.get(nalEnd - 1) == 0) nalEnd--;
+			}
+			final int length = nalEnd - start;
+			if (length > 0) {
+				final int type = buffer.get(start) & 0x1F;
+				if (type == 7 || type == 8) {
+					final byte[] nal = new byte[length];
+					for (int i = 0; i < length; i++) nal[i] = buffer.get(start + i);
+					if (type == 7) mVideo.sps = nal;
+					else mVideo.pps = nal;
+				} else if (out != null) {
+					mVideo.ensure(length + 4);
+					out = mVideo.data;
+					out.putInt(length);
+					final ByteBuffer nal = buffer.duplicate();
+					nal.limit(start + length).position(start);
+					out.put(nal);
+				}
+			}
+			if (next < 0) break;
+			start = next;
+		}
+	}
+
+	/**
+	 * Returns the position of the first byte after the next 00 00 01 start code,
+	 * or -1 if there is none.
+	 */
+	private static int nextNal(ByteBuffer buffer, int from, int end) {
+		for (int i = from; i + 2 < end; i++) {
+			if ((buffer.get(i + 2) & 0xFF) > 1) {
+				i += 2;
+			} else if (buffer.get(i) == 0 && buffer.get(i + 1) == 0 && buffer.get(i + 2) == 1) {
+				return i + 3;
+			}
+		}
+		return -1;
+	}
+
+	private void writeFully(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			mChannel.write(buffer);
+		}
+	}
+
+	/** Samples of the fragment being built for one track. */
+	private static final class Track {
+		final int id;
+		final boolean video;
+		final int timescale;
+		int width, height, channelCount;
+		byte[] sps, pps, config;
+
+		ByteBuffer data = ByteBuffer.allocate(64 * 1024);
+		long[] pts = new long[64];
+		int[] sizes = new int[64];
+		boolean[] sync = new boolean[64];
+		int count = 0;
+		long decodeTime = -1;
+
+		Track(int id, boolean video, int timescale) {
+			this.id = id;
+			this.video = video;
+			this.timescale = timescale;
+		}
+
+		long toTimescale(long us) {
+			return us * timescale / 1000000L;
+		}
+
+		void ensure(int length) {
+			if (data.remaining() < length) {
+				final ByteBuffer buffer = ByteBuffer.allocate(Math.max(data.capacity() * 2, data.position() + length));
+				data.flip();
+				buffer.put(data);
+				data = buffer;
+			}
+		}
+
+		void add(long ptsUs, int size, boolean keyFrame) {
+			if (count == pts.length) {
+				final int n = count * 2;
+				final long[] p = new long[n];
+				final int[] s = new int[n];
+				final boolean[] k = new boolean[n];
+				System.arraycopy(pts, 0, p, 0, count);
+				System.arraycopy(sizes, 0, s, 0, count);
+				System.arraycopy(sync, 0, k, 0, count);
+				pts = p;
+				sizes = s;
+				sync = k;
+			}
+			pts[count] = ptsUs;
+			sizes[count] = size;
+			sync[count] = keyFrame;
+			count++;
+		}
+
+		void reset() {
+			data.clear();
+			count = 0;
+		}
+	}
+
+	/** A growable buffer with helpers to write ISO BMFF boxes. */
+	private static final class Box {
+		private ByteBuffer mBuffer;
+
+		Box(int capacity) {
+			mBuffer = ByteBuffer.allocate(capacity);
+		}
+
+		private void ensure(int length) {
+			if (mBuffer.remaining() < length) {
+				final ByteBuffer buffer = ByteBuffer.allocate(Math.max(mBuffer.capacity() * 2, mBuffer.position() + length));
+				mBuffer.flip();
+				buffer.put(mBuffer);
+				mBuffer = buffer;
+			}
+		}
+
+		int position() {
+			return mBuffer.position();
+		}
+
+		int begin(String type) {
+			final int pos = mBuffer.position();
+			u32(0);
+			fourcc(type);
+			return pos;
+		}
+
+		int beginFull(String type, int version, int flags) {
+			final int pos = begin(type);
+			u32((version << 24) | (flags & 0xFFFFFF));
+			return pos;
+		}
+
+		void end(int pos) {
+			mBuffer.putInt(pos, mBuffer.position() - pos);
+		}
+
+		void patch(int pos, int value) {
+			mBuffer.putInt(pos, value);
+		}
+
+		void u8(int value) {
+			ensure(1);
+			mBuffer.put((byte) value);
+		}
+
+		void u16(int value) {
+			ensure(2);
+			mBuffer.putShort((short) value);
+		}
+
+		void u32(int value) {
+			ensure(4);
+			mBuffer.putInt(value);
+		}
+
+		void u64(long value) {
+			ensure(8);
+			mBuffer.putLong(value);
+		}
+
+		void zeros(int length) {
+			ensure(length);
+			for (int i = 0; i < length; i++) mBuffer.put((byte) 0);
+		}
+
+		void bytes(byte[] bytes) {
+			ensure(bytes.length);
+			mBuffer.put(bytes);
+		}
+
+		void bytes(String ascii) {
+			final int n = ascii.length();
+			ensure(n);
+			for (int i = 0; i < n; i++) mBuffer.put((byte) ascii.charAt(i));
+		}
+
+		void fourcc(String type) {
+			bytes(type);
+		}
+
+		ByteBuffer flip() {
+			mBuffer.flip();
+			return mBuffer;
+		}
+	}
+}
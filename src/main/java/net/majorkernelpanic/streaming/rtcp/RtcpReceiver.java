@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtcp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import android.util.Log;
+
+/**
+ * Receives the RTCP packets of all the {@link SenderReport}s with a single thread waiting on a
+ * selector, instead of one thread blocked in receive() per stream.
+ */
+final class RtcpReceiver extends Thread {
+
+	private static final String TAG = RtcpReceiver.class.getSimpleName();
+
+	private static RtcpReceiver sInstance = null;
+
+	private final Selector mSelector;
+	private final ConcurrentLinkedQueue<SenderReport> mIncoming = new ConcurrentLinkedQueue<>();
+	private final ByteBuffer mBuffer = ByteBuffer.allocate(SenderReport.MTU);
+
+	private RtcpReceiver() throws IOException {
+		super("net.majorkernelpanic.streaming.RtcpReceiver");
+		setDaemon(true);
+		mSelector = Selector.open();
+	}
+
+	static synchronized RtcpReceiver getInstance() throws IOException {
+		if (sInstance == null) {
+			sInstance = new RtcpReceiver();
+			sInstance.start();
+		}
+		return sInstance;
+	}
+
+	/** Starts receiving the packets of a report, until its channel is closed. */
+	void register(SenderReport report) {
+		mIncoming.add(report);
+		mSelector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				mSelector.select();
+				SenderReport report;
+				while ((report = mIncoming.poll()) != null) {
+					try {
+						report.getChannel().register(mSelector, SelectionKey.OP_READ, report);
+					} catch (ClosedChannelException e) {
+						// The stream was stopped meanwhile
+					}
+				}
+				final Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					final SelectionKey key = keys.next();
+					keys.remove();
+					if (key.isValid() && key.isReadable()) {
+						receive((DatagramChannel) key.channel(), (SenderReport) key.attachment());
+					}
+				}
+			} catch (IOException e) {
+				Log.e(TAG, "The RTCP packets can't be received", e);
+			}
+		}
+	}
+
+	/** Hands all the packets waiting in the channel to the report. */
+	private void receive(DatagramChannel channel, SenderReport report) {
+		try {
+			SocketAddress from;
+			while (true) {
+				mBuffer.clear();
+				from = channel.receive(mBuffer);
+				if (from == null) break;
+				report.onPacketReceived(mBuffer.array(), mBuffer.position(), ((InetSocketAddress) from).getAddress());
+			}
+		} catch (IOException e) {
+			// The channel was closed
+		}
+	}
+
+}
@@ -22,25 +22,39 @@ import static net.majorkernelpanic.streaming.rtp.RtpSocket.TRANSPORT_TCP;
 import static net.majorkernelpanic.streaming.rtp.RtpSocket.TRANSPORT_UDP;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.net.DatagramPacket;
 import java.net.InetAddress;
-import java.net.MulticastSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 import android.os.SystemClock;
 import android.util.Log;
 
 /**
  * Implementation of Sender Report RTCP packets.
+ * The socket also receives the RTCP packets of the receivers, Picture Loss Indications
+ * and Full Intra Requests (RFC 4585 and RFC 5104) are reported to a {@link KeyFrameRequestListener},
+ * the fraction of packets lost found in the Receiver Reports is available with {@link #pollFractionLost()},
+ * and the time of the last RTCP packet of each receiver with {@link #getLastReceivedTime(InetAddress)}.
+ * The RTCP packets of all the streams are received by a single thread, see {@link RtcpReceiver}.
  */
 public class SenderReport {
 
+	/** Called when a receiver asks for a key frame of the stream. */
+	public interface KeyFrameRequestListener {
+		void onKeyFrameRequest();
+	}
+
 	private static final String TAG = SenderReport.class.getSimpleName();
 	public static final int MTU = 1500;
 
 	private static final int PACKET_LENGTH = 28;
 
 	private final Object mSync = new Object();
-	private MulticastSocket usock;
-	private DatagramPacket upack;
+	private DatagramChannel mChannel;
+	private InetSocketAddress mDestination = null;
 
 	private int mTransport;
 	private OutputStream mOutputStream = null;
@@ -49,9 +63,15 @@ public class SenderReport {
 	private int mOctetCount = 0, mPacketCount = 0;
 	private long interval, delta, now, oldnow;
 	private byte[] mTcpHeader;
+	private volatile KeyFrameRequestListener mKeyFrameRequestListener;
+	private boolean mReceiving = false;
+	private final AtomicInteger mFractionLost = new AtomicInteger(-1);
+	private final CopyOnWriteArrayList<InetSocketAddress> mDestinations = new CopyOnWriteArrayList<>();
+	private final ByteBuffer mPacket = ByteBuffer.wrap(mBuffer, 0, PACKET_LENGTH);
+	private final ConcurrentHashMap<InetAddress, Long> mLastReceived = new ConcurrentHashMap<>();
 
 	public SenderReport(int ssrc) throws IOException {
-		super();
+		this();
 		this.mSSRC = ssrc;
 	}
 	
@@ -83,12 +103,14 @@ public class SenderReport {
 		/* Byte 24,25,26,27  ->  octet count			         */
 
 		try {
-			usock = new MulticastSocket();
+			// Non blocking, so that the RtcpReceiver can wait for the packets of all the streams at once
+			mChannel = DatagramChannel.open();
+			mChannel.socket().bind(new InetSocketAddress(0));
+			mChannel.configureBlocking(false);
 		} catch (IOException e) {
 			// Very unlikely to happen. Means that all UDP ports are already being used
 			throw new RuntimeException(e.getMessage());
 		}
-		upack = new DatagramPacket(mBuffer, 1);
 
 		// By default we sent one report every 3 secconde
 		interval = 3000;
@@ -96,7 +118,114 @@ public class SenderReport {
 	}
 
 	public void close() {
-		usock.close();
+		try {
+			mChannel.close();
+		} catch (IOException e) {
+			Log.w(TAG, e);
+		}
+	}
+
+	/**
+	 * Sets the listener called when a PLI or a FIR concerning this stream is received.
+	 * Only RTCP packets received over UDP are handled.
+	 */
+	public synchronized void setKeyFrameRequestListener(KeyFrameRequestListener listener) {
+		mKeyFrameRequestListener = listener;
+		if (listener != null) startReceiving();
+	}
+
+	/** Starts receiving the RTCP packets of the receivers, if not already started. */
+	public synchronized void startReceiving() {
+		if (!mReceiving) {
+			try {
+				RtcpReceiver.getInstance().register(this);
+				mReceiving = true;
+			} catch (IOException e) {
+				Log.e(TAG, "The RTCP packets can't be received", e);
+			}
+		}
+	}
+
+	DatagramChannel getChannel() {
+		return mChannel;
+	}
+
+	/**
+	 * Returns the time, in the {@link SystemClock#elapsedRealtime()} base, at which a RTCP packet
+	 * was last received from an address, or 0 if none was received.
+	 * RTCP packets are only received once {@link #startReceiving()} has been called.
+	 */
+	public long getLastReceivedTime(InetAddress from) {
+		final Long time = mLastReceived.get(from);
+		return time != null ? time : 0;
+	}
+
+	/** Called by the {@link RtcpReceiver} for each RTCP packet received. */
+	void onPacketReceived(byte[] buffer, int length, InetAddress from) {
+		mLastReceived.put(from, SystemClock.elapsedRealtime());
+		readFractionLost(buffer, length);
+		final KeyFrameRequestListener listener = mKeyFrameRequestListener;
+		if (listener != null && isKeyFrameRequest(buffer, length)) {
+			listener.onKeyFrameRequest();
+		}
+	}
+
+	/**
+	 * Looks for a PLI or a FIR concerning this stream in a compound RTCP packet.
+	 */
+	private boolean isKeyFrameRequest(byte[] buffer, int length) {
+		int offset = 0;
+		while (offset+12 <= length) {
+			final int fmt = buffer[offset]&0x1F, pt = buffer[offset+1]&0xFF;
+			final int end = offset+(((buffer[offset+2]&0xFF)<<8 | buffer[offset+3]&0xFF)+1)*4;
+			if ((buffer[offset]&0xC0) != 0x80 || end > length) return false;
+			if (pt == 206) {
+				// Payload-specific feedback message, the SSRC of the media source follows the SSRC of the sender
+				if (fmt == 1 && getInt(buffer, offset+8) == mSSRC) return true;
+				// For a FIR, the SSRC of the media source is in each FCI entry
+				if (fmt == 4) {
+					for (int i=offset+12;i+8<=end;i+=8) {
+						if (getInt(buffer, i) == mSSRC) return true;
+					}
+				}
+			}
+			offset = end;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the fraction of the packets of this stream lost, out of 256, in the last Receiver Report
+	 * received since the previous call, or -1 if there was none. Receiver Reports are only received
+	 * once a {@link KeyFrameRequestListener} is set.
+	 */
+	public int pollFractionLost() {
+		return mFractionLost.getAndSet(-1);
+	}
+
+	/**
+	 * Looks for a report block concerning this stream in the Sender and Receiver Reports of a compound RTCP packet.
+	 */
+	private void readFractionLost(byte[] buffer, int length) {
+		int offset = 0;
+		while (offset+8 <= length) {
+			final int rc = buffer[offset]&0x1F, pt = buffer[offset+1]&0xFF;
+			final int end = offset+(((buffer[offset+2]&0xFF)<<8 | buffer[offset+3]&0xFF)+1)*4;
+			if ((buffer[offset]&0xC0) != 0x80 || end > length) return;
+			if (pt == 200 || pt == 201) {
+				// The report blocks follow the sender info of a SR, or the SSRC of the sender of a RR
+				for (int i=0, block=offset+(pt == 200 ? 28 : 8);i<rc && block+24<=end;i++, block+=24) {
+					if (getInt(buffer, block) == mSSRC) {
+						mFractionLost.set(buffer[block+4]&0xFF);
+					}
+				}
+			}
+			offset = end;
+		}
+	}
+
+	private static int getInt(byte[] buffer, int offset) {
+		return (buffer[offset]&0xFF)<<24 | (buffer[offset+1]&0xFF)<<16 | (buffer[offset+2]&0xFF)<<8 | (buffer[offset+3]&0xFF);
 	}
 
 	/**
@@ -145,8 +274,16 @@ public class SenderReport {
 	public void setDestination(InetAddress dest, int dport) {
 		mTransport = TRANSPORT_UDP;
 		mPort = dport;
-		upack.setPort(dport);
-		upack.setAddress(dest);
+		mDestination = new InetSocketAddress(dest, dport);
+	}
+
+	/** Adds a receiver to which the reports are sent in addition to the destination. */
+	public void addDestination(InetAddress dest, int port) {
+		mDestinations.addIfAbsent(new InetSocketAddress(dest, port));
+	}
+
+	public void removeDestination(InetAddress dest, int port) {
+		mDestinations.remove(new InetSocketAddress(dest, port));
 	}
 
 	/**
@@ -167,7 +304,7 @@ public class SenderReport {
 	}
 
 	public int getLocalPort() {
-		return usock.getLocalPort();
+		return mChannel.socket().getLocalPort();
 	}
 
 	public int getSSRC() {
@@ -207,8 +344,11 @@ public class SenderReport {
 		setLong(lb, 12, 16);
 		setLong(rtpts, 16, 20);
 		if (mTransport == TRANSPORT_UDP) {
-			upack.setLength(PACKET_LENGTH);
-			usock.send(upack);		
+			// A report that doesn't fit in the buffer of the socket is dropped, the next one follows soon
+			if (mPort >= 0) mChannel.send((ByteBuffer) mPacket.rewind(), mDestination);
+			for (InetSocketAddress destination : mDestinations) {
+				mChannel.send((ByteBuffer) mPacket.rewind(), destination);
+			}
 		} else {
 			synchronized (mSync) {
 				try {
@@ -29,8 +29,9 @@ import android.util.Log;
  *
  *   This packetizer must be fed with an InputStream containing ADTS AAC. 
  *   AAC will basically be rewrapped in an RTP stream and sent over the network.
- *   This packetizer only implements the aac-hbr mode (High Bit-rate AAC) and
- *   each packet only carry a single and complete AAC access unit.
+ *   This packetizer only implements the aac-hbr mode (High Bit-rate AAC), each
+ *   packet carries one or more complete AAC access units (see {@link #setAggregation(int, int)}),
+ *   or a fragment of an access unit too big for a single packet.
  * 
  */
 public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
@@ -39,9 +40,13 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
 
 	private Thread t;
 	private int samplingRate = 8000;
+	private final AACAggregator aggregator = new AACAggregator(MAXPACKETSIZE-rtphl);
+	// ADTS uses 13 bits for the frame length
+	private final byte[] frame = new byte[8192];
 
 	public AACADTSPacketizer(final long startTimeNs) {
 		super(startTimeNs);
+		socket.setMediaClass(RtpSocket.CLASS_AUDIO);
 	}
 
 	public void start() {
@@ -73,6 +78,15 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
 		socket.setClockFrequency(samplingRate);
 	}
 
+	/**
+	 * Sets how many access units can be sent in the same RTP packet.
+	 * @param maxAccessUnits Maximal number of access units in a packet, 1 (the default) disables aggregation
+	 * @param maxDelayMs Maximal duration of the audio carried by a packet, 0 for no limit
+	 */
+	public void setAggregation(int maxAccessUnits, int maxDelayMs) {
+		aggregator.setLimits(maxAccessUnits, maxDelayMs * 1000000L);
+	}
+
 	public void run() {
 
 		Log.d(TAG,"AAC ADTS packetizer started !");
@@ -127,6 +141,20 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
 
 				//Log.d(TAG,"frameLength: "+frameLength+" protection: "+protection+" p: "+profile+" sr: "+samplingRate);
 
+				fill(frame, 0, frameLength);
+
+				if (!aggregator.fits(frameLength)) {
+					flush();
+				}
+				if (aggregator.fits(frameLength)) {
+					aggregator.add(frame, 0, frameLength, ts);
+					if (aggregator.isFull(1024L*1000000000L/samplingRate)) {
+						flush();
+					}
+					continue;
+				}
+
+				// The access unit is too big for a single packet, it is fragmented
 				sum = 0;
 				while (sum<frameLength) {
 
@@ -141,8 +169,8 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
 						length = frameLength-sum;
 						socket.markNextPacket();
 					}
+					System.arraycopy(frame, sum, buffer, rtphl+4, length);
 					sum += length;
-					fill(buffer, rtphl+4, length);
 
 					// AU-headers-length field: contains the size in bits of a AU-header
 					// 13+3 = 16 bits -> 13bits for AU-size and 3bits for AU-Index / AU-Index-delta 
@@ -176,6 +204,15 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
 
 	}
 
+	/** Sends the access units waiting in the aggregator. */
+	private void flush() throws IOException, InterruptedException {
+		if (aggregator.isEmpty()) return;
+		buffer = socket.requestBuffer();
+		socket.markNextPacket();
+		socket.updateTimestamp(aggregator.timestamp());
+		send(aggregator.write(buffer, rtphl));
+	}
+
 	private int fill(byte[] buffer, int offset,int length) throws IOException {
 		int sum = 0;
 		while (sum<length) {
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+/**
+ * Builds the payload of RTP packets carrying one or more complete AAC access units
+ * in the aac-hbr mode of the RFC 3640: a 16 bits AU-header per access unit, made of 13 bits
+ * for the AU-size and 3 bits for the AU-Index (or AU-Index-delta), followed by the access units.
+ * Access units are added until the packet is full, holds the maximal number of access units,
+ * or spans the maximal delay.
+ */
+class AACAggregator {
+
+	/** Upper bound of the number of access units per packet. */
+	static final int MAX_ACCESS_UNITS = 64;
+
+	private final int maxSize;
+	private final byte[] data;
+	private final int[] sizes = new int[MAX_ACCESS_UNITS];
+	private int count = 0, length = 0;
+	private int maxAccessUnits = 1;
+	private long maxDelayNs = Long.MAX_VALUE;
+	private long timestamp;
+
+	/**
+	 * @param maxSize Maximal size of the payload of a packet
+	 */
+	AACAggregator(int maxSize) {
+		this.maxSize = maxSize;
+		data = new byte[maxSize];
+	}
+
+	/**
+	 * @param maxAccessUnits Maximal number of access units in a packet, 1 disables aggregation
+	 * @param maxDelayNs Maximal duration of the audio carried by a packet
+	 */
+	void setLimits(int maxAccessUnits, long maxDelayNs) {
+		this.maxAccessUnits = Math.max(1, Math.min(MAX_ACCESS_UNITS, maxAccessUnits));
+		this.maxDelayNs = maxDelayNs > 0 ? maxDelayNs : Long.MAX_VALUE;
+	}
+
+	boolean isEmpty() {
+		return count == 0;
+	}
+
+	/** Returns the timestamp of the first access unit of the packet. */
+	long timestamp() {
+		return timestamp;
+	}
+
+	/** Returns true if an access unit of the given size can be added to the packet. */
+	boolean fits(int size) {
+		return count < maxAccessUnits && 2 + 2 * (count + 1) + length + size <= maxSize;
+	}
+
+	void add(byte[] src, int offset, int size, long ts) {
+		if (count == 0) timestamp = ts;
+		System.arraycopy(src, offset, data, length, size);
+		sizes[count++] = size;
+		length += size;
+	}
+
+	/**
+	 * Returns true if the packet must be sent now, because one more access unit would
+	 * exceed the maximal number of access units or the maximal delay.
+	 * @param durationNs The duration of an access unit
+	 */
+	boolean isFull(long durationNs) {
+		return count >= maxAccessUnits || (count + 1) * durationNs > maxDelayNs;
+	}
+
+	/**
+	 * Writes the AU-headers section and the access units in buffer, the packet is then empty.
+	 * @return The position following the payload in buffer
+	 */
+	int write(byte[] buffer, int offset) {
+		// AU-headers-length field: contains the size in bits of the AU-headers
+		final int bits = 16 * count;
+		buffer[offset] = (byte) (bits >> 8);
+		buffer[offset + 1] = (byte) (bits & 0xFF);
+		int pos = offset + 2;
+		for (int i = 0; i < count; i++) {
+			// AU-size, the AU-Index of the first access unit and the AU-Index-delta
+			// of the following ones are 0, the access units being consecutive
+			buffer[pos++] = (byte) (sizes[i] >> 5);
+			buffer[pos++] = (byte) ((sizes[i] << 3) & 0xF8);
+		}
+		System.arraycopy(data, 0, buffer, pos, length);
+		pos += length;
+		count = 0;
+		length = 0;
+		return pos;
+	}
+
+}
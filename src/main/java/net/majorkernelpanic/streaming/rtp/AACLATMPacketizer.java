@@ -20,13 +20,14 @@ package net.majorkernelpanic.streaming.rtp;
 
 import java.io.IOException;
 import android.annotation.SuppressLint;
-import android.media.MediaCodec.BufferInfo;
+import android.media.MediaCodec;
 import android.util.Log;
 
 /**
  * RFC 3640.  
  * 
  * Encapsulates AAC Access Units in RTP packets as specified in the RFC 3640.
+ * Several access units can be aggregated in a packet, see {@link #setAggregation(int, int)}.
  * This packetizer is used by the AACStream class in conjunction with the 
  * MediaCodec API introduced in Android 4.1 (API Level 16).       
  * 
@@ -36,97 +37,82 @@ public class AACLATMPacketizer extends AbstractPacketizer implements Runnable {
 	private static final boolean DEBUG = false;	// set false on production
 	private static final String TAG = AACLATMPacketizer.class.getSimpleName();
 
-	private Thread t;
+	// Time without access units after which the pending ones are sent
+	private static final long IDLE_TIMEOUT_MS = 50;
+
+	private FrameTask task;
+	private int samplingRate = 8000;
+	private final AACAggregator aggregator = new AACAggregator(MAXPACKETSIZE-rtphl);
+	private final AccessUnit au = new AccessUnit();
 
 	public AACLATMPacketizer(final long startTimeNs) {
 		super(startTimeNs);
+		socket.setMediaClass(RtpSocket.CLASS_AUDIO);
 		socket.setCacheSize(0);
 	}
 
 	public void start() {
-		if (t==null) {
-			t = new Thread(this);
-			t.start();
+		if (task==null) {
+			// The access units of the MediaCodec are sent by a task of the shared pool when they are ready
+			Log.d(TAG,"AAC LATM packetizer started !");
+			task = new FrameTask((FrameInputStream)is, socket, IDLE_TIMEOUT_MS) {
+				@Override
+				protected void sendFrame() throws IOException, InterruptedException {
+					AACLATMPacketizer.this.sendFrame((FrameInputStream)is);
+				}
+
+				@Override
+				protected void idle() throws IOException, InterruptedException {
+					flush();
+				}
+			};
+			task.start();
 		}
 	}
 
 	public void stop() {
-		if (t != null) {
+		if (task != null) {
 			try {
 				is.close();
 			} catch (final IOException e) {
 				if (DEBUG) Log.w(TAG, e);
 			}
-			t.interrupt();
-			try {
-				t.join();
-			} catch (final InterruptedException e) {
-				// ignore
-			}
-			t = null;
+			task.stop();
+			task = null;
+			Log.d(TAG,"AAC LATM packetizer stopped !");
 		}
 	}
 
 	public void setSamplingRate(int samplingRate) {
+		this.samplingRate = samplingRate;
 		socket.setClockFrequency(samplingRate);
 	}
 
+	/**
+	 * Sets how many access units can be sent in the same RTP packet.
+	 * @param maxAccessUnits Maximal number of access units in a packet, 1 (the default) disables aggregation
+	 * @param maxDelayMs Maximal duration of the audio carried by a packet, 0 for no limit
+	 */
+	public void setAggregation(int maxAccessUnits, int maxDelayMs) {
+		aggregator.setLimits(maxAccessUnits, maxDelayMs * 1000000L);
+	}
+
 	@SuppressLint("NewApi")
 	public void run() {
 
 		Log.d(TAG,"AAC LATM packetizer started !");
 
-		long oldts;
-		BufferInfo bufferInfo;
+		final FrameInputStream fis = (FrameInputStream)is;
 
 		try {
 			while (!Thread.interrupted()) {
-				buffer = socket.requestBuffer();
-				final int length = is.read(buffer, rtphl+4, MAXPACKETSIZE-(rtphl+4));
-				
-				if (length>0) {
-					
-//					bufferInfo = ((MediaCodecInputStream)is).getLastBufferInfo();
-					//Log.d(TAG,"length: "+length+" ts: "+bufferInfo.presentationTimeUs);
-					oldts = ts;
-//					ts = bufferInfo.presentationTimeUs*1000;
-					ts = ((MediaCodecInputStream)is).presentationTimeUs() * 1000L;
-
-					// Seems to happen sometimes
-					if (oldts>ts) {
-						socket.commitBuffer();
-						continue;
-					}
-					
-					socket.markNextPacket();
-					socket.updateTimestamp(ts);
-					
-					// AU-headers-length field: contains the size in bits of a AU-header
-					// 13+3 = 16 bits -> 13bits for AU-size and 3bits for AU-Index / AU-Index-delta 
-					// 13 bits will be enough because ADTS uses 13 bits for frame length
-					buffer[rtphl] = 0;
-					buffer[rtphl+1] = 0x10; 
-
-					// AU-size
-					buffer[rtphl+2] = (byte) (length>>5);
-					buffer[rtphl+3] = (byte) (length<<3);
-
-					// AU-Index
-					buffer[rtphl+3] &= 0xF8;
-					buffer[rtphl+3] |= 0x00;
-					
-					send(rtphl+length+4);
-					
-				} else {
-					socket.commitBuffer();
-				}		
-				
+				if (!sendFrame(fis)) {
+					// No access unit for a while, don't keep the pending ones waiting
+					flush();
+				}
 			}
 		} catch (final IOException e) {
 			if (DEBUG) Log.w(TAG, e);
-		} catch (final ArrayIndexOutOfBoundsException e) {
-			Log.e(TAG,"ArrayIndexOutOfBoundsException: "+(e.getMessage()!=null?e.getMessage():"unknown error"));
-			e.printStackTrace();
 		} catch (final InterruptedException ignore) {
 			// ignore
 		}
@@ -135,4 +121,53 @@ public class AACLATMPacketizer extends AbstractPacketizer implements Runnable {
 
 	}
 
+	/**
+	 * Reads an access unit and adds it to the aggregator, sends the packet when it is full.
+	 * @return false if no access unit was read
+	 */
+	private boolean sendFrame(FrameInputStream fis) throws IOException, InterruptedException {
+		final int length = au.read(fis);
+		if (length<=0) return false;
+
+		if ((fis.flags() & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+			// The AudioSpecificConfig is given in the SDP
+			return true;
+		}
+
+		final long oldts = ts;
+		ts = fis.presentationTimeUs() * 1000L;
+
+		// Seems to happen sometimes
+		if (oldts>ts) {
+			return true;
+		}
+
+		try {
+			if (!aggregator.fits(length)) {
+				flush();
+				if (!aggregator.fits(length)) {
+					Log.e(TAG, "Access unit too big, dropped: "+length);
+					return true;
+				}
+			}
+			aggregator.add(au.frame, 0, length, ts);
+			if (aggregator.isFull(1024L*1000000000L/samplingRate)) {
+				flush();
+			}
+		} catch (final ArrayIndexOutOfBoundsException e) {
+			Log.e(TAG,"ArrayIndexOutOfBoundsException: "+(e.getMessage()!=null?e.getMessage():"unknown error"));
+			e.printStackTrace();
+		}
+		return true;
+	}
+
+	/** Sends the access units waiting in the aggregator. */
+	private void flush() throws IOException, InterruptedException {
+		if (aggregator.isEmpty()) return;
+		buffer = socket.requestBuffer();
+		socket.markNextPacket();
+		socket.updateTimestamp(aggregator.timestamp());
+		send(aggregator.write(buffer, rtphl));
+	}
+
 }
@@ -23,12 +23,13 @@ import android.util.Log;
 
 /**
  * 
- *   RFC 3267.
+ *   RFC 3267 / RFC 4867.
  *   
- *   AMR Streaming over RTP.
+ *   AMR Streaming over RTP, in the octet-aligned mode.
  *   
  *   Must be fed with an InputStream containing raw AMR NB
  *   Stream must begin with a 6 bytes long header: "#!AMR\n", it will be skipped
+ *   Several frames can be bundled in each packet, see {@link #setFramesPerPacket(int)}.
  *   
  */
 public class AMRNBPacketizer extends AbstractPacketizer implements Runnable {
@@ -37,13 +38,23 @@ public class AMRNBPacketizer extends AbstractPacketizer implements Runnable {
 
 	private final int AMR_HEADER_LENGTH = 6; // "#!AMR\n"
 	private static final int AMR_FRAME_HEADER_LENGTH = 1; // Each frame has a short header
-	private static final int[] sFrameBits = {95, 103, 118, 134, 148, 159, 204, 244};
+	// Frame sizes in bits of the 8 modes, of SID frames and of NO_DATA frames (RFC 4867)
+	private static final int[] sFrameBits = {95, 103, 118, 134, 148, 159, 204, 244, 39, 0, 0, 0, 0, 0, 0, 0};
 	private final int samplingRate = 8000;
 
+	/** Maximal number of frames bundled in a packet. */
+	public static final int MAX_FRAMES_PER_PACKET = 10;
+
 	private Thread t;
+	private int framesPerPacket = 1;
+
+	// Data read from the stream but not yet sent
+	private final byte[] in = new byte[1024];
+	private int inPos = 0, inLimit = 0;
 
 	public AMRNBPacketizer(final long startTimeNs) {
 		super(startTimeNs);
+		socket.setMediaClass(RtpSocket.CLASS_AUDIO);
 		socket.setClockFrequency(samplingRate);
 	}
 
@@ -71,16 +82,29 @@ public class AMRNBPacketizer extends AbstractPacketizer implements Runnable {
 		}
 	}
 
+	/**
+	 * Sets the number of 20 ms frames sent in each RTP packet.
+	 * @param frames Between 1 (the default) and {@link #MAX_FRAMES_PER_PACKET}
+	 */
+	public void setFramesPerPacket(int frames) {
+		framesPerPacket = Math.max(1, Math.min(MAX_FRAMES_PER_PACKET, frames));
+	}
+
+	public int getFramesPerPacket() {
+		return framesPerPacket;
+	}
+
 	public void run() {
 
-		int frameLength, frameType;
-		long now = System.nanoTime(), oldtime = now;
+		int frameLength, frameType, pos;
+		final int frames = framesPerPacket;
 		byte[] header = new byte[AMR_HEADER_LENGTH];
+		inPos = inLimit = 0;
 
 		try {
 
 			// Skip raw AMR header
-			fill(header,0,AMR_HEADER_LENGTH);
+			read(header,0,AMR_HEADER_LENGTH);
 			
 			if (header[5] != '\n') {
 				Log.e(TAG,"Bad header ! AMR not correcty supported by the phone !");
@@ -90,29 +114,37 @@ public class AMRNBPacketizer extends AbstractPacketizer implements Runnable {
 			while (!Thread.interrupted()) {
 
 				buffer = socket.requestBuffer();
+				// CMR: no mode request
 				buffer[rtphl] = (byte) 0xF0;
-				
-				// First we read the frame header
-				fill(buffer, rtphl+1,AMR_FRAME_HEADER_LENGTH);
 
-				// Then we calculate the frame payload length
-				frameType = (Math.abs(buffer[rtphl + 1]) >> 3) & 0x0f;
-				frameLength = (sFrameBits[frameType]+7)/8;
+				// The table of contents has one entry per frame, the frames follow it
+				pos = rtphl+1+frames;
+				for (int i=0;i<frames;i++) {
 
-				// And we read the payload
-				fill(buffer, rtphl+2,frameLength);
+					// First we read the frame header
+					read(buffer, rtphl+1+i, AMR_FRAME_HEADER_LENGTH);
 
-				//Log.d(TAG,"Frame length: "+frameLength+" frameType: "+frameType);
+					// Then we calculate the frame payload length
+					frameType = (buffer[rtphl+1+i] >> 3) & 0x0f;
+					frameLength = (sFrameBits[frameType]+7)/8;
 
-				// RFC 3267 Page 14: "For AMR, the sampling frequency is 8 kHz"
-				// FIXME: Is this really always the case ??
-				ts += 160L*1000000000L/samplingRate; //stats.average();
-				socket.updateTimestamp(ts);
-				socket.markNextPacket();
+					// The F bit of the TOC entry is set when another frame follows
+					buffer[rtphl+1+i] &= 0x7C;
+					if (i<frames-1) buffer[rtphl+1+i] |= 0x80;
 
-				//Log.d(TAG,"expected: "+ expected + " measured: "+measured);
-				
-				send(rtphl+1+AMR_FRAME_HEADER_LENGTH+frameLength);
+					// And we read the payload
+					read(buffer, pos, frameLength);
+					pos += frameLength;
+
+					// RFC 3267 Page 14: "For AMR, the sampling frequency is 8 kHz"
+					// FIXME: Is this really always the case ??
+					ts += 160L*1000000000L/samplingRate; //stats.average();
+					if (i == 0) socket.updateTimestamp(ts);
+
+				}
+
+				socket.markNextPacket();
+				send(pos);
 				
 			}
 
@@ -126,17 +158,26 @@ public class AMRNBPacketizer extends AbstractPacketizer implements Runnable {
 
 	}
 
-	private int fill(byte[] buffer, int offset,int length) throws IOException {
-		int sum = 0, len;
-		while (sum<length) {
-			len = is.read(buffer, offset+sum, length-sum);
-			if (len<0) {
-				throw new IOException("End of stream");
+	/**
+	 * Reads length bytes of the stream, the stream is read in bulk so that several
+	 * frames are usually read with a single call to the underlying InputStream.
+	 */
+	private void read(byte[] buffer, int offset, int length) throws IOException {
+		while (length>0) {
+			if (inPos == inLimit) {
+				final int len = is.read(in, 0, in.length);
+				if (len<0) {
+					throw new IOException("End of stream");
+				}
+				inPos = 0;
+				inLimit = len;
 			}
-			else sum+=len;
+			final int len = Math.min(length, inLimit-inPos);
+			System.arraycopy(in, inPos, buffer, offset, len);
+			inPos += len;
+			offset += len;
+			length -= len;
 		}
-		return sum;
 	}
 
-
 }
@@ -42,6 +42,9 @@ abstract public class AbstractPacketizer {
 	
 	protected long ts = 0;
 
+	/** Set while sending a video frame that no other frame references, its packets are sent last. */
+	protected boolean discardable = false;
+
 	public AbstractPacketizer(final long startTimeNs) {
 		int ssrc = new Random().nextInt();
 		ts = new Random().nextInt();
@@ -64,6 +67,10 @@ abstract public class AbstractPacketizer {
 	public void setInputStream(InputStream is) {
 		this.is = is;
 	}
+
+	public InputStream getInputStream() {
+		return is;
+	}
 	
 	public void setTimeToLive(int ttl) throws IOException {
 		socket.setTimeToLive(ttl);
@@ -87,6 +94,7 @@ abstract public class AbstractPacketizer {
 
 	/** Updates data for RTCP SR and sends the packet. */
 	protected void send(int length) throws IOException {
+		if (discardable) socket.markDiscardable();
 		socket.commitBuffer(length);
 	}
 
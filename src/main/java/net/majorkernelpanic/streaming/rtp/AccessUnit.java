@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import com.serenegiant.utils.BufferHelper;
+
+/**
+ * A frame read from a {@link FrameInputStream} and the list of the NAL units to send for it.
+ * Used by the H.264 and H.265 packetizers so that all the NAL units of a frame can be sent
+ * with the same timestamp, and aggregated in the same packet when they are small.
+ * The NAL units of the list are referenced without their start code, they either point into
+ * {@link #frame} or into arrays inserted with {@link #insert(int, byte[])}.
+ */
+class AccessUnit {
+
+	byte[] frame = new byte[65536];
+	int size = 0;
+
+	// NAL units to send
+	int count = 0;
+	byte[][] nalData = new byte[16][];
+	int[] nalOffset = new int[16];
+	int[] nalLength = new int[16];
+
+	/**
+	 * Reads an entire frame of the stream in {@link #frame}.
+	 * @return The size of the frame, 0 if no frame was available
+	 */
+	int read(InputStream is) throws IOException {
+		int length = is.read(frame, 0, frame.length);
+		if (length < 0) throw new IOException("End of stream");
+		while (is.available() > 0) {
+			if (length == frame.length) {
+				frame = Arrays.copyOf(frame, frame.length * 2);
+			}
+			final int len = is.read(frame, length, frame.length - length);
+			if (len < 0) throw new IOException("End of stream");
+			length += len;
+		}
+		size = length;
+		count = 0;
+		return length;
+	}
+
+	/**
+	 * Splits the frame in NAL units preceded by 0x000001 or 0x00000001.
+	 * @return false if the frame does not start with a start code
+	 */
+	boolean split() {
+		count = 0;
+		int start = nextStartCode(frame, 0, size);
+		if (start < 0) return false;
+		while (start < size) {
+			// Skips the start code
+			while (frame[start] == 0) start++;
+			start++;
+			int end = nextStartCode(frame, start, size);
+			if (end < 0) end = size;
+			// Trailing zero bytes belong to the next start code
+			int nalEnd = end;
+			while (nalEnd > start && frame[nalEnd - 1] == 0) nalEnd--;
+			if (nalEnd > start) add(frame, start, nalEnd - start);
+			start = end;
+		}
+		return true;
+	}
+
+	/** Makes the whole frame a single NAL unit, for streams without start codes. */
+	void single() {
+		count = 0;
+		if (size > 0) add(frame, 0, size);
+	}
+
+	/** Returns the first byte of the header of the NAL unit at index i. */
+	int header(int i) {
+		return nalData[i][nalOffset[i]] & 0xFF;
+	}
+
+	/** Returns a copy of the NAL unit at index i. */
+	byte[] copy(int i) {
+		return Arrays.copyOfRange(nalData[i], nalOffset[i], nalOffset[i] + nalLength[i]);
+	}
+
+	void add(byte[] data, int offset, int length) {
+		insert(count, data, offset, length);
+	}
+
+	/** Inserts a NAL unit before the NAL unit at index i. */
+	void insert(int i, byte[] nal) {
+		insert(i, nal, 0, nal.length);
+	}
+
+	private void insert(int i, byte[] data, int offset, int length) {
+		if (count == nalData.length) {
+			nalData = Arrays.copyOf(nalData, count * 2);
+			nalOffset = Arrays.copyOf(nalOffset, count * 2);
+			nalLength = Arrays.copyOf(nalLength, count * 2);
+		}
+		System.arraycopy(nalData, i, nalData, i + 1, count - i);
+		System.arraycopy(nalOffset, i, nalOffset, i + 1, count - i);
+		System.arraycopy(nalLength, i, nalLength, i + 1, count - i);
+		nalData[i] = data;
+		nalOffset[i] = offset;
+		nalLength[i] = length;
+		count++;
+	}
+
+	/**
+	 * Returns the number of NAL units, starting at index i, that fit in a payload of maxSize bytes
+	 * when each one is preceded by a 2 bytes size field after a header of headerSize bytes.
+	 */
+	int aggregable(int i, int headerSize, int maxSize) {
+		int n = 0, sum = headerSize;
+		while (i + n < count && sum + 2 + nalLength[i + n] <= maxSize) {
+			sum += 2 + nalLength[i + n];
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * Writes n NAL units starting at index i in buffer, each one preceded by its size on 2 bytes.
+	 * @return The position following the last NAL unit in buffer
+	 */
+	int aggregate(int i, int n, byte[] buffer, int pos) {
+		for (int j = i; j < i + n; j++) {
+			buffer[pos++] = (byte) (nalLength[j] >> 8);
+			buffer[pos++] = (byte) (nalLength[j] & 0xFF);
+			System.arraycopy(nalData[j], nalOffset[j], buffer, pos, nalLength[j]);
+			pos += nalLength[j];
+		}
+		return pos;
+	}
+
+	/**
+	 * Returns the position of the first 0x000001 found in data between from and to, or -1.
+	 * Runs of bytes without zeros are skipped 8 bytes at a time, see {@link BufferHelper#findStartCode}.
+	 */
+	static int nextStartCode(byte[] data, int from, int to) {
+		return BufferHelper.findStartCode(data, from, to);
+	}
+
+}
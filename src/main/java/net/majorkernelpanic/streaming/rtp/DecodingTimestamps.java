@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+/**
+ * Estimates the decoding timestamps of a stream containing B-frames from its presentation
+ * timestamps, which the encoder outputs in decoding order. The presentation timestamps go through
+ * a reorder buffer as deep as the number of consecutive B-frames: the decoding timestamp of a frame
+ * is the smallest presentation timestamp of the buffer, so that it is never after its presentation time.
+ * The first frames, which fill the buffer, are given decoding timestamps one frame apart
+ * before the presentation timestamp of the first frame.
+ */
+class DecodingTimestamps {
+
+	private long[] sorted = new long[1];
+	private int depth = 0, length = 0, frames = 0;
+	private long first, last, frameDurationNs;
+
+	/**
+	 * @param depth Maximal number of consecutive B-frames, 0 if the stream has none
+	 * @param frameDurationNs Duration of a frame
+	 */
+	void reset(int depth, long frameDurationNs) {
+		this.depth = Math.max(0, depth);
+		this.frameDurationNs = frameDurationNs;
+		sorted = new long[this.depth+1];
+		length = 0;
+		frames = 0;
+		last = Long.MIN_VALUE;
+	}
+
+	boolean isEnabled() {
+		return depth > 0;
+	}
+
+	/**
+	 * Returns the decoding timestamp of the next frame of the stream.
+	 * @param pts The presentation timestamp of the frame
+	 */
+	long next(long pts) {
+		if (depth == 0) return pts;
+		long dts;
+		insert(pts);
+		if (frames < depth) {
+			if (frames == 0) first = pts;
+			dts = first - (depth - frames) * frameDurationNs;
+		} else {
+			dts = sorted[0];
+			System.arraycopy(sorted, 1, sorted, 0, --length);
+		}
+		frames++;
+		// Decoding timestamps are strictly increasing
+		if (dts <= last) dts = last + 1;
+		last = dts;
+		return dts;
+	}
+
+	private void insert(long pts) {
+		int i = length;
+		while (i > 0 && sorted[i-1] > pts) {
+			sorted[i] = sorted[i-1];
+			i--;
+		}
+		sorted[i] = pts;
+		length++;
+	}
+
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import android.media.MediaCodec.BufferInfo;
+import android.util.Log;
+
+import com.serenegiant.media.MediaFrameBus;
+import com.serenegiant.media.SharedMediaData;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * An InputStream that reads the encoded frames published on a {@link MediaFrameBus}.
+ * Each frame is returned by consecutive calls to read() until it has been entirely read,
+ * so the packetizers can get its presentation time with {@link #presentationTimeUs()}.
+ * The stream can be switched to another bus with {@link #setSource(MediaFrameBus)}, for
+ * example to replay recorded frames, without stopping the packetizer reading it.
+ * This class is not thread safe !
+ */
+public class FrameInputStream extends InputStream {
+	private static final boolean DEBUG = false;	// set false on production
+	private static final String TAG = FrameInputStream.class.getSimpleName();
+
+	private static final int QUEUE_SIZE = 200;
+
+	@NonNull
+	protected final MediaFrameBus mBus;
+	@NonNull
+	protected final BufferInfo mLastBufferInfo = new BufferInfo();
+	private final Object mSync = new Object();
+	@NonNull
+	private MediaFrameBus mSource;
+	@NonNull
+	private volatile MediaFrameBus.Subscriber mSubscriber;
+	@Nullable
+	private SharedMediaData mData = null;
+	private ByteBuffer mBuffer;
+	protected volatile boolean mClosed = false;
+	private volatile long mLastPresentationTimeUs;
+	private volatile int mLastFlags;
+	@Nullable
+	private Runnable mListener = null;
+
+	public FrameInputStream(@NonNull final MediaFrameBus bus) {
+		mBus = bus;
+		mSource = bus;
+		mSubscriber = bus.subscribe(QUEUE_SIZE, MediaFrameBus.DropPolicy.DROP_NEWEST);
+	}
+
+	/**
+	 * Returns the bus this stream was created with. For a {@link MediaCodecInputStream}
+	 * this is the bus on which every encoded frame of the MediaCodec is published.
+	 */
+	@NonNull
+	public MediaFrameBus getFrameBus() {
+		return mBus;
+	}
+
+	/**
+	 * Makes the stream read its frames from another bus, frames queued from the previous
+	 * source are dropped. The frame being read is completed first.
+	 * @param source The new source, or null to go back to the bus of this stream
+	 */
+	public void setSource(@Nullable final MediaFrameBus source) {
+		final MediaFrameBus bus = source != null ? source : mBus;
+		final MediaFrameBus previous;
+		final MediaFrameBus.Subscriber subscriber;
+		synchronized (mSync) {
+			if (bus == mSource) return;
+			previous = mSource;
+			subscriber = mSubscriber;
+			mSource = bus;
+			mSubscriber = bus.subscribe(QUEUE_SIZE, MediaFrameBus.DropPolicy.DROP_NEWEST);
+			subscriber.setOnAvailableListener(null);
+			mSubscriber.setOnAvailableListener(mListener);
+		}
+		previous.unsubscribe(subscriber);
+	}
+
+	/**
+	 * Sets the listener called when a frame is received, by the thread publishing it.
+	 * @param listener The listener, or null to remove it
+	 */
+	public void setOnFrameAvailableListener(@Nullable final Runnable listener) {
+		synchronized (mSync) {
+			mListener = listener;
+			mSubscriber.setOnAvailableListener(listener);
+		}
+	}
+
+	/**
+	 * Returns true if a frame has been received and is not entirely read,
+	 * read() then returns without waiting.
+	 */
+	public boolean hasFrame() {
+		return mData != null || mSubscriber.count() > 0;
+	}
+
+	/**
+	 * Returns the number of bytes left in the frame being read, or the size of the next
+	 * frame received, 0 if there is none.
+	 */
+	public int nextFrameSize() {
+		final ByteBuffer buffer = mBuffer;
+		return mData != null && buffer != null ? buffer.remaining() : mSubscriber.peekSize();
+	}
+
+	public boolean isClosed() {
+		return mClosed;
+	}
+
+	@Override
+	public void close() {
+		mClosed = true;
+		synchronized (mSync) {
+			mSource.unsubscribe(mSubscriber);
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		throw new UnsupportedOperationException();
+	}
+
+	public int available() {
+		return mBuffer != null ? mBuffer.remaining() : 0;
+	}
+
+	@Deprecated
+	@NonNull
+	public BufferInfo getLastBufferInfo() {
+		return mLastBufferInfo;
+	}
+
+	public long presentationTimeUs() {
+		return mLastPresentationTimeUs;
+	}
+
+	/**
+	 * Returns the MediaCodec.BufferInfo flags of the frame being read.
+	 */
+	public int flags() {
+		return mLastFlags;
+	}
+
+	/**
+	 * Called before waiting for a new frame.
+	 */
+	protected void prepare() {
+	}
+
+	/**
+	 * @param buffer
+	 * @param offset
+	 * @param length
+	 * @return
+	 * @throws IOException
+	 */
+	@Override
+	public int read(@NonNull final byte[] buffer, final int offset, final int length) throws IOException {
+		int min = 0;
+		try {
+			SharedMediaData data = mData;
+			if (data == null) {
+				prepare();
+				while (!Thread.interrupted() && !isClosed()) {
+					data = mSubscriber.poll(50, TimeUnit.MILLISECONDS);
+					if (data != null) {
+						data.get(mLastBufferInfo);
+						mLastPresentationTimeUs = data.presentationTimeUs();
+						mLastFlags = data.flags();
+						mBuffer = data.view();
+						break;
+					}
+				}
+			}
+			if (isClosed()) throw new IOException("This InputStream was closed");
+			if (data != null) {
+				final ByteBuffer buf = mBuffer;
+				min = Math.min(length, buf.remaining());
+				buf.get(buffer, offset, min);
+				if (buf.remaining() == 0) {
+					data.release();
+					data = null;
+				}
+			}
+			mData = data;
+		} catch (final InterruptedException e) {
+			mClosed = true;
+		} catch (final RuntimeException e) {
+			if (DEBUG) Log.w(TAG, "read:", e);
+		}
+
+		return min;
+	}
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import net.majorkernelpanic.streaming.StreamingExecutors;
+import android.util.Log;
+
+/**
+ * Runs a packetizer reading a {@link FrameInputStream} on the pool of {@link StreamingExecutors}
+ * instead of a thread waiting for the frames. The task is submitted when a frame is received,
+ * sends all the frames received so far and returns, so a pool thread is only used while there
+ * is something to send. The frames of a packetizer are still sent one at a time, in order.
+ * <p>
+ * A task never waits for the FIFO of its {@link RtpSocket}: when a frame doesn't fit, it returns
+ * and is submitted again once the RtpSender has made room, see {@link RtpSocket#hasRoomFor(int, Runnable)}.
+ */
+abstract class FrameTask implements Runnable {
+
+	private static final String TAG = FrameTask.class.getSimpleName();
+
+	private final FrameInputStream mInput;
+	private final RtpSocket mSocket;
+	private final long mIdleTimeoutMs;
+	private final AtomicBoolean mScheduled = new AtomicBoolean(false);
+	private final Object mLock = new Object();
+	private final Object mRunnerLock = new Object();
+	private Thread mRunner = null;
+	private ScheduledFuture<?> mIdle = null;
+	private volatile boolean mStopped = false;
+
+	private final Runnable mSignal = new Runnable() {
+		@Override
+		public void run() {
+			if (!mStopped && mScheduled.compareAndSet(false, true)) {
+				StreamingExecutors.getExecutor().execute(FrameTask.this);
+			}
+		}
+	};
+
+	private final Runnable mIdleTask = new Runnable() {
+		@Override
+		public void run() {
+			synchronized (mLock) {
+				if (mStopped || mInput.hasFrame()) return;
+				try {
+					idle();
+				} catch (Exception e) {
+					Log.w(TAG, e);
+				}
+			}
+		}
+	};
+
+	/**
+	 * @param input The stream read by the packetizer
+	 * @param socket The socket the packetizer sends the frames to
+	 * @param idleTimeoutMs Time without frames after which {@link #idle()} is called, 0 to never call it
+	 */
+	FrameTask(FrameInputStream input, RtpSocket socket, long idleTimeoutMs) {
+		mInput = input;
+		mSocket = socket;
+		mIdleTimeoutMs = idleTimeoutMs;
+	}
+
+	/** Reads a frame, which has already been received, and sends it. */
+	protected abstract void sendFrame() throws IOException, InterruptedException;
+
+	/** Called when no frame was received for the idle timeout. */
+	protected void idle() throws IOException, InterruptedException {
+	}
+
+	void start() {
+		// For a MediaCodecInputStream, starts pulling the frames out of the encoder
+		mInput.prepare();
+		mSocket.setNonBlocking(true);
+		mInput.setOnFrameAvailableListener(mSignal);
+	}
+
+	/** Stops the task, waits for the frame being sent. */
+	void stop() {
+		mStopped = true;
+		mInput.setOnFrameAvailableListener(null);
+		mSocket.setNonBlocking(false);
+		synchronized (mRunnerLock) {
+			// Unblocks the packetizer if it waits for a buffer of the RtpSocket
+			if (mRunner != null) mRunner.interrupt();
+		}
+		synchronized (mLock) {
+			if (mIdle != null) mIdle.cancel(false);
+			mIdle = null;
+		}
+	}
+
+	@Override
+	public void run() {
+		synchronized (mLock) {
+			mScheduled.set(false);
+			if (mStopped) return;
+			synchronized (mRunnerLock) {
+				mRunner = Thread.currentThread();
+			}
+			try {
+				while (!mStopped && mInput.hasFrame()) {
+					// Runs again when the RtpSender has sent enough packets
+					if (!mSocket.hasRoomFor(mInput.nextFrameSize(), mSignal)) return;
+					sendFrame();
+				}
+				if (mIdleTimeoutMs > 0 && !mStopped) {
+					if (mIdle != null) mIdle.cancel(false);
+					mIdle = StreamingExecutors.getExecutor().schedule(mIdleTask, mIdleTimeoutMs, TimeUnit.MILLISECONDS);
+				}
+			} catch (IOException e) {
+				// The stream was closed
+				mStopped = true;
+			} catch (InterruptedException e) {
+				mStopped = true;
+			} catch (RuntimeException e) {
+				Log.e(TAG, "Packetizer stopped", e);
+				mStopped = true;
+			} finally {
+				synchronized (mRunnerLock) {
+					mRunner = null;
+					// The interruption was meant for this task, not for the next one of the pool thread
+					Thread.interrupted();
+				}
+			}
+		}
+	}
+
+}
@@ -19,7 +19,9 @@
 package net.majorkernelpanic.streaming.rtp;
 
 import java.io.IOException;
+import java.util.Arrays;
 import android.annotation.SuppressLint;
+import android.media.MediaCodec;
 import android.util.Log;
 
 /**
@@ -31,12 +33,22 @@ import android.util.Log;
  *   Must be fed with an InputStream containing H.264 NAL units preceded by their length (4 bytes).
  *   The stream must start with mpeg4 or 3gpp header, it will be skipped.
  *   
+ *   When fed with a {@link FrameInputStream}, the NAL units of a frame are sent with the
+ *   timestamp of the frame and consecutive small ones are aggregated in STAP-A packets.
+ *   The frame may also be a part of a picture flagged with MediaCodec.BUFFER_FLAG_PARTIAL_FRAME,
+ *   as output by encoders in low latency mode, each part is then sent as soon as it is read.
+ *   When the encoder uses intra refresh instead of periodic IDR pictures, the SPS, the PPS and
+ *   a recovery point SEI are sent once per refresh period so that new receivers can start decoding.
+ *   When the encoder uses hierarchical-P temporal layers, the pictures of the upper layers are
+ *   dropped while the stream is congested, see {@link TemporalLayerFilter}.
+ *   
  */
 public class H264Packetizer extends AbstractPacketizer implements Runnable {
 	private static final boolean DEBUG = false;	// set false on production
 	private static final String TAG = H264Packetizer.class.getSimpleName();
 
 	private Thread t = null;
+	private FrameTask task = null;
 	private int naluLength = 0;
 	private long delay = 0, oldtime = 0;
 	private final Statistics stats = new Statistics();
@@ -44,6 +56,16 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 	byte[] header = new byte[5];	
 	private int count = 0;
 	private int streamType = 1;
+	private final AccessUnit au = new AccessUnit();
+	// True when the previous frame was the beginning of a picture
+	private boolean continued = false;
+	private int intraRefreshPeriod = 0, pictures = 0;
+	private byte[] sei = null;
+	private final DecodingTimestamps dts = new DecodingTimestamps();
+	private final TemporalLayerFilter temporalLayers = new TemporalLayerFilter(socket);
+	// Pictures since the last IDR picture, and true if the current picture is dropped
+	private int layerPictures = 0;
+	private boolean dropped = false;
 
 
 	public H264Packetizer(final long startTimeNs) {
@@ -52,13 +74,37 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 	}
 
 	public void start() {
-		if (t == null) {
-			t = new Thread(this);
-			t.start();
+		if (t == null && task == null) {
+			if (is instanceof FrameInputStream) {
+				// The frames of the MediaCodec are sent by a task of the shared pool when they are ready
+				Log.d(TAG,"H264 packetizer started !");
+				streamType = 1;
+				socket.setCacheSize(0);
+				task = new FrameTask((FrameInputStream) is, socket, 0) {
+					@Override
+					protected void sendFrame() throws IOException, InterruptedException {
+						H264Packetizer.this.sendFrame();
+					}
+				};
+				task.start();
+			} else {
+				t = new Thread(this);
+				t.start();
+			}
 		}
 	}
 
 	public void stop() {
+		if (task != null) {
+			try {
+				is.close();
+			} catch (IOException e) {
+				Log.w(TAG, e);
+			}
+			task.stop();
+			task = null;
+			Log.d(TAG,"H264 packetizer stopped !");
+		}
 		if (t != null) {
 			try {
 				is.close();
@@ -75,6 +121,90 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 		}
 	}
 
+	/**
+	 * Sets the intra refresh period of the encoder, in frames, 0 if it sends periodic IDR pictures.
+	 * Only used with the MediaCodec API.
+	 */
+	public void setIntraRefreshPeriod(int frames) {
+		intraRefreshPeriod = Math.max(0, frames);
+		sei = intraRefreshPeriod > 0 ? recoveryPointSei(intraRefreshPeriod) : null;
+		pictures = 0;
+	}
+
+	/**
+	 * Sets the maximal number of consecutive B-frames produced by the encoder, 0 if there are none.
+	 * The packets are then sent at the pace of the decoding timestamps estimated from the frame rate,
+	 * their RTP timestamps remain the presentation timestamps. Only used with the MediaCodec API.
+	 */
+	public void setBFrames(int bFrames, int framerate) {
+		dts.reset(bFrames, 1000000000L / Math.max(1, framerate));
+		socket.setDecodingTimeOffset(0);
+	}
+
+	/**
+	 * Sets the number of hierarchical-P temporal layers produced by the encoder, 1 if there are none.
+	 * The temporal layer of a picture is read in its prefix NAL unit when the encoder outputs one,
+	 * otherwise it is deduced from its position in the pattern of the layers, which restarts on each IDR picture.
+	 */
+	public void setTemporalLayers(int layers) {
+		temporalLayers.setLayers(layers);
+		layerPictures = 0;
+		dropped = false;
+	}
+
+	/**
+	 * Returns the temporal layer of the current picture.
+	 * @param prefix The temporal_id of its prefix NAL unit, -1 if there is none
+	 * @param header The header of its first VCL NAL unit
+	 */
+	private int temporalId(int prefix, int header) {
+		if (prefix >= 0) return prefix;
+		// With n layers the pattern is 2^(n-1) pictures long, each layer doubling the frame rate
+		final int n = temporalLayers.getLayers(), p = layerPictures % (1 << (n-1));
+		if (p == 0) return 0;
+		final int id = n - 1 - Integer.numberOfTrailingZeros(p);
+		// The pictures of the highest layer are never used as references, otherwise the encoder doesn't follow the pattern
+		return id == n - 1 && (header & 0x60) != 0 ? 0 : id;
+	}
+
+	/**
+	 * Builds a SEI NAL unit containing a recovery point message (H.264 D.1.7): the pictures
+	 * are correct after recoveryFrames frames, once the intra refresh has covered the picture.
+	 */
+	private static byte[] recoveryPointSei(int recoveryFrames) {
+		// recovery_frame_cnt in Exp-Golomb code, exact_match_flag, broken_link_flag and
+		// changing_slice_group_idc are 0, then a one bit and zeros to align the payload
+		final long value = Math.min(recoveryFrames, 0xFFFF) + 1;
+		final int length = 64 - Long.numberOfLeadingZeros(value);
+		long bits = (value << 5) | 1;
+		int count = 2*length-1 + 5;
+		bits <<= (8 - count%8) % 8;
+		count += (8 - count%8) % 8;
+
+		final int size = count/8;
+		final byte[] rbsp = new byte[size+4];
+		rbsp[0] = 6;	// NAL unit type 6, SEI
+		rbsp[1] = 6;	// Payload type 6, recovery point
+		rbsp[2] = (byte) size;
+		for (int i = 0; i < size; i++) {
+			rbsp[3+i] = (byte) (bits >> (8*(size-1-i)));
+		}
+		rbsp[size+3] = (byte) 0x80;	// rbsp_trailing_bits
+
+		// Emulation prevention, 0x000000 to 0x000003 become 0x00000300 to 0x00000303
+		final byte[] nal = new byte[rbsp.length*3/2+1];
+		int len = 0, zeros = 0;
+		for (byte b : rbsp) {
+			if (zeros >= 2 && (b & 0xFF) <= 3) {
+				nal[len++] = 3;
+				zeros = 0;
+			}
+			nal[len++] = b;
+			zeros = b == 0 ? zeros+1 : 0;
+		}
+		return Arrays.copyOf(nal, len);
+	}
+
 	public void setStreamParameters(byte[] pps, byte[] sps) {
 		this.pps = pps;
 		this.sps = sps;
@@ -107,7 +237,7 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 		stats.reset();
 		count = 0;
 
-		if (is instanceof MediaCodecInputStream) {
+		if (is instanceof FrameInputStream) {
 			streamType = 1;
 			socket.setCacheSize(0);
 		} else {
@@ -148,37 +278,21 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 	private void send() throws IOException, InterruptedException {
 		int sum = 1, len = 0, type;
 
-		if (streamType == 0) {
-			// NAL units are preceeded by their length, we parse the length
-			fill(header,0,5);
-			ts += delay;
-			naluLength = header[3]&0xFF | (header[2]&0xFF)<<8 | (header[1]&0xFF)<<16 | (header[0]&0xFF)<<24;
-			if (naluLength>100000 || naluLength<0) resync();
-		} else if (streamType == 1) {
-			// NAL units are preceeded with 0x00000001
-			fill(header,0,5);
-//			ts = ((MediaCodecInputStream)is).getLastBufferInfo().presentationTimeUs*1000L;
-			ts = ((MediaCodecInputStream)is).presentationTimeUs() * 1000L;
-			//ts += delay;
-			naluLength = is.available()+1;
-			if (!(header[0]==0 && header[1]==0 && header[2]==0)) {
-				// Turns out, the NAL units are not preceeded with 0x00000001
-				Log.e(TAG, "NAL units are not preceeded by 0x00000001");
-				streamType = 2; 
-				return;
-			}
-		} else {
-			// Nothing preceededs the NAL units
-			fill(header,0,1);
-			header[4] = header[0];
-//			ts = ((MediaCodecInputStream)is).getLastBufferInfo().presentationTimeUs*1000L;
-			ts = ((MediaCodecInputStream)is).presentationTimeUs() * 1000L;
-			//ts += delay;
-			naluLength = is.available()+1;
+		if (streamType != 0) {
+			sendFrame();
+			return;
 		}
 
+		// NAL units are preceeded by their length, we parse the length
+		fill(header,0,5);
+		ts += delay;
+		naluLength = header[3]&0xFF | (header[2]&0xFF)<<8 | (header[1]&0xFF)<<16 | (header[0]&0xFF)<<24;
+		if (naluLength>100000 || naluLength<0) resync();
+
 		// Parses the NAL unit type
 		type = header[4]&0x1F;
+		// A slice with a NRI of 0 is not used as a reference
+		discardable = type >= 1 && type <= 5 && (header[4] & 0x60) == 0;
 
 
 		// The stream already contains NAL unit type 7 or 8, we don't need 
@@ -244,6 +358,155 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 		}
 	}
 
+	/**
+	 * Reads a frame of the MediaCodec and sends its NAL units, they all share the timestamp of the frame.
+	 * Consecutive small NAL units are aggregated in STAP-A packets, big ones are split in FU-A units.
+	 */
+	private void sendFrame() throws IOException, InterruptedException {
+		if (au.read(is) == 0) return;
+		final FrameInputStream fis = (FrameInputStream)is;
+		ts = fis.presentationTimeUs() * 1000L;
+		final boolean partial = (fis.flags() & MediaCodec.BUFFER_FLAG_PARTIAL_FRAME) != 0;
+
+		if (streamType == 1 && !au.split()) {
+			// Turns out, the NAL units are not preceeded with 0x00000001
+			Log.e(TAG, "NAL units are not preceeded by 0x00000001");
+			streamType = 2;
+		}
+		if (streamType == 2) {
+			// Nothing preceededs the NAL units
+			au.single();
+		}
+
+		boolean hasParameterSets = false, vcl = false, idr = false, recoveryPoint = false;
+		int firstVcl = -1, prefix = -1;
+		for (int i = 0; i < au.count; i++) {
+			final int type = au.header(i) & 0x1F;
+			if (type == 14 && au.nalLength[i] >= 4) {
+				// Prefix NAL unit, its SVC extension contains the temporal_id of the picture
+				prefix = (au.nalData[i][au.nalOffset[i]+3] >> 5) & 0x07;
+			} else if (type == 7) {
+				hasParameterSets = true;
+				sps = au.copy(i);
+			} else if (type == 8) {
+				pps = au.copy(i);
+			} else if (type == 5 && !hasParameterSets && !continued && sps != null && pps != null) {
+				// The SPS and PPS allow the H264 stream to be decoded even if no SDP was sent to the decoder
+				au.insert(i++, sps);
+				au.insert(i++, pps);
+				hasParameterSets = true;
+			}
+			if (firstVcl < 0 && type >= 1 && type <= 5) firstVcl = i;
+			vcl |= type >= 1 && type <= 5;
+			idr |= type == 5;
+			// A recovery point SEI message, the payload type follows the NAL unit header
+			recoveryPoint |= type == 6 && au.nalLength[i] > 1 && au.nalData[i][au.nalOffset[i]+1] == 6;
+		}
+
+		if (vcl && !continued) {
+			dropped = false;
+			if (temporalLayers.getLayers() > 1) {
+				if (idr) layerPictures = 0;
+				dropped = !temporalLayers.accept(temporalId(prefix, au.header(firstVcl)));
+				layerPictures++;
+			}
+		}
+		if (vcl && dropped) {
+			continued = partial;
+			return;
+		}
+
+		if (intraRefreshPeriod > 0 && vcl && !continued) {
+			if (!idr && !recoveryPoint && pictures >= intraRefreshPeriod) {
+				// The parameter sets and the recovery point go after the access unit delimiter
+				int p = au.count > 0 && (au.header(0) & 0x1F) == 9 ? 1 : 0;
+				if (!hasParameterSets && sps != null && pps != null) {
+					au.insert(p++, sps);
+					au.insert(p++, pps);
+				}
+				au.insert(p, sei);
+				recoveryPoint = true;
+			}
+			if (idr || recoveryPoint) pictures = 0;
+			pictures++;
+		}
+
+		if (dts.isEnabled() && vcl && !continued) {
+			socket.setDecodingTimeOffset(ts - dts.next(ts));
+		}
+
+		if (!continued) {
+			// No other picture references a picture whose slices have a NRI of 0
+			discardable = vcl && (au.header(firstVcl) & 0x60) == 0;
+		}
+
+		int i = 0;
+		while (i < au.count) {
+			final int n = au.aggregable(i, 1, MAXPACKETSIZE-rtphl-2);
+			// The marker is set on the last packet of a picture
+			final boolean marker = vcl && !partial && i + Math.max(n, 1) == au.count;
+			if (n >= 2) {
+				sendStapA(i, n, marker);
+				i += n;
+			} else if (au.nalLength[i] <= MAXPACKETSIZE-rtphl-2) {
+				// Small NAL unit => Single NAL unit
+				buffer = socket.requestBuffer();
+				System.arraycopy(au.nalData[i], au.nalOffset[i], buffer, rtphl, au.nalLength[i]);
+				socket.updateTimestamp(ts);
+				if (marker) socket.markNextPacket();
+				super.send(au.nalLength[i]+rtphl);
+				i++;
+			} else {
+				sendFuA(i, marker);
+				i++;
+			}
+		}
+		continued = partial;
+	}
+
+	private void sendStapA(int first, int n, boolean marker) throws IOException, InterruptedException {
+		// STAP-A NAL header: F bit if one of the NAL units has it, highest NRI and type 24
+		int f = 0, nri = 0;
+		for (int i = first; i < first + n; i++) {
+			f |= au.header(i) & 0x80;
+			nri = Math.max(nri, au.header(i) & 0x60);
+		}
+		buffer = socket.requestBuffer();
+		buffer[rtphl] = (byte) (f | nri | 24);
+		final int end = au.aggregate(first, n, buffer, rtphl+1);
+		socket.updateTimestamp(ts);
+		if (marker) socket.markNextPacket();
+		super.send(end);
+	}
+
+	private void sendFuA(int i, boolean marker) throws IOException, InterruptedException {
+		final byte[] data = au.nalData[i];
+		final int offset = au.nalOffset[i], length = au.nalLength[i];
+		// FU indicator: F bit and NRI of the NAL unit and type 28
+		final byte indicator = (byte) ((data[offset] & 0xE0) | 28);
+		// FU header: start bit and type of the NAL unit
+		int fuHeader = 0x80 | (data[offset] & 0x1F);
+		int sum = 1;
+		while (sum < length) {
+			final int len = Math.min(length - sum, MAXPACKETSIZE-rtphl-2);
+			buffer = socket.requestBuffer();
+			buffer[rtphl] = indicator;
+			System.arraycopy(data, offset + sum, buffer, rtphl+2, len);
+			socket.updateTimestamp(ts);
+			sum += len;
+			// Last packet before next NAL
+			if (sum >= length) {
+				// End bit on
+				fuHeader |= 0x40;
+				if (marker) socket.markNextPacket();
+			}
+			buffer[rtphl+1] = (byte) fuHeader;
+			super.send(len+rtphl+2);
+			// Switch start bit
+			fuHeader &= 0x7F;
+		}
+	}
+
 	private int fill(byte[] buffer, int offset,int length) throws IOException {
 		int sum = 0;
 		while (sum<length) {
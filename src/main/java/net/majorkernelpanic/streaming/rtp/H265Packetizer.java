@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+import android.media.MediaCodec;
+import android.util.Log;
+
+/**
+ *
+ *   RFC 7798.
+ *
+ *   H.265 streaming over RTP.
+ *
+ *   Must be fed with a {@link FrameInputStream} containing one access unit per frame, the NAL units
+ *   of the access unit being preceded by 0x000001 or 0x00000001.
+ *   Consecutive small NAL units are sent in aggregation packets (AP), NAL units that don't fit in
+ *   a packet are split in fragmentation units (FU). The VPS, SPS and PPS of the stream are sent
+ *   before each IRAP picture.
+ *   Parts of a picture flagged with MediaCodec.BUFFER_FLAG_PARTIAL_FRAME are sent as soon as they are read.
+ *   When the encoder uses temporal layers, the pictures of the upper layers, identified by the
+ *   TemporalId of their NAL unit header, are dropped while the stream is congested.
+ *
+ */
+public class H265Packetizer extends AbstractPacketizer implements Runnable {
+	private static final boolean DEBUG = false;	// set false on production
+	private static final String TAG = H265Packetizer.class.getSimpleName();
+
+	// NAL unit types
+	private static final int NAL_BLA_W_LP = 16;
+	private static final int NAL_RSV_IRAP_23 = 23;
+	private static final int NAL_VPS = 32;
+	private static final int NAL_SPS = 33;
+	private static final int NAL_PPS = 34;
+	private static final int NAL_AP = 48;
+	private static final int NAL_FU = 49;
+
+	// Maximum size of the payload of a packet
+	private static final int MAXPAYLOADSIZE = MAXPACKETSIZE - rtphl;
+
+	private Thread t = null;
+	private FrameTask task = null;
+	private byte[] vps = null, sps = null, pps = null;
+	private final AccessUnit au = new AccessUnit();
+	// True when the previous access unit was the beginning of a picture
+	private boolean continued = false;
+	private final TemporalLayerFilter temporalLayers = new TemporalLayerFilter(socket);
+	// True if the current picture is dropped
+	private boolean dropped = false;
+
+	public H265Packetizer(final long startTimeNs) {
+		super(startTimeNs);
+		socket.setClockFrequency(90000);
+	}
+
+	public void start() {
+		if (t == null && task == null) {
+			if (is instanceof FrameInputStream) {
+				// The frames of the MediaCodec are sent by a task of the shared pool when they are ready
+				Log.d(TAG,"H265 packetizer started !");
+				socket.setCacheSize(0);
+				task = new FrameTask((FrameInputStream) is, socket, 0) {
+					@Override
+					protected void sendFrame() throws IOException, InterruptedException {
+						H265Packetizer.this.sendFrame();
+					}
+				};
+				task.start();
+			} else {
+				t = new Thread(this);
+				t.start();
+			}
+		}
+	}
+
+	public void stop() {
+		if (task != null) {
+			try {
+				is.close();
+			} catch (IOException e) {
+				Log.w(TAG, e);
+			}
+			task.stop();
+			task = null;
+			Log.d(TAG,"H265 packetizer stopped !");
+		}
+		if (t != null) {
+			try {
+				is.close();
+			} catch (IOException e) {
+				Log.w(TAG, e);
+			}
+			t.interrupt();
+			try {
+				t.join();
+			} catch (final InterruptedException e) {
+				// ignore
+			}
+			t = null;
+		}
+	}
+
+	/**
+	 * Sets the number of temporal layers produced by the encoder, 1 if there are none.
+	 */
+	public void setTemporalLayers(int layers) {
+		temporalLayers.setLayers(layers);
+		dropped = false;
+	}
+
+	/**
+	 * Sets the parameter sets sent before each IRAP picture, without their start code.
+	 * Parameter sets found in the stream replace them.
+	 */
+	public void setStreamParameters(byte[] vps, byte[] sps, byte[] pps) {
+		this.vps = vps;
+		this.sps = sps;
+		this.pps = pps;
+	}
+
+	public void run() {
+		Log.d(TAG,"H265 packetizer started !");
+
+		if (!(is instanceof FrameInputStream)) {
+			Log.e(TAG, "H265 can only be streamed with the MediaCodec API");
+			return;
+		}
+		socket.setCacheSize(0);
+
+		try {
+			while (!Thread.interrupted()) {
+				sendFrame();
+			}
+		} catch (final IOException e) {
+			if (DEBUG) Log.w(TAG, e);
+		} catch (final InterruptedException e) {
+			// ignore
+		}
+
+		Log.d(TAG,"H265 packetizer stopped !");
+	}
+
+	private void sendFrame() throws IOException, InterruptedException {
+		if (au.read(is) > 0) {
+			final FrameInputStream fis = (FrameInputStream)is;
+			ts = fis.presentationTimeUs() * 1000L;
+			send((fis.flags() & MediaCodec.BUFFER_FLAG_PARTIAL_FRAME) != 0);
+		}
+	}
+
+	/**
+	 * Splits the access unit in NAL units and sends them.
+	 * @param partial True if the rest of the picture will follow in the next access unit
+	 */
+	private void send(boolean partial) throws IOException, InterruptedException {
+		if (!au.split()) {
+			Log.e(TAG, "NAL units are not preceded by 0x000001");
+			return;
+		}
+
+		boolean hasParameterSets = false, vcl = false;
+		int temporalId = 0, vclType = -1;
+		for (int i = 0; i < au.count; i++) {
+			if (au.nalLength[i] < 2) continue;
+			final int type = (au.header(i) >> 1) & 0x3F;
+			if (type == NAL_VPS) {
+				hasParameterSets = true;
+				vps = au.copy(i);
+			} else if (type == NAL_SPS) {
+				sps = au.copy(i);
+			} else if (type == NAL_PPS) {
+				pps = au.copy(i);
+			} else if (type >= NAL_BLA_W_LP && type <= NAL_RSV_IRAP_23
+					&& !hasParameterSets && !continued && vps != null && sps != null && pps != null) {
+				// The IRAP picture must be decodable even if no SDP was sent to the decoder
+				au.insert(i++, vps);
+				au.insert(i++, sps);
+				au.insert(i++, pps);
+				hasParameterSets = true;
+			}
+			if (!vcl && type < NAL_VPS) {
+				// nuh_temporal_id_plus1, the same for all the VCL NAL units of a picture
+				temporalId = (au.nalData[i][au.nalOffset[i]+1] & 0x07) - 1;
+				vclType = type;
+			}
+			vcl |= type < NAL_VPS;
+		}
+
+		if (vcl && !continued) {
+			dropped = !temporalLayers.accept(temporalId);
+		}
+		if (vcl && dropped) {
+			continued = partial;
+			return;
+		}
+
+		if (!continued) {
+			// The even types up to RSV_VCL_N14 are sub-layer non-reference pictures
+			discardable = vcl && vclType <= 14 && (vclType & 1) == 0;
+		}
+
+		int i = 0;
+		while (i < au.count) {
+			// Aggregates as many consecutive NAL units as possible
+			final int n = au.aggregable(i, 2, MAXPAYLOADSIZE);
+			final boolean marker = vcl && !partial && i + Math.max(n, 1) == au.count;
+			if (n >= 2) {
+				sendAggregationPacket(i, n, marker);
+				i += n;
+			} else if (au.nalLength[i] <= MAXPAYLOADSIZE) {
+				sendSingleNalUnit(i, marker);
+				i++;
+			} else {
+				sendFragmentationUnits(i, marker);
+				i++;
+			}
+		}
+		continued = partial;
+	}
+
+	private void sendSingleNalUnit(int i, boolean marker) throws IOException, InterruptedException {
+		requestBuffer();
+		System.arraycopy(au.nalData[i], au.nalOffset[i], buffer, rtphl, au.nalLength[i]);
+		if (marker) socket.markNextPacket();
+		super.send(rtphl + au.nalLength[i]);
+	}
+
+	private void sendAggregationPacket(int first, int n, boolean marker) throws IOException, InterruptedException {
+		// The F bit is set if one of the aggregated NAL units has it, LayerId and TID are the lowest ones
+		int f = 0, layerId = 0x3F, tid = 7;
+		for (int i = first; i < first + n; i++) {
+			final byte[] data = au.nalData[i];
+			final int offset = au.nalOffset[i];
+			f |= data[offset] & 0x80;
+			layerId = Math.min(layerId, (data[offset] & 0x01) << 5 | (data[offset + 1] & 0xFF) >> 3);
+			tid = Math.min(tid, data[offset + 1] & 0x07);
+		}
+		requestBuffer();
+		buffer[rtphl] = (byte) (f | NAL_AP << 1 | layerId >> 5);
+		buffer[rtphl + 1] = (byte) ((layerId & 0x1F) << 3 | tid);
+		final int end = au.aggregate(first, n, buffer, rtphl + 2);
+		if (marker) socket.markNextPacket();
+		super.send(end);
+	}
+
+	private void sendFragmentationUnits(int i, boolean marker) throws IOException, InterruptedException {
+		final byte[] data = au.nalData[i];
+		final int offset = au.nalOffset[i], length = au.nalLength[i];
+		// The payload header has the F bit, LayerId and TID of the NAL unit and the FU type
+		final byte header0 = (byte) ((data[offset] & 0x81) | NAL_FU << 1);
+		final byte header1 = data[offset + 1];
+		// FU header: start bit and type of the NAL unit
+		int fuHeader = 0x80 | (data[offset] >> 1) & 0x3F;
+		int sum = 2;
+		while (sum < length) {
+			final int len = Math.min(length - sum, MAXPAYLOADSIZE - 3);
+			requestBuffer();
+			buffer[rtphl] = header0;
+			buffer[rtphl + 1] = header1;
+			System.arraycopy(data, offset + sum, buffer, rtphl + 3, len);
+			sum += len;
+			if (sum >= length) {
+				// End bit on
+				fuHeader |= 0x40;
+				if (marker) socket.markNextPacket();
+			}
+			buffer[rtphl + 2] = (byte) fuHeader;
+			super.send(rtphl + 3 + len);
+			// Switch start bit
+			fuHeader &= 0x7F;
+		}
+	}
+
+	private void requestBuffer() throws InterruptedException {
+		buffer = socket.requestBuffer();
+		socket.updateTimestamp(ts);
+	}
+
+}
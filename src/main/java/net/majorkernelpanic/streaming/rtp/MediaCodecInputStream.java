@@ -24,15 +24,16 @@ import android.media.MediaCodec;
 import android.media.MediaCodec.BufferInfo;
 import android.media.MediaFormat;
 import android.os.Build;
+import android.os.Handler;
 import android.util.Log;
 
 import com.serenegiant.media.MediaCodecUtils;
-import com.serenegiant.media.MemMediaQueue;
-import com.serenegiant.media.RecycleMediaData;
+import com.serenegiant.media.MediaFrameBus;
+import com.serenegiant.media.SharedMediaData;
 import com.serenegiant.system.BuildCheck;
 
-import java.io.IOException;
-import java.io.InputStream;
+import net.majorkernelpanic.streaming.StreamingExecutors;
+
 import java.nio.ByteBuffer;
 import java.util.concurrent.TimeUnit;
 
@@ -45,14 +46,19 @@ import org.jooq.lambda.Unchecked;
  * An InputStream that uses data from a MediaCodec.
  * The purpose of this class is to interface existing RTP packetizers of
  * libstreaming with the new MediaCodec API. This class is not thread safe !
+ * <p>
+ * Only the encoders fed by a surface hand over their frames from API 21 on. The others, and all
+ * the encoders before API 21, are still polled every {@link #POLL_INTERVAL_MS} milliseconds by a
+ * task of the pool of {@link StreamingExecutors}, one per encoder, even while they have no output.
  */
 @SuppressLint("NewApi")
-public abstract class MediaCodecInputStream extends InputStream {
+public abstract class MediaCodecInputStream extends FrameInputStream {
 	private static final boolean DEBUG = false;	// set false on production
 	private static final String TAG = MediaCodecInputStream.class.getSimpleName();
 
 	private static final long TIMEOUT_MS = 10;
-	private static final long TIMEOUT_USEC = TIMEOUT_MS * 1000L;	// 10ミリ秒
+	// Interval at which the encoder is polled when it has no output
+	private static final long POLL_INTERVAL_MS = 5;
 
 	public static MediaCodecInputStream newInstance(@NonNull final MediaCodec mediaCodec) {
 		if (BuildCheck.isAPI21()) {
@@ -62,134 +68,156 @@ public abstract class MediaCodecInputStream extends InputStream {
 		}
 	}
 
+	/**
+	 * Creates the stream of an encoder fed by a surface, must be called before
+	 * {@link MediaCodec#configure}. From API 21 on, the encoder hands over its frames to a
+	 * {@link MediaCodec.Callback} instead of being polled: on the codec looper of
+	 * {@link StreamingExecutors} from API 23 on, on the looper of the thread that created
+	 * the encoder before. On older versions, the encoder is polled after {@link MediaCodec#start()}.
+	 */
+	public static MediaCodecInputStream newSurfaceInstance(@NonNull final MediaCodec mediaCodec) {
+		if (BuildCheck.isAPI21()) {
+			return new MediaCodecInputStreamAsync(mediaCodec);
+		} else {
+			return new MediaCodecInputStreamOld(mediaCodec);
+		}
+	}
+
 	@NonNull
 	protected final MediaCodec mMediaCodec;
-	@NonNull
-	protected final BufferInfo mLastBufferInfo = new BufferInfo();
-	@NonNull
-	protected final MemMediaQueue mQueue = new MemMediaQueue(4, 200);
-	@Nullable
-	private RecycleMediaData mData = null;
-	private ByteBuffer mBuffer;
-	private volatile boolean mClosed = false;
-	private volatile long mLastPresentationTimeUs;
 
 	@Nullable
 	public MediaFormat mMediaFormat;
-	@Nullable
-	private Thread mReapThread;
+	private volatile boolean mReaping = false;
 
 	private MediaCodecInputStream(@NonNull final MediaCodec mediaCodec) {
+		super(new MediaFrameBus(4, 200));
 		mMediaCodec = mediaCodec;
 	}
 
-	public boolean isClosed() {
-		return mClosed;
-	}
-
 	@Override
 	public void close() {
 		mClosed = true;
-		final Thread reapThread = mReapThread;
-		mReapThread = null;
-		if ((reapThread != null) && !reapThread.isInterrupted()) {
+		if (mReaping) {
 			// wait for a little to reduce InterruptException in MediaCodec
 			Unchecked.longConsumer(Thread::sleep).accept(TIMEOUT_MS);
-//			reapThread.interrupt();
 		}
+		super.close();
 	}
 
-	@Override
-	public int read() throws IOException {
-		throw new UnsupportedOperationException();
-	}
-
-	public int available() {
-		return mBuffer != null ? mBuffer.remaining() : 0;
-	}
+	/**
+	 * Publishes the next frame of the encoder, without waiting for it.
+	 * @return false if the encoder had no frame
+	 */
+	protected abstract boolean reap();
 
-	@Deprecated
-	@NonNull
-	public BufferInfo getLastBufferInfo() {
-		return mLastBufferInfo;
+	/**
+	 * Frames are only reaped once the packetizer starts reading the stream.
+	 */
+	@Override
+	protected void prepare() {
+		startReaper();
 	}
 
-	public long presentationTimeUs() {
-		return mLastPresentationTimeUs;
+	/**
+	 * The frames are pulled out of the encoder by a task of the shared pool of {@link StreamingExecutors}
+	 * instead of a thread per encoder: the task takes all the frames available and polls the encoder
+	 * again a few milliseconds later.
+	 */
+	private synchronized void startReaper() {
+//		if (DEBUG) Log.v(TAG, "startReaper:");
+		if (!isClosed() && !mReaping) {
+			mReaping = true;
+			if (DEBUG) Log.i(TAG, "start reaper");
+			StreamingExecutors.getExecutor().execute(mReaper);
+		}
 	}
 
-	protected abstract void reap();
-
-	private void startReaper() {
-//		if (DEBUG) Log.v(TAG, "startReaper:");
-		if (!Thread.interrupted() && !isClosed() && (mReapThread == null)) {
-			mReapThread = new Thread(new Runnable() {
-				@Override
-				public void run() {
-					if (DEBUG) Log.i(TAG, "start reaper thread");
-					while (!Thread.interrupted() && !isClosed()) {
-						try {
-							reap();
-						} catch (final IllegalStateException e) {
-							mClosed = true;
-							break;
-						} catch (final Exception e) {
-							if (DEBUG) Log.w(TAG, "mReapThread#run:", e);
-							mClosed = true;
-							break;
-						}
-					}
-					if (DEBUG) Log.i(TAG, "reaper thread finished");
+	private final Runnable mReaper = new Runnable() {
+		@Override
+		public void run() {
+			try {
+				while (!isClosed() && reap()) {
+					// Takes the frames already encoded
 				}
-			});
-			mReapThread.start();
+			} catch (final IllegalStateException e) {
+				mClosed = true;
+			} catch (final Exception e) {
+				if (DEBUG) Log.w(TAG, "mReaper#run:", e);
+				mClosed = true;
+			}
+			if (!isClosed()) {
+				StreamingExecutors.getExecutor().schedule(this, POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+			} else {
+				mReaping = false;
+				if (DEBUG) Log.i(TAG, "reaper finished");
+			}
 		}
-	}
+	};
 
 	/**
-	 * @param buffer
-	 * @param offset
-	 * @param length
-	 * @return
-	 * @throws IOException
+	 * MediaCodecInputStream implementation for API>=21 when the input of the encoder is a surface,
+	 * the input buffers can't be dequeued by the caller once the callback is set.
 	 */
-	@Override
-	public int read(@NonNull final byte[] buffer, final int offset, final int length) throws IOException {
-//		if (DEBUG) Log.v(TAG, "read:");
-		int min = 0;
-		try {
-			RecycleMediaData data = mData;
-			if (data == null) {
-				startReaper();
-				while (!Thread.interrupted() && !isClosed()) {
-					data = mQueue.poll(50, TimeUnit.MILLISECONDS);
+	@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+	private static class MediaCodecInputStreamAsync extends MediaCodecInputStream {
+
+		private MediaCodecInputStreamAsync(@NonNull final MediaCodec mediaCodec) {
+			super(mediaCodec);
+			if (BuildCheck.isAPI23()) {
+				mMediaCodec.setCallback(mCallback, new Handler(StreamingExecutors.getCodecLooper()));
+			} else {
+				mMediaCodec.setCallback(mCallback);
+			}
+		}
+
+		@Override
+		protected boolean reap() {
+			return false;
+		}
+
+		/**
+		 * The frames are published as soon as the encoder outputs them, there is nothing to poll.
+		 */
+		@Override
+		protected void prepare() {
+		}
+
+		private final MediaCodec.Callback mCallback = new MediaCodec.Callback() {
+			@Override
+			public void onInputBufferAvailable(@NonNull final MediaCodec codec, final int index) {
+				// The input is a surface
+			}
+
+			@Override
+			public void onOutputBufferAvailable(@NonNull final MediaCodec codec, final int index, @NonNull final BufferInfo info) {
+				try {
+					final SharedMediaData data = isClosed() ? null : mBus.obtain();
 					if (data != null) {
-						data.get(mLastBufferInfo);
-						mLastPresentationTimeUs = data.presentationTimeUs();
-						mBuffer = data.getRaw().asReadOnlyBuffer();
-						break;
+						data.set(codec.getOutputBuffer(index), info);
+						mBus.publish(data);
+					} else {
+						if (DEBUG && !isClosed()) Log.v(TAG, "onOutputBufferAvailable: pool is empty");
 					}
+					codec.releaseOutputBuffer(index, false);
+				} catch (final IllegalStateException e) {
+					// The encoder was stopped meanwhile
+					mClosed = true;
 				}
 			}
-			if (isClosed()) throw new IOException("This InputStream was closed");
-			if (data != null) {
-				final ByteBuffer buf = mBuffer;
-				min = Math.min(length, buf.remaining());
-				buf.get(buffer, offset, min);
-				if (buf.remaining() == 0) {
-					mQueue.recycle(data);
-					data = null;
-				}
+
+			@Override
+			public void onError(@NonNull final MediaCodec codec, @NonNull final MediaCodec.CodecException e) {
+				if (DEBUG) Log.w(TAG, "onError:", e);
+				mClosed = true;
 			}
-			mData = data;
-		} catch (final InterruptedException e) {
-			mClosed = true;
-		} catch (final RuntimeException e) {
-			if (DEBUG) Log.w(TAG, "read:", e);
-		}
 
-//		if (DEBUG) Log.v(TAG, "read:finished,min=" + min);
-		return min;
+			@Override
+			public void onOutputFormatChanged(@NonNull final MediaCodec codec, @NonNull final MediaFormat format) {
+				mMediaFormat = format;
+				if (DEBUG) MediaCodecUtils.dump(mMediaFormat);
+			}
+		};
 	}
 
 	/**
@@ -207,14 +235,14 @@ public abstract class MediaCodecInputStream extends InputStream {
 		}
 
 		@Override
-		protected void reap() {
+		protected boolean reap() {
+			boolean queued = false;
 			if (!isClosed()) {
-				final RecycleMediaData data = mQueue.obtain();
+				final SharedMediaData data = mBus.obtain();
 				if (data != null) {
-					boolean queued = false;
 					for (int i = 0; i < 3; i++) {
 						if (Thread.interrupted() || isClosed()) break;
-						final int index = mMediaCodec.dequeueOutputBuffer(mInfo, TIMEOUT_USEC);
+						final int index = mMediaCodec.dequeueOutputBuffer(mInfo, 0);
 						if (Thread.interrupted() || isClosed()) break;
 						if (index >= 0) {
 							final ByteBuffer buf = mBuffers[index];
@@ -224,7 +252,7 @@ public abstract class MediaCodecInputStream extends InputStream {
 //								+ ",pts=" + mInfo.presentationTimeUs
 //								+ ",offset=" + mInfo.offset
 //								+ ",size=" + mInfo.size + "/" + data.size());
-							mQueue.queueFrame(data);
+							mBus.publish(data);
 							queued = true;
 							break;
 						} else if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
@@ -232,18 +260,21 @@ public abstract class MediaCodecInputStream extends InputStream {
 						} else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
 							mMediaFormat = mMediaCodec.getOutputFormat();
 							if (DEBUG) MediaCodecUtils.dump(mMediaFormat);
-						} else if (index != MediaCodec.INFO_TRY_AGAIN_LATER) {
+						} else if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+							break;
+						} else {
 							Log.e(TAG, "Message: " + index);
 							//return 0;
 						}
 					}
 					if (!queued) {
-						data.recycle();
+						data.release();
 					}
 				} else {
 					if (DEBUG) Log.v(TAG, "reap: pool is empty");
 				}
 			}
+			return queued;
 		}
 	}
 
@@ -258,14 +289,14 @@ public abstract class MediaCodecInputStream extends InputStream {
 		}
 
 		@Override
-		protected void reap() {
+		protected boolean reap() {
+			boolean queued = false;
 			if (!isClosed()) {
-				final RecycleMediaData data = mQueue.obtain();
+				final SharedMediaData data = mBus.obtain();
 				if (data != null) {
-					boolean queued = false;
 					for (int i = 0; i < 3; i++) {
 						if (Thread.interrupted() || isClosed()) break;
-						final int index = mMediaCodec.dequeueOutputBuffer(mInfo, TIMEOUT_USEC);
+						final int index = mMediaCodec.dequeueOutputBuffer(mInfo, 0);
 						if (index >= 0) {
 							final ByteBuffer buf = mMediaCodec.getOutputBuffer(index);
 							data.set(buf, mInfo);
@@ -274,24 +305,27 @@ public abstract class MediaCodecInputStream extends InputStream {
 //								+ ",pts=" + mInfo.presentationTimeUs
 //								+ ",offset=" + mInfo.offset
 //								+ ",size=" + mInfo.size + "/" + data.size());
-							mQueue.queueFrame(data);
+							mBus.publish(data);
 							queued = true;
 							break;
 						} else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
 							mMediaFormat = mMediaCodec.getOutputFormat();
 							if (DEBUG) MediaCodecUtils.dump(mMediaFormat);
-						} else if (index != MediaCodec.INFO_TRY_AGAIN_LATER) {
+						} else if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+							break;
+						} else {
 							Log.e(TAG, "Message: " + index);
 							//return 0;
 						}
 					}
 					if (!queued) {
-						data.recycle();
+						data.release();
 					}
 				} else {
 					if (DEBUG) Log.v(TAG, "reap: pool is empty");
 				}
 			}
+			return queued;
 		}
 	}
 }
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+import android.media.MediaCodec;
+import android.util.Log;
+
+/**
+ * RFC 7587.
+ *
+ * Encapsulates Opus packets in RTP packets, one Opus packet per RTP packet.
+ * This packetizer is used by the OpusStream class in conjunction with the
+ * MediaCodec API, the RTP clock of Opus is always 48 kHz.
+ *
+ */
+public class OpusPacketizer extends AbstractPacketizer implements Runnable {
+	private static final boolean DEBUG = false;	// set false on production
+	private static final String TAG = OpusPacketizer.class.getSimpleName();
+
+	private FrameTask task;
+
+	public OpusPacketizer(final long startTimeNs) {
+		super(startTimeNs);
+		socket.setMediaClass(RtpSocket.CLASS_AUDIO);
+		socket.setClockFrequency(48000);
+		socket.setCacheSize(0);
+	}
+
+	public void start() {
+		if (task==null) {
+			if (!(is instanceof FrameInputStream)) {
+				Log.e(TAG, "Opus can only be streamed with the MediaCodec API");
+				return;
+			}
+			// The packets of the MediaCodec are sent by a task of the shared pool when they are ready
+			Log.d(TAG,"Opus packetizer started !");
+			task = new FrameTask((FrameInputStream)is, socket, 0) {
+				@Override
+				protected void sendFrame() throws IOException, InterruptedException {
+					OpusPacketizer.this.sendFrame((FrameInputStream)is);
+				}
+			};
+			task.start();
+		}
+	}
+
+	public void stop() {
+		if (task != null) {
+			try {
+				is.close();
+			} catch (final IOException e) {
+				if (DEBUG) Log.w(TAG, e);
+			}
+			task.stop();
+			task = null;
+			Log.d(TAG,"Opus packetizer stopped !");
+		}
+	}
+
+	public void run() {
+
+		Log.d(TAG,"Opus packetizer started !");
+
+		if (!(is instanceof FrameInputStream)) {
+			Log.e(TAG, "Opus can only be streamed with the MediaCodec API");
+			return;
+		}
+		final FrameInputStream fis = (FrameInputStream)is;
+
+		try {
+			while (!Thread.interrupted()) {
+				sendFrame(fis);
+			}
+		} catch (final IOException e) {
+			if (DEBUG) Log.w(TAG, e);
+		} catch (final InterruptedException ignore) {
+			// ignore
+		}
+
+		Log.d(TAG,"Opus packetizer stopped !");
+
+	}
+
+	private void sendFrame(FrameInputStream fis) throws IOException, InterruptedException {
+		buffer = socket.requestBuffer();
+		final int length = fis.read(buffer, rtphl, MAXPACKETSIZE-rtphl);
+
+		if (length>0 && fis.available()>0) {
+			// An Opus packet can't be fragmented, it doesn't fit in the MTU
+			Log.w(TAG, "Opus packet too big, dropped");
+			while (fis.available()>0) {
+				fis.read(buffer, rtphl, Math.min(fis.available(), MAXPACKETSIZE-rtphl));
+			}
+			socket.commitBuffer();
+		} else if (length>0 && (fis.flags() & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+			ts = fis.presentationTimeUs() * 1000L;
+			socket.updateTimestamp(ts);
+			send(rtphl+length);
+		} else {
+			// Nothing read, or the OpusHead and the pre-skip of the codec specific data
+			socket.commitBuffer();
+		}
+	}
+
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
+import net.majorkernelpanic.streaming.StreamingExecutors;
+import android.util.Log;
+
+/**
+ * Sends the packets of all the {@link RtpSocket}s with a few threads, instead of one sleeping thread per socket.
+ * Each thread keeps a hashed timing wheel of the time at which its sockets must send their next packet:
+ * the wheel has one slot per millisecond, a socket due in more than a turn of the wheel stays in its
+ * slot until the right turn. At each tick the thread sends all the packets due of the sockets of the
+ * current slot, and puts the sockets back in the wheel at the time of their next packet.
+ * A socket belongs to the same thread until its destinations change, its packets are sent in order.
+ * The thread sleeps when none of its sockets has a packet to send.
+ * <p>
+ * The sockets going to the same destination share a thread. The due packets of their audio streams are
+ * sent first, then those of the video streams in turn, a packet of about a MTU by socket and by round
+ * (deficit round robin), so that the burst of a key frame doesn't delay the other streams. In each round,
+ * the sockets whose next packet belongs to a reference frame go before those whose next packet can be
+ * discarded. With {@link RtpSocket#setEgressRate(long)}, or the rate of the destination set with
+ * {@link RtpSocket#setEgressRate(java.net.InetAddress, long)}, the video packets to a destination wait for the
+ * next tick when its rate is exceeded. A socket shared by several clients pays for its packets in the
+ * budget of each of them, and waits when one of them exceeds its rate.
+ */
+final class RtpSender {
+
+	private static final String TAG = RtpSender.class.getSimpleName();
+
+	/** Duration of a slot of the wheel. */
+	private static final long TICK_NS = 1000000L;
+	/** Number of slots of the wheel, a power of 2. */
+	private static final int SLOTS = 1024;
+	private static final int MASK = SLOTS - 1;
+	/** Bytes a video socket can send in a round, about a MTU. */
+	private static final int QUANTUM = 1300;
+	/** Burst allowed by the rate limit, in ns. */
+	private static final long BURST_NS = 5000000L;
+
+	private static final AtomicIntegerArray sDepth = new AtomicIntegerArray(3);
+	private static final Map<Object, Budget> sBudgets = Collections.synchronizedMap(new WeakHashMap<Object, Budget>());
+	private static volatile long sEgressRate = 0;
+
+	private static RtpSender sInstance = null;
+
+	private final Wheel[] mWheels;
+	private final AtomicInteger mNext = new AtomicInteger();
+
+	private RtpSender(int threads) {
+		mWheels = new Wheel[threads];
+		for (int i = 0; i < threads; i++) {
+			mWheels[i] = new Wheel(i+1);
+			mWheels[i].start();
+		}
+	}
+
+	static synchronized RtpSender getInstance() {
+		if (sInstance == null) {
+			sInstance = new RtpSender(StreamingExecutors.getSenderThreads());
+		}
+		return sInstance;
+	}
+
+	static void setEgressRate(long bitsPerSecond) {
+		sEgressRate = Math.max(0, bitsPerSecond);
+	}
+
+	/** Sets the rate of a destination, -1 for the rate of {@link #setEgressRate(long)}. */
+	static void setEgressRate(Object destination, long bitsPerSecond) {
+		getInstance().getBudget(destination).mRate = bitsPerSecond < 0 ? -1 : bitsPerSecond;
+	}
+
+	static void queued(int mediaClass) {
+		sDepth.incrementAndGet(mediaClass);
+	}
+
+	static void dequeued(int mediaClass, int count) {
+		if (count > 0) sDepth.addAndGet(mediaClass, -count);
+	}
+
+	static int getQueueDepth(int mediaClass) {
+		return sDepth.get(mediaClass);
+	}
+
+	/**
+	 * Schedules the socket, {@link RtpSocket#send(long, int)} will be called at the given time, or as soon
+	 * as possible if it is already past. The socket must not be already scheduled.
+	 */
+	void schedule(RtpSocket socket, long deadlineNs) {
+		Budget[] budgets = socket.mBudgets;
+		if (budgets == null) {
+			final List<Object> destinations = socket.getDestinationKeys();
+			budgets = new Budget[destinations.size()];
+			for (int i = 0; i < budgets.length; i++) {
+				budgets[i] = getBudget(destinations.get(i));
+			}
+			socket.mBudgets = budgets;
+		}
+		int wheel = socket.mWheel;
+		if (wheel < 0) {
+			// The sockets going to the same destination are sent by the same thread
+			wheel = budgets.length > 0 ? budgets[0].mWheel :
+				(mNext.getAndIncrement() & Integer.MAX_VALUE) % mWheels.length;
+			socket.mWheel = wheel;
+		}
+		mWheels[wheel].add(socket, deadlineNs);
+	}
+
+	private Budget getBudget(Object destination) {
+		synchronized (sBudgets) {
+			Budget budget = sBudgets.get(destination);
+			if (budget == null) {
+				budget = new Budget((destination.hashCode() & Integer.MAX_VALUE) % mWheels.length);
+				sBudgets.put(destination, budget);
+			}
+			return budget;
+		}
+	}
+
+	/** Returns false if the rate of one of the destinations is exceeded. */
+	private static boolean available(Budget[] budgets, long now) {
+		if (budgets == null) return true;
+		boolean available = true;
+		for (Budget budget : budgets) {
+			// Every budget is refilled, even after one that is exceeded
+			if (!budget.available(now)) available = false;
+		}
+		return available;
+	}
+
+	/** Each destination pays for the packets it receives. */
+	private static void spend(Budget[] budgets, int bytes) {
+		if (budgets == null) return;
+		for (Budget budget : budgets) budget.spend(bytes);
+	}
+
+	/** What a destination can still receive under its egress rate. */
+	static final class Budget {
+
+		final int mWheel;
+		// The rate of the destination, -1 for the rate of all the destinations
+		volatile long mRate = -1;
+		private long mBytes = 0;
+		private long mLastNs = System.nanoTime();
+
+		Budget(int wheel) {
+			mWheel = wheel;
+		}
+
+		/** Returns false if the rate is exceeded. */
+		synchronized boolean available(long now) {
+			final long rate = getRate();
+			if (rate <= 0) return true;
+			final long max = rate * BURST_NS / 8000000000L + QUANTUM;
+			mBytes = Math.min(max, mBytes + rate * (now - mLastNs) / 8000000000L);
+			mLastNs = now;
+			return mBytes > 0;
+		}
+
+		/** The last packet can exceed the budget, it is paid back before the next one. */
+		synchronized void spend(int bytes) {
+			if (getRate() > 0) mBytes -= bytes;
+		}
+
+		private long getRate() {
+			final long rate = mRate;
+			return rate >= 0 ? rate : sEgressRate;
+		}
+
+	}
+
+	private static class Wheel extends Thread {
+
+		private final ConcurrentLinkedQueue<RtpSocket> mIncoming = new ConcurrentLinkedQueue<>();
+		@SuppressWarnings("unchecked")
+		private final ArrayList<RtpSocket>[] mSlots = new ArrayList[SLOTS];
+		private final ArrayList<RtpSocket> mDue = new ArrayList<>();
+		private final ArrayList<RtpSocket> mVideo = new ArrayList<>();
+		private long mTick, mRound = 0;
+		private int mCount = 0;
+
+		Wheel(int index) {
+			super("net.majorkernelpanic.streaming.RtpSender-"+index);
+			setDaemon(true);
+			setPriority(MAX_PRIORITY);
+			for (int i = 0; i < SLOTS; i++) mSlots[i] = new ArrayList<>();
+			mTick = System.nanoTime() / TICK_NS;
+		}
+
+		void add(RtpSocket socket, long deadlineNs) {
+			socket.mDeadlineNs = deadlineNs;
+			mIncoming.add(socket);
+			LockSupport.unpark(this);
+		}
+
+		private void insert(RtpSocket socket) {
+			// A socket already late goes in the current slot
+			final long tick = Math.max(socket.mDeadlineNs / TICK_NS, mTick);
+			socket.mDeadlineTick = tick;
+			mSlots[(int) (tick & MASK)].add(socket);
+			mCount++;
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				RtpSocket socket;
+				while ((socket = mIncoming.poll()) != null) {
+					insert(socket);
+				}
+
+				long now = System.nanoTime();
+				final long tick = now / TICK_NS;
+				if (mCount > 0) {
+					// Collects the sockets due in the slots elapsed since the last wake up, each slot is visited once
+					mTick = Math.max(mTick, tick - MASK);
+					for (; mTick <= tick; mTick++) {
+						final ArrayList<RtpSocket> slot = mSlots[(int) (mTick & MASK)];
+						for (int i = slot.size() - 1; i >= 0; i--) {
+							if (slot.get(i).mDeadlineTick <= mTick) {
+								mDue.add(slot.get(i));
+								slot.set(i, slot.get(slot.size()-1));
+								slot.remove(slot.size()-1);
+								mCount--;
+							}
+						}
+					}
+					mTick = tick;
+					for (int i = 0; i < mDue.size(); i++) {
+						socket = mDue.get(i);
+						if (socket.getMediaClass() == RtpSocket.CLASS_AUDIO) {
+							sendAudio(socket, now);
+						} else {
+							mVideo.add(socket);
+						}
+					}
+					mDue.clear();
+					sendVideo(now);
+				} else {
+					mTick = tick;
+				}
+
+				if (!mIncoming.isEmpty()) continue;
+				if (mCount == 0) {
+					// Until a socket is scheduled
+					LockSupport.park(this);
+				} else {
+					now = System.nanoTime();
+					LockSupport.parkNanos(this, TICK_NS - now % TICK_NS);
+				}
+				Thread.interrupted();
+			}
+		}
+
+		private void sendAudio(RtpSocket socket, long now) {
+			try {
+				final Budget[] budgets = socket.mBudgets;
+				final long next = socket.send(now, Integer.MAX_VALUE);
+				spend(budgets, socket.mSentBytes);
+				reinsert(socket, next);
+			} catch (RuntimeException e) {
+				Log.e(TAG, "The socket can't send its packets", e);
+			}
+		}
+
+		/** Deficit round robin between the due video sockets. */
+		private void sendVideo(long now) {
+			while (!mVideo.isEmpty()) {
+				// Sockets ready to send audio packets in the meantime go first
+				RtpSocket socket;
+				while ((socket = mIncoming.peek()) != null && socket.getMediaClass() == RtpSocket.CLASS_AUDIO && socket.mDeadlineNs - now <= 0) {
+					mIncoming.poll();
+					sendAudio(socket, now);
+				}
+				// First the sockets whose next packet belongs to a reference frame, then the others
+				mRound++;
+				for (int pass = 0; pass < 2; pass++) {
+					for (int i = 0; i < mVideo.size(); i++) {
+						socket = mVideo.get(i);
+						if (socket == null || socket.mRound == mRound) continue;
+						if (pass == 0 && socket.getHeadClass() == RtpSocket.CLASS_DISCARDABLE) continue;
+						socket.mRound = mRound;
+						final Budget[] budgets = socket.mBudgets;
+						if (!available(budgets, now)) {
+							// Waits for the next tick
+							socket.mDeadlineNs = now;
+							insert(socket);
+							mVideo.set(i, null);
+							continue;
+						}
+						try {
+							socket.mDeficit += QUANTUM;
+							final long next = socket.send(now, socket.mDeficit);
+							socket.mDeficit -= socket.mSentBytes;
+							spend(budgets, socket.mSentBytes);
+							if (next != now) {
+								// Nothing more to send for now
+								socket.mDeficit = 0;
+								mVideo.set(i, null);
+								reinsert(socket, next);
+							}
+						} catch (RuntimeException e) {
+							Log.e(TAG, "The socket can't send its packets", e);
+							mVideo.set(i, null);
+						}
+					}
+				}
+				for (int i = mVideo.size() - 1; i >= 0; i--) {
+					if (mVideo.get(i) == null) mVideo.remove(i);
+				}
+			}
+		}
+
+		private void reinsert(RtpSocket socket, long next) {
+			if (next >= 0) {
+				socket.mDeadlineNs = next;
+				insert(socket);
+			}
+		}
+
+	}
+
+}
@@ -22,20 +22,25 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import net.majorkernelpanic.streaming.rtcp.SenderReport;
 import android.os.SystemClock;
 import android.util.Log;
 
 /**
  * A basic implementation of an RTP socket.
- * It implements a buffering mechanism, relying on a FIFO of buffers and a Thread.
+ * It implements a buffering mechanism, relying on a FIFO of buffers sent by the {@link RtpSender}.
  * That way, if a packetizer tries to send many packets too quickly, the FIFO will
  * grow and packets will be sent one by one smoothly.
  */
-public class RtpSocket implements Runnable {
+public class RtpSocket {
 
 	private static final String TAG = RtpSocket.class.getSimpleName();
 
@@ -44,20 +49,57 @@ public class RtpSocket implements Runnable {
 	
 	/** Use this to use TCP for the transport protocol. */
 	public final static int TRANSPORT_TCP = 0x01;	
+
+	/** Packets of an audio stream, sent before all the others. */
+	public final static int CLASS_AUDIO = 0;
+
+	/** Packets of a video stream, sent after the audio packets. */
+	public final static int CLASS_VIDEO = 1;
+
+	/** Packets of video frames that no other frame references, sent last, see {@link #markDiscardable()}. */
+	public final static int CLASS_DISCARDABLE = 2;
+
+	// DSCP of the packets, EF for the audio and AF41 for the video (RFC 4594)
+	private final static int TOS_AUDIO = 0xB8;
+	private final static int TOS_VIDEO = 0x88;
 	
 	public static final int RTP_HEADER_LENGTH = 12;
 	public static final int MTU = 1300;
 
+	// Maximal number of packets sent at once, before the other sockets of the RtpSender
+	private static final int MAX_BATCH = 64;
+	// Time without packets after which the FIFO is reset
+	private static final long IDLE_TIMEOUT_NS = 4000000000L;
+
 	private final long mStartTimeNs;
 	private final MulticastSocket mSocket;
 	private final DatagramPacket[] mPackets;
 	private final byte[][] mBuffers;
 	private long[] mTimestampsNs;
+	private long[] mDecodingTimesNs;
+	private long mDecodingTimeOffsetNs = 0;
 
 	private final SenderReport mReport;
 	
 	private Semaphore mBufferRequested, mBufferCommitted;
-	private Thread mThread;
+
+	// State of the socket in the RtpSender
+	private final AtomicBoolean mScheduled = new AtomicBoolean(false);
+	volatile int mWheel = -1;
+	long mDeadlineNs, mDeadlineTick;
+	private volatile boolean mStarting = true;
+	private volatile long mLastSendNs = 0;
+	private long mNextSendNs = 0;
+	private Statistics mStats = new Statistics(50,3000);
+	volatile RtpSender.Budget[] mBudgets;
+	int mDeficit = 0, mSentBytes = 0;
+	long mRound = 0;
+
+	// Class of the packets of the stream and of each packet of the FIFO, and number of packets of each class in the FIFO
+	private int mMediaClass = CLASS_VIDEO;
+	private boolean mDiscardable = false;
+	private final byte[] mClasses;
+	private final AtomicIntegerArray mDepth = new AtomicIntegerArray(3);
 
 	private int mTransport;
 	private long mCacheSize;
@@ -66,6 +108,13 @@ public class RtpSocket implements Runnable {
 	private int mSsrc, mSeq = 0, mPort = -1;
 	private final int mBufferCount;
 	private int mBufferIn;
+	// Slot of the packet being written, mBufferCount when it is lost because the FIFO is full
+	private int mIn;
+	private boolean mNonBlocking = false, mLosing = false;
+	private SenderReport.KeyFrameRequestListener mKeyFrameRequestListener = null;
+	// Called by the sender once the FIFO has mSpaceWanted free buffers
+	private volatile Runnable mSpaceListener = null;
+	private volatile int mSpaceWanted = 0;
 	private int mBufferOut;
 	private int mCount = 0;
 	private final byte[] mTcpHeader;
@@ -73,16 +122,22 @@ public class RtpSocket implements Runnable {
 	
 	private final AverageBitrate mAverageBitrate;
 
+	// Receivers of a stream shared by several clients
+	private final CopyOnWriteArrayList<InetSocketAddress> mDestinations = new CopyOnWriteArrayList<>();
+	private final DatagramPacket mFanOutPacket = new DatagramPacket(new byte[0], 0);
+
 	/**
-	 * This RTP socket implements a buffering mechanism relying on a FIFO of buffers and a Thread.
+	 * This RTP socket implements a buffering mechanism relying on a FIFO of buffers and the {@link RtpSender}.
 	 * @throws IOException
 	 */
 	public RtpSocket(final long startTimeNs) {
 		mStartTimeNs = startTimeNs;
 		mCacheSize = 0;
 		mBufferCount = 300; // TODO: readjust that when the FIFO is full 
-		mBuffers = new byte[mBufferCount][];
-		mPackets = new DatagramPacket[mBufferCount];
+		// One more slot receives the packets lost when the FIFO is full, see setNonBlocking()
+		mBuffers = new byte[mBufferCount+1][];
+		mPackets = new DatagramPacket[mBufferCount+1];
+		mClasses = new byte[mBufferCount+1];
 		mReport = new SenderReport();
 		mAverageBitrate = new AverageBitrate();
 		mTransport = TRANSPORT_UDP;
@@ -90,7 +145,7 @@ public class RtpSocket implements Runnable {
 		
 		resetFifo();
 
-		for (int i=0; i<mBufferCount; i++) {
+		for (int i=0; i<=mBufferCount; i++) {
 
 			mBuffers[i] = new byte[MTU];
 			mPackets[i] = new DatagramPacket(mBuffers[i], 1);
@@ -115,6 +170,7 @@ public class RtpSocket implements Runnable {
 
 		try {
 		mSocket = new MulticastSocket();
+		mSocket.setTrafficClass(TOS_VIDEO);
 		} catch (Exception e) {
 			throw new RuntimeException(e.getMessage());
 		}
@@ -124,17 +180,86 @@ public class RtpSocket implements Runnable {
 	private void resetFifo() {
 		mCount = 0;
 		mBufferIn = 0;
+		mIn = 0;
 		mBufferOut = 0;
-		mTimestampsNs = new long[mBufferCount];
+		mTimestampsNs = new long[mBufferCount+1];
+		mDecodingTimesNs = new long[mBufferCount+1];
 		mBufferRequested = new Semaphore(mBufferCount);
 		mBufferCommitted = new Semaphore(0);
 		mReport.reset();
 		mAverageBitrate.reset();
+		mStarting = true;
+		mNextSendNs = 0;
+		mLastSendNs = 0;
+		clearQueueDepth();
+	}
+
+	/** The packets left in the FIFO won't be sent. */
+	private void clearQueueDepth() {
+		for (int c = 0; c < 3; c++) {
+			RtpSender.dequeued(c, mDepth.getAndSet(c, 0));
+		}
 	}
 	
 	/** Closes the underlying socket. */
 	public void close() {
 		mSocket.close();
+		clearQueueDepth();
+	}
+
+	/**
+	 * Sets the class of the packets of the stream, {@link #CLASS_VIDEO} by default. The audio packets are sent
+	 * before the video packets of the streams going to the same destination, and marked for the network
+	 * with the DSCP EF instead of AF41.
+	 * @param mediaClass {@link #CLASS_AUDIO} or {@link #CLASS_VIDEO}
+	 */
+	public void setMediaClass(int mediaClass) {
+		mMediaClass = mediaClass == CLASS_AUDIO ? CLASS_AUDIO : CLASS_VIDEO;
+		try {
+			mSocket.setTrafficClass(mMediaClass == CLASS_AUDIO ? TOS_AUDIO : TOS_VIDEO);
+		} catch (IOException e) {
+			Log.w(TAG, "Can't set the DSCP of the packets", e);
+		}
+	}
+
+	public int getMediaClass() {
+		return mMediaClass;
+	}
+
+	/**
+	 * Returns the number of packets of a class waiting in the FIFO.
+	 * @param mediaClass {@link #CLASS_AUDIO}, {@link #CLASS_VIDEO} or {@link #CLASS_DISCARDABLE}
+	 */
+	public int getQueueDepth(int mediaClass) {
+		return mDepth.get(mediaClass);
+	}
+
+	/**
+	 * Returns the number of packets of a class waiting in the FIFOs of all the sockets.
+	 * @param mediaClass {@link #CLASS_AUDIO}, {@link #CLASS_VIDEO} or {@link #CLASS_DISCARDABLE}
+	 */
+	public static int getTotalQueueDepth(int mediaClass) {
+		return RtpSender.getQueueDepth(mediaClass);
+	}
+
+	/**
+	 * Limits the rate at which the video packets are sent to each destination, the audio packets are
+	 * never delayed but count in the rate. Spreading the bursts of video packets of the key frames
+	 * keeps the audio packets from waiting behind them in the queues of the network.
+	 * @param bitsPerSecond The rate, 0 (the default) for no limit
+	 */
+	public static void setEgressRate(long bitsPerSecond) {
+		RtpSender.setEgressRate(bitsPerSecond);
+	}
+
+	/**
+	 * Limits the rate at which the video packets are sent to a destination, instead of the rate
+	 * set with {@link #setEgressRate(long)}. The streams sent to the destination share the rate.
+	 * @param destination The address of the destination
+	 * @param bitsPerSecond The rate, 0 for no limit, -1 for the rate of {@link #setEgressRate(long)}
+	 */
+	public static void setEgressRate(InetAddress destination, long bitsPerSecond) {
+		RtpSender.setEgressRate(destination, bitsPerSecond);
 	}
 
 	/** Sets the SSRC of the stream. */
@@ -156,6 +281,11 @@ public class RtpSocket implements Runnable {
 		mClock = clock;
 	}
 
+	/** Returns the clock frequency of the stream in Hz. */
+	public long getClockFrequency() {
+		return mClock;
+	}
+
 	/** Sets the size of the FIFO in ms. */
 	public void setCacheSize(long cacheSize) {
 		mCacheSize = cacheSize;
@@ -166,6 +296,29 @@ public class RtpSocket implements Runnable {
 		mSocket.setTimeToLive(ttl);
 	}
 
+	/**
+	 * Adds a receiver to which the packets are sent in addition to the destination set with
+	 * {@link #setDestination(InetAddress, int, int)}, so that several clients can share the stream.
+	 * Only used with UDP.
+	 */
+	public void addDestination(InetAddress dest, int rtpPort, int rtcpPort) {
+		mDestinations.addIfAbsent(new InetSocketAddress(dest, rtpPort));
+		mReport.addDestination(dest, rtcpPort);
+		resetSender();
+	}
+
+	/** Removes a receiver added with {@link #addDestination(InetAddress, int, int)}. */
+	public void removeDestination(InetAddress dest, int rtpPort, int rtcpPort) {
+		mDestinations.remove(new InetSocketAddress(dest, rtpPort));
+		mReport.removeDestination(dest, rtcpPort);
+		resetSender();
+	}
+
+	/** Returns the number of receivers added with {@link #addDestination(InetAddress, int, int)}. */
+	public int getDestinationCount() {
+		return mDestinations.size();
+	}
+
 	/** Sets the destination address and to which the packets will be sent. */
 	public void setDestination(InetAddress dest, int dport, int rtcpPort) {
 		if (dport != 0 && rtcpPort != 0) {
@@ -176,8 +329,18 @@ public class RtpSocket implements Runnable {
 				mPackets[i].setAddress(dest);
 			}
 			mReport.setDestination(dest, rtcpPort);
+			resetSender();
 		}
 	}
+
+	/**
+	 * The budgets and the sender thread of the new destinations are looked up when the socket is
+	 * scheduled again, the socket stays with its current thread until then so its packets are sent in order.
+	 */
+	private void resetSender() {
+		mBudgets = null;
+		mWheel = -1;
+	}
 	
 	/**
 	 * If a TCP is used as the transport protocol for the RTP session,
@@ -190,6 +353,7 @@ public class RtpSocket implements Runnable {
 			mOutputStream = outputStream;
 			mTcpHeader[1] = channelIdentifier;
 			mReport.setOutputStream(outputStream, (byte) (channelIdentifier+1));
+			resetSender();
 		}
 	}
 
@@ -197,6 +361,43 @@ public class RtpSocket implements Runnable {
 		return mPort;
 	}
 
+	/**
+	 * Sets the listener called when a receiver asks for a key frame with RTCP.
+	 * @see SenderReport#setKeyFrameRequestListener(SenderReport.KeyFrameRequestListener)
+	 */
+	public void setKeyFrameRequestListener(SenderReport.KeyFrameRequestListener listener) {
+		mKeyFrameRequestListener = listener;
+		mReport.setKeyFrameRequestListener(listener);
+	}
+
+	/**
+	 * Returns the fraction of the packets lost by the receiver in its last report, out of 256,
+	 * or -1 if no report was received since the previous call.
+	 * @see SenderReport#pollFractionLost()
+	 */
+	public int pollFractionLost() {
+		return mReport.pollFractionLost();
+	}
+
+	/**
+	 * Returns the time at which a RTCP packet was last received from a receiver, or 0.
+	 * The RTCP packets are received from the first call on.
+	 * @see SenderReport#getLastReceivedTime(InetAddress)
+	 */
+	public long getLastReceivedTime(InetAddress from) {
+		mReport.startReceiving();
+		return mReport.getLastReceivedTime(from);
+	}
+
+	/**
+	 * Returns the part of the FIFO filled with packets waiting to be sent, between 0 and 1.
+	 * When it is full, {@link #requestBuffer()} blocks until a packet is sent, or the packet is lost
+	 * if the socket is not blocking.
+	 */
+	public float getFifoOccupancy() {
+		return 1f - (float) mBufferRequested.availablePermits() / mBufferCount;
+	}
+
 	public int[] getLocalPorts() {
 		return new int[] {
 			mSocket.getLocalPort(),
@@ -205,45 +406,108 @@ public class RtpSocket implements Runnable {
 		
 	}
 	
+	/**
+	 * Makes {@link #requestBuffer()} return at once when the FIFO is full, for the packetizers running
+	 * on the pool of {@link net.majorkernelpanic.streaming.StreamingExecutors} which must not block its threads.
+	 * They wait for room with {@link #hasRoomFor(int, Runnable)} before each frame, a packet that doesn't
+	 * fit anyway is lost: it takes a sequence number but isn't sent, and a key frame is requested.
+	 */
+	void setNonBlocking(boolean nonBlocking) {
+		mNonBlocking = nonBlocking;
+	}
+
+	/**
+	 * Returns true if the FIFO has room for the packets of a frame, or else calls the listener
+	 * once the {@link RtpSender} has sent enough packets, on its thread.
+	 * @param bytes The size of the frame
+	 * @param listener Must return quickly
+	 */
+	boolean hasRoomFor(int bytes, Runnable listener) {
+		// Fragments, and a few more packets for the parameter sets and the end of each NAL unit
+		final int packets = Math.min(mBufferCount, bytes / (MTU - RTP_HEADER_LENGTH - 3) + 8);
+		if (mBufferRequested.availablePermits() >= packets) return true;
+		mSpaceWanted = packets;
+		mSpaceListener = listener;
+		// The sender may have made room meanwhile
+		if (mBufferRequested.availablePermits() >= packets) {
+			mSpaceListener = null;
+			return true;
+		}
+		return false;
+	}
+
 	/** 
 	 * Returns an available buffer from the FIFO, it can then be modified. 
 	 * Call {@link #commitBuffer(int)} to send it over the network. 
 	 * @throws InterruptedException 
 	 **/
 	public byte[] requestBuffer() throws InterruptedException {
-		mBufferRequested.acquire();
-		mBuffers[mBufferIn][1] &= 0x7F;
-		return mBuffers[mBufferIn];
+		if (!mStarting && !mScheduled.get() && mLastSendNs != 0 && System.nanoTime() - mLastSendNs > IDLE_TIMEOUT_NS) {
+			// Nothing was sent for a while, the FIFO is empty, the stream starts again
+			resetFifo();
+		}
+		if (!mNonBlocking) {
+			mBufferRequested.acquire();
+			mIn = mBufferIn;
+		} else if (mBufferRequested.tryAcquire()) {
+			mIn = mBufferIn;
+			mLosing = false;
+		} else {
+			mIn = mBufferCount;
+			if (!mLosing) {
+				mLosing = true;
+				Log.w(TAG, "The FIFO is full, packets are lost");
+				// The receivers can't decode the next frames without a key frame
+				final SenderReport.KeyFrameRequestListener listener = mKeyFrameRequestListener;
+				if (listener != null) listener.onKeyFrameRequest();
+			}
+		}
+		mBuffers[mIn][1] &= 0x7F;
+		mDiscardable = false;
+		return mBuffers[mIn];
 	}
 
 	/** Puts the buffer back into the FIFO without sending the packet. */
 	public void commitBuffer() throws IOException {
+		if (mIn == mBufferCount) return;
+		// An empty packet is skipped by the sender
+		mPackets[mBufferIn].setLength(0);
 
-		if (mThread == null) {
-			mThread = new Thread(this);
-			mThread.start();
-		}
-		
 		if (++mBufferIn>=mBufferCount) mBufferIn = 0;
 		mBufferCommitted.release();
-
+		schedule();
 	}	
 	
 	/** Sends the RTP packet over the network. */
 	public void commitBuffer(int length) throws IOException {
 		updateSequence();
+		// A lost packet, the receivers see a gap in the sequence numbers
+		if (mIn == mBufferCount) return;
 		mPackets[mBufferIn].setLength(length);
+		final int c = mDiscardable && mMediaClass == CLASS_VIDEO ? CLASS_DISCARDABLE : mMediaClass;
+		mClasses[mBufferIn] = (byte) c;
+		mDepth.incrementAndGet(c);
+		RtpSender.queued(c);
 
 		mAverageBitrate.push(length);
 
 		if (++mBufferIn>=mBufferCount) mBufferIn = 0;
 		mBufferCommitted.release();
+		schedule();
+	}
 
-		if (mThread == null) {
-			mThread = new Thread(this);
-			mThread.start();
-		}		
-		
+	/** Hands the socket to the RtpSender if it is not already waiting to send its packets. */
+	private void schedule() {
+		if (mScheduled.compareAndSet(false, true)) {
+			long deadline = System.nanoTime();
+			if (mStarting) {
+				// Caches mCacheSize milliseconds of the stream in the FIFO
+				mStarting = false;
+				mStats = new Statistics(50,3000);
+				deadline += mCacheSize * 1000000L;
+			}
+			RtpSender.getInstance().schedule(this, deadline);
+		}
 	}
 
 	/** Returns an approximation of the bitrate of the RTP stream in bits per second. */
@@ -253,7 +517,7 @@ public class RtpSocket implements Runnable {
 
 	/** Increments the sequence number. */
 	private void updateSequence() {
-		setLong(mBuffers[mBufferIn], ++mSeq, 2, 4);
+		setLong(mBuffers[mIn], ++mSeq, 2, 4);
 	}
 
 	/** 
@@ -262,59 +526,134 @@ public class RtpSocket implements Runnable {
 	 **/
 	public void updateTimestamp(final long timestampNs) {
 		final long ts = (timestampNs > mStartTimeNs) ? timestampNs - mStartTimeNs : timestampNs;
-		mTimestampsNs[mBufferIn] = ts;
-		setLong(mBuffers[mBufferIn], getRtpTimestamp(ts, mClock), 4, 8);
+		mTimestampsNs[mIn] = ts;
+		mDecodingTimesNs[mIn] = ts - mDecodingTimeOffsetNs;
+		setLong(mBuffers[mIn], getRtpTimestamp(ts, mClock), 4, 8);
+	}
+
+	/**
+	 * Sets how long before their presentation time the next packets are decoded, the packets
+	 * are sent in decoding order at the pace of their decoding timestamps. Only needed
+	 * when the stream contains B-frames, the timestamps of the packets are unchanged.
+	 * @param offsetNs The presentation timestamp minus the decoding timestamp, in ns
+	 */
+	public void setDecodingTimeOffset(final long offsetNs) {
+		mDecodingTimeOffsetNs = offsetNs;
 	}
 
 	/** Sets the marker in the RTP packet. */
 	public void markNextPacket() {
-		mBuffers[mBufferIn][1] |= 0x80;
+		mBuffers[mIn][1] |= 0x80;
+	}
+
+	/**
+	 * Marks the next packet as part of a video frame that no other frame references, it is sent
+	 * after the other video packets going to the same destination.
+	 */
+	public void markDiscardable() {
+		mDiscardable = true;
+	}
+
+	/** Returns the class of the next packet to send, or -1 if the FIFO is empty. */
+	int getHeadClass() {
+		return mBufferCommitted.availablePermits() > 0 ? mClasses[mBufferOut] : -1;
 	}
 
-	/** The Thread sends the packets in the FIFO one by one at a constant rate. */
-	@Override
-	public void run() {
-		Statistics stats = new Statistics(50,3000);
+	/**
+	 * Returns the destinations whose budgets the socket spends, the addresses or the TCP connection.
+	 * A packet of a socket shared by several clients is paid by each of them.
+	 */
+	List<Object> getDestinationKeys() {
+		final List<Object> keys = new ArrayList<>();
+		if (mTransport == TRANSPORT_TCP) {
+			if (mOutputStream != null) keys.add(mOutputStream);
+			return keys;
+		}
+		if (mPort >= 0) keys.add(mPackets[0].getAddress());
+		for (InetSocketAddress destination : mDestinations) {
+			if (!keys.contains(destination.getAddress())) keys.add(destination.getAddress());
+		}
+		return keys;
+	}
+
+	/**
+	 * Called by the {@link RtpSender} to send the packets of the FIFO which are due, one by one at a constant rate.
+	 * The number of bytes sent is then in {@link #mSentBytes}.
+	 * @param now The current time, in ns
+	 * @param maxBytes The maximal number of bytes to send
+	 * @return The time at which the next packet must be sent, now if there are more packets due,
+	 * or -1 if the FIFO is empty
+	 */
+	long send(long now, int maxBytes) {
+		mSentBytes = 0;
 		try {
-			// Caches mCacheSize milliseconds of the stream in the FIFO.
-			Thread.sleep(mCacheSize);
-			long delta = 0;
-			while (mBufferCommitted.tryAcquire(4,TimeUnit.SECONDS)) {
-				if (mOldTimestamp != 0) {
-					// We use our knowledge of the clock rate of the stream and the difference between two timestamps to
-					// compute the time lapse that the packet represents.
-					if ((mTimestampsNs[mBufferOut]-mOldTimestamp)>0) {
-						stats.push(mTimestampsNs[mBufferOut]-mOldTimestamp);
-						long d = stats.average()/1000000;
-						//Log.d(TAG,"delay: "+d+" d: "+(mTimestamps[mBufferOut]-mOldTimestamp)/1000000);
-						// We ensure that packets are sent at a constant and suitable rate no matter how the RtpSocket is used.
-						if (mCacheSize>0) Thread.sleep(d);
-					} else if ((mTimestampsNs[mBufferOut]-mOldTimestamp)<0) {
-						Log.e(TAG, "TS: "+ mTimestampsNs[mBufferOut]+" OLD: "+mOldTimestamp);
-					}
-					delta += mTimestampsNs[mBufferOut]-mOldTimestamp;
-					if (delta>500000000 || delta<0) {
-						//Log.d(TAG,"permits: "+mBufferCommitted.availablePermits());
-						delta = 0;
-					}
+			for (int sent = 0; sent < MAX_BATCH; sent++) {
+				if (mNextSendNs - now > 0) return mNextSendNs;
+				if (mBufferCommitted.availablePermits() > 0 && mPackets[mBufferOut].getLength() > maxBytes - mSentBytes) return now;
+				if (!mBufferCommitted.tryAcquire()) {
+					mScheduled.set(false);
+					// A packet committed before the socket left the sender
+					if (mBufferCommitted.availablePermits() > 0 && mScheduled.compareAndSet(false, true)) continue;
+					return -1;
 				}
-				mReport.update(mPackets[mBufferOut].getLength(), getRtpTimestamp(mTimestampsNs[mBufferOut], mClock));
-				mOldTimestamp = mTimestampsNs[mBufferOut];
-				if (mCount++>30) {
-					if (mTransport == TRANSPORT_UDP) {
-						mSocket.send(mPackets[mBufferOut]);
-					} else {
-						sendTCP();
-					}
-				}
-				if (++mBufferOut>=mBufferCount) mBufferOut = 0;
-				mBufferRequested.release();
+				mSentBytes += sendPacket(now);
+				mLastSendNs = now;
 			}
 		} catch (Exception e) {
 			e.printStackTrace();
+			mScheduled.set(false);
+			return -1;
 		}
-		mThread = null;
-		resetFifo();
+		// Lets the other sockets of the sender send their packets
+		return now;
+	}
+
+	private int sendPacket(long now) throws IOException {
+		// Packets are paced with their decoding times, presentation times are not monotonic with B-frames
+		final long time = mDecodingTimesNs[mBufferOut];
+		final int length = mPackets[mBufferOut].getLength();
+		if (length > 0) {
+			if (mOldTimestamp != 0) {
+				// We use our knowledge of the clock rate of the stream and the difference between two timestamps to
+				// compute the time lapse that the packet represents.
+				if ((time-mOldTimestamp)>0) {
+					mStats.push(time-mOldTimestamp);
+					long d = mStats.average()/1000000;
+					// We ensure that packets are sent at a constant and suitable rate no matter how the RtpSocket is used.
+					if (mCacheSize>0) mNextSendNs = now + d*1000000L;
+				} else if ((time-mOldTimestamp)<0) {
+					Log.e(TAG, "TS: "+ time+" OLD: "+mOldTimestamp);
+				}
+			}
+			if (mDepth.getAndDecrement(mClasses[mBufferOut]) > 0) {
+				RtpSender.dequeued(mClasses[mBufferOut], 1);
+			} else {
+				// The socket was closed
+				mDepth.incrementAndGet(mClasses[mBufferOut]);
+			}
+			mReport.update(length, getRtpTimestamp(mTimestampsNs[mBufferOut], mClock));
+			mOldTimestamp = time;
+			if (mCount++>30) {
+				if (mTransport == TRANSPORT_UDP) {
+					if (mPort >= 0) mSocket.send(mPackets[mBufferOut]);
+					for (InetSocketAddress destination : mDestinations) {
+						mFanOutPacket.setData(mBuffers[mBufferOut], 0, length);
+						mFanOutPacket.setSocketAddress(destination);
+						mSocket.send(mFanOutPacket);
+					}
+				} else {
+					sendTCP();
+				}
+			}
+		}
+		if (++mBufferOut>=mBufferCount) mBufferOut = 0;
+		mBufferRequested.release();
+		final Runnable listener = mSpaceListener;
+		if (listener != null && mBufferRequested.availablePermits() >= mSpaceWanted) {
+			mSpaceListener = null;
+			listener.run();
+		}
+		return length;
 	}
 
 	private void sendTCP() {
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Drops the upper temporal layers of a video stream encoded with hierarchical-P temporal layers
+ * when the stream is congested: when the FIFO of the {@link RtpSocket} backs up, or when the receiver
+ * reports losses. Each dropped layer halves the frame rate, the remaining pictures stay decodable
+ * since they never reference the pictures of an upper layer, so neither the encoder has to be
+ * reconfigured nor a key frame sent. The layers are restored one by one once the congestion is over,
+ * on a picture of the base layer so that the pictures they reference have been sent.
+ */
+class TemporalLayerFilter {
+
+	private static final String TAG = TemporalLayerFilter.class.getSimpleName();
+
+	/** Part of the FIFO of the socket above which the stream is congested. */
+	private static final float CONGESTED_OCCUPANCY = 0.25f;
+	/** Part of the FIFO of the socket below which a layer can be restored. */
+	private static final float CLEAR_OCCUPANCY = 0.05f;
+	/** Fraction of packets lost, out of 256, above which the stream is congested (10 %). */
+	private static final int CONGESTED_FRACTION_LOST = 26;
+	/** Fraction of packets lost, out of 256, below which a layer can be restored (1 %). */
+	private static final int CLEAR_FRACTION_LOST = 3;
+	/** Minimal interval between two dropped layers, for the FIFO to drain. */
+	private static final long DROP_INTERVAL_MS = 500;
+	/** Time without congestion after which a layer is restored. */
+	private static final long RESTORE_DELAY_MS = 3000;
+
+	private final RtpSocket socket;
+	private int layers = 1, maxLayer = 0;
+	private long lastChange = 0, lastCongestion = 0;
+	private boolean lossy = false;
+
+	TemporalLayerFilter(RtpSocket socket) {
+		this.socket = socket;
+	}
+
+	/**
+	 * @param layers The number of temporal layers of the stream, 1 if it has none
+	 */
+	void setLayers(int layers) {
+		this.layers = Math.max(1, layers);
+		maxLayer = this.layers - 1;
+		lastChange = lastCongestion = 0;
+		lossy = false;
+	}
+
+	int getLayers() {
+		return layers;
+	}
+
+	/**
+	 * Called at the start of each picture.
+	 * @param temporalId The temporal layer of the picture, 0 for the base layer
+	 * @return false if the picture must be dropped
+	 */
+	boolean accept(int temporalId) {
+		if (layers == 1) return true;
+		final long now = SystemClock.elapsedRealtime();
+		final float occupancy = socket.getFifoOccupancy();
+		final int lost = socket.pollFractionLost();
+		if (lost >= 0) lossy = lost > CLEAR_FRACTION_LOST;
+
+		if (occupancy > CONGESTED_OCCUPANCY || lost > CONGESTED_FRACTION_LOST) {
+			lastCongestion = now;
+			if (maxLayer > 0 && now - lastChange >= DROP_INTERVAL_MS) {
+				maxLayer--;
+				lastChange = now;
+				Log.d(TAG, "Congestion, temporal layers sent: "+(maxLayer+1)+"/"+layers);
+			}
+		} else if (maxLayer < layers - 1 && temporalId == 0 && occupancy < CLEAR_OCCUPANCY && !lossy
+				&& now - lastCongestion >= RESTORE_DELAY_MS && now - lastChange >= RESTORE_DELAY_MS) {
+			maxLayer++;
+			lastChange = now;
+			Log.d(TAG, "Temporal layers sent: "+(maxLayer+1)+"/"+layers);
+		}
+		return temporalId <= maxLayer;
+	}
+
+}
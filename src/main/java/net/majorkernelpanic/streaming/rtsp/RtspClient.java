@@ -19,26 +19,20 @@
 package net.majorkernelpanic.streaming.rtsp;
 
 import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.Socket;
-import java.net.SocketException;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
-import java.util.Locale;
-import java.util.concurrent.Semaphore;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import net.majorkernelpanic.streaming.Session;
 import net.majorkernelpanic.streaming.Stream;
+import net.majorkernelpanic.streaming.StreamingExecutors;
 import net.majorkernelpanic.streaming.rtp.RtpSocket;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Looper;
 import android.util.Log;
 
@@ -123,11 +117,12 @@ public class RtspClient {
 	private Socket mSocket;
 	private String mSessionID;
 	private String mAuthorization;
-	private BufferedReader mBufferedReader;
+	private InputStream mInputStream;
+	private final RtspCodec mCodec = new RtspCodec();
 	private OutputStream mOutputStream;
 	private Callback mCallback;
 	private final Handler mMainHandler;
-	private Handler mHandler;
+	private final Handler mHandler;
 
 	/**
 	 * The callback interface you need to implement to know what's going on with the 
@@ -147,17 +142,7 @@ public class RtspClient {
 		mCallback = null;
 		mMainHandler = new Handler(Looper.getMainLooper());
 		mState = STATE_STOPPED;
-
-		final Semaphore signal = new Semaphore(0);
-		new HandlerThread("net.majorkernelpanic.streaming.RtspClient"){
-			@Override
-			protected void onLooperPrepared() {
-				mHandler = new Handler();
-				signal.release();
-			}
-		}.start();
-		signal.acquireUninterruptibly();
-		
+		mHandler = new Handler(StreamingExecutors.getControlLooper());
 	}
 
 	/**
@@ -294,8 +279,8 @@ public class RtspClient {
 	}
 
 	public void release() {
+		// The looper is shared with other clients and sessions, the teardown still runs
 		stopStream();
-		mHandler.getLooper().quit();
 	}
 	
 	private void abort() {
@@ -317,7 +302,7 @@ public class RtspClient {
 	private void tryConnection() throws IOException {
 		mCSeq = 0;
 		mSocket = new Socket(mParameters.host, mParameters.port);
-		mBufferedReader = new BufferedReader(new InputStreamReader(mSocket.getInputStream()));
+		mInputStream = mSocket.getInputStream();
 		mOutputStream = new BufferedOutputStream(mSocket.getOutputStream());
 		sendRequestAnnounce();
 		sendRequestSetup();
@@ -339,7 +324,7 @@ public class RtspClient {
 
 		mOutputStream.write(request.getBytes(StandardCharsets.UTF_8));
 		mOutputStream.flush();
-		Response response = Response.parseResponse(mBufferedReader);
+		Response response = Response.parseResponse(mCodec, mInputStream);
 
 		if (response.headers.containsKey("server")) {
 			Log.v(TAG,"RTSP server name:" + response.headers.get("server"));
@@ -348,33 +333,24 @@ public class RtspClient {
 		}
 
 		if (response.headers.containsKey("session")) {
-			try {
-				Matcher m = Response.rexegSession.matcher(response.headers.get("session"));
-				m.find();
-				mSessionID = m.group(1);
-			} catch (Exception e) {
-				throw new IOException("Invalid response from server. Session id: "+mSessionID);
-			}
+			mSessionID = Response.parseSession(response.headers.get("session"));
 		}
 
 		if (response.status == 401) {
 			String nonce, realm;
-			Matcher m;
 
 			if (mParameters.username == null || mParameters.password == null) throw new IllegalStateException("Authentication is enabled and setCredentials(String,String) was not called !");
 
-			try {
-				m = Response.rexegAuthenticate.matcher(response.headers.get("www-authenticate")); m.find();
-				nonce = m.group(2);
-				realm = m.group(1);
-			} catch (Exception e) {
+			realm = RtspCodec.getParameter(response.headers.get("www-authenticate"), "realm");
+			nonce = RtspCodec.getParameter(response.headers.get("www-authenticate"), "nonce");
+			if (realm == null || nonce == null) {
 				throw new IOException("Invalid response from server");
 			}
 
 			String uri = "rtsp://"+mParameters.host+":"+mParameters.port+mParameters.path;
-			String hash1 = computeMd5Hash(mParameters.username+":"+m.group(1)+":"+mParameters.password);
+			String hash1 = computeMd5Hash(mParameters.username+":"+realm+":"+mParameters.password);
 			String hash2 = computeMd5Hash("ANNOUNCE"+":"+uri);
-			String hash3 = computeMd5Hash(hash1+":"+m.group(2)+":"+hash2);
+			String hash3 = computeMd5Hash(hash1+":"+nonce+":"+hash2);
 
 			mAuthorization = "Digest username=\""+mParameters.username+"\",realm=\""+realm+"\",nonce=\""+nonce+"\",uri=\""+uri+"\",response=\""+hash3+"\"";
 
@@ -390,7 +366,7 @@ public class RtspClient {
 
 			mOutputStream.write(request.getBytes(StandardCharsets.UTF_8));
 			mOutputStream.flush();
-			response = Response.parseResponse(mBufferedReader);
+			response = Response.parseResponse(mCodec, mInputStream);
 
 			if (response.status == 401) throw new RuntimeException("Bad credentials !");
 
@@ -417,27 +393,19 @@ public class RtspClient {
 
 				mOutputStream.write(request.getBytes(StandardCharsets.UTF_8));
 				mOutputStream.flush();
-				Response response = Response.parseResponse(mBufferedReader);
-				Matcher m;
+				Response response = Response.parseResponse(mCodec, mInputStream);
 				
 				if (response.headers.containsKey("session")) {
-					try {
-						m = Response.rexegSession.matcher(response.headers.get("session"));
-						m.find();
-						mSessionID = m.group(1);
-					} catch (Exception e) {
-						throw new IOException("Invalid response from server. Session id: "+mSessionID);
-					}
+					mSessionID = Response.parseSession(response.headers.get("session"));
 				}
 				
 				if (mParameters.transport == TRANSPORT_UDP) {
-					try {
-						m = Response.rexegTransport.matcher(response.headers.get("transport")); m.find();
-						stream.setDestinationPorts(Integer.parseInt(m.group(3)), Integer.parseInt(m.group(4)));
-						Log.d(TAG, "Setting destination ports: "+Integer.parseInt(m.group(3))+", "+Integer.parseInt(m.group(4)));
-					} catch (Exception e) {
-						e.printStackTrace();
-						int[] ports = stream.getDestinationPorts();
+					int[] ports = RtspCodec.parsePorts(RtspCodec.getParameter(response.headers.get("transport"), "server_port"));
+					if (ports != null) {
+						stream.setDestinationPorts(ports[0], ports[1]);
+						Log.d(TAG, "Setting destination ports: "+ports[0]+", "+ports[1]);
+					} else {
+						ports = stream.getDestinationPorts();
 						Log.d(TAG,"Server did not specify ports, using default ports: "+ports[0]+"-"+ports[1]);
 					}
 				} else {
@@ -457,7 +425,7 @@ public class RtspClient {
 		Log.i(TAG,request.substring(0, request.indexOf("\r\n")));
 		mOutputStream.write(request.getBytes(StandardCharsets.UTF_8));
 		mOutputStream.flush();
-		Response.parseResponse(mBufferedReader);
+		Response.parseResponse(mCodec, mInputStream);
 	}
 
 	/**
@@ -478,7 +446,7 @@ public class RtspClient {
 		Log.i(TAG,request.substring(0, request.indexOf("\r\n")));
 		mOutputStream.write(request.getBytes(StandardCharsets.UTF_8));
 		mOutputStream.flush();
-		Response.parseResponse(mBufferedReader);
+		Response.parseResponse(mCodec, mInputStream);
 	}	
 
 	private String addHeaders() {
@@ -583,49 +551,35 @@ public class RtspClient {
 
 	static class Response {
 
-		// Parses method & uri
-		public static final Pattern regexStatus = Pattern.compile("RTSP/\\d.\\d (\\d+) (\\w+)",Pattern.CASE_INSENSITIVE);
-		// Parses a request header
-		public static final Pattern rexegHeader = Pattern.compile("(\\S+):(.+)",Pattern.CASE_INSENSITIVE);
-		// Parses a WWW-Authenticate header
-		public static final Pattern rexegAuthenticate = Pattern.compile("realm=\"(.+)\",\\s+nonce=\"(\\w+)\"",Pattern.CASE_INSENSITIVE);
-		// Parses a Session header
-		public static final Pattern rexegSession = Pattern.compile("(\\d+)",Pattern.CASE_INSENSITIVE);
-		// Parses a Transport header
-		public static final Pattern rexegTransport = Pattern.compile("client_port=(\\d+)-(\\d+).+server_port=(\\d+)-(\\d+)",Pattern.CASE_INSENSITIVE);
-
-
 		public int status;
-		public HashMap<String,String> headers = new HashMap<>();
+		public HashMap<String,String> headers;
+
+		/**
+		 * Parses the status & headers of the next RTSP response, the interleaved frames sent by the server are skipped.
+		 * The headers are only valid until the next response is parsed.
+		 */
+		public static Response parseResponse(RtspCodec codec, InputStream input) throws IOException {
+			RtspCodec.Message message;
+			do {
+				message = codec.read(input);
+			} while (message.type != RtspCodec.MESSAGE_RESPONSE);
 
-		/** Parse the method, URI & headers of a RTSP request */
-		public static Response parseResponse(BufferedReader input) throws IOException, IllegalStateException {
 			Response response = new Response();
-			String line;
-			Matcher matcher;
-			// Parsing request method & URI
-			if ((line = input.readLine())==null) throw new SocketException("Connection lost");
-			matcher = regexStatus.matcher(line);
-			matcher.find();
-			response.status = Integer.parseInt(matcher.group(1));
-
-			// Parsing headers of the request
-			while ( (line = input.readLine()) != null) {
-				//Log.e(TAG,"l: "+line.length()+", c: "+line);
-				if (line.length()>3) {
-					matcher = rexegHeader.matcher(line);
-					matcher.find();
-					response.headers.put(matcher.group(1).toLowerCase(Locale.US),matcher.group(2));
-				} else {
-					break;
-				}
-			}
-			if (line==null) throw new SocketException("Connection lost");
+			response.status = message.status;
+			response.headers = message.headers;
 
 			Log.d(TAG, "Response from server: "+response.status);
 
 			return response;
 		}
+
+		/** Returns the id of a Session header, without its timeout. */
+		public static String parseSession(String session) throws IOException {
+			final int end = session.indexOf(';');
+			final String id = (end < 0 ? session : session.substring(0, end)).trim();
+			if (id.isEmpty()) throw new IOException("Invalid response from server. Session id: "+session);
+			return id;
+		}
 	}
 
 }
@@ -0,0 +1,467 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtsp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Parses RTSP messages (RFC 2326) byte by byte, without regular expressions, as they are received in
+ * any number of chunks: several messages in the same chunk (pipelined requests), a message split between
+ * chunks, bodies of Content-Length bytes, and binary frames interleaved with the messages ('$', channel,
+ * length on 2 bytes, data) when RTP is sent over the RTSP connection.
+ * The names of the common headers and methods are not allocated, and the same {@link Message} is
+ * filled by each call. Used by {@link RtspServer} and {@link RtspClient}, see also {@link Writer}
+ * which writes the messages in a reusable buffer.
+ */
+class RtspCodec {
+
+	static final int MESSAGE_REQUEST = 0;
+	static final int MESSAGE_RESPONSE = 1;
+	static final int MESSAGE_INTERLEAVED = 2;
+
+	/** Maximal size of the start line and the headers of a message. */
+	static final int MAX_HEADER_SIZE = 16384;
+	/** Maximal size of a message with its body. */
+	static final int MAX_MESSAGE_SIZE = 1 << 20;
+
+	// Lower case, so that the names of the headers don't need to be allocated
+	private static final String[] HEADERS = {
+		"accept", "authorization", "bandwidth", "blocksize", "cache-control", "connection",
+		"content-base", "content-length", "content-type", "cseq", "date", "public", "range",
+		"require", "rtp-info", "scale", "server", "session", "speed", "transport", "user-agent",
+		"www-authenticate"
+	};
+
+	private static final String[] METHODS = {
+		"ANNOUNCE", "DESCRIBE", "GET_PARAMETER", "OPTIONS", "PAUSE", "PLAY", "RECORD",
+		"REDIRECT", "SET_PARAMETER", "SETUP", "TEARDOWN"
+	};
+
+	/** A request, a response or an interleaved frame. */
+	static class Message {
+
+		int type;
+
+		/** Method and URI of a request. */
+		String method, uri;
+
+		/** Status code and reason phrase of a response. */
+		int status;
+		String reason;
+
+		/** Headers, with their names in lower case and their values trimmed. */
+		final HashMap<String,String> headers = new HashMap<>();
+
+		/** Body of the message, empty without Content-Length. */
+		String content = "";
+
+		/** Channel and data of an interleaved frame, only the first length bytes of data are valid. */
+		int channel, length;
+		byte[] data = new byte[0];
+
+		private void clear() {
+			method = uri = reason = null;
+			status = 0;
+			headers.clear();
+			content = "";
+			length = 0;
+		}
+	}
+
+	private final Message mMessage = new Message();
+	private ByteBuffer mBuffer = ByteBuffer.allocate(4096);
+	private byte[] mScratch = new byte[256];
+
+	// Bytes after the position of the buffer already searched for the end of the headers
+	private int mScanned = 0;
+
+	RtspCodec() {
+		mBuffer.limit(0);
+	}
+
+	/**
+	 * Reads the next message from a stream, bytes received after it are kept for the next call.
+	 * @return The message, overwritten by the next call
+	 * @throws SocketException Thrown when the stream ends
+	 * @throws ProtocolException Thrown when a message can't be parsed, the message is skipped
+	 */
+	Message read(InputStream input) throws IOException {
+		while (!decode(mBuffer, mMessage)) {
+			if (mBuffer.limit() == mBuffer.capacity()) {
+				if (mBuffer.position() > 0) {
+					mBuffer.compact().flip();
+				} else if (mBuffer.capacity() < MAX_MESSAGE_SIZE) {
+					final ByteBuffer buffer = ByteBuffer.allocate(mBuffer.capacity()*2);
+					buffer.put(mBuffer).flip();
+					mBuffer = buffer;
+				} else {
+					throw new ProtocolException("RTSP message too large");
+				}
+			}
+			final int len = input.read(mBuffer.array(), mBuffer.limit(), mBuffer.capacity()-mBuffer.limit());
+			if (len < 0) throw new SocketException("Connection lost");
+			mBuffer.limit(mBuffer.limit()+len);
+		}
+		return mMessage;
+	}
+
+	/**
+	 * Parses the message at the position of the buffer, and moves the position after it.
+	 * When the message is not complete, the position is left unchanged and false is returned:
+	 * call again once more bytes have been appended to the buffer. The bytes already searched
+	 * for the end of the headers are remembered, the buffer can be compacted between the calls.
+	 * @param input The received bytes, between its position and its limit
+	 * @param message The message to fill
+	 * @return true if a message was parsed
+	 * @throws ProtocolException Thrown when the message can't be parsed, the position is then moved after it
+	 */
+	boolean decode(ByteBuffer input, Message message) throws ProtocolException {
+		int start = input.position();
+		final int end = input.limit();
+
+		// Empty lines between messages are ignored
+		while (start < end && (input.get(start) == '\r' || input.get(start) == '\n')) start++;
+		if (start > input.position()) {
+			mScanned = Math.max(0, mScanned - (start - input.position()));
+			input.position(start);
+		}
+		if (start == end) return false;
+
+		if (input.get(start) == '$') {
+			if (end - start < 4) return false;
+			final int length = (input.get(start+2) & 0xFF) << 8 | (input.get(start+3) & 0xFF);
+			if (end - start < 4 + length) return false;
+			message.clear();
+			message.type = MESSAGE_INTERLEAVED;
+			message.channel = input.get(start+1) & 0xFF;
+			if (message.data.length < length) message.data = new byte[length];
+			input.position(start+4);
+			input.get(message.data, 0, length);
+			message.length = length;
+			mScanned = 0;
+			return true;
+		}
+
+		// Looks for the empty line that ends the headers, from where the last call stopped
+		int headerEnd = -1;
+		for (int i = Math.max(start, start + mScanned - 3); i < end; i++) {
+			if (input.get(i) != '\n') continue;
+			if (i+1 < end && input.get(i+1) == '\n') {
+				headerEnd = i+2;
+				break;
+			}
+			if (i+2 < end && input.get(i+1) == '\r' && input.get(i+2) == '\n') {
+				headerEnd = i+3;
+				break;
+			}
+		}
+		if (headerEnd < 0) {
+			mScanned = end - start;
+			if (mScanned > MAX_HEADER_SIZE) {
+				input.position(end);
+				mScanned = 0;
+				throw new ProtocolException("RTSP headers too long");
+			}
+			return false;
+		}
+
+		message.clear();
+		int lineEnd = indexOf(input, '\n', start, headerEnd);
+		try {
+			parseStartLine(input, start, trimEnd(input, start, lineEnd), message);
+		} catch (ProtocolException e) {
+			input.position(headerEnd);
+			mScanned = 0;
+			throw e;
+		}
+		for (int lineStart = lineEnd+1; lineStart < headerEnd; lineStart = lineEnd+1) {
+			lineEnd = indexOf(input, '\n', lineStart, headerEnd);
+			parseHeader(input, lineStart, trimEnd(input, lineStart, lineEnd), message);
+		}
+
+		final int contentLength = parseInt(message.headers.get("content-length"), 0);
+		if (contentLength > MAX_MESSAGE_SIZE) {
+			input.position(headerEnd);
+			mScanned = 0;
+			throw new ProtocolException("RTSP body too large");
+		}
+		if (end - headerEnd < contentLength) {
+			// The headers will be parsed again with the body
+			mScanned = headerEnd - start;
+			return false;
+		}
+		if (contentLength > 0) message.content = string(input, headerEnd, headerEnd + contentLength);
+		input.position(headerEnd + contentLength);
+		mScanned = 0;
+		return true;
+	}
+
+	private void parseStartLine(ByteBuffer input, int start, int end, Message message) throws ProtocolException {
+		final int sp1 = indexOf(input, ' ', start, end);
+		if (sp1 < 0) throw new ProtocolException("Invalid RTSP start line");
+		if (startsWith(input, start, end, "RTSP/")) {
+			// RTSP/1.0 200 OK
+			message.type = MESSAGE_RESPONSE;
+			int i = sp1+1, status = 0;
+			while (i < end && input.get(i) >= '0' && input.get(i) <= '9') {
+				status = status*10 + input.get(i++) - '0';
+			}
+			if (i == sp1+1) throw new ProtocolException("Invalid RTSP status line");
+			message.status = status;
+			message.reason = i < end ? string(input, i+1, end) : "";
+		} else {
+			// DESCRIBE rtsp://host/path RTSP/1.0
+			final int sp2 = indexOf(input, ' ', sp1+1, end);
+			if (sp2 < 0 || !startsWith(input, sp2+1, end, "RTSP/")) throw new ProtocolException("Invalid RTSP request line");
+			message.type = MESSAGE_REQUEST;
+			message.method = lookup(METHODS, input, start, sp1, false);
+			message.uri = string(input, sp1+1, sp2);
+		}
+	}
+
+	private void parseHeader(ByteBuffer input, int start, int end, Message message) {
+		final int colon = indexOf(input, ':', start, end);
+		if (colon <= start) return;
+		int nameEnd = colon, valueStart = colon+1;
+		while (nameEnd > start && input.get(nameEnd-1) == ' ') nameEnd--;
+		while (valueStart < end && (input.get(valueStart) == ' ' || input.get(valueStart) == '\t')) valueStart++;
+		message.headers.put(lookup(HEADERS, input, start, nameEnd, true), string(input, valueStart, end));
+	}
+
+	/** Returns the string of the table equal to the bytes, or a new string, in lower case if asked. */
+	private String lookup(String[] table, ByteBuffer input, int start, int end, boolean lowerCase) {
+		for (String s : table) {
+			if (s.length() == end - start && equalsIgnoreCase(input, start, s)) return s;
+		}
+		final String s = string(input, start, end);
+		return lowerCase ? toLowerCase(s) : s;
+	}
+
+	private String string(ByteBuffer input, int start, int end) {
+		if (input.hasArray()) {
+			return new String(input.array(), input.arrayOffset()+start, end-start, StandardCharsets.UTF_8);
+		}
+		if (mScratch.length < end-start) mScratch = new byte[end-start];
+		for (int i = start; i < end; i++) mScratch[i-start] = input.get(i);
+		return new String(mScratch, 0, end-start, StandardCharsets.UTF_8);
+	}
+
+	private static int indexOf(ByteBuffer input, char c, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (input.get(i) == c) return i;
+		}
+		return -1;
+	}
+
+	/** Returns the end of the line without its \r and trailing spaces. */
+	private static int trimEnd(ByteBuffer input, int start, int end) {
+		while (end > start && (input.get(end-1) == '\r' || input.get(end-1) == ' ' || input.get(end-1) == '\t')) end--;
+		return end;
+	}
+
+	private static boolean startsWith(ByteBuffer input, int start, int end, String prefix) {
+		return end - start >= prefix.length() && equalsIgnoreCase(input, start, prefix);
+	}
+
+	private static boolean equalsIgnoreCase(ByteBuffer input, int start, String s) {
+		for (int i = 0; i < s.length(); i++) {
+			if (toLowerCase(input.get(start+i)) != toLowerCase((byte) s.charAt(i))) return false;
+		}
+		return true;
+	}
+
+	private static int toLowerCase(byte b) {
+		return b >= 'A' && b <= 'Z' ? b + 32 : b;
+	}
+
+	private static String toLowerCase(String s) {
+		for (int i = 0; i < s.length(); i++) {
+			final char c = s.charAt(i);
+			if (c >= 'A' && c <= 'Z') {
+				final char[] chars = s.toCharArray();
+				for (int j = i; j < chars.length; j++) {
+					if (chars[j] >= 'A' && chars[j] <= 'Z') chars[j] += 32;
+				}
+				return new String(chars);
+			}
+		}
+		return s;
+	}
+
+	/**
+	 * Returns the value of the decimal number at the start of a string, or the default value.
+	 */
+	static int parseInt(String s, int defaultValue) {
+		if (s == null) return defaultValue;
+		int i = 0, value = 0;
+		while (i < s.length() && s.charAt(i) == ' ') i++;
+		final int start = i;
+		while (i < s.length() && s.charAt(i) >= '0' && s.charAt(i) <= '9' && i - start < 9) {
+			value = value*10 + s.charAt(i++) - '0';
+		}
+		return i > start ? value : defaultValue;
+	}
+
+	/**
+	 * Returns the value of a parameter of a header or of a URI, for example "4588-4589" for
+	 * "client_port" in "RTP/AVP;unicast;client_port=4588-4589", without its quotes, or null.
+	 * The name is case insensitive and must follow the start of the string or one of ";,?/ &".
+	 */
+	static String getParameter(String s, String name) {
+		if (s == null) return null;
+		for (int i = 0; (i = indexOfIgnoreCase(s, name, i)) >= 0; i++) {
+			final int end = i + name.length();
+			if (end >= s.length() || s.charAt(end) != '=') continue;
+			if (i > 0 && ";,?/ &\t".indexOf(s.charAt(i-1)) < 0) continue;
+			int valueStart = end+1, valueEnd;
+			if (valueStart < s.length() && s.charAt(valueStart) == '"') {
+				valueStart++;
+				valueEnd = s.indexOf('"', valueStart);
+				if (valueEnd < 0) valueEnd = s.length();
+			} else {
+				valueEnd = valueStart;
+				while (valueEnd < s.length() && ";,&".indexOf(s.charAt(valueEnd)) < 0) valueEnd++;
+			}
+			return s.substring(valueStart, valueEnd).trim();
+		}
+		return null;
+	}
+
+	/**
+	 * Parses a range of ports, "4588-4589" or "4588" in which case the second port is the next one.
+	 * @return The two ports, or null if the range can't be parsed
+	 */
+	static int[] parsePorts(String range) {
+		final int first = parseInt(range, -1);
+		if (first < 0) return null;
+		final int dash = range.indexOf('-');
+		final int second = dash < 0 ? first+1 : parseInt(range.substring(dash+1), -1);
+		return second < 0 ? null : new int[] {first, second};
+	}
+
+	private static int indexOfIgnoreCase(String s, String name, int from) {
+		for (int i = from; i + name.length() <= s.length(); i++) {
+			if (s.regionMatches(true, i, name, 0, name.length())) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Writes RTSP messages in a buffer reused for every message.
+	 */
+	static class Writer {
+
+		private byte[] mBuffer = new byte[1024];
+		private int mLength = 0;
+
+		/** Starts a new message with its start line, "RTSP/1.0 200 OK" for example. */
+		Writer start(String line) {
+			mLength = 0;
+			return append(line).append("\r\n");
+		}
+
+		Writer header(String name, String value) {
+			return append(name).append(": ").append(value).append("\r\n");
+		}
+
+		Writer header(String name, int value) {
+			append(name).append(": ");
+			if (value < 0) {
+				append('-');
+				value = -value;
+			}
+			int digits = 1;
+			for (int v = value; v >= 10; v /= 10) digits++;
+			ensure(digits);
+			for (int i = mLength + digits - 1; i >= mLength; i--) {
+				mBuffer[i] = (byte) ('0' + value % 10);
+				value /= 10;
+			}
+			mLength += digits;
+			return append("\r\n");
+		}
+
+		/** Appends lines of headers already formatted, each one ending with \r\n. */
+		Writer headers(String lines) {
+			return append(lines);
+		}
+
+		/** Ends the headers with a Content-Length header and appends the body. */
+		Writer content(String content) {
+			if (content == null || content.isEmpty()) {
+				return header("Content-Length", 0).append("\r\n");
+			}
+			final byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+			header("Content-Length", bytes.length).append("\r\n");
+			ensure(bytes.length);
+			System.arraycopy(bytes, 0, mBuffer, mLength, bytes.length);
+			mLength += bytes.length;
+			return this;
+		}
+
+		void writeTo(OutputStream output) throws IOException {
+			output.write(mBuffer, 0, mLength);
+		}
+
+		@Override
+		public String toString() {
+			return new String(mBuffer, 0, mLength, StandardCharsets.UTF_8);
+		}
+
+		private Writer append(char c) {
+			ensure(1);
+			mBuffer[mLength++] = (byte) c;
+			return this;
+		}
+
+		private Writer append(String s) {
+			final int length = s.length();
+			ensure(length);
+			for (int i = 0; i < length; i++) {
+				final char c = s.charAt(i);
+				if (c >= 0x80) {
+					// Not ASCII, rarely: the characters copied so far are written again
+					final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+					ensure(bytes.length);
+					System.arraycopy(bytes, 0, mBuffer, mLength, bytes.length);
+					mLength += bytes.length;
+					return this;
+				}
+				mBuffer[mLength + i] = (byte) c;
+			}
+			mLength += length;
+			return this;
+		}
+
+		private void ensure(int length) {
+			if (mLength + length > mBuffer.length) {
+				mBuffer = Arrays.copyOf(mBuffer, Math.max(mBuffer.length*2, mLength + length));
+			}
+		}
+	}
+
+}
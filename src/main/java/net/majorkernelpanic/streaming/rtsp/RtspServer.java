@@ -18,23 +18,32 @@
 
 package net.majorkernelpanic.streaming.rtsp;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.BindException;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Locale;
-import java.util.WeakHashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import net.majorkernelpanic.streaming.MediaStream;
 import net.majorkernelpanic.streaming.Session;
 import net.majorkernelpanic.streaming.SessionBuilder;
+import net.majorkernelpanic.streaming.Stream;
+import net.majorkernelpanic.streaming.dvr.DvrPlayer;
+import net.majorkernelpanic.streaming.dvr.DvrRing;
+import net.majorkernelpanic.streaming.rtp.AbstractPacketizer;
+import net.majorkernelpanic.streaming.rtp.RtpSocket;
+import net.majorkernelpanic.streaming.video.SimulcastLayer;
+import net.majorkernelpanic.streaming.video.VideoStream;
 import android.app.Service;
 import android.content.Intent;
 import android.content.SharedPreferences;
@@ -42,6 +51,7 @@ import android.content.SharedPreferences.Editor;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.os.Binder;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Base64;
 import android.util.Log;
@@ -86,13 +96,35 @@ public class RtspServer extends Service {
 	protected SharedPreferences mSharedPreferences;
 	protected boolean mEnabled = true;	
 	protected int mPort = DEFAULT_RTSP_PORT;
-	protected WeakHashMap<Session,Object> mSessions = new WeakHashMap<>(2);
+
+	// The sessions of the connected clients, by session id
+	private final SessionRegistry mRegistry = new SessionRegistry();
+
+	// Admission control, see setEgressBudget(), setMaxSessions() and setClientRateLimit()
+	private volatile long mEgressBudget = 0;
+	private volatile int mMaxSessions = 0;
+	private volatile long mClientRateLimit = 0;
 	
 	private RequestListener mListenerThread;
 	private final IBinder mBinder = new LocalBinder();
 	private boolean mRestart = false;
 	private final LinkedList<CallbackListener> mListeners = new LinkedList<>();
 
+	/** Frames that clients can replay with a Range header, see {@link #setDvrRing(DvrRing)}. */
+	protected DvrRing mDvrRing = null;
+
+	/** Session shared by all the clients, see {@link #setSimulcastSession(Session)}. */
+	protected Session mSimulcastSession = null;
+
+	/** Time in ms after which a client that does not play is disconnected, see {@link #setIdleTimeout(int)}. */
+	protected int mIdleTimeout = 60000;
+
+	// Media descriptions of the sessions configured so far, by requested URI
+	private final Map<String, String> mMediaDescriptions = new ConcurrentHashMap<>();
+
+	// Configured sessions of the clients that have left, by requested URI
+	private final SessionPool mSessionPool = new SessionPool();
+
     /** Credentials for Basic Auth */
     private String mUsername;
     private String mPassword;
@@ -163,6 +195,115 @@ public class RtspServer extends Service {
         mPassword = password;
     }
 
+	/**
+	 * Allows clients to replay the frames stored in a {@link DvrRing}. A PLAY request with a
+	 * <code>Range: npt=x-</code> header then streams the ring from x seconds after its oldest key frame,
+	 * <code>Range: npt=now-</code> goes back to the live stream, and PAUSE freezes the stream so
+	 * that the next PLAY resumes where it stopped.
+	 * The ring should be fed with a {@link net.majorkernelpanic.streaming.dvr.DvrRecorder} by a session
+	 * encoding with the same parameters as the sessions of the clients.
+	 * @param ring The ring, or null to disable time shifting
+	 */
+	public void setDvrRing(DvrRing ring) {
+		mDvrRing = ring;
+	}
+
+	/**
+	 * Sets the time after which a client that has not started to play, or has stopped playing,
+	 * is disconnected and its session released, so that clients that only probe the server
+	 * don't hold the camera.
+	 * @param timeoutMs The timeout in ms, 0 to keep idle clients connected
+	 */
+	public void setIdleTimeout(int timeoutMs) {
+		mIdleTimeout = timeoutMs;
+	}
+
+	/**
+	 * Sets the timeout of the RTSP sessions of the clients that play, announced in the <code>Session</code>
+	 * header. A client that sends no RTSP request (GET_PARAMETER or OPTIONS as a keep-alive) and no RTCP
+	 * packet during that time is disconnected and its streams stopped.
+	 * @param seconds The timeout in seconds, 60 by default, 0 to keep silent clients connected
+	 */
+	public void setSessionTimeout(int seconds) {
+		mRegistry.setTimeout(seconds);
+	}
+
+	/**
+	 * Limits the total bit rate of the streams sent to the clients, for example to what the uplink can carry.
+	 * The bit rate of the qualities of the streams of each client is reserved when it plays, a client
+	 * whose streams don't fit in what the others leave is answered with <code>453 Not Enough Bandwidth</code>,
+	 * so that the clients already playing are not degraded. With a shared session, see
+	 * {@link #setSimulcastSession(Session)}, the client receives the best encoding that fits instead.
+	 * @param bitsPerSecond The budget, 0 (the default) for no limit
+	 */
+	public void setEgressBudget(long bitsPerSecond) {
+		mEgressBudget = Math.max(0, bitsPerSecond);
+	}
+
+	/**
+	 * Limits the number of clients receiving streams at the same time, the others are answered
+	 * with <code>503 Service Unavailable</code>.
+	 * @param count The maximal number of clients, 0 (the default) for no limit
+	 */
+	public void setMaxSessions(int count) {
+		mMaxSessions = Math.max(0, count);
+	}
+
+	/**
+	 * Limits the bit rate of the streams of each client. A client is only admitted with streams that fit,
+	 * and the packets sent to the address of each client admitted afterwards are paced with a token bucket,
+	 * see {@link RtpSocket#setEgressRate(InetAddress, long)}, until it stops playing. The other RTP streams
+	 * of the application are not limited.
+	 * @param bitsPerSecond The limit, 0 (the default) for no limit
+	 */
+	public void setClientRateLimit(long bitsPerSecond) {
+		mClientRateLimit = Math.max(0, bitsPerSecond);
+	}
+
+	/** Returns the bit rate reserved by the clients receiving streams, see {@link #setEgressBudget(long)}. */
+	public long getReservedBitrate() {
+		return mRegistry.getReservedBitrate();
+	}
+
+	/**
+	 * The session of a client is only configured and started when it plays: DESCRIBE is answered with
+	 * the media descriptions of the last session configured for the same URI, if any.
+	 * Call this when the configuration of the sessions created by {@link #handleRequest(String, Socket)}
+	 * changes for the URIs already requested, for example after a change of the default video quality
+	 * of the {@link SessionBuilder}.
+	 */
+	public void clearSessionDescriptions() {
+		mMediaDescriptions.clear();
+		mSessionPool.clear();
+	}
+
+	/**
+	 * When a client leaves, its session is stopped but kept configured for the next client requesting
+	 * the same URI, which starts streaming without the session being built and its encoders tested again.
+	 * The least recently used sessions are released when there are too many of them, and the others
+	 * after some time. A subclass whose {@link #handleRequest(String, Socket)} gives sessions that depend
+	 * on something else than the URI should disable the pool.
+	 * @param maxIdle The maximal number of sessions kept, 4 by default, 0 to release the sessions when their clients leave
+	 * @param idleTimeoutMs Time in ms after which a session that no client took back is released, 60000 by default
+	 */
+	public void setSessionPool(int maxIdle, int idleTimeoutMs) {
+		mSessionPool.setLimits(maxIdle, idleTimeoutMs);
+	}
+
+	/**
+	 * Makes all the clients share the streams of one session instead of each one opening the camera
+	 * with its own session. The video stream of the session should be encoded at several qualities,
+	 * see {@link VideoStream#setSimulcastQualities}: each client receives the best encoding whose bit rate
+	 * fits in the bandwidth it announces with a <code>Bandwidth</code> header, or requests in the URI
+	 * (<code>h264=300</code>), or the lowest one. The session is started with the first client and
+	 * stopped when the last one leaves, the packets are sent to each client by the sockets of the encodings.
+	 * Only the UDP transport is supported and the URI can't change the other parameters of the streams.
+	 * @param session The session, or null to go back to a session per client
+	 */
+	public void setSimulcastSession(Session session) {
+		mSimulcastSession = session;
+	}
+
 	/** 
 	 * Starts (or restart if needed, if for example the configuration 
 	 * of the server has been modified) the RTSP server. 
@@ -187,11 +328,7 @@ public class RtspServer extends Service {
 		if (mListenerThread != null) {
 			try {
 				mListenerThread.kill();
-				for ( Session session : mSessions.keySet() ) {
-				    if ( session != null && session.isStreaming() ) {
-						session.stop();
-				    } 
-				}
+				mRegistry.stopAll();
 			} catch (Exception e) {
 			} finally {
 				mListenerThread = null;
@@ -201,12 +338,7 @@ public class RtspServer extends Service {
 
 	/** Returns whether or not the RTSP server is streaming to some client(s). */
 	public boolean isStreaming() {
-		for ( Session session : mSessions.keySet() ) {
-		    if ( session != null && session.isStreaming() ) {
-		    	return true;
-		    } 
-		}
-		return false;
+		return mRegistry.isStreaming();
 	}
 	
 	public boolean isEnabled() {
@@ -215,13 +347,7 @@ public class RtspServer extends Service {
 
 	/** Returns the bandwidth consumed by the RTSP server in bits per second. */
 	public long getBitrate() {
-		long bitrate = 0;
-		for ( Session session : mSessions.keySet() ) {
-		    if ( session != null && session.isStreaming() ) {
-		    	bitrate += session.getBitrate();
-		    } 
-		}
-		return bitrate;
+		return mRegistry.getBitrate();
 	}
 	
 	@Override
@@ -246,6 +372,7 @@ public class RtspServer extends Service {
 	@Override
 	public void onDestroy() {
 		stop();
+		mSessionPool.clear();
 		mSharedPreferences.unregisterOnSharedPreferenceChangeListener(mOnSharedPreferenceChangeListener);
 	}
 
@@ -362,17 +489,35 @@ public class RtspServer extends Service {
 	}
 
 	// One thread per client
-	class WorkerThread extends Thread implements Runnable {
+	class WorkerThread extends Thread implements Runnable, SessionRegistry.Client {
 
 		private final Socket mClient;
 		private final OutputStream mOutput;
-		private final BufferedReader mInput;
+		private final InputStream mInput;
+		private final RtspCodec mCodec = new RtspCodec();
+		private final RtspCodec.Writer mWriter = new RtspCodec.Writer();
 
 		// Each client has an associated session
-		private Session mSession;
+		private volatile Session mSession;
+		private String mSessionId;
+		private volatile long mLastRequest;
+
+		// Replays the DVR ring in place of the live stream when the client seeks or pauses
+		private DvrPlayer mPlayer;
+
+		// The simulcast session that the client shares with the others, and the encoding it receives
+		private volatile Session mShared;
+		private SimulcastLayer mLayer;
+		private final RtpSocket[] mSharedSockets = new RtpSocket[2];
+		private final int[][] mSharedPorts = new int[2][];
+
+		// The tracks of the session are only started when the client plays
+		private final boolean[] mSetUp = new boolean[2];
+		private volatile boolean mPlaying = false;
+		private String mDescriptionKey;
 
 		public WorkerThread(final Socket client) throws IOException {
-			mInput = new BufferedReader(new InputStreamReader(client.getInputStream()));
+			mInput = client.getInputStream();
 			mOutput = client.getOutputStream();
 			mClient = client;
 			mSession = new Session();
@@ -383,18 +528,25 @@ public class RtspServer extends Service {
 			Response response;
 
 			Log.i(TAG, "Connection from "+mClient.getInetAddress().getHostAddress());
+			mLastRequest = SystemClock.elapsedRealtime();
+			mSessionId = mRegistry.register(this);
 
 			while (!Thread.interrupted()) {
 
 				request = null;
 				response = null;
+				updateIdleTimeout();
 
 				// Parse the request
 				try {
-					request = Request.parseRequest(mInput);
+					request = Request.parseRequest(mCodec, mInput);
+					mLastRequest = SystemClock.elapsedRealtime();
 				} catch (SocketException e) {
 					// Client has left
 					break;
+				} catch (SocketTimeoutException e) {
+					Log.i(TAG, "Idle client disconnected");
+					break;
 				} catch (Exception e) {
 					// We don't understand the request :/
 					response = new Response();
@@ -418,7 +570,7 @@ public class RtspServer extends Service {
 				// We always send a response
 				// The client will receive an "INTERNAL SERVER ERROR" if an exception has been thrown at some point
 				try {
-					response.send(mOutput);
+					response.send(mWriter, mOutput);
 				} catch (IOException e) {
 					Log.e(TAG,"Response was not sent properly");
 					break;
@@ -427,12 +579,15 @@ public class RtspServer extends Service {
 			}
 
 			// Streaming stops when client disconnects
+			stopPlayer();
+			leaveSharedSession();
 			boolean streaming = isStreaming();
 			mSession.syncStop();
 			if (streaming && !isStreaming()) {
 				postMessage(MESSAGE_STREAMING_STOPPED);
 			}
-			mSession.release();
+			recycleSession();
+			mRegistry.unregister(mSessionId);
 
 			try {
 				mClient.close();
@@ -444,6 +599,44 @@ public class RtspServer extends Service {
 
 		}
 
+		@Override
+		public Session getSession() {
+			final Session shared = mShared;
+			return shared != null ? shared : mSession;
+		}
+
+		@Override
+		public boolean isPlaying() {
+			return mPlaying;
+		}
+
+		/** The last RTSP request, or RTCP packet received from the client on the sockets of its streams. */
+		@Override
+		public long getLastActivity() {
+			long activity = mLastRequest;
+			final InetAddress address = mClient.getInetAddress();
+			final Session session = mSession;
+			for (int i=0;i<2;i++) {
+				RtpSocket socket = mSharedSockets[i];
+				if (socket == null && mShared == null && session.getTrack(i) instanceof MediaStream) {
+					final AbstractPacketizer packetizer = ((MediaStream)session.getTrack(i)).getPacketizer();
+					if (packetizer != null) socket = packetizer.getRtpSocket();
+				}
+				if (socket != null) activity = Math.max(activity, socket.getLastReceivedTime(address));
+			}
+			return activity;
+		}
+
+		@Override
+		public void expire() {
+			// The thread of the client leaves its loop and stops the streams
+			try {
+				mClient.close();
+			} catch (final IOException e) {
+				Log.w(TAG, e);
+			}
+		}
+
 		public Response processRequest(Request request) throws IllegalStateException, IOException {
 			Response response = new Response(request);
 
@@ -453,6 +646,10 @@ public class RtspServer extends Service {
                 response.attributes = "WWW-Authenticate: Basic realm=\""+SERVER_NAME+"\"\r\n";
                 response.status = Response.STATUS_UNAUTHORIZED;
             }
+            else if (!isSessionValid(request))
+            {
+                response.status = Response.STATUS_SESSION_NOT_FOUND;
+            }
             else
             {
 			    /* ********************************************************************************** */
@@ -460,12 +657,40 @@ public class RtspServer extends Service {
 			    /* ********************************************************************************** */
                 if (request.method.equalsIgnoreCase("DESCRIBE")) {
 
-                    // Parse the requested URI and configure the session
-                    mSession = handleRequest(request.uri, mClient);
-                    mSessions.put(mSession, null);
-                    mSession.syncConfigure();
-
-                    String requestContent = mSession.getSessionDescription();
+                    String requestContent;
+                    releaseSession();
+                    if (mRegistry.isFull(mSessionId, mMaxSessions)) {
+                        leaveSharedSession();
+                        response.status = Response.STATUS_SERVICE_UNAVAILABLE;
+                        return response;
+                    }
+                    if (mSimulcastSession != null) {
+                        leaveSharedSession();
+                        requestContent = describeSharedSession(mSimulcastSession, request);
+                        if (requestContent == null) {
+                            response.status = Response.STATUS_NOT_ENOUGH_BANDWIDTH;
+                            return response;
+                        }
+                    } else {
+                        // Parse the requested URI, the session is only configured if that URI was never described
+                        final String key = getDescriptionKey(request.uri);
+                        mSession = mSessionPool.acquire(key, mClient.getLocalAddress().getHostAddress(), mClient.getInetAddress().getHostAddress());
+                        if (mSession == null) {
+                            mSession = handleRequest(request.uri, mClient);
+                        }
+                        mDescriptionKey = key;
+                        if (getQualityBitrate(mSession, null, true, true) > getAllowedBitrate()) {
+                            response.status = Response.STATUS_NOT_ENOUGH_BANDWIDTH;
+                            return response;
+                        }
+                        String media = mMediaDescriptions.get(mDescriptionKey);
+                        if (media == null) {
+                            mSession.syncConfigure();
+                            media = mSession.getMediaDescriptions();
+                            mMediaDescriptions.put(mDescriptionKey, media);
+                        }
+                        requestContent = mSession.getSessionDescription(media);
+                    }
                     String requestAttributes =
                             "Content-Base: " + mClient.getLocalAddress().getHostAddress() + ":" + mClient.getLocalPort() + "/\r\n" +
                                     "Content-Type: application/sdp\r\n";
@@ -482,7 +707,16 @@ public class RtspServer extends Service {
                 /* ********************************* Method OPTIONS ********************************* */
                 /* ********************************************************************************** */
                 else if (request.method.equalsIgnoreCase("OPTIONS")) {
-                    response.attributes = "Public: DESCRIBE,SETUP,TEARDOWN,PLAY,PAUSE\r\n";
+                    response.attributes = "Public: DESCRIBE,SETUP,TEARDOWN,PLAY,PAUSE,GET_PARAMETER\r\n";
+                    response.status = Response.STATUS_OK;
+                }
+
+                /* ********************************************************************************** */
+                /* ******************************* Method GET_PARAMETER ***************************** */
+                /* ********************************************************************************** */
+                else if (request.method.equalsIgnoreCase("GET_PARAMETER")) {
+                    // Used as a keep-alive, no parameter is supported
+                    response.attributes = "Session: " + mRegistry.getSessionHeader(mSessionId) + "\r\n";
                     response.status = Response.STATUS_OK;
                 }
 
@@ -490,8 +724,6 @@ public class RtspServer extends Service {
                 /* ********************************** Method SETUP ********************************** */
                 /* ********************************************************************************** */
                 else if (request.method.equalsIgnoreCase("SETUP")) {
-                    Pattern p;
-                    Matcher m;
                     int p2;
                     int p1;
                     int ssrc;
@@ -499,47 +731,50 @@ public class RtspServer extends Service {
                     int[] src;
                     String destination;
 
-                    p = Pattern.compile("trackID=(\\w+)", Pattern.CASE_INSENSITIVE);
-                    m = p.matcher(request.uri);
+                    trackId = RtspCodec.parseInt(RtspCodec.getParameter(request.uri, "trackID"), -1);
 
-                    if (!m.find()) {
+                    if (trackId < 0) {
                         response.status = Response.STATUS_BAD_REQUEST;
                         return response;
                     }
 
-                    trackId = Integer.parseInt(m.group(1));
+                    if (mShared != null) {
+                        return setupSharedTrack(trackId, request, response);
+                    }
 
                     if (!mSession.trackExists(trackId)) {
                         response.status = Response.STATUS_NOT_FOUND;
                         return response;
                     }
 
-                    p = Pattern.compile("client_port=(\\d+)(?:-(\\d+))?", Pattern.CASE_INSENSITIVE);
-                    m = p.matcher(request.headers.get("transport"));
+                    int[] ports = RtspCodec.parsePorts(RtspCodec.getParameter(request.headers.get("transport"), "client_port"));
+                    if (ports == null) {
+                        ports = mSession.getTrack(trackId).getDestinationPorts();
+                    }
+                    p1 = ports[0];
+                    p2 = ports[1];
 
-                    if (!m.find()) {
-                        int[] ports = mSession.getTrack(trackId).getDestinationPorts();
-                        p1 = ports[0];
-                        p2 = ports[1];
-                    } else {
-                        p1 = Integer.parseInt(m.group(1));
-                        if (m.group(2) == null) {
-                            p2 = p1+1;
-                        } else {
-                            p2 = Integer.parseInt(m.group(2));
-                        }
+                    final Stream track = mSession.getTrack(trackId);
+                    if (!(track instanceof MediaStream) || ((MediaStream) track).getPacketizer() == null) {
+                        // The stream only knows its SSRC and its ports once configured
+                        mSession.syncConfigure(trackId);
                     }
 
-                    ssrc = mSession.getTrack(trackId).getSSRC();
-                    src = mSession.getTrack(trackId).getLocalPorts();
+                    ssrc = track.getSSRC();
+                    src = track.getLocalPorts();
                     destination = mSession.getDestination();
 
-                    mSession.getTrack(trackId).setDestinationPorts(p1, p2);
+                    track.setDestinationPorts(p1, p2);
+                    mSetUp[trackId] = true;
 
-                    boolean streaming = isStreaming();
-                    mSession.syncStart(trackId);
-                    if (!streaming && isStreaming()) {
-                        postMessage(MESSAGE_STREAMING_STARTED);
+                    // The camera and the encoders are only opened when the client plays
+                    if (mPlaying) {
+                        final int admission = startTracks();
+                        if (admission != SessionRegistry.ADMITTED) {
+                            mSetUp[trackId] = false;
+                            response.status = getRefusalStatus(admission);
+                            return response;
+                        }
                     }
 
                     response.attributes = "Transport: RTP/AVP/UDP;" + (InetAddress.getByName(destination).isMulticastAddress() ? "multicast" : "unicast") +
@@ -548,7 +783,7 @@ public class RtspServer extends Service {
                             ";server_port=" + src[0] + "-" + src[1] +
                             ";ssrc=" + Integer.toHexString(ssrc) +
                             ";mode=play\r\n" +
-                            "Session: " + "1185d20035702ca" + "\r\n" +
+                            "Session: " + mRegistry.getSessionHeader(mSessionId) + "\r\n" +
                             "Cache-Control: no-cache\r\n";
 
                     // If no exception has been thrown, we reply with OK
@@ -560,12 +795,48 @@ public class RtspServer extends Service {
                 /* ********************************** Method PLAY *********************************** */
                 /* ********************************************************************************** */
                 else if (request.method.equalsIgnoreCase("PLAY")) {
-                    String requestAttributes = "RTP-Info: ";
-                    if (mSession.trackExists(0))
+                    if (mShared == null) {
+                        final int admission = startTracks();
+                        if (admission != SessionRegistry.ADMITTED) {
+                            response.status = getRefusalStatus(admission);
+                            return response;
+                        }
+                    }
+                    mPlaying = true;
+
+                    String range = request.headers.get("range");
+                    String rangeAttribute = "";
+                    if (range != null && mDvrRing != null) {
+                        final double start = parseNptStart(range);
+                        if (start < 0) {
+                            // Back to the live stream
+                            stopPlayer();
+                        } else {
+                            final long origin = mDvrRing.getStartTimeUs();
+                            final long position = origin >= 0 && startPlayer() ? mPlayer.seek(origin + (long) (start * 1000000)) : -1;
+                            if (position < 0) {
+                                response.status = Response.STATUS_RANGE_NOT_SATISFIABLE;
+                                return response;
+                            }
+                            rangeAttribute = String.format(Locale.US, "Range: npt=%.3f-\r\n", (position - origin) / 1000000d);
+                        }
+                    }
+                    final Session session = mShared != null ? mShared : mSession;
+                    if (mPlayer != null) {
+                        mPlayer.play();
+                    } else if (mLayer != null) {
+                        mLayer.requestKeyFrame();
+                    } else {
+                        // The new client can only start decoding the live stream from a key frame
+                        session.requestKeyFrame();
+                    }
+
+                    String requestAttributes = rangeAttribute + "RTP-Info: ";
+                    if (session.trackExists(0))
                         requestAttributes += "url=rtsp://" + mClient.getLocalAddress().getHostAddress() + ":" + mClient.getLocalPort() + "/trackID=" + 0 + ";seq=0,";
-                    if (mSession.trackExists(1))
+                    if (session.trackExists(1))
                         requestAttributes += "url=rtsp://" + mClient.getLocalAddress().getHostAddress() + ":" + mClient.getLocalPort() + "/trackID=" + 1 + ";seq=0,";
-                    requestAttributes = requestAttributes.substring(0, requestAttributes.length() - 1) + "\r\nSession: 1185d20035702ca\r\n";
+                    requestAttributes = requestAttributes.substring(0, requestAttributes.length() - 1) + "\r\nSession: " + mRegistry.getSessionHeader(mSessionId) + "\r\n";
 
                     response.attributes = requestAttributes;
 
@@ -578,6 +849,13 @@ public class RtspServer extends Service {
                 /* ********************************** Method PAUSE ********************************** */
                 /* ********************************************************************************** */
                 else if (request.method.equalsIgnoreCase("PAUSE")) {
+                    // With a DVR, the stream is frozen and resumed from the same point on the next PLAY
+                    if (mPlayer == null && mDvrRing != null && startPlayer()) {
+                        mPlayer.seek(mDvrRing.getEndTimeUs());
+                    }
+                    if (mPlayer != null) {
+                        mPlayer.pause();
+                    }
                     response.status = Response.STATUS_OK;
                 }
 
@@ -585,6 +863,9 @@ public class RtspServer extends Service {
                 /* ********************************* Method TEARDOWN ******************************** */
                 /* ********************************************************************************** */
                 else if (request.method.equalsIgnoreCase("TEARDOWN")) {
+                    stopPlayer();
+                    leaveSharedSession();
+                    stopTracks();
                     response.status = Response.STATUS_OK;
                 }
 
@@ -600,6 +881,271 @@ public class RtspServer extends Service {
 
 		}
 
+		/**
+		 * Starts the tracks that the client has set up if it can be admitted, and updates the media descriptions of its URI.
+		 * @return {@link SessionRegistry#ADMITTED}, or why the client was refused
+		 */
+		private int startTracks() throws IOException {
+			final int admission = admit(getQualityBitrate(mSession, null, mSetUp[0], mSetUp[1]));
+			if (admission != SessionRegistry.ADMITTED) return admission;
+			boolean streaming = isStreaming();
+			mSession.syncStart(mSetUp[0], mSetUp[1]);
+			if (!streaming && isStreaming()) {
+				postMessage(MESSAGE_STREAMING_STARTED);
+			}
+			// Once started, the streams are configured with the parameters they really use
+			if (mDescriptionKey != null && (!mSession.trackExists(0) || mSetUp[0]) && (!mSession.trackExists(1) || mSetUp[1])) {
+				mMediaDescriptions.put(mDescriptionKey, mSession.getMediaDescriptions());
+			}
+			return admission;
+		}
+
+		/** Stops the tracks of the session, the client has to set them up again to play. */
+		private void stopTracks() {
+			boolean streaming = isStreaming();
+			mSession.syncStop();
+			if (streaming && !isStreaming()) {
+				postMessage(MESSAGE_STREAMING_STOPPED);
+			}
+			mSetUp[0] = mSetUp[1] = false;
+			mPlaying = false;
+			mRegistry.release(mSessionId);
+		}
+
+		/** Returns the bit rate that the client can receive, what the other clients leave of the egress budget. */
+		private long getAllowedBitrate() {
+			final long limit = mClientRateLimit;
+			final long available = mRegistry.getAvailableBitrate(mSessionId, mEgressBudget);
+			return limit > 0 ? Math.min(limit, available) : available;
+		}
+
+		/** Reserves the bit rate of the streams of the client. */
+		private int admit(long bitrate) {
+			final long limit = mClientRateLimit;
+			if (limit > 0 && bitrate > limit) return SessionRegistry.NO_BANDWIDTH;
+			final int admission = mRegistry.admit(mSessionId, bitrate, mEgressBudget, mMaxSessions);
+			if (admission == SessionRegistry.ADMITTED) {
+				// The packets to the client are paced at its own rate until its tracks are stopped
+				mRegistry.setEgressRate(mSessionId, mClient.getInetAddress(), limit > 0 ? limit : -1);
+			}
+			return admission;
+		}
+
+		/** Releases the session of the client, before it describes a new one. */
+		private void releaseSession() {
+			stopPlayer();
+			stopTracks();
+			recycleSession();
+			mSession = new Session();
+			mDescriptionKey = null;
+		}
+
+		/** Puts the stopped session of the client in the pool, for the next client requesting the same URI. */
+		private void recycleSession() {
+			if (mDescriptionKey != null) {
+				mSessionPool.put(mDescriptionKey, mSession, mClient.getInetAddress().getHostAddress().equals(mSession.getDestination()));
+			} else {
+				mSession.release();
+			}
+		}
+
+		/** Disconnects the client if it does not send a request while it is not playing. */
+		private void updateIdleTimeout() {
+			try {
+				mClient.setSoTimeout(mPlaying ? 0 : mIdleTimeout);
+			} catch (SocketException e) {
+				Log.w(TAG, e);
+			}
+		}
+
+		/**
+		 * Chooses the encoding of the video stream of the shared session that the client will receive
+		 * and returns the description of the session with that encoding.
+		 */
+		private String describeSharedSession(Session shared, Request request) throws IOException {
+			synchronized (shared) {
+				shared.setOrigin(mClient.getLocalAddress().getHostAddress());
+				shared.setDestination(mClient.getInetAddress().getHostAddress());
+				if (!shared.isStreaming()) {
+					shared.syncConfigure();
+				}
+				mShared = shared;
+				// The client receives an encoding that fits in the bit rate left by the others
+				final long allowed = getAllowedBitrate();
+				long bitrate = getRequestedBitrate(request);
+				if (allowed != Long.MAX_VALUE) {
+					final long video = allowed - getQualityBitrate(shared, null, true, false);
+					bitrate = bitrate < 0 ? video : Math.min(bitrate, video);
+				}
+				mLayer = selectLayer(shared, bitrate);
+				if (getQualityBitrate(shared, mLayer, true, true) > allowed) {
+					mShared = null;
+					mLayer = null;
+					return null;
+				}
+				return shared.getSessionDescription(mLayer);
+			}
+		}
+
+		/**
+		 * Returns the bit rate that the client can receive in bit/s, from its Bandwidth header
+		 * or the URI, or -1 if it gave none.
+		 */
+		private long getRequestedBitrate(Request request) {
+			long bitrate = -1;
+			final String bandwidth = request.headers.get("bandwidth");
+			if (bandwidth != null) {
+				try {
+					bitrate = Long.parseLong(bandwidth.trim());
+				} catch (NumberFormatException e) {
+					Log.w(TAG, "Invalid Bandwidth header: "+bandwidth);
+				}
+			}
+			String kbps = RtspCodec.getParameter(request.uri, "h264");
+			if (kbps == null) kbps = RtspCodec.getParameter(request.uri, "h265");
+			if (RtspCodec.parseInt(kbps, -1) >= 0) {
+				final long requested = RtspCodec.parseInt(kbps, 0)*1000L;
+				bitrate = bitrate < 0 ? requested : Math.min(bitrate, requested);
+			}
+			return bitrate;
+		}
+
+		/**
+		 * Returns the encoding with the highest bit rate not above the given one, the lowest encoding
+		 * if none fits, or null for the video stream itself.
+		 */
+		private SimulcastLayer selectLayer(Session shared, long bitrate) {
+			if (!(shared.getVideoTrack() instanceof VideoStream)) return null;
+			final VideoStream stream = (VideoStream) shared.getVideoTrack();
+			if (bitrate < 0) return null;
+			SimulcastLayer best = null, lowest = null;
+			long bestBitrate = stream.getVideoQuality().bitrate <= bitrate ? stream.getVideoQuality().bitrate : -1;
+			long lowestBitrate = stream.getVideoQuality().bitrate;
+			for (SimulcastLayer layer : stream.getSimulcastLayers()) {
+				final long layerBitrate = layer.getQuality().bitrate;
+				if (layerBitrate <= bitrate && layerBitrate > bestBitrate) {
+					best = layer;
+					bestBitrate = layerBitrate;
+				}
+				if (layerBitrate < lowestBitrate) {
+					lowest = layer;
+					lowestBitrate = layerBitrate;
+				}
+			}
+			return bestBitrate >= 0 ? best : lowest;
+		}
+
+		/** Adds the client to the receivers of a track of the shared session, started if needed. */
+		private Response setupSharedTrack(int trackId, Request request, Response response) throws IOException {
+			final Session shared = mShared;
+			final Stream track = shared.getTrack(trackId);
+			if (!(track instanceof MediaStream)) {
+				response.status = Response.STATUS_NOT_FOUND;
+				return response;
+			}
+
+			final int[] ports = RtspCodec.parsePorts(RtspCodec.getParameter(request.headers.get("transport"), "client_port"));
+			if (ports == null) {
+				// The streams of the shared session have no destination of their own
+				response.status = Response.STATUS_BAD_REQUEST;
+				return response;
+			}
+			final int p1 = ports[0];
+			final int p2 = ports[1];
+
+			final int admission = admit(getQualityBitrate(shared, mLayer,
+					trackId == 0 || mSharedSockets[0] != null, trackId == 1 || mSharedSockets[1] != null));
+			if (admission != SessionRegistry.ADMITTED) {
+				response.status = getRefusalStatus(admission);
+				return response;
+			}
+
+			final RtpSocket socket = trackId == 1 && mLayer != null ? mLayer.getRtpSocket() : ((MediaStream)track).getPacketizer().getRtpSocket();
+			synchronized (shared) {
+				if (mSharedSockets[trackId] != null) {
+					mSharedSockets[trackId].removeDestination(mClient.getInetAddress(), mSharedPorts[trackId][0], mSharedPorts[trackId][1]);
+				}
+				socket.addDestination(mClient.getInetAddress(), p1, p2);
+				mSharedSockets[trackId] = socket;
+				mSharedPorts[trackId] = new int[] {p1, p2};
+				if (!track.isStreaming()) {
+					boolean streaming = isStreaming();
+					// The packets are only sent to the receivers added to the sockets
+					((MediaStream)track).setFanOutOnly(true);
+					track.setDestinationPorts(0, 0);
+					shared.syncStart(trackId);
+					if (!streaming && isStreaming()) {
+						postMessage(MESSAGE_STREAMING_STARTED);
+					}
+				}
+			}
+
+			final int[] src = socket.getLocalPorts();
+			response.attributes = "Transport: RTP/AVP/UDP;unicast" +
+					";destination=" + mClient.getInetAddress().getHostAddress() +
+					";client_port=" + p1 + "-" + p2 +
+					";server_port=" + src[0] + "-" + src[1] +
+					";ssrc=" + Integer.toHexString(socket.getSSRC()) +
+					";mode=play\r\n" +
+					"Session: " + mRegistry.getSessionHeader(mSessionId) + "\r\n" +
+					"Cache-Control: no-cache\r\n";
+			response.status = Response.STATUS_OK;
+			return response;
+		}
+
+		/** Removes the client from the receivers of the shared session, stopped with the last one. */
+		private void leaveSharedSession() {
+			final Session shared = mShared;
+			if (shared == null) return;
+			synchronized (shared) {
+				for (int i=0;i<2;i++) {
+					if (mSharedSockets[i] != null) {
+						mSharedSockets[i].removeDestination(mClient.getInetAddress(), mSharedPorts[i][0], mSharedPorts[i][1]);
+						mSharedSockets[i] = null;
+					}
+				}
+				mShared = null;
+				mLayer = null;
+				mRegistry.release(mSessionId);
+				if (shared.isStreaming() && !hasReceivers(shared)) {
+					boolean streaming = isStreaming();
+					shared.syncStop();
+					if (streaming && !isStreaming()) {
+						postMessage(MESSAGE_STREAMING_STOPPED);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Switches the session of the client to a new {@link DvrPlayer}, paused.
+		 * @return false if the session can't be time shifted
+		 */
+		private boolean startPlayer() {
+			if (mPlayer == null) {
+				final DvrPlayer player = new DvrPlayer(mDvrRing);
+				if (!player.attach(mSession)) return false;
+				mPlayer = player;
+			}
+			return true;
+		}
+
+		/** Switches the session of the client back to the live stream. */
+		private void stopPlayer() {
+			if (mPlayer != null) {
+				mPlayer.detach();
+				mPlayer = null;
+			}
+		}
+
+		/** Returns false if the request carries the id of another session than the one of the client. */
+		private boolean isSessionValid(Request request) {
+			final String session = request.headers.get("session");
+			if (session == null) return true;
+			final int end = session.indexOf(';');
+			return (end < 0 ? session : session.substring(0, end)).trim().equalsIgnoreCase(mSessionId);
+		}
+
         /**
          * Check if the request is authorized
          * @param request
@@ -623,37 +1169,97 @@ public class RtspServer extends Service {
         }
 	}
 
-	static class Request {
+	/**
+	 * Returns the part of the URI that determines the session, the host differs with the network
+	 * interface the client is connected to.
+	 */
+	static String getDescriptionKey(String uri) {
+		if (!uri.regionMatches(true, 0, "rtsp://", 0, 7)) return uri;
+		int path = uri.indexOf('/', 7), query = uri.indexOf('?', 7);
+		int start = path < 0 ? query : query < 0 ? path : Math.min(path, query);
+		return start < 0 ? "" : uri.substring(start);
+	}
 
-		// Parse method & uri
-		public static final Pattern regexMethod = Pattern.compile("(\\w+) (\\S+) RTSP",Pattern.CASE_INSENSITIVE);
-		// Parse a request header
-		public static final Pattern rexegHeader = Pattern.compile("(\\S+):(.+)",Pattern.CASE_INSENSITIVE);
+	/**
+	 * Returns the bit rate of the qualities of some tracks of a session.
+	 * @param layer The encoding of the video track received by the client, or null
+	 */
+	static long getQualityBitrate(Session session, SimulcastLayer layer, boolean audio, boolean video) {
+		long bitrate = 0;
+		if (audio && session.getAudioTrack() != null) {
+			bitrate += session.getAudioTrack().getAudioQuality().bitRate;
+		}
+		if (video && session.getVideoTrack() != null) {
+			bitrate += layer != null ? layer.getQuality().bitrate : session.getVideoTrack().getVideoQuality().bitrate;
+		}
+		return bitrate;
+	}
+
+	static String getRefusalStatus(int admission) {
+		return admission == SessionRegistry.NO_SESSION ? Response.STATUS_SERVICE_UNAVAILABLE : Response.STATUS_NOT_ENOUGH_BANDWIDTH;
+	}
+
+	/** Returns true if some client still receives one of the streams of the shared session. */
+	static boolean hasReceivers(Session shared) {
+		final List<RtpSocket> sockets = new ArrayList<>();
+		for (int i=0;i<2;i++) {
+			if (shared.getTrack(i) instanceof MediaStream) {
+				sockets.add(((MediaStream)shared.getTrack(i)).getPacketizer().getRtpSocket());
+			}
+		}
+		if (shared.getVideoTrack() instanceof VideoStream) {
+			for (SimulcastLayer layer : ((VideoStream)shared.getVideoTrack()).getSimulcastLayers()) {
+				sockets.add(layer.getRtpSocket());
+			}
+		}
+		for (RtpSocket socket : sockets) {
+			if (socket.getDestinationCount() > 0) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Parses the start of a npt range ("npt=12.5-", "npt=0:01:02.5-30").
+	 * @return The start in seconds, or -1 for "now" or a range that can't be parsed
+	 */
+	static double parseNptStart(String range) {
+		final int index = range.toLowerCase(Locale.US).indexOf("npt=");
+		if (index < 0) return -1;
+		int end = range.indexOf('-', index + 4);
+		if (end < 0) end = range.length();
+		final String start = range.substring(index + 4, end).trim();
+		if (start.isEmpty() || start.equalsIgnoreCase("now")) return -1;
+		try {
+			double seconds = 0;
+			for (String part : start.split(":")) {
+				seconds = seconds * 60 + Double.parseDouble(part);
+			}
+			return seconds;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	static class Request {
 
 		public String method;
 		public String uri;
-		public HashMap<String,String> headers = new HashMap<>();
+		public HashMap<String,String> headers;
+
+		/**
+		 * Parses the method, uri & headers of the next RTSP request, the interleaved frames and the responses
+		 * sent by the client are skipped. The headers are only valid until the next request is parsed.
+		 */
+		public static Request parseRequest(RtspCodec codec, InputStream input) throws IOException {
+			RtspCodec.Message message;
+			do {
+				message = codec.read(input);
+			} while (message.type != RtspCodec.MESSAGE_REQUEST);
 
-		/** Parse the method, uri & headers of a RTSP request */
-		public static Request parseRequest(BufferedReader input) throws IOException, IllegalStateException {
 			Request request = new Request();
-			String line;
-			Matcher matcher;
-
-			// Parsing request method & uri
-			if ((line = input.readLine())==null) throw new SocketException("Client disconnected");
-			matcher = regexMethod.matcher(line);
-			matcher.find();
-			request.method = matcher.group(1);
-			request.uri = matcher.group(2);
-
-			// Parsing headers of the request
-			while ( (line = input.readLine()) != null && line.length()>3 ) {
-				matcher = rexegHeader.matcher(line);
-				matcher.find();
-				request.headers.put(matcher.group(1).toLowerCase(Locale.US),matcher.group(2));
-			}
-			if (line==null) throw new SocketException("Client disconnected");
+			request.method = message.method;
+			request.uri = message.uri;
+			request.headers = message.headers;
 
 			// It's not an error, it's just easier to follow what's happening in logcat with the request in red
 			Log.e(TAG,request.method+" "+request.uri);
@@ -669,7 +1275,11 @@ public class RtspServer extends Service {
 		public static final String STATUS_BAD_REQUEST = "400 Bad Request";
         public static final String STATUS_UNAUTHORIZED = "401 Unauthorized";
 		public static final String STATUS_NOT_FOUND = "404 Not Found";
+		public static final String STATUS_NOT_ENOUGH_BANDWIDTH = "453 Not Enough Bandwidth";
+		public static final String STATUS_SESSION_NOT_FOUND = "454 Session Not Found";
+		public static final String STATUS_RANGE_NOT_SATISFIABLE = "457 Invalid Range";
 		public static final String STATUS_INTERNAL_SERVER_ERROR = "500 Internal Server Error";
+		public static final String STATUS_SERVICE_UNAVAILABLE = "503 Service Unavailable";
 
 		public String status = STATUS_INTERNAL_SERVER_ERROR;
 		public String content = "";
@@ -687,25 +1297,22 @@ public class RtspServer extends Service {
 		}
 
 		public void send(OutputStream output) throws IOException {
-			int seqid = -1;
+			send(new RtspCodec.Writer(), output);
+		}
 
-			try {
-				seqid = Integer.parseInt(mRequest.headers.get("cseq").replace(" ",""));
-			} catch (Exception e) {
-				Log.e(TAG,"Error parsing CSeq: "+(e.getMessage()!=null?e.getMessage():""));
+		public void send(RtspCodec.Writer writer, OutputStream output) throws IOException {
+			int seqid = mRequest != null ? RtspCodec.parseInt(mRequest.headers.get("cseq"), -1) : -1;
+			if (seqid < 0) {
+				Log.e(TAG,"Error parsing CSeq");
 			}
 
-			String response = 	"RTSP/1.0 "+status+"\r\n" +
-					"Server: "+SERVER_NAME+"\r\n" +
-					(seqid>=0?("Cseq: " + seqid + "\r\n"):"") +
-					"Content-Length: " + content.length() + "\r\n" +
-					attributes +
-					"\r\n" + 
-					content;
+			writer.start("RTSP/1.0 "+status).header("Server", SERVER_NAME);
+			if (seqid>=0) writer.header("Cseq", seqid);
+			writer.headers(attributes).content(content);
 
-			Log.d(TAG,response.replace("\r", ""));
+			Log.d(TAG,writer.toString().replace("\r", ""));
 
-			output.write(response.getBytes());
+			writer.writeTo(output);
 		}
 	}
 
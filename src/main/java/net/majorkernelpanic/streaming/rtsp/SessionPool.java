@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtsp;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import net.majorkernelpanic.streaming.Session;
+import net.majorkernelpanic.streaming.StreamingExecutors;
+import android.os.SystemClock;
+
+/**
+ * The stopped sessions of the clients that have left, kept configured for the next clients requesting
+ * the same URI. A session taken from the pool is started without parsing the URI, building the streams
+ * and testing the encoders again, only the camera and the encoders are opened again.
+ * The least recently used sessions are released when the pool is full, and the others after some time.
+ * <p>
+ * This pools stopped sessions, not warm encoder pipelines: keeping encoders running between clients
+ * would hold the camera and the few hardware encoders of the device while nobody receives the streams.
+ */
+class SessionPool {
+
+	private static class Entry {
+		final String key;
+		final Session session;
+		final boolean clientDestination;
+		final long time;
+
+		Entry(String key, Session session, boolean clientDestination) {
+			this.key = key;
+			this.session = session;
+			this.clientDestination = clientDestination;
+			this.time = SystemClock.elapsedRealtime();
+		}
+	}
+
+	// The least recently used session first
+	private final LinkedList<Entry> mEntries = new LinkedList<>();
+	private int mMaxIdle = 4;
+	private long mIdleTimeoutMs = 60000;
+	private ScheduledFuture<?> mEviction = null;
+
+	private final Runnable mEvict = new Runnable() {
+		@Override
+		public void run() {
+			synchronized (SessionPool.this) {
+				mEviction = null;
+			}
+			release(evict(SystemClock.elapsedRealtime()));
+		}
+	};
+
+	/**
+	 * @param maxIdle The maximal number of sessions kept, 0 to release them when their clients leave
+	 * @param idleTimeoutMs Time after which a session that nobody took back is released
+	 */
+	void setLimits(int maxIdle, long idleTimeoutMs) {
+		synchronized (this) {
+			mMaxIdle = Math.max(0, maxIdle);
+			mIdleTimeoutMs = Math.max(0, idleTimeoutMs);
+		}
+		release(evict(SystemClock.elapsedRealtime()));
+	}
+
+	/**
+	 * Takes the most recently pooled session of the URI out of the pool.
+	 * @param key The normalized URI, see {@link RtspServer#getDescriptionKey(String)}
+	 * @param origin The local address of the client
+	 * @param destination The address of the client, given to the session if it was streaming to its last client
+	 * @return The session, or null if there is none
+	 */
+	Session acquire(String key, String origin, String destination) {
+		Entry entry = null;
+		synchronized (this) {
+			for (int i = mEntries.size() - 1; i >= 0; i--) {
+				if (mEntries.get(i).key.equals(key)) {
+					entry = mEntries.remove(i);
+					break;
+				}
+			}
+		}
+		if (entry == null) return null;
+		entry.session.setOrigin(origin);
+		if (entry.clientDestination) entry.session.setDestination(destination);
+		return entry.session;
+	}
+
+	/**
+	 * Puts a stopped session in the pool, or releases it if the pool is disabled.
+	 * @param key The normalized URI requested by the client of the session
+	 * @param clientDestination True if the session was streaming to its client and not to an address given in the URI
+	 */
+	void put(String key, Session session, boolean clientDestination) {
+		final List<Entry> evicted;
+		synchronized (this) {
+			if (mMaxIdle == 0 || session.isStreaming()) {
+				evicted = new ArrayList<>(1);
+				evicted.add(new Entry(key, session, clientDestination));
+			} else {
+				mEntries.add(new Entry(key, session, clientDestination));
+				evicted = evict(SystemClock.elapsedRealtime());
+			}
+		}
+		release(evicted);
+	}
+
+	/** Releases all the sessions of the pool. */
+	void clear() {
+		final List<Entry> evicted;
+		synchronized (this) {
+			evicted = new ArrayList<>(mEntries);
+			mEntries.clear();
+		}
+		release(evicted);
+	}
+
+	/** Removes the sessions over the limits from the pool, and schedules the next eviction. */
+	private synchronized List<Entry> evict(long now) {
+		final List<Entry> evicted = new ArrayList<>();
+		while (mEntries.size() > mMaxIdle) {
+			evicted.add(mEntries.removeFirst());
+		}
+		while (mIdleTimeoutMs > 0 && !mEntries.isEmpty() && now - mEntries.getFirst().time >= mIdleTimeoutMs) {
+			evicted.add(mEntries.removeFirst());
+		}
+		if (mIdleTimeoutMs > 0 && !mEntries.isEmpty() && mEviction == null) {
+			mEviction = StreamingExecutors.getExecutor().schedule(mEvict,
+					mEntries.getFirst().time + mIdleTimeoutMs - now, TimeUnit.MILLISECONDS);
+		}
+		return evicted;
+	}
+
+	private static void release(List<Entry> entries) {
+		for (Entry entry : entries) {
+			entry.session.release();
+		}
+	}
+
+}
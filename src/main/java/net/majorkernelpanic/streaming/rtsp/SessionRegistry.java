@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtsp;
+
+import java.net.InetAddress;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import net.majorkernelpanic.streaming.Session;
+import net.majorkernelpanic.streaming.StreamingExecutors;
+import net.majorkernelpanic.streaming.rtp.RtpSocket;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * The RTSP sessions of the clients connected to the {@link RtspServer}, by session id.
+ * A client that plays must show some activity within the timeout of its session, a RTSP request
+ * (GET_PARAMETER or OPTIONS as a keep-alive) or a RTCP packet, or else it is disconnected and its
+ * streams stopped, as if it had sent a TEARDOWN. This reclaims the encoders of the clients that
+ * vanished without closing their connection.
+ * <p>
+ * The registry also admits the clients: the bit rate of the streams of each client receiving streams
+ * is reserved, a new client is only admitted if its bit rate fits in what the others leave.
+ */
+class SessionRegistry {
+
+	private static final String TAG = SessionRegistry.class.getSimpleName();
+
+	/** A client connected to the server. */
+	interface Client {
+
+		/** Returns the session whose streams the client receives, or null. */
+		Session getSession();
+
+		/** Returns true if the client is playing, only such clients expire. */
+		boolean isPlaying();
+
+		/** Returns the time of the last activity of the client, in the {@link SystemClock#elapsedRealtime()} base. */
+		long getLastActivity();
+
+		/** Disconnects the client, its session is stopped by its own thread. */
+		void expire();
+
+	}
+
+	/** Results of {@link #admit(String, long, long, int)}. */
+	static final int ADMITTED = 0, NO_SESSION = 1, NO_BANDWIDTH = 2;
+
+	private static final SecureRandom sRandom = new SecureRandom();
+
+	private final ConcurrentHashMap<String, Client> mClients = new ConcurrentHashMap<>();
+	private volatile int mTimeout = 60;
+	private ScheduledFuture<?> mReaper = null;
+
+	// Bit rate reserved by each admitted client, by session id
+	private final HashMap<String, Long> mReservations = new HashMap<>();
+	// Address of each admitted client whose packets are paced, by session id
+	private final HashMap<String, InetAddress> mPaced = new HashMap<>();
+
+	private final Runnable mReap = new Runnable() {
+		@Override
+		public void run() {
+			final long now = SystemClock.elapsedRealtime();
+			final long timeoutMs = mTimeout * 1000L;
+			for (Map.Entry<String, Client> entry : mClients.entrySet()) {
+				final Client client = entry.getValue();
+				if (timeoutMs > 0 && client.isPlaying() && now - client.getLastActivity() > timeoutMs) {
+					Log.i(TAG, "Session "+entry.getKey()+" timed out");
+					client.expire();
+				}
+			}
+		}
+	};
+
+	/**
+	 * Sets the timeout of the sessions, announced to the clients in the <code>Session</code> header.
+	 * @param seconds The timeout in seconds, 60 by default, 0 for no timeout
+	 */
+	synchronized void setTimeout(int seconds) {
+		mTimeout = Math.max(0, seconds);
+		if (mReaper != null) {
+			mReaper.cancel(false);
+			mReaper = null;
+		}
+		schedule();
+	}
+
+	int getTimeout() {
+		return mTimeout;
+	}
+
+	/** Registers a client and returns the id of its session. */
+	String register(Client client) {
+		String id;
+		do {
+			id = String.format(Locale.US, "%016X", sRandom.nextLong());
+		} while (mClients.putIfAbsent(id, client) != null);
+		synchronized (this) {
+			schedule();
+		}
+		return id;
+	}
+
+	void unregister(String id) {
+		mClients.remove(id);
+		synchronized (this) {
+			release(id);
+			if (mClients.isEmpty() && mReaper != null) {
+				mReaper.cancel(false);
+				mReaper = null;
+			}
+		}
+	}
+
+	/**
+	 * Reserves the bit rate of the streams of a client if the clients stay within the limits.
+	 * A client already admitted replaces its reservation.
+	 * @param budget The total bit rate of the streams of the clients, 0 for no limit
+	 * @param maxSessions The maximal number of clients receiving streams, 0 for no limit
+	 * @return {@link #ADMITTED}, or why the client can't be admitted
+	 */
+	synchronized int admit(String id, long bitrate, long budget, int maxSessions) {
+		if (isFull(id, maxSessions)) return NO_SESSION;
+		if (bitrate > getAvailableBitrate(id, budget)) return NO_BANDWIDTH;
+		mReservations.put(id, bitrate);
+		return ADMITTED;
+	}
+
+	/** Frees the bit rate reserved by a client that stops receiving streams. */
+	synchronized void release(String id) {
+		mReservations.remove(id);
+		final InetAddress address = mPaced.remove(id);
+		// Clients behind the same NAT share the rate of their address
+		if (address != null && !mPaced.containsValue(address)) {
+			RtpSocket.setEgressRate(address, -1);
+		}
+	}
+
+	/**
+	 * Paces the packets sent to the address of an admitted client, see
+	 * {@link RtpSocket#setEgressRate(InetAddress, long)}. The rate is cleared when the last
+	 * client with this address is released.
+	 */
+	synchronized void setEgressRate(String id, InetAddress address, long bitsPerSecond) {
+		mPaced.put(id, address);
+		RtpSocket.setEgressRate(address, bitsPerSecond);
+	}
+
+	/** Returns true if a client that does not receive streams yet can't be admitted. */
+	synchronized boolean isFull(String id, int maxSessions) {
+		return maxSessions > 0 && !mReservations.containsKey(id) && mReservations.size() >= maxSessions;
+	}
+
+	/** Returns the bit rate that the other clients leave to a client, Long.MAX_VALUE without budget. */
+	synchronized long getAvailableBitrate(String id, long budget) {
+		if (budget <= 0) return Long.MAX_VALUE;
+		long reserved = 0;
+		for (Map.Entry<String, Long> entry : mReservations.entrySet()) {
+			if (!entry.getKey().equals(id)) reserved += entry.getValue();
+		}
+		return budget - reserved;
+	}
+
+	/** Returns the total bit rate reserved by the admitted clients. */
+	synchronized long getReservedBitrate() {
+		long reserved = 0;
+		for (long bitrate : mReservations.values()) reserved += bitrate;
+		return reserved;
+	}
+
+	/** Returns the value of the <code>Session</code> header of the responses to a client. */
+	String getSessionHeader(String id) {
+		final int timeout = mTimeout;
+		return timeout > 0 ? id+";timeout="+timeout : id;
+	}
+
+	/** Returns true if a client receives a stream. */
+	boolean isStreaming() {
+		for (Session session : getSessions().keySet()) {
+			if (session.isStreaming()) return true;
+		}
+		return false;
+	}
+
+	/** Returns the bandwidth consumed by the sessions of the clients in bits per second. */
+	long getBitrate() {
+		long bitrate = 0;
+		for (Session session : getSessions().keySet()) {
+			if (session.isStreaming()) bitrate += session.getBitrate();
+		}
+		return bitrate;
+	}
+
+	/** Stops the streams of all the clients. */
+	void stopAll() {
+		for (Session session : getSessions().keySet()) {
+			if (session.isStreaming()) session.stop();
+		}
+	}
+
+	/** The session shared by several clients is counted once. */
+	private Map<Session, Object> getSessions() {
+		final Map<Session, Object> sessions = new IdentityHashMap<>();
+		for (Client client : mClients.values()) {
+			final Session session = client.getSession();
+			if (session != null) sessions.put(session, null);
+		}
+		return sessions;
+	}
+
+	private void schedule() {
+		if (mReaper == null && mTimeout > 0 && !mClients.isEmpty()) {
+			// Checks the sessions a few times per timeout, a session is reclaimed at most a third of its timeout late
+			final long period = Math.max(1000, mTimeout * 1000L / 3);
+			mReaper = StreamingExecutors.getExecutor().scheduleWithFixedDelay(mReap, period, period, TimeUnit.MILLISECONDS);
+		}
+	}
+
+}
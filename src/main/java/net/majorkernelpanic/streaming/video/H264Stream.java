@@ -27,7 +27,9 @@ import net.majorkernelpanic.streaming.SessionBuilder;
 import net.majorkernelpanic.streaming.exceptions.ConfNotSupportedException;
 import net.majorkernelpanic.streaming.exceptions.StorageUnavailableException;
 import net.majorkernelpanic.streaming.hw.EncoderDebugger;
+import net.majorkernelpanic.streaming.hw.ParameterSets;
 import net.majorkernelpanic.streaming.mp4.MP4Config;
+import net.majorkernelpanic.streaming.rtp.AbstractPacketizer;
 import net.majorkernelpanic.streaming.rtp.H264Packetizer;
 import android.annotation.SuppressLint;
 import android.content.SharedPreferences.Editor;
@@ -51,7 +53,12 @@ public class H264Stream extends VideoStream {
 	private static final String TAG = H264Stream.class.getSimpleName();
 
 	private final Semaphore mLock = new Semaphore(0);
+	private final long mStartTimeNs;
 	private MP4Config mConfig;
+	// What was requested when the stream was last configured, start() doesn't test the encoder again
+	private VideoQuality mConfiguredQuality = null;
+	private int mConfiguredMode;
+	private VideoQuality[] mConfiguredSimulcastQualities;
 
 	/**
 	 * Constructs the H.264 stream.
@@ -71,6 +78,7 @@ public class H264Stream extends VideoStream {
 		mMimeType = "video/avc";
 		mCameraImageFormat = ImageFormat.NV21;
 		mVideoEncoder = MediaRecorder.VideoEncoder.H264;
+		mStartTimeNs = startTimeNs;
 		mPacketizer = new H264Packetizer(startTimeNs);
 	}
 
@@ -79,10 +87,14 @@ public class H264Stream extends VideoStream {
 	 */
 	public synchronized String getSessionDescription() throws IllegalStateException {
 		if (mConfig == null) throw new IllegalStateException("You need to call configure() first !");
-		return "m=video "+ getDestinationPorts()[0] +" RTP/AVP 96\r\n" +
+		return getSessionDescription(getDestinationPorts()[0], mConfig);
+	}
+
+	private static String getSessionDescription(int port, MP4Config config) {
+		return "m=video "+ port +" RTP/AVP 96\r\n" +
 		"a=rtpmap:96 H264/90000\r\n" +
-		"a=fmtp:96 packetization-mode=1;profile-level-id="+mConfig.getProfileLevel()+";sprop-parameter-sets="+mConfig.getB64SPS()+","+mConfig.getB64PPS()+";\r\n";
-	}	
+		"a=fmtp:96 packetization-mode=1;profile-level-id="+config.getProfileLevel()+";sprop-parameter-sets="+config.getB64SPS()+","+config.getB64PPS()+";\r\n";
+	}
 
 	/**
 	 * Starts the stream.
@@ -90,23 +102,68 @@ public class H264Stream extends VideoStream {
 	 */
 	public synchronized void start() throws IllegalStateException, IOException {
 		if (!isStreaming()) {
-			configure();
-			byte[] pps = Base64.decode(mConfig.getB64PPS(), Base64.NO_WRAP);
-			byte[] sps = Base64.decode(mConfig.getB64SPS(), Base64.NO_WRAP);
-			((H264Packetizer)mPacketizer).setStreamParameters(pps, sps);
+			if (isConfigurationCurrent()) {
+				// The encoder was already tested with these parameters, only the destination may have changed
+				updateDestination();
+			} else {
+				configure();
+			}
+			setPacketizerParameters((H264Packetizer)mPacketizer, mConfig);
 			super.start();
 		}
 	}
 
+	private void setPacketizerParameters(H264Packetizer packetizer, MP4Config config) {
+		byte[] pps = Base64.decode(config.getB64PPS(), Base64.NO_WRAP);
+		byte[] sps = Base64.decode(config.getB64SPS(), Base64.NO_WRAP);
+		packetizer.setStreamParameters(pps, sps);
+		packetizer.setIntraRefreshPeriod(KeyFrameRequester.getIntraRefreshPeriod(mQuality));
+		packetizer.setBFrames(useBFrames() ? mQuality.bFrames : 0, mQuality.framerate);
+		packetizer.setTemporalLayers(getTemporalLayers());
+	}
+
+	@Override
+	protected AbstractPacketizer createSimulcastPacketizer() {
+		return new H264Packetizer(mStartTimeNs);
+	}
+
+	@Override
+	protected String describeSimulcastLayer(SimulcastLayer layer) throws IOException {
+		final MP4Config config = testSurfaceEncoder(layer.getQuality());
+		setPacketizerParameters((H264Packetizer)layer.getPacketizer(), config);
+		return getSessionDescription(0, config);
+	}
+
 	/**
 	 * Configures the stream. You need to call this before calling {@link #getSessionDescription()} to apply
 	 * your configuration of the stream.
 	 */
 	public synchronized void configure() throws IllegalStateException, IOException {
+		mConfiguredQuality = null;
 		super.configure();
-		mMode = mRequestedMode;
+		mMode = mLowLatency ? MODE_MEDIACODEC_API_2 : mRequestedMode;
 		mQuality = mRequestedQuality.clone();
+		// Only the encoder fed with a surface is configured with B-frames or temporal layers,
+		// and only its input can be shared by the encoders of the simulcast layers
+		if (useSurfaceEncoder()) mMode = MODE_MEDIACODEC_API_2;
 		mConfig = testH264();
+		configureSimulcast();
+		mConfiguredQuality = mRequestedQuality.clone();
+		mConfiguredMode = mRequestedMode;
+		mConfiguredSimulcastQualities = mRequestedSimulcastQualities;
+	}
+
+	/** Returns true if nothing was requested since the stream was configured. */
+	private boolean isConfigurationCurrent() {
+		return isConfigured() && mRequestedQuality.equals(mConfiguredQuality)
+				&& mRequestedMode == mConfiguredMode
+				&& mRequestedLowLatency == mLowLatency
+				&& mRequestedOrientation == mOrientation
+				&& mRequestedSimulcastQualities == mConfiguredSimulcastQualities;
+	}
+
+	private boolean useSurfaceEncoder() {
+		return useBFrames() || getTemporalLayers() > 1 || hasSimulcast();
 	}
 	
 	/** 
@@ -123,7 +180,11 @@ public class H264Stream extends VideoStream {
 		createCamera();
 		updateCamera();
 		try {
-			if (mQuality.resX>=640) {
+			if (mMode == MODE_MEDIACODEC_API_2) {
+				// The parameter sets are read in the output format of the encoder, no need to debug it
+				return testSurfaceEncoder(mQuality);
+			}
+			if (mQuality.resX>=640 && !mLowLatency) {
 				// Using the MediaCodec API with the buffer method for high resolutions is too slow
 				mMode = MODE_MEDIARECORDER_API;
 			}
@@ -137,6 +198,25 @@ public class H264Stream extends VideoStream {
 		}
 	}
 
+	/**
+	 * Determines the sps and pps of the encoder fed with a surface for the given quality, they differ
+	 * from those of the encoder tested by the EncoderDebugger and give the profile-level-id of the SDP.
+	 * The stream is encoded by the same encoder, see {@link #getSurfaceEncoderName()}.
+	 */
+	private MP4Config testSurfaceEncoder(VideoQuality quality) throws IOException {
+		byte[] sps = null, pps = null;
+		for (byte[] nal : ParameterSets.get(mSettings, getSurfaceEncoderName(), createSurfaceMediaFormat(quality))) {
+			switch (nal[0] & 0x1F) {
+			case 7: sps = nal; break;
+			case 8: pps = nal; break;
+			}
+		}
+		if (sps == null || pps == null) {
+			throw new ConfNotSupportedException("The H.264 encoder did not output its parameter sets");
+		}
+		return new MP4Config(Base64.encodeToString(sps, Base64.NO_WRAP), Base64.encodeToString(pps, Base64.NO_WRAP));
+	}
+
 	// Should not be called by the UI thread
 	private MP4Config testMediaRecorderAPI() throws RuntimeException, IOException {
 		String key = PREF_PREFIX+"h264-mr-"+mRequestedQuality.framerate+","+mRequestedQuality.resX+","+mRequestedQuality.resY;
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.video;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+import net.majorkernelpanic.streaming.SessionBuilder;
+import net.majorkernelpanic.streaming.exceptions.ConfNotSupportedException;
+import net.majorkernelpanic.streaming.hw.ParameterSets;
+import net.majorkernelpanic.streaming.rtp.AbstractPacketizer;
+import net.majorkernelpanic.streaming.rtp.H265Packetizer;
+import android.graphics.ImageFormat;
+import android.hardware.Camera.CameraInfo;
+import android.service.textservice.SpellCheckerService.Session;
+import android.util.Base64;
+import android.util.Log;
+
+/**
+ * A class for streaming H.265 from the camera of an android device using RTP.
+ * You should use a {@link Session} instantiated with {@link SessionBuilder} instead of using this class directly.
+ * Call {@link #setDestinationAddress(InetAddress)}, {@link #setDestinationPorts(int)} and {@link #setVideoQuality(VideoQuality)}
+ * to configure the stream. You can then call {@link #start()} to start the RTP stream.
+ * Call {@link #stop()} to stop the stream.
+ * H.265 can only be encoded with the MediaCodec API, the stream always uses {@link #MODE_MEDIACODEC_API_2}.
+ */
+public class H265Stream extends VideoStream {
+	private static final boolean DEBUG = false;	// set false on production
+	private static final String TAG = H265Stream.class.getSimpleName();
+
+	private static final String MIME_HEVC = "video/hevc";
+
+	private byte[] mVPS, mSPS, mPPS;
+
+	/**
+	 * Constructs the H.265 stream.
+	 * Uses CAMERA_FACING_BACK by default.
+	 */
+	public H265Stream(final long startTimeNs) {
+		this(startTimeNs, CameraInfo.CAMERA_FACING_BACK);
+	}
+
+	/**
+	 * Constructs the H.265 stream.
+	 * @param cameraId Can be either CameraInfo.CAMERA_FACING_BACK or CameraInfo.CAMERA_FACING_FRONT
+	 */
+	public H265Stream(final long startTimeNs, int cameraId) {
+		super(startTimeNs, cameraId);
+		mMimeType = MIME_HEVC;
+		mCameraImageFormat = ImageFormat.NV21;
+		mPacketizer = new H265Packetizer(startTimeNs);
+	}
+
+	/**
+	 * Returns a description of the stream using SDP. It can then be included in an SDP file.
+	 */
+	public synchronized String getSessionDescription() throws IllegalStateException {
+		if (mSPS == null) throw new IllegalStateException("You need to call configure() first !");
+		return getSessionDescription(getDestinationPorts()[0], mVPS, mSPS, mPPS);
+	}
+
+	private static String getSessionDescription(int port, byte[] vps, byte[] sps, byte[] pps) {
+		return "m=video "+ port +" RTP/AVP 96\r\n" +
+		"a=rtpmap:96 H265/90000\r\n" +
+		"a=fmtp:96 sprop-vps="+toBase64(vps)+";sprop-sps="+toBase64(sps)+";sprop-pps="+toBase64(pps)+"\r\n";
+	}
+
+	/**
+	 * Starts the stream.
+	 * This will also open the camera and display the preview if {@link #startPreview()} has not already been called.
+	 */
+	public synchronized void start() throws IllegalStateException, IOException {
+		if (!isStreaming()) {
+			configure();
+			((H265Packetizer)mPacketizer).setStreamParameters(mVPS, mSPS, mPPS);
+			((H265Packetizer)mPacketizer).setTemporalLayers(getTemporalLayers());
+			super.start();
+		}
+	}
+
+	/**
+	 * Configures the stream. You need to call this before calling {@link #getSessionDescription()} to apply
+	 * your configuration of the stream.
+	 */
+	public synchronized void configure() throws IllegalStateException, IOException {
+		super.configure();
+		mMode = MODE_MEDIACODEC_API_2;
+		mQuality = mRequestedQuality.clone();
+		final byte[][] parameterSets = testH265(mQuality);
+		mVPS = parameterSets[0];
+		mSPS = parameterSets[1];
+		mPPS = parameterSets[2];
+		configureSimulcast();
+	}
+
+	@Override
+	protected AbstractPacketizer createSimulcastPacketizer() {
+		return new H265Packetizer(getStartTimeNs());
+	}
+
+	@Override
+	protected String describeSimulcastLayer(SimulcastLayer layer) throws IOException {
+		final byte[][] parameterSets = testH265(layer.getQuality());
+		final H265Packetizer packetizer = (H265Packetizer)layer.getPacketizer();
+		packetizer.setStreamParameters(parameterSets[0], parameterSets[1], parameterSets[2]);
+		packetizer.setTemporalLayers(getTemporalLayers());
+		return getSessionDescription(0, parameterSets[0], parameterSets[1], parameterSets[2]);
+	}
+
+	/**
+	 * Tests if streaming with the given configuration (bit rate, frame rate, resolution) is possible
+	 * and determines the vps, sps and pps. Should not be called by the UI thread.
+	 **/
+	private byte[][] testH265(VideoQuality quality) throws IOException {
+		// The parameter sets of the encoder fed with a surface, they declare the temporal sub-layers if any
+		byte[] vps = null, sps = null, pps = null;
+		for (byte[] nal : ParameterSets.get(mSettings, getSurfaceEncoderName(), createSurfaceMediaFormat(quality))) {
+			if (nal.length < 2) continue;
+			switch ((nal[0] >> 1) & 0x3F) {
+			case 32: vps = nal; break;
+			case 33: sps = nal; break;
+			case 34: pps = nal; break;
+			}
+		}
+		if (vps == null || sps == null || pps == null) {
+			throw new ConfNotSupportedException("The H.265 encoder did not output its parameter sets");
+		}
+		if (DEBUG) Log.i(TAG, "H265 Test succeded...");
+		return new byte[][] {vps, sps, pps};
+	}
+
+	private static String toBase64(byte[] nal) {
+		return Base64.encodeToString(nal, 0, nal.length, Base64.NO_WRAP);
+	}
+
+}
@@ -40,4 +40,10 @@ public interface IVideoStream extends IMediaStream {
 	void setOrientation(final int orientation);
 
 	int getOrientation();
+
+	/**
+	 * Asks the encoder for a key frame, requests are rate limited.
+	 * Does nothing if the stream is not encoded with the MediaCodec API.
+	 */
+	void requestKeyFrame();
 }
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.video;
+
+import net.majorkernelpanic.streaming.rtcp.SenderReport;
+import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Asks a video encoder for key frames on demand: when a receiver sends a PLI or a FIR,
+ * when a client starts playing the stream, or when the application calls {@link #request()}.
+ * Requests are coalesced, the encoder is asked for at most one key frame every
+ * {@link #MIN_REQUEST_INTERVAL_MS} ms, a request arriving sooner is deferred to the end of that interval.
+ * Key frames can only be requested since Android 4.4, before the requests are ignored and the
+ * encoders send periodic key frames, see {@link #isSupported()}.
+ */
+public class KeyFrameRequester implements SenderReport.KeyFrameRequestListener {
+
+	private static final String TAG = KeyFrameRequester.class.getSimpleName();
+
+	/** Minimal interval between two key frames requested to the encoder. */
+	public static final long MIN_REQUEST_INTERVAL_MS = 500;
+
+	/** Interval between key frames in seconds when they can't be requested. */
+	public static final int PERIODIC_KEY_FRAME_INTERVAL = 1;
+
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	private MediaCodec mMediaCodec;
+	private long mLastRequest = 0;
+	private boolean mPending = false;
+
+	private final Runnable mDeferredRequest = new Runnable() {
+		@Override
+		public void run() {
+			synchronized (KeyFrameRequester.this) {
+				mPending = false;
+			}
+			request();
+		}
+	};
+
+	/** Returns true if the encoders can be asked for a key frame, which needs Android 4.4. */
+	public static boolean isSupported() {
+		return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+	}
+
+	/**
+	 * Returns the value of MediaFormat.KEY_I_FRAME_INTERVAL for the given interval between key frames.
+	 * @param seconds The interval in seconds, 0 to only send a key frame when one is requested,
+	 * or every {@link #PERIODIC_KEY_FRAME_INTERVAL} seconds when key frames can't be requested
+	 */
+	public static int getIFrameInterval(int seconds) {
+		if (seconds > 0) return seconds;
+		// Without on demand key frames, a receiver that joins or loses a packet would wait for the next one
+		if (!isSupported()) return PERIODIC_KEY_FRAME_INTERVAL;
+		// Since Android 7.1, a negative value means that only the first frame is a key frame
+		return Build.VERSION.SDK_INT >= 25 ? -1 : 3600;
+	}
+
+	/**
+	 * Returns the intra refresh period that the encoder will use for the given quality,
+	 * 0 if intra refresh is disabled or not supported by this version of Android.
+	 */
+	public static int getIntraRefreshPeriod(VideoQuality quality) {
+		return Build.VERSION.SDK_INT >= 24 ? Math.max(0, quality.intraRefreshPeriod) : 0;
+	}
+
+	/**
+	 * Sets the interval between key frames of an encoder, or its intra refresh period
+	 * in which case there are no periodic key frames.
+	 */
+	@SuppressLint("InlinedApi")
+	public static void setKeyFrameFormat(MediaFormat format, VideoQuality quality) {
+		final int period = getIntraRefreshPeriod(quality);
+		if (period > 0) {
+			format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, getIFrameInterval(0));
+			format.setInteger(MediaFormat.KEY_INTRA_REFRESH_PERIOD, period);
+		} else {
+			format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, getIFrameInterval(quality.keyFrameInterval));
+		}
+	}
+
+	/**
+	 * Sets the encoder to which the key frames are requested, null once it is released.
+	 */
+	public synchronized void setMediaCodec(@Nullable MediaCodec codec) {
+		mMediaCodec = codec;
+		// A new encoder starts with a key frame
+		mLastRequest = SystemClock.elapsedRealtime();
+		if (codec == null && mPending) {
+			mHandler.removeCallbacks(mDeferredRequest);
+			mPending = false;
+		}
+	}
+
+	/**
+	 * Asks the encoder for a key frame as soon as possible, does nothing before Android 4.4.
+	 */
+	public void request() {
+		if (!isSupported()) return;
+		final MediaCodec codec;
+		synchronized (this) {
+			codec = mMediaCodec;
+			if (codec == null || mPending) return;
+			final long wait = mLastRequest + MIN_REQUEST_INTERVAL_MS - SystemClock.elapsedRealtime();
+			if (wait > 0) {
+				mPending = true;
+				mHandler.postDelayed(mDeferredRequest, wait);
+				return;
+			}
+			mLastRequest = SystemClock.elapsedRealtime();
+		}
+		requestSyncFrame(codec);
+	}
+
+	@TargetApi(Build.VERSION_CODES.KITKAT)
+	private static void requestSyncFrame(MediaCodec codec) {
+		final Bundle params = new Bundle();
+		params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+		try {
+			codec.setParameters(params);
+		} catch (IllegalStateException e) {
+			// The encoder is being released
+			Log.w(TAG, e);
+		}
+	}
+
+	@Override
+	public void onKeyFrameRequest() {
+		request();
+	}
+
+}
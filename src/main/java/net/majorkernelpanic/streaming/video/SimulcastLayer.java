@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.video;
+
+import net.majorkernelpanic.streaming.rtp.AbstractPacketizer;
+import net.majorkernelpanic.streaming.rtp.RtpSocket;
+import android.media.MediaCodec;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+
+/**
+ * An additional encoding of the preview of a {@link VideoStream}, see {@link VideoStream#setSimulcastQualities(VideoQuality...)}.
+ * The layer has its own encoder, fed with the same frames as the encoder of the stream, and its
+ * own packetizer and SSRC. Its packets are only sent to the receivers added with
+ * {@link RtpSocket#addDestination(java.net.InetAddress, int, int)} on the socket of its packetizer.
+ */
+public class SimulcastLayer {
+
+	@NonNull
+	final AbstractPacketizer mPacketizer;
+	final KeyFrameRequester mKeyFrameRequester = new KeyFrameRequester();
+	@NonNull
+	VideoQuality mQuality;
+	String mSessionDescription = null;
+	MediaCodec mMediaCodec = null;
+	Surface mSurface = null;
+
+	SimulcastLayer(@NonNull AbstractPacketizer packetizer, @NonNull VideoQuality quality) {
+		mPacketizer = packetizer;
+		mQuality = quality;
+	}
+
+	/** Returns the quality of the encoding, its frame rate is the one of the stream. */
+	@NonNull
+	public VideoQuality getQuality() {
+		return mQuality;
+	}
+
+	@NonNull
+	public AbstractPacketizer getPacketizer() {
+		return mPacketizer;
+	}
+
+	public RtpSocket getRtpSocket() {
+		return mPacketizer.getRtpSocket();
+	}
+
+	/**
+	 * Returns the media description of the layer, its port is 0 since the layer has no destination of its own.
+	 * @throws IllegalStateException Thrown when the stream was not configured.
+	 */
+	public String getSessionDescription() throws IllegalStateException {
+		if (mSessionDescription == null) throw new IllegalStateException("You need to call configure() first !");
+		return mSessionDescription;
+	}
+
+	/** Asks the encoder of the layer for a key frame, requests are rate limited. */
+	public void requestKeyFrame() {
+		mKeyFrameRequester.request();
+	}
+
+	public long getBitrate() {
+		return mMediaCodec == null ? 0 : mPacketizer.getRtpSocket().getBitrate();
+	}
+
+}
@@ -69,13 +69,41 @@ public class VideoQuality implements Cloneable {
 	public int bitrate = 0;
 	public int resX = 0;
 	public int resY = 0;
+	/**
+	 * Interval between two key frames in seconds. With 0 the encoder only sends a key frame
+	 * when a receiver asks for one, which avoids the bit rate spikes of periodic key frames.
+	 * Before Android 4.4 key frames can't be requested, 0 then means every second.
+	 */
+	public int keyFrameInterval = 1;
+	/**
+	 * Number of frames over which the encoder refreshes the whole picture with intra coded
+	 * macroblocks, 0 to disable. When enabled on Android 7.0 and later, the encoder no longer
+	 * sends periodic key frames, which flattens the bit rate.
+	 */
+	public int intraRefreshPeriod = 0;
+	/**
+	 * Maximal number of consecutive B-frames of a H.264 stream, 0 to disable them.
+	 * B-frames need the High profile, they are only used on Android 10 and later
+	 * with the MediaCodec API, and not in low latency mode.
+	 */
+	public int bFrames = 0;
+	/**
+	 * Number of hierarchical-P temporal layers, from 1 (no layers) to 3. The upper layers
+	 * are dropped when the network is congested, halving the frame rate for each layer.
+	 * Only used on Android 10 and later with the MediaCodec API, B-frames are then disabled.
+	 */
+	public int temporalLayers = 1;
 
 	public boolean equals(VideoQuality quality) {
 		if (quality==null) return false;
 		return (quality.resX == this.resX 			&&
 				quality.resY == this.resY 			&&
 				quality.framerate == this.framerate	&&
-				quality.bitrate == this.bitrate);
+				quality.bitrate == this.bitrate		&&
+				quality.keyFrameInterval == this.keyFrameInterval	&&
+				quality.intraRefreshPeriod == this.intraRefreshPeriod	&&
+				quality.bFrames == this.bFrames	&&
+				quality.temporalLayers == this.temporalLayers);
 	}
 
 	@NonNull
@@ -90,6 +118,10 @@ public class VideoQuality implements Cloneable {
 		result.resY = resY;
 		result.framerate = framerate;
 		result.bitrate = bitrate;
+		result.keyFrameInterval = keyFrameInterval;
+		result.intraRefreshPeriod = intraRefreshPeriod;
+		result.bFrames = bFrames;
+		result.temporalLayers = temporalLayers;
 		return result;
 	}
 
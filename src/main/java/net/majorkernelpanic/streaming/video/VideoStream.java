@@ -23,6 +23,9 @@ import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import net.majorkernelpanic.streaming.MediaStream;
@@ -33,7 +36,10 @@ import net.majorkernelpanic.streaming.exceptions.InvalidSurfaceException;
 import net.majorkernelpanic.streaming.gl.SurfaceView;
 import net.majorkernelpanic.streaming.hw.EncoderDebugger;
 import net.majorkernelpanic.streaming.hw.NV21Convertor;
+import net.majorkernelpanic.streaming.hw.ParameterSets;
+import net.majorkernelpanic.streaming.rtp.AbstractPacketizer;
 import net.majorkernelpanic.streaming.rtp.MediaCodecInputStream;
+import net.majorkernelpanic.streaming.rtp.RtpSocket;
 import android.annotation.SuppressLint;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
@@ -44,6 +50,8 @@ import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.media.MediaRecorder;
+import android.os.Build;
+import android.os.Bundle;
 import android.os.Looper;
 import android.os.ParcelFileDescriptor;
 import android.util.Log;
@@ -85,6 +93,25 @@ public abstract class VideoStream extends MediaStream implements ILocalVideoStre
 	protected int mEncoderColorFormat;
 	protected int mCameraImageFormat;
 	protected int mMaxFps = 0;	
+	protected boolean mRequestedLowLatency = false, mLowLatency = false;
+	protected final KeyFrameRequester mKeyFrameRequester = new KeyFrameRequester();
+	protected VideoQuality[] mRequestedSimulcastQualities = new VideoQuality[0];
+	protected final List<SimulcastLayer> mSimulcastLayers = new ArrayList<>();
+
+	/**
+	 * Size of the slices in low latency mode, a slice then fits in a single RTP packet.
+	 * The H.264 packetizer only sends a NAL unit alone in a packet up to 2 bytes less than
+	 * the payload, the size of a FU header.
+	 */
+	protected static final int LOW_LATENCY_SLICE_SIZE = RtpSocket.MTU-28-RtpSocket.RTP_HEADER_LENGTH-2;
+
+	/** Vendor parameters known to bound the size of the slices in bytes. */
+	private static final String[] SLICE_SIZE_PARAMETERS = {
+		"vendor.qti-ext-enc-slice.spacing",
+	};
+
+	/** Maximal number of temporal layers, the frame rate can then be divided by up to 4. */
+	protected static final int MAX_TEMPORAL_LAYERS = 3;
 
 	/** 
 	 * Don't use this class directly.
@@ -278,6 +305,29 @@ public abstract class VideoStream extends MediaStream implements ILocalVideoStre
 		mSettings = prefs;
 	}
 
+	/**
+	 * Asks the encoder for a key frame, for example when a new client joins the stream.
+	 * Requests are coalesced, see {@link KeyFrameRequester}.
+	 */
+	public void requestKeyFrame() {
+		mKeyFrameRequester.request();
+	}
+
+	/**
+	 * Enables or disables the low latency mode, in which the encoder is asked to cut the frames
+	 * in slices that fit in a RTP packet and to output each slice as soon as it is encoded.
+	 * Each slice is then sent without waiting for the rest of the frame, and a lost packet only
+	 * affects one slice. The stream must be encoded with {@link #MODE_MEDIACODEC_API_2}.
+	 * Changes will take effect next time you call {@link #configure()}.
+	 */
+	public void setLowLatency(boolean enabled) {
+		mRequestedLowLatency = enabled;
+	}
+
+	public boolean isLowLatency() {
+		return mLowLatency;
+	}
+
 	/**
 	 * Configures the stream. You need to call this before calling {@link #getSessionDescription()} 
 	 * to apply your configuration of the stream.
@@ -285,6 +335,7 @@ public abstract class VideoStream extends MediaStream implements ILocalVideoStre
 	public synchronized void configure() throws IllegalStateException, IOException {
 		super.configure();
 		mOrientation = mRequestedOrientation;
+		mLowLatency = mRequestedLowLatency;
 	}	
 	
 	/**
@@ -300,11 +351,13 @@ public abstract class VideoStream extends MediaStream implements ILocalVideoStre
 
 	/** Stops the stream. */
 	public synchronized void stop() {
+		mKeyFrameRequester.setMediaCodec(null);
 		if (mCamera != null) {
 			if (mMode == MODE_MEDIACODEC_API) {
 				mCamera.setPreviewCallbackWithBuffer(null);
 			}
 			if (mMode == MODE_MEDIACODEC_API_2) {
+				stopSimulcast();
 				((SurfaceView)mSurfaceView).removeMediaCodecSurface();
 			}
 			super.stop();
@@ -465,9 +518,11 @@ public abstract class VideoStream extends MediaStream implements ILocalVideoStre
 		mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, mQuality.bitrate);
 		mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, mQuality.framerate);	
 		mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT,debugger.getEncoderColorFormat());
-		mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+		KeyFrameRequester.setKeyFrameFormat(mediaFormat, mQuality);
 		mMediaCodec.configure(mediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
 		mMediaCodec.start();
+		mKeyFrameRequester.setMediaCodec(mMediaCodec);
+		mPacketizer.getRtpSocket().setKeyFrameRequestListener(mKeyFrameRequester);
 
 		Camera.PreviewCallback callback = new Camera.PreviewCallback() {
 			long now = System.nanoTime()/1000, oldnow = now, i=0;
@@ -520,22 +575,227 @@ public abstract class VideoStream extends MediaStream implements ILocalVideoStre
 		// Estimates the frame rate of the camera
 		measureFramerate();
 
-		EncoderDebugger debugger = EncoderDebugger.debug(mSettings, mQuality.resX, mQuality.resY);
-
-		mMediaCodec = MediaCodec.createByCodecName(debugger.getEncoderName());
-		MediaFormat mediaFormat = MediaFormat.createVideoFormat("video/avc", mQuality.resX, mQuality.resY);
-		mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, mQuality.bitrate);
-		mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, mQuality.framerate);	
-		mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
-		mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+		// The encoder whose parameter sets were given in the session description
+		mMediaCodec = MediaCodec.createByCodecName(getSurfaceEncoderName());
+		MediaFormat mediaFormat = createSurfaceMediaFormat();
+		final MediaCodecInputStream inputStream = MediaCodecInputStream.newSurfaceInstance(mMediaCodec);
 		mMediaCodec.configure(mediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+		if (mLowLatency) setSliceSize(mMediaCodec);
 		Surface surface = mMediaCodec.createInputSurface();
 		((SurfaceView)mSurfaceView).addMediaCodecSurface(surface);
 		mMediaCodec.start();
+		mKeyFrameRequester.setMediaCodec(mMediaCodec);
+		mPacketizer.getRtpSocket().setKeyFrameRequestListener(mKeyFrameRequester);
 
 		// The packetizer encapsulates the bit stream in an RTP stream and send it over the network
-		mPacketizer.setInputStream(MediaCodecInputStream.newInstance(mMediaCodec));
+		mPacketizer.setInputStream(inputStream);
 		mPacketizer.start();
+
+		startSimulcast();
+	}
+
+	/**
+	 * Returns the name of the encoder fed with a surface, the parameter sets of the session description
+	 * must be determined with the same encoder, see {@link ParameterSets#get(SharedPreferences, String, MediaFormat)}.
+	 */
+	protected String getSurfaceEncoderName() {
+		return ParameterSets.getEncoderName(mMimeType);
+	}
+
+	/**
+	 * Returns the format of the encoder fed with a surface, used by {@link #encodeWithMediaCodecMethod2()}.
+	 */
+	protected MediaFormat createSurfaceMediaFormat() {
+		return createSurfaceMediaFormat(mQuality);
+	}
+
+	/**
+	 * Returns the format of an encoder fed with a surface, for the stream or one of its simulcast layers.
+	 */
+	@SuppressLint("InlinedApi")
+	protected MediaFormat createSurfaceMediaFormat(VideoQuality quality) {
+		MediaFormat mediaFormat = MediaFormat.createVideoFormat(mMimeType, quality.resX, quality.resY);
+		mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, quality.bitrate);
+		mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, quality.framerate);	
+		mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+		KeyFrameRequester.setKeyFrameFormat(mediaFormat, quality);
+		if (mLowLatency) setLowLatencyFormat(mediaFormat);
+		if (getTemporalLayers() > 1) {
+			mediaFormat.setString(MediaFormat.KEY_TEMPORAL_LAYERING, "android.generic."+getTemporalLayers());
+		}
+		if (useBFrames()) {
+			mediaFormat.setInteger(MediaFormat.KEY_PROFILE, MediaCodecInfo.CodecProfileLevel.AVCProfileHigh);
+			mediaFormat.setInteger(MediaFormat.KEY_MAX_B_FRAMES, quality.bFrames);
+		}
+		return mediaFormat;
+	}
+
+	/**
+	 * Sets the qualities of additional encodings of the preview (simulcast), so that the stream can be
+	 * offered to receivers with less bandwidth without lowering the quality of the stream for the others.
+	 * Only the resolution and the bit rate of the qualities are used, the other parameters are those of
+	 * the stream. Each encoding has its own encoder, packetizer and SSRC, see {@link SimulcastLayer}.
+	 * Simulcast forces the MediaCodec API with a surface and is only supported by H.264 and H.265.
+	 * Changes will take effect next time you call {@link #configure()}.
+	 * @param qualities The qualities of the additional encodings, none to disable simulcast
+	 */
+	public void setSimulcastQualities(@NonNull VideoQuality... qualities) {
+		mRequestedSimulcastQualities = new VideoQuality[qualities.length];
+		for (int i=0;i<qualities.length;i++) {
+			mRequestedSimulcastQualities[i] = qualities[i].clone();
+		}
+	}
+
+	/** Returns the additional encodings of the stream, available once it is configured. */
+	@NonNull
+	public List<SimulcastLayer> getSimulcastLayers() {
+		return Collections.unmodifiableList(mSimulcastLayers);
+	}
+
+	/**
+	 * Returns a new packetizer for a simulcast layer, or null if the stream does not support simulcast.
+	 */
+	protected AbstractPacketizer createSimulcastPacketizer() {
+		return null;
+	}
+
+	/**
+	 * Tests the encoder of a simulcast layer and returns the media description of the layer,
+	 * the stream parameters of its packetizer are set here.
+	 */
+	protected String describeSimulcastLayer(SimulcastLayer layer) throws IOException {
+		throw new UnsupportedOperationException("Simulcast is not supported by this stream");
+	}
+
+	/**
+	 * Creates or updates the simulcast layers requested with {@link #setSimulcastQualities(VideoQuality...)},
+	 * called by the subclasses at the end of {@link #configure()} once the quality of the stream is known.
+	 */
+	protected void configureSimulcast() throws IOException {
+		final int count = mMode == MODE_MEDIACODEC_API_2 ? mRequestedSimulcastQualities.length : 0;
+		while (mSimulcastLayers.size() > count) {
+			mSimulcastLayers.remove(mSimulcastLayers.size()-1).getRtpSocket().close();
+		}
+		for (int i=0;i<count;i++) {
+			final VideoQuality quality = mQuality.clone();
+			quality.resX = mRequestedSimulcastQualities[i].resX;
+			quality.resY = mRequestedSimulcastQualities[i].resY;
+			quality.bitrate = mRequestedSimulcastQualities[i].bitrate;
+			if (i == mSimulcastLayers.size()) {
+				final AbstractPacketizer packetizer = createSimulcastPacketizer();
+				if (packetizer == null) {
+					Log.w(TAG, "Simulcast is not supported by this stream");
+					return;
+				}
+				mSimulcastLayers.add(new SimulcastLayer(packetizer, quality));
+			}
+			final SimulcastLayer layer = mSimulcastLayers.get(i);
+			layer.mQuality = quality;
+			layer.mSessionDescription = describeSimulcastLayer(layer);
+		}
+	}
+
+	/** Returns true if the stream will be encoded at several qualities. */
+	protected boolean hasSimulcast() {
+		return mRequestedSimulcastQualities.length > 0;
+	}
+
+	/** Starts the encoders of the simulcast layers, they are fed by the same surface view as the stream. */
+	@SuppressLint("NewApi")
+	private void startSimulcast() throws IOException {
+		for (SimulcastLayer layer : mSimulcastLayers) {
+			layer.mMediaCodec = MediaCodec.createByCodecName(getSurfaceEncoderName());
+			final MediaCodecInputStream inputStream = MediaCodecInputStream.newSurfaceInstance(layer.mMediaCodec);
+			layer.mMediaCodec.configure(createSurfaceMediaFormat(layer.mQuality), null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+			layer.mSurface = layer.mMediaCodec.createInputSurface();
+			((SurfaceView)mSurfaceView).addMediaCodecSurface(layer.mSurface);
+			layer.mMediaCodec.start();
+			layer.mKeyFrameRequester.setMediaCodec(layer.mMediaCodec);
+			layer.getRtpSocket().setKeyFrameRequestListener(layer.mKeyFrameRequester);
+			layer.mPacketizer.setTimeToLive(mTTL);
+			layer.mPacketizer.setInputStream(inputStream);
+			layer.mPacketizer.start();
+		}
+	}
+
+	@SuppressLint("NewApi")
+	private void stopSimulcast() {
+		for (SimulcastLayer layer : mSimulcastLayers) {
+			if (layer.mMediaCodec == null) continue;
+			layer.mKeyFrameRequester.setMediaCodec(null);
+			((SurfaceView)mSurfaceView).removeMediaCodecSurface(layer.mSurface);
+			try {
+				layer.mPacketizer.stop();
+				layer.mMediaCodec.stop();
+				layer.mMediaCodec.release();
+			} catch (Exception e) {
+				Log.w(TAG, e);
+			}
+			layer.mMediaCodec = null;
+			layer.mSurface = null;
+		}
+	}
+
+	/**
+	 * Returns true if the H.264 encoder will be configured in High profile with B-frames,
+	 * see {@link VideoQuality#bFrames}.
+	 */
+	protected boolean useBFrames() {
+		return mQuality.bFrames > 0 && !mLowLatency && mMode != MODE_MEDIARECORDER_API
+				&& "video/avc".equals(mMimeType) && Build.VERSION.SDK_INT >= 29 && getTemporalLayers() == 1;
+	}
+
+	/**
+	 * Returns the number of temporal layers the encoder will be configured with,
+	 * see {@link VideoQuality#temporalLayers}.
+	 */
+	protected int getTemporalLayers() {
+		if (mQuality.temporalLayers <= 1 || mMode == MODE_MEDIARECORDER_API || Build.VERSION.SDK_INT < 29) return 1;
+		return Math.min(mQuality.temporalLayers, MAX_TEMPORAL_LAYERS);
+	}
+
+	/**
+	 * Asks the encoder to encode in real time and not to hold frames.
+	 */
+	@SuppressLint("InlinedApi")
+	private static void setLowLatencyFormat(MediaFormat format) {
+		if (Build.VERSION.SDK_INT >= 23) {
+			// Realtime priority
+			format.setInteger(MediaFormat.KEY_PRIORITY, 0);
+		}
+		if (Build.VERSION.SDK_INT >= 26) {
+			format.setInteger(MediaFormat.KEY_LATENCY, 1);
+		}
+		if (Build.VERSION.SDK_INT >= 30) {
+			format.setInteger(MediaFormat.KEY_LOW_LATENCY, 1);
+		}
+	}
+
+	/**
+	 * There is no standard key to bound the size of the slices, but encoders
+	 * list their vendor parameters since Android 12, we set the size of the slices
+	 * with those of {@link #SLICE_SIZE_PARAMETERS}. Other parameters may count
+	 * macroblocks instead of bytes, so encoders that don't have one of those
+	 * output whole frames, which are fragmented as usual.
+	 */
+	@SuppressLint("NewApi")
+	private static void setSliceSize(MediaCodec codec) {
+		if (Build.VERSION.SDK_INT < 31) return;
+		final Bundle params = new Bundle();
+		final List<String> supported = codec.getSupportedVendorParameters();
+		for (String name : SLICE_SIZE_PARAMETERS) {
+			if (supported.contains(name)) {
+				Log.d(TAG,"Slice size set with "+name);
+				params.putInt(name, LOW_LATENCY_SLICE_SIZE);
+			}
+		}
+		if (!params.isEmpty()) {
+			try {
+				codec.setParameters(params);
+			} catch (RuntimeException e) {
+				Log.w(TAG,"The encoder refused the size of the slices", e);
+			}
+		}
 	}
 
 	/**
@@ -0,0 +1,113 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2022 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class MediaFrameBusTest {
+
+	private static final byte[] CONFIG = {0, 0, 0, 1, 0x67, 0x42, 0, 0, 0, 1, 0x68, (byte) 0xCE};
+	private static final byte[] FRAME = {0, 0, 0, 1, 0x65, 1, 2, 3};
+
+	@Test
+	public void configPublishedBeforeTheSubscriptionIsReplayed() throws InterruptedException {
+		final MediaFrameBus bus = new MediaFrameBus(2, 8);
+		// The packetizer subscribes when the stream starts, the recorder later
+		final MediaFrameBus.Subscriber first = bus.subscribe(4, MediaFrameBus.DropPolicy.DROP_NEWEST);
+		publish(bus, CONFIG, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+		publish(bus, FRAME, MediaCodec.BUFFER_FLAG_KEY_FRAME);
+		final MediaFrameBus.Subscriber late = bus.subscribe(4, MediaFrameBus.DropPolicy.DROP_NEWEST);
+		publish(bus, FRAME, 0);
+
+		assertEquals(3, first.count());
+		assertFrame(late, CONFIG, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+		assertFrame(late, FRAME, 0);
+		assertNull(late.poll(0, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void newConfigReplacesTheReplayedOne() throws InterruptedException {
+		final MediaFrameBus bus = new MediaFrameBus(2, 8);
+		final byte[] config = {0, 0, 0, 1, 0x67, 0x64, 0, 0, 0, 1, 0x68, (byte) 0xEE};
+		publish(bus, CONFIG, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+		publish(bus, config, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+		final MediaFrameBus.Subscriber late = bus.subscribe(4, MediaFrameBus.DropPolicy.DROP_NEWEST);
+
+		assertFrame(late, config, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+		assertNull(late.poll(0, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void noConfigIsReplayedBeforeOneIsPublished() throws InterruptedException {
+		final MediaFrameBus bus = new MediaFrameBus(2, 8);
+		publish(bus, FRAME, MediaCodec.BUFFER_FLAG_KEY_FRAME);
+		final MediaFrameBus.Subscriber late = bus.subscribe(4, MediaFrameBus.DropPolicy.DROP_NEWEST);
+
+		assertNull(late.poll(0, TimeUnit.MILLISECONDS));
+		assertNull(bus.config());
+	}
+
+	@Test
+	public void replayedConfigIsReturnedToThePoolOnceReleased() throws InterruptedException {
+		final MediaFrameBus bus = new MediaFrameBus(2, 8);
+		publish(bus, CONFIG, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+		final SharedMediaData config = bus.config();
+		assertNotNull(config);
+		// The bus and the caller of config()
+		assertEquals(2, config.refCount());
+		config.release();
+
+		final MediaFrameBus.Subscriber late = bus.subscribe(4, MediaFrameBus.DropPolicy.DROP_NEWEST);
+		late.poll(0, TimeUnit.MILLISECONDS).release();
+		bus.release();
+		assertEquals(0, config.refCount());
+	}
+
+	private static void publish(MediaFrameBus bus, byte[] frame, int flags) {
+		final SharedMediaData data = bus.obtain();
+		assertNotNull(data);
+		data.set(ByteBuffer.wrap(frame), 0, frame.length, 0, flags);
+		bus.publish(data);
+	}
+
+	private static void assertFrame(MediaFrameBus.Subscriber subscriber, byte[] frame, int flags)
+		throws InterruptedException {
+
+		final SharedMediaData data = subscriber.poll(0, TimeUnit.MILLISECONDS);
+		assertNotNull(data);
+		try {
+			assertEquals(flags, data.flags());
+			final ByteBuffer view = data.view();
+			final byte[] bytes = new byte[view.remaining()];
+			view.get(bytes);
+			assertEquals(ByteBuffer.wrap(frame), ByteBuffer.wrap(bytes));
+		} finally {
+			data.release();
+		}
+	}
+}
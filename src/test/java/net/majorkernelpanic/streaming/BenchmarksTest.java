@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks of the test sources, they are skipped unless the tests are run with
+ * <code>./gradlew testDebugUnitTest --tests '*BenchmarksTest' -Dbenchmark=true</code>.
+ * The <code>benchmark.include</code> property selects the benchmarks with a regular expression.
+ */
+public class BenchmarksTest {
+
+	@Test
+	public void runBenchmarks() throws RunnerException {
+		Assume.assumeTrue("Run with -Dbenchmark=true", Boolean.getBoolean("benchmark"));
+		new Runner(new OptionsBuilder()
+				.include(System.getProperty("benchmark.include", "Benchmark\\."))
+				// In the JVM of the tests, a forked JVM would not have the classpath of the unit tests
+				.forks(0)
+				.build()).run();
+	}
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.dvr;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DvrRingTest {
+
+	private static final byte[] SPS = {0x67, 0x42, (byte) 0xC0, 0x1F, (byte) 0xDA, 0x01, 0x40, 0x16, (byte) 0xE8};
+	private static final byte[] PPS = {0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+
+	/** 30 fps */
+	private static final long FRAME_US = 33333;
+
+	private File mRingFile, mClip;
+	private DvrRing mRing;
+
+	@Before
+	public void setUp() throws IOException {
+		mRingFile = File.createTempFile("dvr", ".ring");
+		mClip = File.createTempFile("clip", ".mp4");
+		mClip.delete();
+		mRing = new DvrRing(mRingFile, 1 << 20, 10000000);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		mRing.close();
+		mRingFile.delete();
+		mClip.delete();
+	}
+
+	@Test
+	public void parameterSetsAreTakenFromKeyFramesWithoutCodecConfig() throws IOException {
+		mRing.setVideoFormat(640, 480);
+		for (int i = 0; i < 30; i++) {
+			final ByteBuffer frame = i % 10 == 0 ? annexB(SPS, PPS, nal(5, 100)) : annexB(nal(1, 100));
+			mRing.append(DvrRing.TRACK_VIDEO, frame, i * FRAME_US, i % 10 == 0 ? DvrRing.FLAG_KEY_FRAME : 0);
+		}
+
+		assertArrayEquals(annexB(SPS, PPS).array(), mRing.getVideoConfig());
+		assertTrue(mRing.exportClip(0, 30 * FRAME_US, mClip));
+		assertTrue(contains(read(mClip), "avcC"));
+		assertTrue(contains(read(mClip), "moof"));
+	}
+
+	@Test
+	public void codecConfigIsKeptOverInBandParameterSets() {
+		final byte[] config = annexB(SPS, PPS).array();
+		mRing.append(DvrRing.TRACK_VIDEO, ByteBuffer.wrap(config), 0, DvrRing.FLAG_CODEC_CONFIG);
+		mRing.append(DvrRing.TRACK_VIDEO, annexB(new byte[] {0x67, 0x64, 0x00, 0x28}, PPS, nal(5, 100)), 0, DvrRing.FLAG_KEY_FRAME);
+
+		assertArrayEquals(config, mRing.getVideoConfig());
+	}
+
+	@Test
+	public void clipWithoutAnyTrackIsNotExported() throws IOException {
+		mRing.setVideoFormat(640, 480);
+		mRing.setAudioFormat(44100, 1);
+		// No codec config and no parameter sets in-band
+		for (int i = 0; i < 30; i++) {
+			mRing.append(DvrRing.TRACK_VIDEO, annexB(nal(i % 10 == 0 ? 5 : 1, 100)), i * FRAME_US, i % 10 == 0 ? DvrRing.FLAG_KEY_FRAME : 0);
+			mRing.append(DvrRing.TRACK_AUDIO, ByteBuffer.wrap(new byte[50]), i * FRAME_US, 0);
+		}
+
+		assertNull(mRing.getVideoConfig());
+		assertFalse(mRing.exportClip(0, 30 * FRAME_US, mClip));
+		assertFalse(mClip.exists());
+	}
+
+	private static byte[] nal(int type, int length) {
+		final byte[] nal = new byte[length];
+		for (int i = 1; i < length; i++) nal[i] = (byte) (0x80 | i);
+		nal[0] = (byte) (0x60 | type);
+		return nal;
+	}
+
+	private static ByteBuffer annexB(byte[]... nals) {
+		int length = 0;
+		for (byte[] nal : nals) length += 4 + nal.length;
+		final ByteBuffer buffer = ByteBuffer.allocate(length);
+		for (byte[] nal : nals) {
+			buffer.putInt(1);
+			buffer.put(nal);
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private static byte[] read(File file) throws IOException {
+		final RandomAccessFile input = new RandomAccessFile(file, "r");
+		try {
+			final byte[] data = new byte[(int) input.length()];
+			input.readFully(data);
+			return data;
+		} finally {
+			input.close();
+		}
+	}
+
+	private static boolean contains(byte[] data, String type) {
+		for (int i = 0; i + 4 <= data.length; i++) {
+			if (data[i] == type.charAt(0) && data[i + 1] == type.charAt(1)
+					&& data[i + 2] == type.charAt(2) && data[i + 3] == type.charAt(3)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.mp4;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FragmentedMP4WriterTest {
+
+	private static final byte[] SPS = {0x67, 0x42, (byte) 0xC0, 0x1F, (byte) 0xDA, 0x01, 0x40, 0x16, (byte) 0xE8};
+	private static final byte[] PPS = {0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+	private static final byte[] AAC_CONFIG = {0x12, 0x08};
+
+	/** 30 fps */
+	private static final long FRAME_US = 33333;
+
+	private File mFile;
+	private FragmentedMP4Writer mWriter;
+
+	@Before
+	public void setUp() throws IOException {
+		mFile = File.createTempFile("fragmented", ".mp4");
+		mWriter = new FragmentedMP4Writer(new FileOutputStream(mFile).getChannel());
+	}
+
+	@After
+	public void tearDown() {
+		mFile.delete();
+	}
+
+	@Test
+	public void fragmentsAreCutOnKeyFrames() throws IOException {
+		mWriter.addVideoTrack(640, 480);
+		mWriter.setFragmentDuration(1000000);
+		mWriter.writeVideoConfig(annexB(SPS, PPS));
+		// A key frame every 20 frames, the fragments are cut on the key frames after 1 s
+		for (int i = 0; i < 100; i++) {
+			mWriter.writeVideoSample(annexB(nal(i % 20 == 0 ? 5 : 1, 100)), i * FRAME_US, i % 20 == 0);
+		}
+		mWriter.close();
+
+		final List<Fragment> fragments = readFragments();
+		assertEquals(3, fragments.size());
+		assertEquals(40, fragments.get(0).video.size());
+		assertEquals(40, fragments.get(1).video.size());
+		assertEquals(20, fragments.get(2).video.size());
+		for (Fragment fragment : fragments) {
+			assertTrue(fragment.video.get(0).sync);
+		}
+		assertEquals(100, countVideoSamples(fragments));
+	}
+
+	@Test
+	public void samplesBeforeTheFirstKeyFrameAreDropped() throws IOException {
+		mWriter.addVideoTrack(640, 480);
+		mWriter.writeVideoConfig(annexB(SPS, PPS));
+		for (int i = 0; i < 10; i++) {
+			mWriter.writeVideoSample(annexB(nal(i == 5 ? 5 : 1, 100)), i * FRAME_US, i == 5);
+		}
+		mWriter.close();
+
+		final List<Fragment> fragments = readFragments();
+		assertEquals(1, fragments.size());
+		assertEquals(5, fragments.get(0).video.size());
+		assertTrue(fragments.get(0).video.get(0).sync);
+		assertFalse(fragments.get(0).video.get(1).sync);
+	}
+
+	@Test
+	public void fragmentIsCutWithoutKeyFrameAfterTheMaximumDuration() throws IOException {
+		mWriter.addVideoTrack(640, 480);
+		mWriter.setFragmentDuration(1000000);
+		mWriter.setMaxFragmentDuration(3000000);
+		mWriter.writeVideoConfig(annexB(SPS, PPS));
+		// A single key frame, as with an infinite GOP or intra refresh
+		for (int i = 0; i < 300; i++) {
+			mWriter.writeVideoSample(annexB(nal(i == 0 ? 5 : 1, 100)), i * FRAME_US, i == 0);
+		}
+		mWriter.close();
+
+		final List<Fragment> fragments = readFragments();
+		assertEquals(4, fragments.size());
+		assertTrue(fragments.get(0).video.get(0).sync);
+		for (int i = 1; i < fragments.size(); i++) {
+			assertFalse(fragments.get(i).video.get(0).sync);
+		}
+		for (Fragment fragment : fragments) {
+			assertTrue(fragment.video.size() <= 91);
+		}
+		assertEquals(300, countVideoSamples(fragments));
+	}
+
+	@Test
+	public void fragmentIsCutWithoutKeyFrameAfterTheMaximumSize() throws IOException {
+		mWriter.addVideoTrack(640, 480);
+		mWriter.setMaxFragmentSize(10000);
+		mWriter.writeVideoConfig(annexB(SPS, PPS));
+		for (int i = 0; i < 50; i++) {
+			mWriter.writeVideoSample(annexB(nal(i == 0 ? 5 : 1, 1000)), i * FRAME_US, i == 0);
+		}
+		mWriter.close();
+
+		final List<Fragment> fragments = readFragments();
+		assertEquals(5, fragments.size());
+		for (Fragment fragment : fragments) {
+			assertEquals(10, fragment.video.size());
+			assertEquals(10 * 1004, fragment.mdatSize);
+		}
+	}
+
+	@Test
+	public void audioIsAlignedOnTheFirstVideoSample() throws IOException {
+		mWriter.addVideoTrack(640, 480);
+		mWriter.addAudioTrack(44100, 1);
+		mWriter.writeVideoConfig(annexB(SPS, PPS));
+		mWriter.writeAudioConfig(ByteBuffer.wrap(AAC_CONFIG));
+		// Audio received before the first key frame is dropped
+		mWriter.writeAudioSample(ByteBuffer.wrap(new byte[50]), 0);
+		mWriter.writeVideoSample(annexB(nal(1, 100)), 0, false);
+		mWriter.writeVideoSample(annexB(nal(5, 100)), FRAME_US, true);
+		mWriter.writeAudioSample(ByteBuffer.wrap(new byte[50]), FRAME_US);
+		mWriter.writeAudioSample(ByteBuffer.wrap(new byte[60]), FRAME_US + 23219);
+		mWriter.writeVideoSample(annexB(nal(1, 100)), 2 * FRAME_US, false);
+		mWriter.close();
+
+		final List<Fragment> fragments = readFragments();
+		assertEquals(1, fragments.size());
+		final Fragment fragment = fragments.get(0);
+		assertEquals(2, fragment.video.size());
+		assertEquals(2, fragment.audio.size());
+		assertEquals(50, fragment.audio.get(0).size);
+		assertEquals(60, fragment.audio.get(1).size);
+		assertEquals(1024, fragment.audio.get(0).duration);
+		assertEquals(2 * 104 + 110, fragment.mdatSize);
+	}
+
+	@Test
+	public void parameterSetsAreWrittenInTheHeader() throws IOException {
+		mWriter.addVideoTrack(640, 480);
+		mWriter.writeVideoSample(annexB(SPS, PPS, nal(5, 100)), 0, true);
+		mWriter.close();
+
+		final byte[] file = readFile();
+		final int avcC = find(file, "avcC");
+		assertTrue(avcC > 0);
+		final int spsLength = ((file[avcC + 10] & 0xFF) << 8) | (file[avcC + 11] & 0xFF);
+		final byte[] sps = new byte[spsLength];
+		System.arraycopy(file, avcC + 12, sps, 0, spsLength);
+		assertArrayEquals(SPS, sps);
+
+		// The parameter sets are not repeated in the samples
+		final List<Fragment> fragments = readFragments();
+		assertEquals(1, fragments.size());
+		assertEquals(104, fragments.get(0).mdatSize);
+	}
+
+	private static int countVideoSamples(List<Fragment> fragments) {
+		int count = 0;
+		for (Fragment fragment : fragments) count += fragment.video.size();
+		return count;
+	}
+
+	private static byte[] nal(int type, int length) {
+		final byte[] nal = new byte[length];
+		for (int i = 1; i < length; i++) nal[i] = (byte) (0x80 | i);
+		nal[0] = (byte) (0x60 | type);
+		return nal;
+	}
+
+	private static ByteBuffer annexB(byte[]... nals) {
+		int length = 0;
+		for (byte[] nal : nals) length += 4 + nal.length;
+		final ByteBuffer buffer = ByteBuffer.allocate(length);
+		for (byte[] nal : nals) {
+			buffer.putInt(1);
+			buffer.put(nal);
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private byte[] readFile() throws IOException {
+		final RandomAccessFile file = new RandomAccessFile(mFile, "r");
+		try {
+			final byte[] data = new byte[(int) file.length()];
+			file.readFully(data);
+			return data;
+		} finally {
+			file.close();
+		}
+	}
+
+	private static int find(byte[] data, String type) {
+		for (int i = 0; i + 4 <= data.length; i++) {
+			if (data[i] == type.charAt(0) && data[i + 1] == type.charAt(1)
+					&& data[i + 2] == type.charAt(2) && data[i + 3] == type.charAt(3)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/** Parses the top level boxes, checks their order and returns the fragments. */
+	private List<Fragment> readFragments() throws IOException {
+		final ByteBuffer file = ByteBuffer.wrap(readFile());
+		final List<String> types = new ArrayList<>();
+		final List<Fragment> fragments = new ArrayList<>();
+		Fragment fragment = null;
+		while (file.remaining() >= 8) {
+			final int start = file.position();
+			final int size = file.getInt();
+			final String type = fourcc(file);
+			types.add(type);
+			if (type.equals("moof")) {
+				fragment = new Fragment();
+				readMoof(file, start + size, fragment);
+			} else if (type.equals("mdat")) {
+				assertNotNull(fragment);
+				fragment.mdatSize = size - 8;
+				fragments.add(fragment);
+				fragment = null;
+			}
+			file.position(start + size);
+		}
+		assertEquals(0, file.remaining());
+		assertEquals("ftyp", types.get(0));
+		assertEquals("moov", types.get(1));
+		return fragments;
+	}
+
+	private static void readMoof(ByteBuffer file, int end, Fragment fragment) {
+		while (file.position() < end) {
+			final int start = file.position();
+			final int size = file.getInt();
+			final String type = fourcc(file);
+			if (type.equals("traf")) {
+				readTraf(file, start + size, fragment);
+			}
+			file.position(start + size);
+		}
+	}
+
+	private static void readTraf(ByteBuffer file, int end, Fragment fragment) {
+		List<Sample> samples = null;
+		while (file.position() < end) {
+			final int start = file.position();
+			final int size = file.getInt();
+			final String type = fourcc(file);
+			if (type.equals("tfhd")) {
+				file.getInt();
+				samples = file.getInt() == 1 ? fragment.video : fragment.audio;
+			} else if (type.equals("trun")) {
+				assertNotNull(samples);
+				assertEquals(0x000701, file.getInt());
+				final int count = file.getInt();
+				file.getInt();	// data_offset
+				for (int i = 0; i < count; i++) {
+					final Sample sample = new Sample();
+					sample.duration = file.getInt();
+					sample.size = file.getInt();
+					sample.sync = (file.getInt() & 0x00010000) == 0;
+					samples.add(sample);
+				}
+			}
+			file.position(start + size);
+		}
+	}
+
+	private static String fourcc(ByteBuffer buffer) {
+		final char[] type = new char[4];
+		for (int i = 0; i < 4; i++) type[i] = (char) buffer.get();
+		return new String(type);
+	}
+
+	private static class Sample {
+		int duration, size;
+		boolean sync;
+	}
+
+	private static class Fragment {
+		final List<Sample> video = new ArrayList<>();
+		final List<Sample> audio = new ArrayList<>();
+		int mdatSize;
+	}
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+import com.serenegiant.media.MediaFrameBus;
+
+import androidx.annotation.NonNull;
+
+/**
+ * A {@link FrameInputStream} that returns frames given by the test instead of the frames of an encoder.
+ * Once all its frames are read, read() throws an IOException as if the stream was closed, which ends
+ * the loop of the packetizer reading it.
+ */
+class CannedFrameInputStream extends FrameInputStream {
+
+	private static class Frame {
+		final byte[] data;
+		final long presentationTimeUs;
+		final int flags;
+
+		Frame(byte[] data, long presentationTimeUs, int flags) {
+			this.data = data;
+			this.presentationTimeUs = presentationTimeUs;
+			this.flags = flags;
+		}
+	}
+
+	private final ArrayDeque<Frame> mFrames = new ArrayDeque<>();
+	private Frame mFrame = null;
+	private int mPosition = 0;
+	private long mPresentationTimeUs = 0;
+	private int mFlags = 0;
+
+	CannedFrameInputStream() {
+		super(new MediaFrameBus(1, 1));
+	}
+
+	/** Queues a frame, returned once the previous ones are read. */
+	CannedFrameInputStream add(byte[] data, long presentationTimeUs, int flags) {
+		mFrames.add(new Frame(data, presentationTimeUs, flags));
+		return this;
+	}
+
+	@Override
+	public boolean hasFrame() {
+		return mFrame != null || !mFrames.isEmpty();
+	}
+
+	@Override
+	public int available() {
+		return mFrame != null ? mFrame.data.length - mPosition : 0;
+	}
+
+	@Override
+	public long presentationTimeUs() {
+		return mPresentationTimeUs;
+	}
+
+	@Override
+	public int flags() {
+		return mFlags;
+	}
+
+	@Override
+	public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+		if (mFrame == null) {
+			mFrame = mFrames.poll();
+			if (mFrame == null) throw new IOException("No more frames");
+			mPosition = 0;
+			mPresentationTimeUs = mFrame.presentationTimeUs;
+			mFlags = mFrame.flags;
+		}
+		final int min = Math.min(length, mFrame.data.length - mPosition);
+		System.arraycopy(mFrame.data, mPosition, buffer, offset, min);
+		mPosition += min;
+		if (mPosition == mFrame.data.length) mFrame = null;
+		return min;
+	}
+
+}
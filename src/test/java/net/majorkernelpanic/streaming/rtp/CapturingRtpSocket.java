@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A RtpSocket that keeps a copy of the packets committed by a packetizer. The packets are still
+ * committed to the FIFO, but the socket has no destination so nothing is sent.
+ */
+class CapturingRtpSocket extends RtpSocket {
+
+	/** A RTP packet committed by the packetizer. */
+	static class Packet {
+		final byte[] data;
+
+		Packet(byte[] data) {
+			this.data = data;
+		}
+
+		boolean marker() {
+			return (data[1] & 0x80) != 0;
+		}
+
+		long timestamp() {
+			return (data[4] & 0xFFL) << 24 | (data[5] & 0xFF) << 16 | (data[6] & 0xFF) << 8 | data[7] & 0xFF;
+		}
+
+		/** Returns the payload of the packet, after the RTP header. */
+		byte[] payload() {
+			return Arrays.copyOfRange(data, RTP_HEADER_LENGTH, data.length);
+		}
+	}
+
+	final List<Packet> packets = new ArrayList<>();
+	private byte[] mBuffer;
+
+	private CapturingRtpSocket(RtpSocket socket) {
+		super(0);
+		setClockFrequency(socket.getClockFrequency());
+		setMediaClass(socket.getMediaClass());
+		setSSRC(socket.getSSRC());
+	}
+
+	/**
+	 * Replaces the socket of a packetizer with a socket capturing its packets, configured like the
+	 * socket it replaces.
+	 */
+	static CapturingRtpSocket capture(AbstractPacketizer packetizer) {
+		final CapturingRtpSocket socket = new CapturingRtpSocket(packetizer.socket);
+		packetizer.socket.close();
+		packetizer.socket = socket;
+		return socket;
+	}
+
+	/** Returns the number of packets committed so far, may be called by another thread than the packetizer. */
+	int count() {
+		synchronized (packets) {
+			return packets.size();
+		}
+	}
+
+	@Override
+	public byte[] requestBuffer() throws InterruptedException {
+		mBuffer = super.requestBuffer();
+		return mBuffer;
+	}
+
+	@Override
+	public void commitBuffer(int length) throws IOException {
+		synchronized (packets) {
+			packets.add(new Packet(Arrays.copyOf(mBuffer, length)));
+		}
+		super.commitBuffer(length);
+	}
+
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.rtp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import android.media.MediaCodec;
+
+public class H265PacketizerTest {
+
+	private static final int VPS = 32, SPS = 33, PPS = 34, TRAIL_R = 1, IDR_W_RADL = 19, AP = 48, FU = 49;
+
+	private H265Packetizer mPacketizer;
+	private CapturingRtpSocket mSocket;
+	private CannedFrameInputStream mInput;
+
+	@Before
+	public void setUp() {
+		mPacketizer = new H265Packetizer(0);
+		mSocket = CapturingRtpSocket.capture(mPacketizer);
+		mInput = new CannedFrameInputStream();
+		mPacketizer.setInputStream(mInput);
+	}
+
+	@Test
+	public void smallNalUnitsAreAggregated() {
+		final byte[] vps = nal(VPS, 24), sps = nal(SPS, 40), pps = nal(PPS, 8), idr = nal(IDR_W_RADL, 300);
+		mInput.add(accessUnit(vps, sps, pps, idr), 2000000, 0);
+		mPacketizer.run();
+
+		assertEquals(1, mSocket.packets.size());
+		final CapturingRtpSocket.Packet packet = mSocket.packets.get(0);
+		assertTrue(packet.marker());
+		// 2 s on the 90 kHz clock
+		assertEquals(180000, packet.timestamp());
+		final byte[] payload = packet.payload();
+		assertEquals(AP, type(payload));
+		// LayerId 0 and TID 1, those of the aggregated NAL units
+		assertEquals(0x01, payload[1]);
+		assertNalUnits(payload, 2, vps, sps, pps, idr);
+	}
+
+	@Test
+	public void largeNalUnitIsFragmented() {
+		final byte[] slice = nal(TRAIL_R, 3000);
+		mInput.add(accessUnit(slice), 40000, 0);
+		mPacketizer.run();
+
+		final List<CapturingRtpSocket.Packet> packets = mSocket.packets;
+		assertEquals(3, packets.size());
+		final ByteArrayOutputStream fragments = new ByteArrayOutputStream();
+		for (int i = 0; i < packets.size(); i++) {
+			final byte[] payload = packets.get(i).payload();
+			final boolean first = i == 0, last = i == packets.size() - 1;
+			assertEquals(FU, type(payload));
+			// The payload header keeps the LayerId and TID of the NAL unit
+			assertEquals(slice[1], payload[1]);
+			// FU header: start bit on the first fragment, end bit on the last one, and the type of the NAL unit
+			assertEquals((first ? 0x80 : 0) | (last ? 0x40 : 0) | TRAIL_R, payload[2] & 0xFF);
+			assertEquals(last, packets.get(i).marker());
+			assertEquals(3600, packets.get(i).timestamp());
+			fragments.write(payload, 3, payload.length - 3);
+		}
+		assertArrayEquals(Arrays.copyOfRange(slice, 2, slice.length), fragments.toByteArray());
+	}
+
+	@Test
+	public void mediumNalUnitIsSentAlone() {
+		final byte[] slice = nal(TRAIL_R, 1200);
+		mInput.add(accessUnit(slice), 0, 0);
+		mPacketizer.run();
+
+		assertEquals(1, mSocket.packets.size());
+		assertArrayEquals(slice, mSocket.packets.get(0).payload());
+		assertTrue(mSocket.packets.get(0).marker());
+	}
+
+	@Test
+	public void parameterSetsAreInsertedBeforeIrapPictures() {
+		final byte[] vps = nal(VPS, 24), sps = nal(SPS, 40), pps = nal(PPS, 8);
+		mPacketizer.setStreamParameters(vps, sps, pps);
+		final byte[] idr = nal(IDR_W_RADL, 500), slice = nal(TRAIL_R, 200);
+		mInput.add(accessUnit(idr), 0, 0);
+		mInput.add(accessUnit(slice), 33333, 0);
+		mPacketizer.run();
+
+		assertEquals(2, mSocket.packets.size());
+		final byte[] first = mSocket.packets.get(0).payload();
+		assertEquals(AP, type(first));
+		assertNalUnits(first, 2, vps, sps, pps, idr);
+		// The pictures that are not IRAP pictures are sent as they are
+		assertArrayEquals(slice, mSocket.packets.get(1).payload());
+	}
+
+	@Test
+	public void parameterSetsOfTheStreamAreNotRepeated() {
+		mPacketizer.setStreamParameters(nal(VPS, 10), nal(SPS, 10), nal(PPS, 10));
+		final byte[] vps = nal(VPS, 24), sps = nal(SPS, 40), pps = nal(PPS, 8), idr = nal(IDR_W_RADL, 300);
+		mInput.add(accessUnit(vps, sps, pps, idr), 0, 0);
+		mPacketizer.run();
+
+		assertEquals(1, mSocket.packets.size());
+		assertNalUnits(mSocket.packets.get(0).payload(), 2, vps, sps, pps, idr);
+	}
+
+	@Test
+	public void markerIsOnlySetOnTheLastPartOfAPicture() {
+		final byte[] first = nal(TRAIL_R, 600), second = nal(TRAIL_R, 600);
+		mInput.add(accessUnit(first), 0, MediaCodec.BUFFER_FLAG_PARTIAL_FRAME);
+		mInput.add(accessUnit(second), 0, 0);
+		mPacketizer.run();
+
+		assertEquals(2, mSocket.packets.size());
+		assertFalse(mSocket.packets.get(0).marker());
+		assertTrue(mSocket.packets.get(1).marker());
+	}
+
+	/** Checks the NAL units of an aggregation packet, each one preceded by its size. */
+	private static void assertNalUnits(byte[] payload, int offset, byte[]... nals) {
+		for (byte[] nal : nals) {
+			assertEquals(nal.length, (payload[offset] & 0xFF) << 8 | payload[offset + 1] & 0xFF);
+			assertArrayEquals(nal, Arrays.copyOfRange(payload, offset + 2, offset + 2 + nal.length));
+			offset += 2 + nal.length;
+		}
+		assertEquals(payload.length, offset);
+	}
+
+	private static int type(byte[] payload) {
+		return (payload[0] >> 1) & 0x3F;
+	}
+
+	/** Returns a NAL unit of the given type with LayerId 0 and TID 1, its payload has no zero byte. */
+	static byte[] nal(int type, int length) {
+		final byte[] nal = new byte[length];
+		nal[0] = (byte) (type << 1);
+		nal[1] = 0x01;
+		for (int i = 2; i < length; i++) {
+			nal[i] = (byte) (1 + (i + type) % 251);
+		}
+		return nal;
+	}
+
+	/** Returns the NAL units preceded by start codes, as output by the encoder. */
+	static byte[] accessUnit(byte[]... nals) {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (byte[] nal : nals) {
+			out.write(0);
+			out.write(0);
+			out.write(0);
+			out.write(1);
+			out.write(nal, 0, nal.length);
+		}
+		return out.toByteArray();
+	}
+
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.serenegiant.media.MediaFrameBus;
+import com.serenegiant.media.SharedMediaData;
+
+import net.majorkernelpanic.streaming.StreamingExecutors;
+
+/**
+ * Runs more than a hundred packetizers at once, as a server streaming to many clients would,
+ * and checks that they share the threads of {@link StreamingExecutors} instead of each having its own.
+ * <p>
+ * The frames are published on the buses directly. With encoders fed by buffers, each stream would
+ * also have a {@link MediaCodecInputStream} task polling its encoder every few milliseconds on the
+ * pool, which isn't measured here.
+ */
+public class ManyStreamsTest {
+
+	private static final int STREAMS = 120;
+	private static final int FRAMES = 60;
+	private static final int TRAIL_R = 1;
+
+	@Test
+	public void packetizersShareTheThreadsOfThePool() throws InterruptedException {
+		final int threadsBefore = Thread.activeCount();
+		final MediaFrameBus[] buses = new MediaFrameBus[STREAMS];
+		final H265Packetizer[] packetizers = new H265Packetizer[STREAMS];
+		final CapturingRtpSocket[] sockets = new CapturingRtpSocket[STREAMS];
+		for (int i = 0; i < STREAMS; i++) {
+			buses[i] = new MediaFrameBus(4, 50);
+			packetizers[i] = new H265Packetizer(0);
+			sockets[i] = CapturingRtpSocket.capture(packetizers[i]);
+			packetizers[i].setInputStream(new FrameInputStream(buses[i]));
+			packetizers[i].start();
+		}
+
+		// Every stream receives a frame every 10 ms, they are published by a single thread like the codec looper
+		final byte[] frame = H265PacketizerTest.accessUnit(H265PacketizerTest.nal(TRAIL_R, 500));
+		int maxThreads = 0;
+		for (int n = 0; n < FRAMES; n++) {
+			for (int i = 0; i < STREAMS; i++) {
+				SharedMediaData data;
+				while ((data = buses[i].obtain()) == null) {
+					Thread.sleep(1);
+				}
+				data.set(ByteBuffer.wrap(frame), 0, frame.length, n * 10000L, 0);
+				buses[i].publish(data);
+			}
+			maxThreads = Math.max(maxThreads, Thread.activeCount());
+			Thread.sleep(10);
+		}
+
+		final long deadline = System.currentTimeMillis() + 10000;
+		for (int i = 0; i < STREAMS; i++) {
+			while (sockets[i].count() < FRAMES && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+		}
+		for (int i = 0; i < STREAMS; i++) {
+			packetizers[i].stop();
+			assertEquals("Packets of stream "+i, FRAMES, sockets[i].count());
+		}
+
+		// The packetizer pool, the sender threads, and some slack for the threads of the test runner
+		final int allowed = Runtime.getRuntime().availableProcessors() + StreamingExecutors.getSenderThreads() + 4;
+		assertTrue("Threads: "+(maxThreads - threadsBefore)+" for "+STREAMS+" streams",
+				maxThreads - threadsBefore <= allowed);
+	}
+
+	@Test
+	public void fullFifosDontHoldThePoolThreads() throws InterruptedException {
+		// More streams than threads in the pool, each with more frames than its FIFO can hold
+		final int streams = Runtime.getRuntime().availableProcessors() + 2;
+		final int frames = 350;
+		final MediaFrameBus[] buses = new MediaFrameBus[streams];
+		final H265Packetizer[] packetizers = new H265Packetizer[streams];
+		final CapturingRtpSocket[] sockets = new CapturingRtpSocket[streams];
+		for (int i = 0; i < streams; i++) {
+			buses[i] = new MediaFrameBus(4, 100);
+			packetizers[i] = new H265Packetizer(0);
+			sockets[i] = CapturingRtpSocket.capture(packetizers[i]);
+			packetizers[i].setInputStream(new FrameInputStream(buses[i]));
+			packetizers[i].start();
+			// Nothing is sent for a second, the FIFOs fill up
+			sockets[i].setCacheSize(1000);
+		}
+
+		final byte[] frame = H265PacketizerTest.accessUnit(H265PacketizerTest.nal(TRAIL_R, 500));
+		for (int n = 0; n < frames; n++) {
+			for (int i = 0; i < streams; i++) {
+				SharedMediaData data;
+				while ((data = buses[i].obtain()) == null) {
+					Thread.sleep(1);
+				}
+				data.set(ByteBuffer.wrap(frame), 0, frame.length, n * 1000L, 0);
+				buses[i].publish(data);
+			}
+		}
+
+		// The packetizers wait for room without a thread
+		final CountDownLatch ran = new CountDownLatch(1);
+		StreamingExecutors.getExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				ran.countDown();
+			}
+		});
+		assertTrue("The pool is blocked", ran.await(500, TimeUnit.MILLISECONDS));
+		for (int i = 0; i < streams; i++) {
+			assertTrue("Packets of stream "+i+" before the FIFO is sent", sockets[i].count() < frames);
+		}
+
+		// They carry on once the RtpSender has made room, without losing a packet
+		final long deadline = System.currentTimeMillis() + 10000;
+		for (int i = 0; i < streams; i++) {
+			while (sockets[i].count() < frames && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+		}
+		for (int i = 0; i < streams; i++) {
+			packetizers[i].stop();
+			assertEquals("Packets of stream "+i, frames, sockets[i].count());
+		}
+	}
+
+}
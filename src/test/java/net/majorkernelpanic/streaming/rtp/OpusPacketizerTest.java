@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.rtp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import android.media.MediaCodec;
+
+public class OpusPacketizerTest {
+
+	// OpusHead and the pre-skip given by the encoder as codec specific data
+	private static final byte[] OPUS_HEAD = {
+		'O', 'p', 'u', 's', 'H', 'e', 'a', 'd', 1, 1, 0x38, 0x01, (byte) 0x80, (byte) 0xBB, 0, 0, 0, 0, 0
+	};
+	private static final byte[] PRE_SKIP = {0x00, 0x3E, 0x49, 0x00, 0x00, 0x00, 0x00, 0x00};
+
+	private OpusPacketizer mPacketizer;
+	private CapturingRtpSocket mSocket;
+	private CannedFrameInputStream mInput;
+
+	@Before
+	public void setUp() {
+		mPacketizer = new OpusPacketizer(0);
+		mSocket = CapturingRtpSocket.capture(mPacketizer);
+		mInput = new CannedFrameInputStream();
+		mPacketizer.setInputStream(mInput);
+	}
+
+	@Test
+	public void eachOpusPacketIsSentInARtpPacket() {
+		final byte[][] frames = {frame(0x78, 120), frame(0x78, 80), frame(0x78, 160)};
+		for (int i = 0; i < frames.length; i++) {
+			mInput.add(frames[i], i * 20000L, 0);
+		}
+		mPacketizer.run();
+
+		assertEquals(frames.length, mSocket.packets.size());
+		for (int i = 0; i < frames.length; i++) {
+			assertArrayEquals(frames[i], mSocket.packets.get(i).payload());
+		}
+	}
+
+	@Test
+	public void codecSpecificDataIsSkipped() {
+		mInput.add(OPUS_HEAD, 0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+		mInput.add(PRE_SKIP, 0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+		final byte[] frame = frame(0x78, 100);
+		mInput.add(frame, 0, 0);
+		mPacketizer.run();
+
+		assertEquals(1, mSocket.packets.size());
+		assertArrayEquals(frame, mSocket.packets.get(0).payload());
+	}
+
+	@Test
+	public void timestampsAreOnThe48kHzClock() {
+		// 20 ms and 10 ms frames
+		final long[] presentationTimesUs = {1000000, 1020000, 1040000, 1050000, 1060000};
+		for (long pts : presentationTimesUs) {
+			mInput.add(frame(0x78, 60), pts, 0);
+		}
+		mPacketizer.run();
+
+		assertEquals(presentationTimesUs.length, mSocket.packets.size());
+		for (int i = 0; i < presentationTimesUs.length; i++) {
+			assertEquals(presentationTimesUs[i] * 48 / 1000, mSocket.packets.get(i).timestamp());
+		}
+		// 960 samples for the 20 ms frames, 480 for the 10 ms frames
+		assertEquals(960, mSocket.packets.get(1).timestamp() - mSocket.packets.get(0).timestamp());
+		assertEquals(480, mSocket.packets.get(4).timestamp() - mSocket.packets.get(3).timestamp());
+	}
+
+	@Test
+	public void packetsTooBigForTheMtuAreDropped() {
+		final byte[] small = frame(0x78, 100);
+		mInput.add(frame(0xFC, 2000), 0, 0);
+		mInput.add(small, 20000, 0);
+		mPacketizer.run();
+
+		assertEquals(1, mSocket.packets.size());
+		assertArrayEquals(small, mSocket.packets.get(0).payload());
+	}
+
+	/** Returns an Opus packet starting with the given TOC byte. */
+	private static byte[] frame(int toc, int length) {
+		final byte[] frame = new byte[length];
+		frame[0] = (byte) toc;
+		for (int i = 1; i < length; i++) {
+			frame[i] = (byte) (i * 31 + toc);
+		}
+		return frame;
+	}
+
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.serenegiant.utils.BufferHelper;
+
+/**
+ * Compares {@link BufferHelper#findStartCode(byte[], int, int)}, which skips the 8 byte words
+ * without a zero byte, with the byte by byte scan it replaced. Both count the start codes of
+ * a H.264 bitstream.
+ * <p>
+ * The bitstream is read from the Annex-B file given by the <code>benchmark.annexb</code> property,
+ * e.g. <code>ffmpeg -i clip.mp4 -c:v copy -bsf:v h264_mp4toannexb -f h264 clip.h264</code>.
+ * Without it, a bitstream with the sizes of a 1080p stream at 8 Mbit/s is generated, see
+ * {@link #generate(int, long)}. Run with <code>-Dbenchmark=true</code>, see {@link net.majorkernelpanic.streaming.BenchmarksTest}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+public class StartCodeBenchmark {
+
+	/** 1080p at 30 fps and 8 Mbit/s, a key frame every second, 4 slices per frame like most hardware encoders. */
+	private static final int FRAMES = 90;
+	private static final int FRAME_RATE = 30;
+	private static final int BITRATE = 8000000;
+	private static final int KEY_FRAME_SIZE = 150000;
+	private static final int SLICES = 4;
+
+	private byte[] mBitstream;
+
+	@Setup
+	public void setUp() throws IOException {
+		final String path = System.getProperty("benchmark.annexb");
+		mBitstream = path != null ? read(path) : generate(FRAMES, 42);
+		final int expected = byteByByte();
+		if (wordAtATime() != expected) {
+			throw new IllegalStateException("The scans found a different number of start codes");
+		}
+	}
+
+	@Benchmark
+	public int wordAtATime() {
+		final byte[] data = mBitstream;
+		int count = 0;
+		int i = BufferHelper.findStartCode(data, 0, data.length);
+		while (i >= 0) {
+			count++;
+			i = BufferHelper.findStartCode(data, i + 3, data.length);
+		}
+		return count;
+	}
+
+	/** The loop of BufferHelper.findAnnexB before the 8 byte scan. */
+	@Benchmark
+	public int byteByByte() {
+		final byte[] data = mBitstream;
+		final int end = data.length - 2;
+		int count = 0;
+		for (int i = 0; i < end; i++) {
+			if ((data[i] == 0x00) && (data[i + 1] == 0x00) && (data[i + 2] == 0x01)) {
+				count++;
+				i += 2;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Generates an Annex-B bitstream: SPS and PPS before each key frame, and random slice data with
+	 * emulation prevention bytes, so that start codes are only found at the start of the NAL units.
+	 */
+	static byte[] generate(int frames, long seed) {
+		final Random random = new Random(seed);
+		final int frameSize = BITRATE / 8 / FRAME_RATE;
+		final int predictedSize = (frameSize * FRAME_RATE - KEY_FRAME_SIZE) / (FRAME_RATE - 1);
+		final ByteArrayOutputStream output = new ByteArrayOutputStream(frames * frameSize * 11 / 10);
+		for (int n = 0; n < frames; n++) {
+			final boolean keyFrame = n % FRAME_RATE == 0;
+			if (keyFrame) {
+				nal(output, random, 0x67, 20);
+				nal(output, random, 0x68, 4);
+			}
+			// The size of the predicted frames varies by +/- 25%
+			final int size = keyFrame ? KEY_FRAME_SIZE : predictedSize * 3 / 4 + random.nextInt(predictedSize / 2);
+			for (int s = 0; s < SLICES; s++) {
+				nal(output, random, keyFrame ? 0x65 : 0x41, size / SLICES);
+			}
+		}
+		return output.toByteArray();
+	}
+
+	private static void nal(ByteArrayOutputStream output, Random random, int header, int length) {
+		output.write(0);
+		output.write(0);
+		output.write(0);
+		output.write(1);
+		output.write(header);
+		int zeros = 0;
+		for (int i = 1; i < length; i++) {
+			final int b = random.nextInt(256);
+			if (zeros == 2 && b <= 3) {
+				output.write(3);
+				zeros = 0;
+			}
+			output.write(b);
+			zeros = b == 0 ? zeros + 1 : 0;
+		}
+		// A NAL unit never ends with a zero byte
+		if (zeros > 0) output.write(0x80);
+	}
+
+	private static byte[] read(String path) throws IOException {
+		final RandomAccessFile file = new RandomAccessFile(path, "r");
+		try {
+			final byte[] data = new byte[(int) file.length()];
+			file.readFully(data);
+			return data;
+		} finally {
+			file.close();
+		}
+	}
+
+}
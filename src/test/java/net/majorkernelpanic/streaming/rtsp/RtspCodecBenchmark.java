@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtsp;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares {@link RtspCodec} with the BufferedReader and regular expressions parser it replaced in
+ * {@link RtspServer}. Each operation parses the requests of a whole session of a player, from
+ * OPTIONS to TEARDOWN (<code>rtsp/session.txt</code> in the test resources), and the client ports
+ * of the SETUP requests. Run with <code>-Dbenchmark=true</code>, see {@link net.majorkernelpanic.streaming.BenchmarksTest}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+public class RtspCodecBenchmark {
+
+	private static final String SESSION = "rtsp/session.txt";
+
+	private final RtspCodec mCodec = new RtspCodec();
+	private final RtspCodec.Message mMessage = new RtspCodec.Message();
+	private byte[] mSession;
+	private int mRequests;
+
+	@Setup
+	public void setUp() throws IOException {
+		mSession = load(SESSION);
+		final ByteBuffer input = ByteBuffer.wrap(mSession);
+		final RtspCodec codec = new RtspCodec();
+		final RtspCodec.Message message = new RtspCodec.Message();
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(mSession)));
+		mRequests = 0;
+		while (codec.decode(input, message)) {
+			final LegacyRequest request = LegacyRequest.parseRequest(reader);
+			if (!message.method.equals(request.method) || !message.uri.equals(request.uri)
+					|| message.headers.size() != request.headers.size()) {
+				throw new IllegalStateException("The parsers disagree on "+request.method);
+			}
+			for (String name : request.headers.keySet()) {
+				if (!request.headers.get(name).trim().equals(message.headers.get(name))) {
+					throw new IllegalStateException("The parsers disagree on the header "+name+" of "+request.method);
+				}
+			}
+			mRequests++;
+		}
+		if (codec() != regex()) {
+			throw new IllegalStateException("The parsers disagree on the client ports");
+		}
+	}
+
+	@Benchmark
+	public int codec() throws IOException {
+		// As in RtspServer, the codec of a connection parses all its requests
+		final ByteBuffer input = ByteBuffer.wrap(mSession);
+		int checksum = 0;
+		for (int n = 0; n < mRequests; n++) {
+			if (!mCodec.decode(input, mMessage)) throw new IllegalStateException("Truncated session");
+			checksum += mMessage.headers.size();
+			if (mMessage.method.equals("SETUP")) {
+				final int[] ports = RtspCodec.parsePorts(RtspCodec.getParameter(mMessage.headers.get("transport"), "client_port"));
+				checksum += ports[0] + ports[1];
+			}
+		}
+		return checksum;
+	}
+
+	@Benchmark
+	public int regex() throws IOException {
+		// As RtspServer did, a BufferedReader per connection
+		final BufferedReader input = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(mSession)));
+		int checksum = 0;
+		for (int n = 0; n < mRequests; n++) {
+			final LegacyRequest request = LegacyRequest.parseRequest(input);
+			checksum += request.headers.size();
+			if (request.method.equals("SETUP")) {
+				final Matcher m = Pattern.compile("client_port=(\\d+)(?:-(\\d+))?", Pattern.CASE_INSENSITIVE).matcher(request.headers.get("transport"));
+				if (m.find()) {
+					final int p1 = Integer.parseInt(m.group(1));
+					checksum += p1 + (m.group(2) == null ? p1+1 : Integer.parseInt(m.group(2)));
+				}
+			}
+		}
+		return checksum;
+	}
+
+	/** Reads a resource, with its lines ended by CRLF as RTSP requires. */
+	private static byte[] load(String name) throws IOException {
+		final InputStream input = RtspCodecBenchmark.class.getClassLoader().getResourceAsStream(name);
+		if (input == null) throw new IOException("Missing resource "+name);
+		try {
+			final ByteArrayOutputStream output = new ByteArrayOutputStream();
+			int b;
+			while ((b = input.read()) >= 0) {
+				if (b == '\r') continue;
+				if (b == '\n') output.write('\r');
+				output.write(b);
+			}
+			return output.toByteArray();
+		} finally {
+			input.close();
+		}
+	}
+
+	/** RtspServer.Request.parseRequest before RtspCodec, without its logging. */
+	static class LegacyRequest {
+
+		// Parse method & uri
+		public static final Pattern regexMethod = Pattern.compile("(\\w+) (\\S+) RTSP",Pattern.CASE_INSENSITIVE);
+		// Parse a request header
+		public static final Pattern rexegHeader = Pattern.compile("(\\S+):(.+)",Pattern.CASE_INSENSITIVE);
+
+		public String method;
+		public String uri;
+		public HashMap<String,String> headers = new HashMap<>();
+
+		/** Parse the method, uri & headers of a RTSP request */
+		public static LegacyRequest parseRequest(BufferedReader input) throws IOException, IllegalStateException {
+			LegacyRequest request = new LegacyRequest();
+			String line;
+			Matcher matcher;
+
+			// Parsing request method & uri
+			if ((line = input.readLine())==null) throw new SocketException("Client disconnected");
+			matcher = regexMethod.matcher(line);
+			matcher.find();
+			request.method = matcher.group(1);
+			request.uri = matcher.group(2);
+
+			// Parsing headers of the request
+			while ( (line = input.readLine()) != null && line.length()>3 ) {
+				matcher = rexegHeader.matcher(line);
+				matcher.find();
+				request.headers.put(matcher.group(1).toLowerCase(Locale.US),matcher.group(2));
+			}
+			if (line==null) throw new SocketException("Client disconnected");
+
+			return request;
+		}
+	}
+
+}
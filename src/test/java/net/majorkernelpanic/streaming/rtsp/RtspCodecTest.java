@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtsp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class RtspCodecTest {
+
+	@Test
+	public void nonAsciiHeaderValueIsWrittenInUtf8() throws IOException {
+		final String uri = "rtsp://192.168.1.20:8086/caméra/trackID=1";
+		final RtspCodec.Writer writer = new RtspCodec.Writer()
+				.start("RTSP/1.0 200 OK")
+				.header("CSeq", 4)
+				.header("Content-Base", uri)
+				.header("Session", "1185d20035702ca");
+		writer.content("s=Salle de réunion\r\n");
+
+		final RtspCodec.Message message = decode(writer);
+		assertEquals(RtspCodec.MESSAGE_RESPONSE, message.type);
+		assertEquals(200, message.status);
+		assertEquals("4", message.headers.get("cseq"));
+		assertEquals(uri, message.headers.get("content-base"));
+		assertEquals("1185d20035702ca", message.headers.get("session"));
+		assertEquals("s=Salle de réunion\r\n", message.content);
+	}
+
+	@Test
+	public void contentLengthIsCountedInBytes() throws IOException {
+		final RtspCodec.Writer writer = new RtspCodec.Writer().start("RTSP/1.0 200 OK");
+		writer.content("s=Ünïcödé\r\n");
+
+		final String response = writer.toString();
+		assertTrue(response, response.contains("Content-Length: "+"s=Ünïcödé\r\n".getBytes(StandardCharsets.UTF_8).length+"\r\n"));
+		assertEquals("s=Ünïcödé\r\n", decode(writer).content);
+	}
+
+	@Test
+	public void nonAsciiCharacterAfterTheBufferIsGrown() throws IOException {
+		final StringBuilder value = new StringBuilder();
+		for (int i = 0; i < 2000; i++) value.append('a');
+		value.append('é');
+		final RtspCodec.Writer writer = new RtspCodec.Writer()
+				.start("RTSP/1.0 200 OK")
+				.header("CSeq", 2)
+				.header("Server", value.toString());
+		writer.content(null);
+
+		final RtspCodec.Message message = decode(writer);
+		assertEquals("2", message.headers.get("cseq"));
+		assertEquals(value.toString(), message.headers.get("server"));
+	}
+
+	private static RtspCodec.Message decode(RtspCodec.Writer writer) throws IOException {
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		writer.writeTo(output);
+		final RtspCodec.Message message = new RtspCodec.Message();
+		assertTrue(new RtspCodec().decode(ByteBuffer.wrap(output.toByteArray()), message));
+		return message;
+	}
+
+}